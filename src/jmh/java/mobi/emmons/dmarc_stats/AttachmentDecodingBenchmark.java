@@ -0,0 +1,55 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Decodes report emails into MsgInfos (MIME parsing, base-64 decoding, and
+ * capture of the zip or gzip attachment) and decompresses each report's XML,
+ * as happens for every message downloaded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class AttachmentDecodingBenchmark {
+	@Param({ "ZIP", "GZIP" })
+	public ReportPayload.Compression compression;
+
+	private final Session session = Session.getInstance(new Properties());
+	private List<byte[]> messages;
+
+	@Setup
+	public void setUp(ReportCorpus corpus) {
+		messages = corpus.reports.stream()
+			.map(xml -> ReportCorpus.reportMessage(xml, compression))
+			.toList();
+	}
+
+	@Benchmark
+	public void decodeAttachment(Blackhole blackhole) throws MessagingException, IOException {
+		for (var messageBytes : messages) {
+			var msgInfo = new MsgInfo(new MimeMessage(session, new ByteArrayInputStream(messageBytes)));
+			try (var payload = msgInfo.payload(); var is = payload.openXml()) {
+				blackhole.consume(is.transferTo(OutputStream.nullOutputStream()));
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Formats the corpus as CSV (to a writer that discards it): every record as a
+ * row of identifier-report.csv, and message counts grouped by domain, org and
+ * source IP as in aggregate-report.csv.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class CsvExportBenchmark {
+	private static final List<Dimension> AGGREGATE_DIMENSIONS = List.of(Dimension.POLICY_DOMAIN,
+		Dimension.ORG_NAME, Dimension.SOURCE_IP);
+
+	private List<Feedback> reports;
+	private ReportAggregator aggregator;
+
+	@Setup
+	public void setUp(ReportCorpus corpus) {
+		reports = corpus.parse();
+		aggregator = new ReportAggregator(AGGREGATE_DIMENSIONS);
+		for (var feedback : reports) {
+			aggregator.add(feedback);
+		}
+	}
+
+	@Benchmark
+	public void identifierReport() throws IOException {
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader("Report ID", "Org. Name", "Policy Domain", "Source IP", "Envelope To", "Envelope From",
+				"Header From", "DKIM Domain", "SPF Domain")
+			.setRecordSeparator(System.lineSeparator())
+			.build();
+		try (var printer = csvFormat.print(Writer.nullWriter())) {
+			for (var feedback : reports) {
+				for (var record : feedback.getRecord()) {
+					App.printIdentifierRecord(printer, feedback, record, null);
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public long aggregateReport() throws IOException {
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader(QueryEngine.groupHeader(aggregator))
+			.setRecordSeparator(System.lineSeparator())
+			.build();
+		try (var printer = csvFormat.print(Writer.nullWriter())) {
+			return QueryEngine.printGroups(aggregator, printer);
+		}
+	}
+}
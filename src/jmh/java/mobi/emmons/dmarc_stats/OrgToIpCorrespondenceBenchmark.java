@@ -0,0 +1,51 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Counts the corpus's messages by source IP and org, as App does for its
+ * org-to-IP correspondence, and then prints the counts both ways round (to a
+ * stream that discards them).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class OrgToIpCorrespondenceBenchmark {
+	private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+	private List<Feedback> reports;
+
+	@Setup
+	public void setUp(ReportCorpus corpus) {
+		reports = corpus.parse();
+	}
+
+	@Benchmark
+	public ReportAggregator aggregate() {
+		var ipOrgCounts = new ReportAggregator(List.of(Dimension.SOURCE_IP, Dimension.ORG_NAME));
+		for (var feedback : reports) {
+			ipOrgCounts.add(feedback);
+		}
+		return ipOrgCounts;
+	}
+
+	@Benchmark
+	public ReportAggregator orgToIpCorrespondence() {
+		var ipOrgCounts = aggregate();
+		App.orgToIpCorrespondence(ipOrgCounts, out);
+		return ipOrgCounts;
+	}
+}
@@ -0,0 +1,35 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parses each report of the corpus, with DmarcReportStore.parseReport (which
+ * uses JAXB) and, for comparison, with the StAX backend.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseReportBenchmark {
+	@Benchmark
+	public void parseReport(ReportCorpus corpus, Blackhole blackhole) {
+		for (var xml : corpus.reports) {
+			blackhole.consume(DmarcReportStore.parseReport(xml));
+		}
+	}
+
+	@Benchmark
+	public void parseReportStax(ReportCorpus corpus, Blackhole blackhole) {
+		var codec = ReportCodec.forBackend(ReportCodec.Backend.STAX);
+		for (var xml : corpus.reports) {
+			try (var rdr = new StringReader(xml)) {
+				blackhole.consume(codec.parse(rdr));
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * A generated corpus of DMARC aggregate reports, shared by the benchmarks. The
+ * reports look like those the big receivers send (no namespace, a handful of
+ * orgs and policy domains, a skewed pool of source IPs with some IPv6 among
+ * them), and a given size always generates the same corpus, so that runs are
+ * comparable. The size is set with JMH's parameters, e.g.
+ * {@code -p numReports=1 -p recordsPerReport=100000} for one huge report.
+ */
+@State(Scope.Benchmark)
+public class ReportCorpus {
+	private static final long SEED = 0x5eed_d3a2cL;
+	private static final long FIRST_BEGIN = Instant.parse("2025-01-01T00:00:00Z").getEpochSecond();
+	private static final String[] ORG_NAMES = { "google.com", "Outlook.com", "Yahoo", "Mail.Ru",
+		"Enterprise Outlook", "comcast.net", "AMAZON-SES", "Fastmail", "GMX", "Zoho", "mimecast.org",
+		"Proofpoint", "Cisco Secure Email", "t-online.de", "web.de", "seznam.cz" };
+	private static final String[] POLICY_DOMAINS = { "example.com", "example.org", "example.net",
+		"westinefamily.com", "mail.example.com" };
+	private static final int NUM_SOURCE_IPS = 4096;
+
+	@Param({ "20" })
+	public int numReports;
+
+	@Param({ "10", "5000" })
+	public int recordsPerReport;
+
+	List<String> reports;
+
+	@Setup
+	public void generate() {
+		reports = generateReports(numReports, recordsPerReport);
+	}
+
+	/**
+	 * @return The corpus, parsed.
+	 */
+	List<Feedback> parse() {
+		return reports.stream()
+			.map(DmarcReportStore::parseReport)
+			.toList();
+	}
+
+	/**
+	 * @return The XML of numReports reports with recordsPerReport records each.
+	 */
+	static List<String> generateReports(int numReports, int recordsPerReport) {
+		var random = new Random(SEED);
+		var sourceIps = sourceIps(random);
+		List<String> reports = new ArrayList<>(numReports);
+		for (int i = 0; i < numReports; ++i) {
+			reports.add(report(random, sourceIps, i, recordsPerReport));
+		}
+		return reports;
+	}
+
+	private static String[] sourceIps(Random random) {
+		var sourceIps = new String[NUM_SOURCE_IPS];
+		for (int i = 0; i < sourceIps.length; ++i) {
+			sourceIps[i] = (i % 10 == 9)
+				? "2a01:111:f400:%1$x::%2$x".formatted(random.nextInt(0x10000), random.nextInt(0x10000))
+				: "%1$d.%2$d.%3$d.%4$d".formatted(random.nextInt(223) + 1, random.nextInt(256),
+					random.nextInt(256), random.nextInt(254) + 1);
+		}
+		return sourceIps;
+	}
+
+	private static String report(Random random, String[] sourceIps, int reportNum, int numRecords) {
+		var orgName = ORG_NAMES[reportNum % ORG_NAMES.length];
+		var policyDomain = POLICY_DOMAINS[(reportNum / ORG_NAMES.length) % POLICY_DOMAINS.length];
+		long begin = FIRST_BEGIN + 86_400L * (reportNum / (ORG_NAMES.length * POLICY_DOMAINS.length));
+		var xml = new StringBuilder(600 + 900 * numRecords);
+		xml.append("""
+			<?xml version="1.0" encoding="UTF-8"?>
+			<feedback>
+				<version>1.0</version>
+				<report_metadata>
+					<org_name>%1$s</org_name>
+					<email>dmarc-noreply@%1$s</email>
+					<report_id>bench-%2$08d</report_id>
+					<date_range>
+						<begin>%3$d</begin>
+						<end>%4$d</end>
+					</date_range>
+				</report_metadata>
+				<policy_published>
+					<domain>%5$s</domain>
+					<adkim>r</adkim>
+					<aspf>r</aspf>
+					<p>none</p>
+					<sp>none</sp>
+					<pct>100</pct>
+					<fo>0</fo>
+				</policy_published>
+			""".formatted(orgName, reportNum, begin, begin + 86_400L, policyDomain));
+		for (int i = 0; i < numRecords; ++i) {
+			// Squaring skews the choice toward the start of the pool, as a few
+			// senders account for most mail:
+			double skew = random.nextDouble();
+			var sourceIp = sourceIps[(int) (skew * skew * sourceIps.length)];
+			var dkim = (random.nextInt(10) < 8) ? "pass" : "fail";
+			var spf = (random.nextInt(10) < 7) ? "pass" : "fail";
+			var disposition = ("fail".equals(dkim) && "fail".equals(spf)) ? "quarantine" : "none";
+			xml.append("""
+					<record>
+						<row>
+							<source_ip>%1$s</source_ip>
+							<count>%2$d</count>
+							<policy_evaluated>
+								<disposition>%3$s</disposition>
+								<dkim>%4$s</dkim>
+								<spf>%5$s</spf>
+							</policy_evaluated>
+						</row>
+						<identifiers>
+							<envelope_to>%6$s</envelope_to>
+							<envelope_from>%7$s</envelope_from>
+							<header_from>%7$s</header_from>
+						</identifiers>
+						<auth_results>
+							<dkim>
+								<domain>%7$s</domain>
+								<selector>s%8$d</selector>
+								<result>%4$s</result>
+							</dkim>
+							<spf>
+								<domain>%7$s</domain>
+								<scope>mfrom</scope>
+								<result>%5$s</result>
+							</spf>
+						</auth_results>
+					</record>
+				""".formatted(sourceIp, random.nextInt(50) + 1, disposition, dkim, spf,
+					orgName.toLowerCase(), policyDomain, random.nextInt(4)));
+		}
+		return xml.append("</feedback>\n").toString();
+	}
+
+	/**
+	 * @return The raw bytes of a report email with the report attached, zipped
+	 *         or gzipped, as base-64 (as receivers send them).
+	 */
+	static byte[] reportMessage(String xml, ReportPayload.Compression compression) {
+		try {
+			var attachment = new MimeBodyPart();
+			if (compression == ReportPayload.Compression.ZIP) {
+				attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(zip(xml), "application/zip")));
+				attachment.setFileName("example.com!example.org!1!2.zip");
+			} else {
+				attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(gzip(xml), "application/gzip")));
+				attachment.setFileName("example.com!example.org!1!2.xml.gz");
+			}
+			var text = new MimeBodyPart();
+			text.setText("This is a DMARC aggregate report.");
+			var multipart = new MimeMultipart();
+			multipart.addBodyPart(text);
+			multipart.addBodyPart(attachment);
+
+			var message = new MimeMessage(Session.getInstance(new Properties()));
+			message.setFrom(new InternetAddress("noreply-dmarc@example.com"));
+			message.setRecipients(Message.RecipientType.TO, "dmarc@example.org");
+			message.setSubject("Report Domain: example.org");
+			message.setSentDate(Date.from(Instant.ofEpochSecond(FIRST_BEGIN)));
+			message.setContent(multipart);
+			message.saveChanges();
+			var bytes = new ByteArrayOutputStream();
+			message.writeTo(bytes);
+			return bytes.toByteArray();
+		} catch (MessagingException ex) {
+			throw new IllegalStateException(ex);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	static byte[] gzip(String xml) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var os = new GZIPOutputStream(bytes)) {
+			os.write(xml.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	static byte[] zip(String xml) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var os = new ZipOutputStream(bytes)) {
+			os.putNextEntry(new ZipEntry("example.com!example.org!1!2.xml"));
+			os.write(xml.getBytes(StandardCharsets.UTF_8));
+			os.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,62 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Moves the corpus's un-namespaced reports into the DMARC namespace with
+ * XmlNamespaceTranslator. Translation rewrites the document in place, so each
+ * operation translates fresh clones; subtract cloneDocuments to isolate the
+ * translation itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class TranslateNamespacesBenchmark {
+	private List<Document> documents;
+
+	@Setup
+	public void setUp(ReportCorpus corpus) throws ParserConfigurationException, SAXException, IOException {
+		var dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(false);
+		var builder = dbf.newDocumentBuilder();
+		documents = new ArrayList<>(corpus.reports.size());
+		for (var xml : corpus.reports) {
+			documents.add(builder.parse(new InputSource(new StringReader(xml))));
+		}
+	}
+
+	@Benchmark
+	public void cloneDocuments(Blackhole blackhole) {
+		for (var document : documents) {
+			blackhole.consume(document.cloneNode(true));
+		}
+	}
+
+	@Benchmark
+	public void translateNamespaces(Blackhole blackhole) {
+		for (var document : documents) {
+			var copy = (Document) document.cloneNode(true);
+			DmarcReportStore.translateNamespaces(copy);
+			blackhole.consume(copy);
+		}
+	}
+}
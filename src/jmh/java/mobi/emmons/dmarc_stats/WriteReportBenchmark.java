@@ -0,0 +1,75 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Stores each report of the corpus with writeReportToStorage, in each storage
+ * format and layout, into a temporary directory. The reports overwrite their
+ * own files from one operation to the next.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class WriteReportBenchmark {
+	@Param({ "XML", "GZIP_ORIGINAL" })
+	public DmarcReportStore.StorageFormat storageFormat;
+
+	@Param({ "FLAT", "DATE_SHARDED" })
+	public DmarcReportStore.StorageLayout storageLayout;
+
+	private Path storageDir;
+	private DmarcReportStore store;
+	private List<Feedback> reports;
+	private final List<ReportPayload> payloads = new ArrayList<>();
+
+	@Setup
+	public void setUp(ReportCorpus corpus) throws IOException {
+		storageDir = Files.createTempDirectory("dmarc-bench-");
+		store = new DmarcReportStore(storageDir.toFile())
+			.withStorageFormat(storageFormat)
+			.withStorageLayout(storageLayout);
+		reports = corpus.parse();
+		for (var xml : corpus.reports) {
+			payloads.add(ReportPayload.capture(new ByteArrayInputStream(ReportCorpus.gzip(xml)),
+				ReportPayload.Compression.GZIP));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (var payload : payloads) {
+			payload.close();
+		}
+		try (var paths = Files.walk(storageDir)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Benchmark
+	public void writeReportToStorage() throws IOException {
+		for (int i = 0; i < reports.size(); ++i) {
+			store.writeReportToStorage(reports.get(i), payloads.get(i));
+		}
+	}
+}
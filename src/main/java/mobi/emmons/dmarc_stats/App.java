@@ -4,22 +4,33 @@ package mobi.emmons.dmarc_stats;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.csv.CSVPrinter;
 
 import jakarta.mail.MessagingException;
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.ReportAggregator.Measure;
 import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
 import mobi.emmons.dmarc_stats.generated.SPFAuthResultType;
 
 public class App {
@@ -30,6 +41,32 @@ public class App {
 	private final String user;
 	private final String password;
 	private final String emailFolder;
+	private ReportCodec.Backend parserBackend = ReportCodec.Backend.JAXB;
+	private int loadThreads = 1;
+	private int maxFilesInFlight = 0;
+	private ParallelReportLoader.WorkerPool loadPool = ParallelReportLoader.WorkerPool.FORK_JOIN;
+	private boolean useSnapshot = false;
+	private DmarcReportStore.SyncMode syncMode = DmarcReportStore.SyncMode.UNSEEN;
+	private int fetchChunkSize = MessageDownloader.DEFAULT_FETCH_CHUNK_SIZE;
+	private int downloadConnections = 1;
+	private int ingestChunkSize = DmarcReportStore.DEFAULT_INGEST_CHUNK_SIZE;
+	private DmarcReportStore.StorageFormat storageFormat = DmarcReportStore.StorageFormat.XML;
+	private boolean useDedupIndex = false;
+	private DmarcReportStore.StorageLayout storageLayout = DmarcReportStore.StorageLayout.FLAT;
+	private LocalDate fromDay = null;
+	private LocalDate toDay = null;
+	private List<Dimension> aggregateDimensions = List.of();
+	private final NetworkGrouping networkGrouping = new NetworkGrouping();
+	private Path asnDatabaseFile = null;
+	private Path columnarDir = null;
+	private RollupStore.Granularity rollupGranularity = null;
+	private boolean isRollupsOnly = false;
+	private boolean useSketches = false;
+	private boolean useRecordTable = false;
+	private Integer watchPollSeconds = null;
+	private Integer servePort = null;
+	private String serveHost = null;
+	private boolean useMetrics = false;
 
 	public static void main(String[] args) {
 		try {
@@ -48,104 +85,622 @@ public class App {
 		if (message != null && !message.isEmpty()) {
 			System.out.format("%1$s%n%n", message);
 		}
-		System.out.format("Usage: %1$s <hostname> <user> <password> <email-folder>%n%n",
+		System.out.format("Usage: %1$s [options] <storage-dir> <hostname> <user> <password> <email-folder>%n%n",
 			App.class.getName());
+		System.out.format("Options:%n");
+		System.out.format("   --parser=jaxb|stax   XML parser backend for reports (default jaxb)%n");
+		System.out.format("   --load-threads=N     Parse stored reports on N threads (default 1)%n");
+		System.out.format("   --load-pool=fork-join|virtual-threads%n");
+		System.out.format("                        Worker pool for parallel loading (default fork-join)%n");
+		System.out.format("   --max-in-flight=N    Max stored reports being parsed at once (default 4 per thread)%n");
+		System.out.format("   --snapshot           Keep a snapshot of parsed reports to speed up startup%n");
+		System.out.format("   --sync=unseen|uid    Find new messages by SEEN flag or by UID checkpoint (default unseen)%n");
+		System.out.format("   --fetch-chunk=N      Prefetch message headers N messages at a time (default %1$d)%n",
+			MessageDownloader.DEFAULT_FETCH_CHUNK_SIZE);
+		System.out.format("   --connections=N      Download new messages over N IMAP connections (default 1)%n");
+		System.out.format("   --ingest-chunk=N     Store new reports and flag their messages SEEN N messages%n");
+		System.out.format("                        at a time, so an interrupted run resumes after the last%n");
+		System.out.format("                        chunk stored (default %1$d)%n", DmarcReportStore.DEFAULT_INGEST_CHUNK_SIZE);
+		System.out.format("   --storage=xml|gzip-original%n");
+		System.out.format("                        Store new reports as formatted XML or as the compressed%n");
+		System.out.format("                        attachment received (default xml)%n");
+		System.out.format("   --dedup              Skip reports that were already received once%n");
+		System.out.format("   --layout=flat|date-sharded%n");
+		System.out.format("                        Store new reports flat or in yyyy/MM/dd shards (default flat)%n");
+		System.out.format("   --from=YYYY-MM-DD    Only report on reports beginning on or after this day (UTC)%n");
+		System.out.format("   --to=YYYY-MM-DD      Only report on reports beginning before this day (UTC)%n");
+		System.out.format("   --aggregate=DIM,...  Also write message counts grouped by the given dimensions%n");
+		System.out.format("                        to aggregate-report.csv, where DIM is one of:%n");
+		System.out.format("                        %1$s%n", Stream.of(Dimension.values())
+			.map(dimension -> dimension.name().toLowerCase().replace('_', '-'))
+			.collect(Collectors.joining(", ")));
+		System.out.format("   --networks=FILE      Name the networks listed in a CSV file with the columns%n");
+		System.out.format("                        Name and Network, for the source-network dimension%n");
+		System.out.format("   --network-prefixes=V4,V6%n");
+		System.out.format("                        Prefix lengths of the unnamed networks that the%n");
+		System.out.format("                        source-network dimension rolls source IPs up to%n");
+		System.out.format("                        (default %1$d,%2$d)%n",
+			NetworkGrouping.DEFAULT_IPV4_PREFIX_LENGTH, NetworkGrouping.DEFAULT_IPV6_PREFIX_LENGTH);
+		System.out.format("   --asn-db=FILE        Label source IPs with their ASN and organization from an%n");
+		System.out.format("                        IP range to ASN table (such as iptoasn.com's ip2asn TSV),%n");
+		System.out.format("                        compiled on first use to FILE%1$s, for the identifier%n",
+			AsnDatabase.COMPILED_SUFFIX);
+		System.out.format("                        report and the source-asn dimension%n");
+		System.out.format("   --columnar=DIR       Also export every record field to compressed columnar files,%n");
+		System.out.format("                        one per month, named DIR/records-YYYY-MM%1$s%n",
+			ColumnarExport.FILE_SUFFIX);
+		System.out.format("   --compact            Load the reports into a compact column-oriented table,%n");
+		System.out.format("                        parsed straight from the XML with --parser=stax, rather%n");
+		System.out.format("                        than streaming them as object trees (not with --watch)%n");
+		System.out.format("   --rollups=day|week   Maintain day and week rollups of the store, and write%n");
+		System.out.format("                        rollup-report.csv from those of the given period%n");
+		System.out.format("   --rollups-only       Write only rollup-report.csv (and sketch-report.csv, with%n");
+		System.out.format("                        --sketches), without parsing the stored reports%n");
+		System.out.format("   --sketches           Maintain fixed-size sketches of each policy domain's and%n");
+		System.out.format("                        org's senders, and write sketch-report.csv with their%n");
+		System.out.format("                        distinct source IPs and top %1$d senders%n",
+			SketchStore.DEFAULT_TOP_SENDERS);
+		System.out.format("   --watch[=SECONDS]    Stay running: keep the aggregates and rollups in memory,%n");
+		System.out.format("                        wait for new reports with IMAP IDLE (or by polling every%n");
+		System.out.format("                        SECONDS, default %1$d), and rewrite aggregate-report.csv%n",
+			WatchDaemon.DEFAULT_POLL_INTERVAL.toSeconds());
+		System.out.format("                        and rollup-report.csv whenever reports arrive%n");
+		System.out.format("   --serve[=PORT]       Stay running as with --watch, and serve per-domain pass%n");
+		System.out.format("                        rates, top source IPs per org, and records as JSON or CSV%n");
+		System.out.format("                        over HTTP on PORT (default %1$d). The server has no%n",
+			StatsServer.DEFAULT_PORT);
+		System.out.format("                        authentication, so it listens on the loopback interface%n");
+		System.out.format("                        only, unless --serve-host says otherwise%n");
+		System.out.format("   --serve-host=HOST    Listen on the interface with this name or address, such%n");
+		System.out.format("                        as 0.0.0.0 for all interfaces (default: loopback)%n");
+		System.out.format("   --metrics            Time each pipeline stage, emit JDK Flight Recorder events,%n");
+		System.out.format("                        and print a summary at exit (or serve it at /metrics)%n%n");
 	}
 
 	private App(String[] args) throws CmdLineException {
-		if (args.length < 5) {
+		List<String> positionalArgs = new ArrayList<>();
+		for (var arg : args) {
+			if (arg.startsWith("--")) {
+				parseOption(arg);
+			} else {
+				positionalArgs.add(arg);
+			}
+		}
+
+		if (positionalArgs.size() < 5) {
 			throw new CmdLineException("Too few arguments");
-		} else if (args.length > 5) {
+		} else if (positionalArgs.size() > 5) {
 			throw new CmdLineException("Too many arguments");
 		}
 
-		storageDir = new File(args[0]);
-		host = args[1];
-		user = args[2];
-		password = args[3];
-		emailFolder = args[4];
+		storageDir = new File(positionalArgs.get(0));
+		host = positionalArgs.get(1);
+		user = positionalArgs.get(2);
+		password = positionalArgs.get(3);
+		emailFolder = positionalArgs.get(4);
+		if (asnDatabaseFile == null && aggregateDimensions.contains(Dimension.SOURCE_ASN)) {
+			throw new CmdLineException("The source-asn dimension requires option --asn-db");
+		}
+		if (watchPollSeconds != null && aggregateDimensions.isEmpty() && rollupGranularity == null
+				&& !useSketches && servePort == null) {
+			throw new CmdLineException(
+				"Option --watch requires option --aggregate, --rollups, --sketches, or --serve");
+		}
+		if (useRecordTable && (watchPollSeconds != null || servePort != null)) {
+			throw new CmdLineException("Option --compact cannot be used with --watch or --serve");
+		}
+		if (isRollupsOnly && rollupGranularity == null) {
+			throw new CmdLineException("Option --rollups-only requires option --rollups");
+		}
+		if (isRollupsOnly && (!aggregateDimensions.isEmpty() || columnarDir != null || useRecordTable
+				|| watchPollSeconds != null || servePort != null)) {
+			throw new CmdLineException(
+				"Option --rollups-only cannot be used with --aggregate, --columnar, --compact, --watch, or --serve");
+		}
+		if (serveHost != null && servePort == null) {
+			throw new CmdLineException("Option --serve-host requires option --serve");
+		}
+		if (servePort != null && servePort > 65535) {
+			throw new CmdLineException("Invalid value '%1$d' for option --serve", servePort);
+		}
+	}
+
+	private void parseOption(String arg) throws CmdLineException {
+		int equalsIndex = arg.indexOf('=');
+		var name = (equalsIndex == -1) ? arg.substring(2) : arg.substring(2, equalsIndex);
+		var value = (equalsIndex == -1) ? "" : arg.substring(equalsIndex + 1);
+		switch (name) {
+			case "parser" -> parserBackend = parseEnumOption(ReportCodec.Backend.class, name, value);
+			case "load-threads" -> loadThreads = parseIntOption(name, value);
+			case "load-pool" -> loadPool = parseEnumOption(ParallelReportLoader.WorkerPool.class, name, value);
+			case "max-in-flight" -> maxFilesInFlight = parseIntOption(name, value);
+			case "snapshot" -> useSnapshot = true;
+			case "sync" -> syncMode = parseEnumOption(DmarcReportStore.SyncMode.class, name, value);
+			case "fetch-chunk" -> fetchChunkSize = parseIntOption(name, value);
+			case "connections" -> downloadConnections = parseIntOption(name, value);
+			case "ingest-chunk" -> ingestChunkSize = parseIntOption(name, value);
+			case "storage" -> storageFormat = parseEnumOption(DmarcReportStore.StorageFormat.class, name, value);
+			case "dedup" -> useDedupIndex = true;
+			case "metrics" -> useMetrics = true;
+			case "layout" -> storageLayout = parseEnumOption(DmarcReportStore.StorageLayout.class, name, value);
+			case "from" -> fromDay = parseDateOption(name, value);
+			case "to" -> toDay = parseDateOption(name, value);
+			case "aggregate" -> aggregateDimensions = parseEnumListOption(Dimension.class, name, value);
+			case "networks" -> parseNetworksOption(networkGrouping, name, value);
+			case "network-prefixes" -> parseNetworkPrefixesOption(networkGrouping, name, value);
+			case "asn-db" -> asnDatabaseFile = parsePathOption(name, value);
+			case "columnar" -> columnarDir = parseDirOption(name, value);
+			case "rollups" -> rollupGranularity = parseEnumOption(RollupStore.Granularity.class, name, value);
+			case "rollups-only" -> isRollupsOnly = true;
+			case "sketches" -> useSketches = true;
+			case "compact" -> useRecordTable = true;
+			case "watch" -> watchPollSeconds = value.isEmpty()
+				? Integer.valueOf((int) WatchDaemon.DEFAULT_POLL_INTERVAL.toSeconds())
+				: Integer.valueOf(parseIntOption(name, value));
+			case "serve" -> servePort = value.isEmpty()
+				? Integer.valueOf(StatsServer.DEFAULT_PORT)
+				: Integer.valueOf(parseIntOption(name, value));
+			case "serve-host" -> serveHost = parseHostOption(name, value);
+			default -> throw new CmdLineException("Unrecognized option '%1$s'", arg);
+		}
+	}
+
+	private static String parseHostOption(String name, String value) throws CmdLineException {
+		if (!Util.isNonBlank(value)) {
+			throw new CmdLineException("Option --%1$s requires a host name or address", name);
+		}
+		return value.strip();
+	}
+
+	static <E extends Enum<E>> E parseEnumOption(Class<E> enumType, String name, String value)
+			throws CmdLineException {
+		try {
+			return Enum.valueOf(enumType, value.strip().replace('-', '_').toUpperCase());
+		} catch (IllegalArgumentException ex) {
+			throw new CmdLineException(ex, "Invalid value '%1$s' for option --%2$s", value, name);
+		}
+	}
+
+	static <E extends Enum<E>> List<E> parseEnumListOption(Class<E> enumType, String name, String value)
+			throws CmdLineException {
+		List<E> result = new ArrayList<>();
+		for (var item : value.split(",")) {
+			var element = parseEnumOption(enumType, name, item);
+			if (!result.contains(element)) {
+				result.add(element);
+			}
+		}
+		return result;
+	}
+
+	static LocalDate parseDateOption(String name, String value) throws CmdLineException {
+		try {
+			return LocalDate.parse(value.strip());
+		} catch (DateTimeParseException ex) {
+			throw new CmdLineException(ex, "Invalid value '%1$s' for option --%2$s", value, name);
+		}
+	}
+
+	static Path parsePathOption(String name, String value) throws CmdLineException {
+		if (value.isBlank()) {
+			throw new CmdLineException("Option --%1$s requires a value", name);
+		}
+		var path = Path.of(value.strip());
+		if (!Files.isRegularFile(path)) {
+			throw new CmdLineException("'%1$s' for option --%2$s is not a file", value, name);
+		}
+		return path;
+	}
+
+	static Path parseDirOption(String name, String value) throws CmdLineException {
+		if (value.isBlank()) {
+			throw new CmdLineException("Option --%1$s requires a value", name);
+		}
+		var path = Path.of(value.strip());
+		if (Files.exists(path) && !Files.isDirectory(path)) {
+			throw new CmdLineException("'%1$s' for option --%2$s is not a directory", value, name);
+		}
+		return path;
+	}
+
+	static void parseNetworksOption(NetworkGrouping grouping, String name, String value)
+			throws CmdLineException {
+		if (value.isBlank()) {
+			throw new CmdLineException("Option --%1$s requires a value", name);
+		}
+		try {
+			grouping.withNamedNetworks(Path.of(value.strip()));
+		} catch (IOException | IllegalArgumentException ex) {
+			throw new CmdLineException(ex, "Unable to read networks for option --%1$s: %2$s",
+				name, ex.getMessage());
+		}
+	}
+
+	static void parseNetworkPrefixesOption(NetworkGrouping grouping, String name, String value)
+			throws CmdLineException {
+		var items = value.split(",");
+		if (items.length != 2) {
+			throw new CmdLineException("Option --%1$s requires an IPv4 and an IPv6 prefix length", name);
+		}
+		try {
+			grouping.withPrefixLengths(Integer.parseInt(items[0].strip()), Integer.parseInt(items[1].strip()));
+		} catch (IllegalArgumentException ex) {
+			throw new CmdLineException(ex, "Invalid value '%1$s' for option --%2$s", value, name);
+		}
+	}
+
+	static int parseIntOption(String name, String value) throws CmdLineException {
+		try {
+			int result = Integer.parseInt(value.strip());
+			if (result < 1) {
+				throw new CmdLineException("Option --%1$s must be positive", name);
+			}
+			return result;
+		} catch (NumberFormatException ex) {
+			throw new CmdLineException(ex, "Invalid value '%1$s' for option --%2$s", value, name);
+		}
 	}
 
 	private void run() throws MessagingException, IOException {
-		var store = new DmarcReportStore(storageDir, host, user, password, emailFolder);
-		var reports = store.getAllReports();
-
-		List<List<String>> csvRows = new ArrayList<>();
-		reports.stream().forEach(feedback -> {
-				feedback.getRecord().stream().forEach(record -> {
-					if (record.getAuthResults().getDkim().size() > 1 || record.getAuthResults().getSpf().size() > 1) {
-						System.out.format("Found %1$d DKIM and %2$d SPF results in report %3$s%n",
-							record.getAuthResults().getDkim().size(),
-							record.getAuthResults().getSpf().size(),
-							feedback.getReportMetadata().getReportId());
-					}
-					var dkimDomains = record.getAuthResults().getDkim().stream()
-						.filter(Objects::nonNull)
-						.map(DKIMAuthResultType::getDomain)
-						.filter(Util::isNonBlank)
-						.collect(Collectors.joining("; "));
-					var spfDomains = record.getAuthResults().getSpf().stream()
-						.filter(Objects::nonNull)
-						.map(SPFAuthResultType::getDomain)
-						.filter(Util::isNonBlank)
-						.collect(Collectors.joining("; "));
-					csvRows.add(
-						Stream.of(
-							feedback.getReportMetadata().getReportId(),
-							feedback.getReportMetadata().getOrgName(),
-							feedback.getPolicyPublished().getDomain(),
-							record.getRow().getSourceIp(),
-							record.getIdentifiers().getEnvelopeTo(),
-							record.getIdentifiers().getEnvelopeFrom(),
-							record.getIdentifiers().getHeaderFrom(),
-							dkimDomains,
-							spfDomains)
-						.map(Util::nullToEmpty)
-						.toList());
-				});
-			});
+		var store = new DmarcReportStore(storageDir, host, user, password, emailFolder)
+			.withParserBackend(parserBackend)
+			.withSnapshot(useSnapshot)
+			.withSyncMode(syncMode)
+			.withFetchChunkSize(fetchChunkSize)
+			.withDownloadConnections(downloadConnections)
+			.withIngestChunkSize(ingestChunkSize)
+			.withStorageFormat(storageFormat)
+			.withDedupIndex(useDedupIndex)
+			.withStorageLayout(storageLayout)
+			.withRollups(rollupGranularity != null)
+			.withSketches(useSketches);
+		if (loadThreads > 1) {
+			int maxInFlight = (maxFilesInFlight > 0) ? maxFilesInFlight : 4 * loadThreads;
+			store.withParallelLoad(new ParallelReportLoader(loadThreads, maxInFlight, loadPool));
+		}
+
+		var asnDatabase = (asnDatabaseFile == null) ? null : AsnDatabase.open(asnDatabaseFile);
+		if (useMetrics) {
+			PipelineMetrics.enable();
+		}
+		try {
+			if (watchPollSeconds != null || servePort != null) {
+				watch(store, asnDatabase);
+			} else if (isRollupsOnly) {
+				writeRollupReports(store);
+			} else {
+				writeReports(store, asnDatabase);
+			}
+		} finally {
+			if (useMetrics) {
+				PipelineMetrics.printSummary(System.out);
+			}
+		}
+	}
 
+	@SuppressWarnings("try")
+	private void writeReports(DmarcReportStore store, AsnDatabase asnDatabase)
+			throws MessagingException, IOException {
+		List<String> header = new ArrayList<>(List.of("Report ID", "Org. Name", "Policy Domain", "Source IP",
+			"Envelope To", "Envelope From", "Header From", "DKIM Domain", "SPF Domain"));
+		if (asnDatabase != null) {
+			header.addAll(List.of("Source ASN", "Source AS Organization"));
+		}
 		var csvFormat = CSVFormat.Builder.create()
-			.setHeader("Report ID", "Org. Name", "Policy Domain", "Source IP",
-				"Envelope To", "Envelope From", "Header From", "DKIM Domain", "SPF Domain")
+			.setHeader(header.toArray(String[]::new))
 			.setRecordSeparator(System.lineSeparator())
 			.build();
+		var ipOrgCounts = new ReportAggregator(List.of(Dimension.SOURCE_IP, Dimension.ORG_NAME));
+		var aggregator = aggregateDimensions.isEmpty() ? null : new ReportAggregator(
+			aggregateDimensions, networkGrouping, asnDatabase);
+		var window = DateWindow.ofDays(fromDay, toDay);
 		var file = new File("identifier-report.csv");
-		try (var printer = csvFormat.print(file, StandardCharsets.UTF_8)) {
-			printer.printRecords(csvRows);
+		try (
+			var printer = csvFormat.print(file, StandardCharsets.UTF_8);
+			var columnarExport = (columnarDir == null) ? null : new ColumnarExport(columnarDir);
+		) {
+			if (useRecordTable) {
+				var table = store.loadRecordTable(window);
+				System.out.format("Loaded %1$d records of %2$d reports, with %3$d distinct strings%n",
+					table.numRows(), table.numReports(), table.numDistinctStrings());
+				try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CSV_WRITE)) {
+					for (int report = 0; report < table.numReports(); ++report) {
+						for (int row = table.firstRow(report); row < table.endRow(report); ++row) {
+							printIdentifierRecord(printer, table, report, row, asnDatabase);
+						}
+					}
+				}
+				if (columnarExport != null) {
+					columnarExport.add(table);
+				}
+				if (SHOW_ORG_TO_IP_CORRESPONDENCE) {
+					ipOrgCounts.add(table);
+				}
+				if (aggregator != null) {
+					aggregator.add(table);
+				}
+			} else {
+				store.forEachReport(window, feedback -> {
+					try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CSV_WRITE)) {
+						for (var record : feedback.getRecord()) {
+							printIdentifierRecord(printer, feedback, record, asnDatabase);
+						}
+					}
+					if (columnarExport != null) {
+						columnarExport.add(feedback);
+					}
+					for (var record : feedback.getRecord()) {
+						if (SHOW_ORG_TO_IP_CORRESPONDENCE) {
+							ipOrgCounts.add(feedback, record);
+						}
+						if (aggregator != null) {
+							aggregator.add(feedback, record);
+						}
+					}
+				});
+			}
+			if (columnarExport != null) {
+				columnarExport.commit();
+				System.out.format("Exported %1$d records to %2$s%n", columnarExport.numRows(), columnarDir);
+			}
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
 		}
 
 		if (SHOW_ORG_TO_IP_CORRESPONDENCE) {
-			orgToIpCorrespondence(csvRows);
-		}
-	}
-
-	private static void orgToIpCorrespondence(List<List<String>> csvRows) {
-		// Key is the pair (Source IP, Org Name), value is count:
-		Map<Pair<String, String>, Long> ipOrgPairCounts = csvRows.stream()
-			.map(row -> Pair.of(row.get(3), row.get(1)))	// (Source IP, Org Name)
-			.collect(Collectors.groupingBy(pair -> pair, TreeMap::new, Collectors.counting()));
-		// Key is Source IP, value is a set of (Org Name, count) pairs:
-		Map<String, Set<Pair<String, Long>>> orgCountsByIP = ipOrgPairCounts.entrySet().stream().collect(
-			Collectors.groupingBy(entry -> entry.getKey().getLeft(), TreeMap::new,
-				Collectors.mapping(entry -> Pair.of(entry.getKey().getRight(), entry.getValue()),
-					Collectors.toCollection(TreeSet::new))));
-		printXCountsByY("Organization counts by Source IP", orgCountsByIP);
-		// Key is Org Name, value is a set of (Source IP, count) pairs:
-		Map<String, Set<Pair<String, Long>>> ipCountsByOrg = ipOrgPairCounts.entrySet().stream().collect(
-			Collectors.groupingBy(entry -> entry.getKey().getRight(), TreeMap::new,
-				Collectors.mapping(entry -> Pair.of(entry.getKey().getLeft(), entry.getValue()),
-					Collectors.toCollection(TreeSet::new))));
-		printXCountsByY("Source IP counts by Organization", ipCountsByOrg);
-	}
-
-	private static void printXCountsByY(String label, Map<String, Set<Pair<String, Long>>> xCountsByY) {
-		System.out.format("%n%1$s:%n", label);
-		for (var y : xCountsByY.keySet()) {
-			System.out.format("%1$s:%n", y);
-			for (var pair : xCountsByY.get(y)) {
-				System.out.format("   %1$s - %2$d%n", pair.getLeft(), pair.getRight());
+			orgToIpCorrespondence(ipOrgCounts, System.out);
+		}
+		if (aggregator != null) {
+			printAggregateReport(aggregator, new File("aggregate-report.csv"));
+		}
+		if (rollupGranularity != null) {
+			printRollupReport(RollupStore.open(storageDir.toPath()), window, new File("rollup-report.csv"));
+		}
+		if (useSketches) {
+			printSketchReport(SketchStore.open(storageDir.toPath()), new File("sketch-report.csv"));
+		}
+	}
+
+	/**
+	 * Writes the rollup and sketch reports from the rollups and sketches alone,
+	 * once the new reports are in, so that the stored reports are not parsed.
+	 */
+	private void writeRollupReports(DmarcReportStore store) throws MessagingException, IOException {
+		store.syncNewReports();
+		printRollupReport(RollupStore.open(storageDir.toPath()), DateWindow.ofDays(fromDay, toDay),
+			new File("rollup-report.csv"));
+		if (useSketches) {
+			printSketchReport(SketchStore.open(storageDir.toPath()), new File("sketch-report.csv"));
+		}
+	}
+
+	/**
+	 * Runs the store as a WatchDaemon until the process is told to exit,
+	 * rewriting the aggregate and rollup reports (and refreshing the stats
+	 * server, if enabled) whenever new reports arrive.
+	 */
+	private void watch(DmarcReportStore store, AsnDatabase asnDatabase) throws IOException {
+		var aggregator = aggregateDimensions.isEmpty() ? null : new ReportAggregator(
+			aggregateDimensions, networkGrouping, asnDatabase);
+		var statsServer = (servePort == null) ? null : new StatsServer((serveHost == null)
+			? new InetSocketAddress(InetAddress.getLoopbackAddress(), servePort.intValue())
+			: new InetSocketAddress(serveHost, servePort.intValue()), asnDatabase);
+		var window = DateWindow.ofDays(fromDay, toDay);
+		var pollInterval = (watchPollSeconds == null)
+			? WatchDaemon.DEFAULT_POLL_INTERVAL
+			: Duration.ofSeconds(watchPollSeconds);
+		var daemon = new WatchDaemon(store, window,
+			feedback -> {
+				if (aggregator != null) {
+					aggregator.add(feedback);
+				}
+				if (statsServer != null) {
+					statsServer.add(feedback);
+				}
+			},
+			(watch, numNewReports) -> {
+				if (aggregator != null) {
+					printAggregateReport(aggregator, new File("aggregate-report.csv"));
+				}
+				if (rollupGranularity != null) {
+					printRollupReport(watch.rollups(), window, new File("rollup-report.csv"));
+				}
+				if (useSketches) {
+					printSketchReport(watch.sketches(), new File("sketch-report.csv"));
+				}
+				if (statsServer != null) {
+					statsServer.reportsChanged();
+					if (numNewReports == 0) {
+						// Serve only once the stored reports are loaded:
+						statsServer.start();
+						System.out.format("Serving statistics on port %1$d%n", statsServer.port());
+					}
+				}
+			})
+			.withPollInterval(pollInterval);
+
+		// On exit, let the daemon finish its sync and save the dedup index and rollups:
+		var mainThread = Thread.currentThread();
+		var shutdownHook = new Thread(() -> {
+			daemon.stop();
+			try {
+				mainThread.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+		try {
+			daemon.run();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (statsServer != null) {
+				statsServer.close();
+			}
+		}
+	}
+
+	@SuppressWarnings("try")
+	private void printRollupReport(RollupStore rollups, DateWindow window, File file) throws IOException {
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader("Period Start", "Policy Domain", "Org. Name", "Source IP", "Disposition",
+				"DKIM", "SPF", "Header From", "Messages", "Records")
+			.setRecordSeparator(System.lineSeparator())
+			.build();
+		var rows = rollups.rows(rollupGranularity, window);
+		try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CSV_WRITE);
+				var printer = csvFormat.print(file, StandardCharsets.UTF_8)) {
+			for (var row : rows) {
+				printer.printRecord(row.periodStart(), row.policyDomain(), row.orgName(), row.sourceIp(),
+					row.disposition(), row.dkim(), row.spf(), row.headerFrom(), row.numMessages(),
+					row.numRecords());
+			}
+		}
+		System.out.format("Wrote %1$d %2$s rollup rows covering %3$d reports to %4$s%n", rows.size(),
+			rollupGranularity.name().toLowerCase(), rollups.numReports(), file.getPath());
+	}
+
+	/**
+	 * Writes each policy domain's and each org's estimated number of distinct
+	 * source IPs and its top senders, one row per sender. The sketches cover
+	 * every stored report, regardless of the date window.
+	 */
+	@SuppressWarnings("try")
+	private static void printSketchReport(SketchStore sketches, File file) throws IOException {
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader("Scope", "Name", "Distinct Source IPs", "Messages", "Rank", "Source IP",
+				"Source IP Messages", "Max. Overcount")
+			.setRecordSeparator(System.lineSeparator())
+			.build();
+		try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CSV_WRITE);
+				var printer = csvFormat.print(file, StandardCharsets.UTF_8)) {
+			printSketches(printer, "Policy Domain", sketches.byPolicyDomain());
+			printSketches(printer, "Org. Name", sketches.byOrgName());
+		}
+		System.out.format("Wrote sender sketches of %1$d domains and %2$d orgs covering %3$d reports to %4$s%n",
+			sketches.byPolicyDomain().size(), sketches.byOrgName().size(), sketches.numReports(),
+			file.getPath());
+	}
+
+	private static void printSketches(CSVPrinter printer, String scope,
+			Map<String, SketchStore.SenderSketch> sketches) throws IOException {
+		for (var entry : sketches.entrySet()) {
+			var sketch = entry.getValue();
+			int rank = 0;
+			for (var sender : sketch.topSenders(SketchStore.DEFAULT_TOP_SENDERS)) {
+				printer.printRecord(scope, entry.getKey(), sketch.numDistinctSourceIps(), sketch.numMessages(),
+					++rank, sender.item(), sender.count(), sender.error());
+			}
+		}
+	}
+
+	static void printIdentifierRecord(CSVPrinter printer, Feedback feedback, RecordType record,
+			AsnDatabase asnDatabase) {
+		if (record.getAuthResults().getDkim().size() > 1 || record.getAuthResults().getSpf().size() > 1) {
+			System.out.format("Found %1$d DKIM and %2$d SPF results in report %3$s%n",
+				record.getAuthResults().getDkim().size(),
+				record.getAuthResults().getSpf().size(),
+				feedback.getReportMetadata().getReportId());
+		}
+		var dkimDomains = record.getAuthResults().getDkim().stream()
+			.filter(Objects::nonNull)
+			.map(DKIMAuthResultType::getDomain)
+			.filter(Util::isNonBlank)
+			.collect(Collectors.joining("; "));
+		var spfDomains = record.getAuthResults().getSpf().stream()
+			.filter(Objects::nonNull)
+			.map(SPFAuthResultType::getDomain)
+			.filter(Util::isNonBlank)
+			.collect(Collectors.joining("; "));
+		var sourceIp = Util.nullToEmpty(record.getRow().getSourceIp());
+		printIdentifierValues(printer, new ArrayList<>(List.of(
+			Util.nullToEmpty(feedback.getReportMetadata().getReportId()),
+			Util.nullToEmpty(feedback.getReportMetadata().getOrgName()),
+			Util.nullToEmpty(feedback.getPolicyPublished().getDomain()),
+			sourceIp,
+			Util.nullToEmpty(record.getIdentifiers().getEnvelopeTo()),
+			Util.nullToEmpty(record.getIdentifiers().getEnvelopeFrom()),
+			Util.nullToEmpty(record.getIdentifiers().getHeaderFrom()),
+			Util.nullToEmpty(dkimDomains),
+			Util.nullToEmpty(spfDomains))), sourceIp, asnDatabase);
+	}
+
+	static void printIdentifierRecord(CSVPrinter printer, RecordTable table, int report, int row,
+			AsnDatabase asnDatabase) {
+		int numDkims = table.numDkimResults(row);
+		int numSpfs = table.numSpfResults(row);
+		if (numDkims > 1 || numSpfs > 1) {
+			System.out.format("Found %1$d DKIM and %2$d SPF results in report %3$s%n",
+				numDkims, numSpfs, table.reportId(report));
+		}
+		var dkimDomains = IntStream.range(0, numDkims)
+			.mapToObj(i -> table.dkimDomain(row, i))
+			.filter(Util::isNonBlank)
+			.collect(Collectors.joining("; "));
+		var spfDomains = IntStream.range(0, numSpfs)
+			.mapToObj(i -> table.spfDomain(row, i))
+			.filter(Util::isNonBlank)
+			.collect(Collectors.joining("; "));
+		var sourceIp = Util.nullToEmpty(table.sourceIp(row));
+		printIdentifierValues(printer, new ArrayList<>(List.of(
+			Util.nullToEmpty(table.reportId(report)),
+			Util.nullToEmpty(table.orgName(report)),
+			Util.nullToEmpty(table.policyDomain(report)),
+			sourceIp,
+			Util.nullToEmpty(table.envelopeTo(row)),
+			Util.nullToEmpty(table.envelopeFrom(row)),
+			Util.nullToEmpty(table.headerFrom(row)),
+			dkimDomains,
+			spfDomains)), sourceIp, asnDatabase);
+	}
+
+	private static void printIdentifierValues(CSVPrinter printer, List<Object> values, String sourceIp,
+			AsnDatabase asnDatabase) {
+		if (asnDatabase != null) {
+			int asnIndex = asnDatabase.asnIndexOf(sourceIp.strip());
+			values.add((asnIndex == AsnDatabase.NOT_FOUND)
+				? "" : Integer.toUnsignedString(asnDatabase.asn(asnIndex)));
+			values.add((asnIndex == AsnDatabase.NOT_FOUND) ? "" : asnDatabase.organization(asnIndex));
+		}
+		try {
+			printer.printRecord(values);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	static void orgToIpCorrespondence(ReportAggregator ipOrgCounts, PrintStream out) {
+		printXCountsByY(out, "Organization counts by Source IP", ipOrgCounts, Dimension.SOURCE_IP, Dimension.ORG_NAME);
+		printXCountsByY(out, "Source IP counts by Organization", ipOrgCounts, Dimension.ORG_NAME, Dimension.SOURCE_IP);
+	}
+
+	private static void printXCountsByY(PrintStream out, String label, ReportAggregator counts, Dimension y,
+			Dimension x) {
+		int yIndex = counts.dimensions().indexOf(y);
+		int xIndex = counts.dimensions().indexOf(x);
+		var previousY = new String[1];
+		out.format("%n%1$s:%n", label);
+		counts.forEachGroup(List.of(y, x), (values, measures) -> {
+			if (!values[yIndex].equals(previousY[0])) {
+				previousY[0] = values[yIndex];
+				out.format("%1$s:%n", values[yIndex]);
 			}
+			out.format("   %1$s - %2$d%n", values[xIndex], measures[Measure.MESSAGES.ordinal()]);
+		});
+	}
+
+	@SuppressWarnings("try")
+	private static void printAggregateReport(ReportAggregator aggregator, File file) throws IOException {
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader(QueryEngine.groupHeader(aggregator))
+			.setRecordSeparator(System.lineSeparator())
+			.build();
+		try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CSV_WRITE);
+				var printer = csvFormat.print(file, StandardCharsets.UTF_8)) {
+			QueryEngine.printGroups(aggregator, printer);
 		}
+		System.out.format("Wrote %1$d groups of %2$d records to %3$s%n",
+			aggregator.numGroups(), aggregator.numRecords(), file.getPath());
 	}
 }
@@ -0,0 +1,127 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports the reports in archived mail into a store without contacting the
+ * mail server: mbox files, Maildir directories, and .eml files, or directory
+ * trees of them (see MessageArchive). Use the same storage options that App
+ * runs with, so that the imported reports are stored, deduplicated, and
+ * rolled up alike.
+ */
+public class ArchiveImporter {
+	private final File storageDir;
+	private final List<Path> archives = new ArrayList<>();
+	private ReportCodec.Backend parserBackend = ReportCodec.Backend.STAX;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int ingestChunkSize = DmarcReportStore.DEFAULT_INGEST_CHUNK_SIZE;
+	private DmarcReportStore.StorageFormat storageFormat = DmarcReportStore.StorageFormat.XML;
+	private DmarcReportStore.StorageLayout storageLayout = DmarcReportStore.StorageLayout.FLAT;
+	private boolean useDedupIndex = false;
+	private boolean useRollups = false;
+	private boolean useSketches = false;
+
+	public static void main(String[] args) {
+		try {
+			ArchiveImporter importer = new ArchiveImporter(args);
+			importer.run();
+		} catch (CmdLineException ex) {
+			usage(ex.getMessage());
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private static void usage(String message)
+	{
+		System.out.format("%n");
+		if (message != null && !message.isEmpty()) {
+			System.out.format("%1$s%n%n", message);
+		}
+		System.out.format("Usage: %1$s [options] <storage-dir> <archive>...%n%n",
+			ArchiveImporter.class.getName());
+		System.out.format("Each archive is an mbox file, a Maildir, an .eml file, or a directory%n");
+		System.out.format("tree holding any of these.%n%n");
+		System.out.format("Options:%n");
+		System.out.format("   --threads=N          Decode messages on N threads (default: the number%n");
+		System.out.format("                        of processors)%n");
+		System.out.format("   --ingest-chunk=N     Save the dedup index, rollups, and sketches every N%n");
+		System.out.format("                        messages (default %1$d)%n",
+			DmarcReportStore.DEFAULT_INGEST_CHUNK_SIZE);
+		System.out.format("   --parser=jaxb|stax   XML parser backend for reports (default stax)%n");
+		System.out.format("   --storage=xml|gzip-original%n");
+		System.out.format("                        How reports are stored (default xml)%n");
+		System.out.format("   --layout=flat|date-sharded%n");
+		System.out.format("                        Where reports are stored (default flat)%n");
+		System.out.format("   --dedup              Skip duplicate reports using the store's dedup index%n");
+		System.out.format("   --rollups            Keep the store's daily rollups up to date%n");
+		System.out.format("   --sketches           Keep the store's sender sketches up to date%n%n");
+	}
+
+	private ArchiveImporter(String[] args) throws CmdLineException {
+		List<String> positionalArgs = new ArrayList<>();
+		for (var arg : args) {
+			if (arg.startsWith("--")) {
+				parseOption(arg);
+			} else {
+				positionalArgs.add(arg);
+			}
+		}
+
+		if (positionalArgs.size() < 2) {
+			throw new CmdLineException("Too few arguments");
+		}
+		storageDir = new File(positionalArgs.get(0));
+		if (!storageDir.isDirectory()) {
+			throw new CmdLineException("'%1$s' is not a directory", positionalArgs.get(0));
+		}
+		for (var arg : positionalArgs.subList(1, positionalArgs.size())) {
+			var archive = Path.of(arg);
+			if (!Files.exists(archive)) {
+				throw new CmdLineException("Archive '%1$s' does not exist", arg);
+			}
+			archives.add(archive);
+		}
+	}
+
+	private void parseOption(String arg) throws CmdLineException {
+		int equalsIndex = arg.indexOf('=');
+		var name = (equalsIndex == -1) ? arg.substring(2) : arg.substring(2, equalsIndex);
+		var value = (equalsIndex == -1) ? "" : arg.substring(equalsIndex + 1);
+		switch (name) {
+			case "threads" -> numThreads = App.parseIntOption(name, value);
+			case "ingest-chunk" -> ingestChunkSize = App.parseIntOption(name, value);
+			case "parser" -> parserBackend = App.parseEnumOption(ReportCodec.Backend.class, name, value);
+			case "storage" -> storageFormat = App.parseEnumOption(
+				DmarcReportStore.StorageFormat.class, name, value);
+			case "layout" -> storageLayout = App.parseEnumOption(
+				DmarcReportStore.StorageLayout.class, name, value);
+			case "dedup" -> useDedupIndex = true;
+			case "rollups" -> useRollups = true;
+			case "sketches" -> useSketches = true;
+			default -> throw new CmdLineException("Unrecognized option '%1$s'", arg);
+		}
+	}
+
+	private void run() throws IOException {
+		var store = new DmarcReportStore(storageDir)
+			.withParserBackend(parserBackend)
+			.withIngestChunkSize(ingestChunkSize)
+			.withStorageFormat(storageFormat)
+			.withStorageLayout(storageLayout)
+			.withDedupIndex(useDedupIndex)
+			.withRollups(useRollups)
+			.withSketches(useSketches);
+		if (numThreads > 1) {
+			store.withParallelLoad(new ParallelReportLoader(numThreads, 4 * numThreads,
+				ParallelReportLoader.WorkerPool.FORK_JOIN));
+		}
+		var result = store.importArchives(archives, new MessageArchive(numThreads, 4 * numThreads));
+		result.printFailures();
+	}
+}
@@ -0,0 +1,327 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+
+/**
+ * An offline IP-to-ASN database, which labels source IPs with the autonomous
+ * system (and the organization behind it) that announces them.
+ *
+ * The source is a table of IP ranges, one per line, in the layout of the
+ * public iptoasn.com files: range start, range end, AS number, and optionally
+ * country code and AS description. Files whose names end in ".tsv" are
+ * tab-separated, and others comma-separated. The source is compiled once into
+ * a sorted binary table beside it, which is memory-mapped and binary-searched,
+ * so that a lookup touches a few pages of the mapped file and allocates
+ * nothing. Ranges with AS number 0 ("not routed") are left out.
+ *
+ * Once opened, a database may be shared among threads.
+ */
+public final class AsnDatabase {
+	public static final String COMPILED_SUFFIX = ".bin";
+	public static final int NOT_FOUND = -1;
+
+	private static final long MAGIC = 0x444d41524341534eL;	// "DMARCASN"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int IPV4_ENTRY_SIZE = 12;	// start, end, ASN index
+	private static final int IPV6_ENTRY_SIZE = 36;	// start high/low, end high/low, ASN index
+	private static final int ASN_ENTRY_SIZE = 12;	// ASN, organization offset and length
+
+	private final MappedByteBuffer table;
+	private final int numIpv4Ranges;
+	private final int numIpv6Ranges;
+	private final int numAsns;
+	private final int ipv6Offset;
+	private final int asnOffset;
+	private final int stringOffset;
+	private final String[] organizations;
+	private final ThreadLocal<long[]> parsedIpv6 = ThreadLocal.withInitial(() -> new long[2]);
+
+	private record Range(boolean isIpv6, long startHigh, long startLow, long endHigh, long endLow, int asn) {}
+
+	private AsnDatabase(MappedByteBuffer table, Path file) {
+		this.table = table;
+		if (table.capacity() < HEADER_SIZE || table.getLong(0) != MAGIC || table.getInt(8) != VERSION) {
+			throw new IllegalStateException("'%1$s' is not a compiled ASN database".formatted(file));
+		}
+		numIpv4Ranges = table.getInt(12);
+		numIpv6Ranges = table.getInt(16);
+		numAsns = table.getInt(20);
+		ipv6Offset = HEADER_SIZE + numIpv4Ranges * IPV4_ENTRY_SIZE;
+		asnOffset = ipv6Offset + numIpv6Ranges * IPV6_ENTRY_SIZE;
+		stringOffset = asnOffset + numAsns * ASN_ENTRY_SIZE;
+		if (numIpv4Ranges < 0 || numIpv6Ranges < 0 || numAsns < 0
+				|| stringOffset + table.getInt(24) != table.capacity()) {
+			throw new IllegalStateException("'%1$s' is truncated or corrupt".formatted(file));
+		}
+		organizations = new String[numAsns];
+	}
+
+	/**
+	 * Opens a database, compiling it first if the compiled table beside the
+	 * source (with COMPILED_SUFFIX appended to its name) is missing or older
+	 * than the source. A file that already has COMPILED_SUFFIX is opened as is.
+	 */
+	public static AsnDatabase open(Path file) throws IOException {
+		if (file.getFileName().toString().endsWith(COMPILED_SUFFIX)) {
+			return openCompiled(file);
+		}
+		var compiledFile = file.resolveSibling(file.getFileName() + COMPILED_SUFFIX);
+		if (!Files.exists(compiledFile)
+				|| Files.getLastModifiedTime(compiledFile).compareTo(Files.getLastModifiedTime(file)) < 0) {
+			compile(file, compiledFile);
+		}
+		return openCompiled(compiledFile);
+	}
+
+	public static AsnDatabase openCompiled(Path compiledFile) throws IOException {
+		try (var channel = FileChannel.open(compiledFile, StandardOpenOption.READ)) {
+			// The mapping remains valid after the channel is closed:
+			return new AsnDatabase(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), compiledFile);
+		}
+	}
+
+	/**
+	 * Compiles a range table into a binary database. Where ranges overlap, the
+	 * one that starts first is kept and the other dropped.
+	 *
+	 * @return The number of ranges kept.
+	 */
+	public static int compile(Path sourceFile, Path compiledFile) throws IOException {
+		var isTabSeparated = sourceFile.getFileName().toString().toLowerCase().endsWith(".tsv");
+		var format = CSVFormat.Builder.create()
+			.setDelimiter(isTabSeparated ? '\t' : ',')
+			.setQuote(isTabSeparated ? null : Character.valueOf('"'))
+			.setIgnoreEmptyLines(true)
+			.setTrim(true)
+			.build();
+		List<Range> ranges = new ArrayList<>();
+		var organizationsByAsn = new TreeMap<Integer, String>(Integer::compareUnsigned);
+		var bits = new long[2];
+		try (var parser = CSVParser.parse(sourceFile, StandardCharsets.UTF_8, format)) {
+			for (var record : parser) {
+				if (record.size() < 3) {
+					throw new IllegalArgumentException("Record %1$d of '%2$s' has too few columns"
+						.formatted(record.getRecordNumber(), sourceFile));
+				}
+				long start = IpAddresses.parseIpv4(record.get(0));
+				long end = IpAddresses.parseIpv4(record.get(1));
+				int asn;
+				try {
+					asn = Integer.parseUnsignedInt(record.get(2).replaceFirst("^(?i)AS", ""));
+				} catch (NumberFormatException ex) {
+					if (record.getRecordNumber() == 1) {
+						continue;	// A header
+					}
+					throw new IllegalArgumentException("Invalid AS number in record %1$d of '%2$s'"
+						.formatted(record.getRecordNumber(), sourceFile), ex);
+				}
+				Range range;
+				if (start >= 0 && end >= 0) {
+					range = new Range(false, 0, start, 0, end, asn);
+				} else if (IpAddresses.parseIpv6(record.get(0), bits)) {
+					long startHigh = bits[0];
+					long startLow = bits[1];
+					if (!IpAddresses.parseIpv6(record.get(1), bits)) {
+						throw new IllegalArgumentException("Invalid range end in record %1$d of '%2$s'"
+							.formatted(record.getRecordNumber(), sourceFile));
+					}
+					range = new Range(true, startHigh, startLow, bits[0], bits[1], asn);
+				} else {
+					throw new IllegalArgumentException("Invalid range in record %1$d of '%2$s'"
+						.formatted(record.getRecordNumber(), sourceFile));
+				}
+				if (asn != 0) {
+					ranges.add(range);
+					organizationsByAsn.putIfAbsent(asn, (record.size() > 3) ? record.get(record.size() - 1) : "");
+				}
+			}
+		}
+
+		ranges.sort(Comparator.comparing(Range::isIpv6)
+			.thenComparing(Range::startHigh, Long::compareUnsigned)
+			.thenComparing(Range::startLow, Long::compareUnsigned));
+		List<Range> ipv4Ranges = new ArrayList<>();
+		List<Range> ipv6Ranges = new ArrayList<>();
+		for (var range : ranges) {
+			var kept = range.isIpv6() ? ipv6Ranges : ipv4Ranges;
+			var previous = kept.isEmpty() ? null : kept.get(kept.size() - 1);
+			if (previous == null
+					|| compare(range.startHigh(), range.startLow(), previous.endHigh(), previous.endLow()) > 0) {
+				kept.add(range);
+			}
+		}
+
+		// ASN indices are assigned in order of AS number, so that they sort alike:
+		var asnIndices = new TreeMap<Integer, Integer>(Integer::compareUnsigned);
+		Stream.concat(ipv4Ranges.stream(), ipv6Ranges.stream())
+			.forEach(range -> asnIndices.put(range.asn(), 0));
+		var organizationBytes = new ArrayList<byte[]>();
+		for (var entry : asnIndices.entrySet()) {
+			entry.setValue(organizationBytes.size());
+			organizationBytes.add(organizationsByAsn.get(entry.getKey()).getBytes(StandardCharsets.UTF_8));
+		}
+		int numStringBytes = organizationBytes.stream().mapToInt(bytes -> bytes.length).sum();
+
+		var tempFile = compiledFile.resolveSibling(compiledFile.getFileName() + ".tmp");
+		try (var os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			os.writeLong(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(ipv4Ranges.size());
+			os.writeInt(ipv6Ranges.size());
+			os.writeInt(asnIndices.size());
+			os.writeInt(numStringBytes);
+			os.writeInt(0);
+			for (var range : ipv4Ranges) {
+				os.writeInt((int) range.startLow());
+				os.writeInt((int) range.endLow());
+				os.writeInt(asnIndices.get(range.asn()));
+			}
+			for (var range : ipv6Ranges) {
+				os.writeLong(range.startHigh());
+				os.writeLong(range.startLow());
+				os.writeLong(range.endHigh());
+				os.writeLong(range.endLow());
+				os.writeInt(asnIndices.get(range.asn()));
+			}
+			int stringOffset = 0;
+			for (var entry : asnIndices.entrySet()) {
+				int length = organizationBytes.get(entry.getValue()).length;
+				os.writeInt(entry.getKey());
+				os.writeInt(stringOffset);
+				os.writeInt(length);
+				stringOffset += length;
+			}
+			for (var bytes : organizationBytes) {
+				os.write(bytes);
+			}
+		}
+		Files.move(tempFile, compiledFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		return ipv4Ranges.size() + ipv6Ranges.size();
+	}
+
+	/**
+	 * @return The number of distinct autonomous systems. ASN indices run from 0
+	 *         to this number (exclusive), in order of AS number.
+	 */
+	public int numAsns() {
+		return numAsns;
+	}
+
+	/**
+	 * @return The ASN index of the range containing the address, or NOT_FOUND
+	 *         if none does or the text is not an IP address.
+	 */
+	public int asnIndexOf(CharSequence ipAddress) {
+		long ipv4 = IpAddresses.parseIpv4(ipAddress);
+		if (ipv4 >= 0) {
+			return asnIndexOfIpv4((int) ipv4);
+		}
+		var bits = parsedIpv6.get();
+		return IpAddresses.parseIpv6(ipAddress, bits) ? asnIndexOfIpv6(bits[0], bits[1]) : NOT_FOUND;
+	}
+
+	public int asnIndexOfIpv4(int bits) {
+		// Find the last range starting at or before the address:
+		int low = 0;
+		int high = numIpv4Ranges - 1;
+		int found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (Integer.compareUnsigned(table.getInt(HEADER_SIZE + mid * IPV4_ENTRY_SIZE), bits) <= 0) {
+				found = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (found < 0) {
+			return NOT_FOUND;
+		}
+		int entry = HEADER_SIZE + found * IPV4_ENTRY_SIZE;
+		return (Integer.compareUnsigned(bits, table.getInt(entry + 4)) <= 0)
+			? table.getInt(entry + 8)
+			: NOT_FOUND;
+	}
+
+	public int asnIndexOfIpv6(long addressHigh, long addressLow) {
+		int low = 0;
+		int high = numIpv6Ranges - 1;
+		int found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = ipv6Offset + mid * IPV6_ENTRY_SIZE;
+			if (compare(table.getLong(entry), table.getLong(entry + 8), addressHigh, addressLow) <= 0) {
+				found = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (found < 0) {
+			return NOT_FOUND;
+		}
+		int entry = ipv6Offset + found * IPV6_ENTRY_SIZE;
+		return (compare(addressHigh, addressLow, table.getLong(entry + 16), table.getLong(entry + 24)) <= 0)
+			? table.getInt(entry + 32)
+			: NOT_FOUND;
+	}
+
+	/**
+	 * @return The AS number, which is unsigned.
+	 */
+	public int asn(int asnIndex) {
+		return table.getInt(asnOffset + asnIndex * ASN_ENTRY_SIZE);
+	}
+
+	/**
+	 * @return The AS description, which names the organization behind the
+	 *         autonomous system, or an empty string if the source had none.
+	 */
+	public String organization(int asnIndex) {
+		var result = organizations[asnIndex];
+		if (result == null) {
+			int entry = asnOffset + asnIndex * ASN_ENTRY_SIZE;
+			var bytes = new byte[table.getInt(entry + 8)];
+			table.get(stringOffset + table.getInt(entry + 4), bytes);
+			// Racing threads decode the same string, so either copy may be kept:
+			result = new String(bytes, StandardCharsets.UTF_8);
+			organizations[asnIndex] = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return The AS number and organization, as in "AS15169 GOOGLE".
+	 */
+	public String label(int asnIndex) {
+		var organization = organization(asnIndex);
+		var asn = Integer.toUnsignedString(asn(asnIndex));
+		return organization.isEmpty()
+			? "AS%1$s".formatted(asn)
+			: "AS%1$s %2$s".formatted(asn, organization);
+	}
+
+	private static int compare(long lhsHigh, long lhsLow, long rhsHigh, long rhsLow) {
+		int result = Long.compareUnsigned(lhsHigh, rhsHigh);
+		return (result != 0) ? result : Long.compareUnsigned(lhsLow, rhsLow);
+	}
+}
@@ -0,0 +1,102 @@
+package mobi.emmons.dmarc_stats;
+
+/**
+ * An IPv4 or IPv6 network in CIDR notation, such as "192.0.2.0/24" or
+ * "2001:db8::/32". A bare address is a network of one. The address is held as
+ * primitives, as in IpAddresses, with an IPv4 address in the low 32 bits of
+ * low, and host bits are cleared.
+ */
+public record Cidr(boolean isIpv6, long high, long low, int prefixLength) {
+	public Cidr {
+		int maxPrefixLength = isIpv6 ? 128 : 32;
+		if (prefixLength < 0 || prefixLength > maxPrefixLength) {
+			throw new IllegalArgumentException("Prefix length %1$d is out of range for an IPv%2$d network"
+				.formatted(prefixLength, isIpv6 ? 6 : 4));
+		}
+		if (isIpv6) {
+			high &= highMask(prefixLength);
+			low &= lowMask(prefixLength);
+		} else {
+			high = 0;
+			low &= ipv4Mask(prefixLength);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the text is not an address, optionally
+	 *         followed by a slash and a prefix length.
+	 */
+	public static Cidr parse(String text) {
+		var trimmed = Util.requireNonBlank(text, "text").strip();
+		int slashIndex = trimmed.indexOf('/');
+		var address = (slashIndex < 0) ? trimmed : trimmed.substring(0, slashIndex);
+		Integer prefixLength = null;
+		if (slashIndex >= 0) {
+			try {
+				prefixLength = Integer.valueOf(trimmed.substring(slashIndex + 1));
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid prefix length in '%1$s'".formatted(text), ex);
+			}
+		}
+
+		long ipv4 = IpAddresses.parseIpv4(address);
+		if (ipv4 >= 0) {
+			return new Cidr(false, 0, ipv4, (prefixLength == null) ? 32 : prefixLength);
+		}
+		var bits = new long[2];
+		if (IpAddresses.parseIpv6(address, bits)) {
+			return new Cidr(true, bits[0], bits[1], (prefixLength == null) ? 128 : prefixLength);
+		}
+		throw new IllegalArgumentException("'%1$s' is not an IP address or CIDR network".formatted(text));
+	}
+
+	public boolean containsIpv4(int bits) {
+		return !isIpv6 && (Integer.toUnsignedLong(bits) & ipv4Mask(prefixLength)) == low;
+	}
+
+	public boolean containsIpv6(long addressHigh, long addressLow) {
+		return isIpv6
+			&& (addressHigh & highMask(prefixLength)) == high
+			&& (addressLow & lowMask(prefixLength)) == low;
+	}
+
+	/**
+	 * @return True if the text is an address within this network.
+	 */
+	public boolean contains(String ipAddress) {
+		long ipv4 = IpAddresses.parseIpv4(ipAddress);
+		if (ipv4 >= 0) {
+			return containsIpv4((int) ipv4);
+		}
+		var bits = new long[2];
+		return IpAddresses.parseIpv6(ipAddress, bits) && containsIpv6(bits[0], bits[1]);
+	}
+
+	@Override
+	public String toString() {
+		return "%1$s/%2$d".formatted(
+			isIpv6 ? IpAddresses.formatIpv6(high, low) : IpAddresses.formatIpv4((int) low),
+			prefixLength);
+	}
+
+	/**
+	 * @return The netmask of an IPv4 prefix of this length, in the low 32 bits.
+	 */
+	static long ipv4Mask(int prefixLength) {
+		return (0xffffffffL << (32 - prefixLength)) & 0xffffffffL;
+	}
+
+	/**
+	 * @return The high 64 bits of the netmask of an IPv6 prefix of this length.
+	 */
+	static long highMask(int prefixLength) {
+		return (prefixLength == 0) ? 0L : (prefixLength >= 64) ? -1L : -1L << (64 - prefixLength);
+	}
+
+	/**
+	 * @return The low 64 bits of the netmask of an IPv6 prefix of this length.
+	 */
+	static long lowMask(int prefixLength) {
+		return (prefixLength <= 64) ? 0L : (prefixLength == 128) ? -1L : -1L << (128 - prefixLength);
+	}
+}
@@ -0,0 +1,181 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+
+/**
+ * A path-compressed binary (Patricia) trie from CIDR networks to int values,
+ * answering longest-prefix-match lookups. IPv4 networks are stored within the
+ * IPv4-mapped IPv6 range ::ffff:0:0/96, so one trie over 128-bit keys serves
+ * both families.
+ *
+ * Nodes live in parallel primitive arrays and are linked by index, so the
+ * trie costs a few dozen bytes per network and lookups allocate nothing. This
+ * class is not thread-safe for writes, but concurrent lookups are safe once
+ * all networks have been added.
+ */
+final class CidrTrie {
+	static final int NO_VALUE = -1;
+
+	private static final int MIN_CAPACITY = 16;
+	private static final int NO_NODE = -1;
+	private static final long IPV4_MAPPED_LOW = 0xffff00000000L;
+
+	// By node index; node 0 is the root, with an empty prefix:
+	private long[] prefixHighs = new long[MIN_CAPACITY];
+	private long[] prefixLows = new long[MIN_CAPACITY];
+	private int[] prefixLengths = new int[MIN_CAPACITY];
+	private int[] zeroChildren = new int[MIN_CAPACITY];
+	private int[] oneChildren = new int[MIN_CAPACITY];
+	private int[] values = new int[MIN_CAPACITY];
+	private int numNodes = 0;
+	private int numValues = 0;
+
+	CidrTrie() {
+		newNode(0, 0, 0, NO_VALUE);
+	}
+
+	/**
+	 * @return The number of networks with values.
+	 */
+	int size() {
+		return numValues;
+	}
+
+	/**
+	 * Maps the network to the value, replacing any value it had.
+	 *
+	 * @param value A non-negative value.
+	 */
+	void put(Cidr network, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("value must not be negative");
+		}
+		if (network.isIpv6()) {
+			put(network.high(), network.low(), network.prefixLength(), value);
+		} else {
+			put(0L, IPV4_MAPPED_LOW | network.low(), 96 + network.prefixLength(), value);
+		}
+	}
+
+	/**
+	 * @return The value of the longest network containing the address, or
+	 *         NO_VALUE if none does.
+	 */
+	int longestMatchIpv4(int bits) {
+		return longestMatch(0L, IPV4_MAPPED_LOW | Integer.toUnsignedLong(bits));
+	}
+
+	/**
+	 * @return The value of the longest network containing the address, or
+	 *         NO_VALUE if none does.
+	 */
+	int longestMatch(long high, long low) {
+		int node = 0;
+		int best = values[0];
+		for (;;) {
+			int length = prefixLengths[node];
+			if (length == 128) {
+				return best;
+			}
+			int child = (bitAt(high, low, length) == 0) ? zeroChildren[node] : oneChildren[node];
+			if (child == NO_NODE || !hasPrefix(high, low, child)) {
+				return best;
+			}
+			node = child;
+			if (values[node] != NO_VALUE) {
+				best = values[node];
+			}
+		}
+	}
+
+	private void put(long high, long low, int length, int value) {
+		high &= Cidr.highMask(length);
+		low &= Cidr.lowMask(length);
+		int node = 0;
+		for (;;) {
+			if (prefixLengths[node] == length) {
+				if (values[node] == NO_VALUE) {
+					++numValues;
+				}
+				values[node] = value;
+				return;
+			}
+
+			int bit = bitAt(high, low, prefixLengths[node]);
+			int child = (bit == 0) ? zeroChildren[node] : oneChildren[node];
+			if (child == NO_NODE) {
+				setChild(node, bit, newNode(high, low, length, value));
+				++numValues;
+				return;
+			}
+
+			int common = Math.min(Math.min(length, prefixLengths[child]),
+				commonPrefixLength(high, low, prefixHighs[child], prefixLows[child]));
+			if (common == prefixLengths[child]) {
+				node = child;
+				continue;
+			}
+
+			// The new network and the child diverge (or the new network ends) part
+			// way along the child's path, so a node is split in there:
+			int split = newNode(high & Cidr.highMask(common), low & Cidr.lowMask(common), common, NO_VALUE);
+			setChild(split, bitAt(prefixHighs[child], prefixLows[child], common), child);
+			if (common == length) {
+				values[split] = value;
+			} else {
+				setChild(split, bitAt(high, low, common), newNode(high, low, length, value));
+			}
+			setChild(node, bit, split);
+			++numValues;
+			return;
+		}
+	}
+
+	private boolean hasPrefix(long high, long low, int node) {
+		int length = prefixLengths[node];
+		return (high & Cidr.highMask(length)) == prefixHighs[node] && (low & Cidr.lowMask(length)) == prefixLows[node];
+	}
+
+	private int newNode(long high, long low, int length, int value) {
+		if (numNodes == values.length) {
+			int capacity = 2 * numNodes;
+			prefixHighs = Arrays.copyOf(prefixHighs, capacity);
+			prefixLows = Arrays.copyOf(prefixLows, capacity);
+			prefixLengths = Arrays.copyOf(prefixLengths, capacity);
+			zeroChildren = Arrays.copyOf(zeroChildren, capacity);
+			oneChildren = Arrays.copyOf(oneChildren, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		prefixHighs[numNodes] = high;
+		prefixLows[numNodes] = low;
+		prefixLengths[numNodes] = length;
+		zeroChildren[numNodes] = NO_NODE;
+		oneChildren[numNodes] = NO_NODE;
+		values[numNodes] = value;
+		return numNodes++;
+	}
+
+	private void setChild(int node, int bit, int child) {
+		if (bit == 0) {
+			zeroChildren[node] = child;
+		} else {
+			oneChildren[node] = child;
+		}
+	}
+
+	/**
+	 * @return The bit at the given position, counting from the most significant.
+	 */
+	private static int bitAt(long high, long low, int position) {
+		return (position < 64)
+			? (int) (high >>> (63 - position)) & 1
+			: (int) (low >>> (127 - position)) & 1;
+	}
+
+	private static int commonPrefixLength(long high1, long low1, long high2, long low2) {
+		long highDiff = high1 ^ high2;
+		return (highDiff != 0)
+			? Long.numberOfLeadingZeros(highDiff)
+			: 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+	}
+}
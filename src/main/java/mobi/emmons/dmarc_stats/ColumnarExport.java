@@ -0,0 +1,208 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Exports the flattened record table (see RecordColumn) as columnar files
+ * (see ColumnarFile), partitioned by the (UTC) month in which each report's
+ * date range begins: DIR/records-yyyy-MM.dmcol, or records-unknown.dmcol for
+ * reports without a date range. Each partition that receives records is
+ * replaced when the export is committed; other partitions already in the
+ * directory are left alone. Closing an export without committing it leaves
+ * the directory as it was.
+ *
+ * Memory is bounded by the total number of rows buffered across all
+ * partitions: when it exceeds the limit, the partition holding the most rows
+ * writes them out as a row group, even if the group is not full. (A partition
+ * buffers only the rows it holds, and keeps no file open between row groups,
+ * so an export spanning many months costs little more than one spanning a
+ * few.)
+ */
+public final class ColumnarExport implements Closeable {
+	public static final int DEFAULT_MAX_BUFFERED_ROWS = 4 * ColumnarFileWriter.DEFAULT_ROW_GROUP_SIZE;
+
+	static final String FILE_PREFIX = "records-";
+	static final String FILE_SUFFIX = ".dmcol";
+	private static final String UNKNOWN_MONTH = "unknown";
+
+	private final Path exportDir;
+	private final int rowGroupSize;
+	private final int maxBufferedRows;
+	private final Map<String, ColumnarFileWriter> partitions = new HashMap<>();
+	private final RecordColumn[] columns = RecordColumn.values();
+	private final Object[] rowValues = new Object[columns.length];
+	private long numBufferedRows = 0;
+	private long numRows = 0;
+
+	public ColumnarExport(Path exportDir) throws IOException {
+		this(exportDir, ColumnarFileWriter.DEFAULT_ROW_GROUP_SIZE, DEFAULT_MAX_BUFFERED_ROWS);
+	}
+
+	/**
+	 * @param rowGroupSize    The number of rows per row group.
+	 * @param maxBufferedRows The most rows held in memory across all partitions.
+	 */
+	public ColumnarExport(Path exportDir, int rowGroupSize, int maxBufferedRows) throws IOException {
+		if (rowGroupSize < 1 || maxBufferedRows < 1) {
+			throw new IllegalArgumentException("rowGroupSize and maxBufferedRows must be positive");
+		}
+		this.exportDir = exportDir;
+		this.rowGroupSize = rowGroupSize;
+		this.maxBufferedRows = maxBufferedRows;
+		Files.createDirectories(exportDir);
+	}
+
+	/**
+	 * Adds a row to the report's partition for each of its records.
+	 */
+	public void add(Feedback feedback) {
+		try {
+			var partition = partitionFor(feedback);
+			for (var record : feedback.getRecord()) {
+				for (int i = 0; i < columns.length; ++i) {
+					rowValues[i] = columns[i].extract(feedback, record);
+				}
+				addRow(partition);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Adds a row to the appropriate partition for each row of the table.
+	 */
+	public void add(RecordTable table) {
+		try {
+			for (int report = 0; report < table.numReports(); ++report) {
+				var partition = partitionFor(table.begin(report));
+				for (int row = table.firstRow(report); row < table.endRow(report); ++row) {
+					for (int i = 0; i < columns.length; ++i) {
+						rowValues[i] = columns[i].extract(table, report, row);
+					}
+					addRow(partition);
+				}
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private void addRow(ColumnarFileWriter partition) throws IOException {
+		int numBufferedBefore = partition.numBufferedRows();
+		partition.addRow(rowValues);
+		numBufferedRows += partition.numBufferedRows() - numBufferedBefore;
+		++numRows;
+		if (numBufferedRows > maxBufferedRows) {
+			flushLargestPartition();
+		}
+	}
+
+	/**
+	 * @return The number of rows exported so far.
+	 */
+	public long numRows() {
+		return numRows;
+	}
+
+	private ColumnarFileWriter partitionFor(Feedback feedback) throws IOException {
+		var metadata = feedback.getReportMetadata();
+		var dateRange = (metadata == null) ? null : metadata.getDateRange();
+		return partitionFor((dateRange == null || dateRange.getBegin() == null)
+			? RecordTable.NO_VALUE
+			: dateRange.getBegin());
+	}
+
+	private ColumnarFileWriter partitionFor(long begin) throws IOException {
+		var month = (begin == RecordTable.NO_VALUE)
+			? UNKNOWN_MONTH
+			: YearMonth.from(Instant.ofEpochSecond(begin).atOffset(ZoneOffset.UTC)).toString();
+		var partition = partitions.get(month);
+		if (partition == null) {
+			partition = new ColumnarFileWriter(exportDir.resolve(FILE_PREFIX + month + FILE_SUFFIX),
+				RecordColumn.schema(), rowGroupSize);
+			partitions.put(month, partition);
+		}
+		return partition;
+	}
+
+	private void flushLargestPartition() throws IOException {
+		var largest = partitions.values().stream()
+			.max((lhs, rhs) -> Integer.compare(lhs.numBufferedRows(), rhs.numBufferedRows()))
+			.orElseThrow();
+		numBufferedRows -= largest.numBufferedRows();
+		largest.flushRowGroup();
+	}
+
+	/**
+	 * Lists the partitions in an export directory, so that a reader can open
+	 * only the months it needs.
+	 *
+	 * @return The partition files, by month, without the one for reports
+	 *         without a date range.
+	 */
+	public static SortedMap<YearMonth, Path> listPartitions(Path exportDir) throws IOException {
+		SortedMap<YearMonth, Path> result = new TreeMap<>();
+		try (Stream<Path> files = Files.list(exportDir)) {
+			for (var file : (Iterable<Path>) files::iterator) {
+				var fileName = file.getFileName().toString();
+				if (fileName.startsWith(FILE_PREFIX) && fileName.endsWith(FILE_SUFFIX)) {
+					try {
+						result.put(YearMonth.parse(fileName.substring(FILE_PREFIX.length(),
+							fileName.length() - FILE_SUFFIX.length())), file);
+					} catch (DateTimeParseException ex) {
+						// Not a monthly partition, such as records-unknown.dmcol
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes out every partition and moves it into place.
+	 */
+	public void commit() throws IOException {
+		for (var partition : partitions.values()) {
+			partition.commit();
+		}
+	}
+
+	/**
+	 * Releases the partitions, discarding any that were not committed.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (var partition : partitions.values()) {
+			try {
+				partition.close();
+			} catch (IOException ex) {
+				if (failure == null) {
+					failure = ex;
+				} else {
+					failure.addSuppressed(ex);
+				}
+			}
+		}
+		partitions.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file of the self-describing, column-chunked format written by
+ * ColumnarFileWriter. The file holds a table of STRING and LONG columns, split
+ * into row groups, and each row group stores each column as a separately
+ * compressed chunk. A reader therefore decompresses only the chunks of the
+ * columns it asks for.
+ *
+ * <p>The layout is as follows, with integers big-endian:
+ *
+ * <pre>
+ * file      = MAGIC FORMAT_VERSION chunk* footer footerLength:int MAGIC
+ * footer    = numColumns:int (name:string type:byte)* numRowGroups:int rowGroup*
+ * rowGroup  = numRows:int (offset:long compressedLength:int length:int)*
+ * </pre>
+ *
+ * <p>Each chunk is raw deflate data, which inflates to a flags byte, a null
+ * bitmap (one bit per row, present only if the flags say the chunk has nulls),
+ * and then the non-null values. A STRING chunk begins its values with a
+ * dictionary of the chunk's distinct strings, followed by one dictionary index
+ * per value. A LONG chunk stores each value as the zigzag-encoded difference
+ * from the one before. All counts, lengths, indexes, and differences within a
+ * chunk are unsigned LEB128 varints.
+ */
+public final class ColumnarFile implements Closeable {
+	public static enum Type { STRING, LONG }
+
+	public static record Column(String name, Type type) {
+		public Column {
+			Util.requireNonBlank(name, "name");
+		}
+	}
+
+	static final int MAGIC = 0x444d4343;	// "DMCC"
+	static final int FORMAT_VERSION = 1;
+	static final byte HAS_NULLS = 0x01;
+
+	private static record ChunkInfo(long offset, int compressedLength, int length) {}
+
+	private static record RowGroup(int numRows, ChunkInfo[] chunks) {}
+
+	private final Path file;
+	private final FileChannel channel;
+	private final List<Column> columns;
+	private final List<RowGroup> rowGroups;
+
+	private ColumnarFile(Path file, FileChannel channel, List<Column> columns, List<RowGroup> rowGroups) {
+		this.file = file;
+		this.channel = channel;
+		this.columns = columns;
+		this.rowGroups = rowGroups;
+	}
+
+	/**
+	 * Opens the file and reads its footer. The column chunks are read only on
+	 * demand.
+	 */
+	public static ColumnarFile open(Path file) throws IOException {
+		var channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < 16) {
+				throw new IOException("%1$s is not a columnar file".formatted(file));
+			}
+			var header = read(channel, 0, 8);
+			var trailer = read(channel, size - 8, 8);
+			int footerLength = trailer.getInt();
+			if (header.getInt() != MAGIC || trailer.getInt() != MAGIC || footerLength < 0
+					|| footerLength > size - 16) {
+				throw new IOException("%1$s is not a columnar file".formatted(file));
+			}
+			int version = header.getInt();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("%1$s has unsupported format version %2$d".formatted(file, version));
+			}
+
+			var footer = read(channel, size - 8 - footerLength, footerLength);
+			int numColumns = footer.getInt();
+			List<Column> columns = new ArrayList<>(numColumns);
+			for (int i = 0; i < numColumns; ++i) {
+				columns.add(new Column(FeedbackBinaryCodec.readString(footer), Type.values()[footer.get()]));
+			}
+			int numRowGroups = footer.getInt();
+			List<RowGroup> rowGroups = new ArrayList<>(numRowGroups);
+			for (int i = 0; i < numRowGroups; ++i) {
+				int numRows = footer.getInt();
+				var chunks = new ChunkInfo[numColumns];
+				for (int j = 0; j < numColumns; ++j) {
+					chunks[j] = new ChunkInfo(footer.getLong(), footer.getInt(), footer.getInt());
+				}
+				rowGroups.add(new RowGroup(numRows, chunks));
+			}
+			return new ColumnarFile(file, channel, List.copyOf(columns), List.copyOf(rowGroups));
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+			channel.close();
+			throw new IOException("%1$s has a corrupt footer".formatted(file), ex);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	public List<Column> columns() {
+		return columns;
+	}
+
+	/**
+	 * @return The index of the named column, or -1 if there is no such column.
+	 */
+	public int columnIndex(String columnName) {
+		for (int i = 0; i < columns.size(); ++i) {
+			if (columns.get(i).name().equals(columnName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int numRowGroups() {
+		return rowGroups.size();
+	}
+
+	public int numRows(int rowGroup) {
+		return rowGroups.get(rowGroup).numRows();
+	}
+
+	public long numRows() {
+		return rowGroups.stream()
+			.mapToLong(RowGroup::numRows)
+			.sum();
+	}
+
+	/**
+	 * @return The values of the named STRING column in the row group, with null
+	 *         for absent values.
+	 */
+	public String[] readStrings(int rowGroup, String columnName) throws IOException {
+		var chunk = readChunk(rowGroup, columnName, Type.STRING);
+		var nulls = readNulls(chunk, rowGroups.get(rowGroup).numRows());
+		var dictionary = new String[readVarint(chunk)];
+		for (int i = 0; i < dictionary.length; ++i) {
+			var bytes = new byte[readVarint(chunk)];
+			chunk.get(bytes);
+			dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		var values = new String[rowGroups.get(rowGroup).numRows()];
+		for (int i = 0; i < values.length; ++i) {
+			if (!nulls.get(i)) {
+				values[i] = dictionary[readVarint(chunk)];
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return The values of the named LONG column in the row group, with zero
+	 *         for absent values. Use readNulls to tell those apart.
+	 */
+	public long[] readLongs(int rowGroup, String columnName) throws IOException {
+		var chunk = readChunk(rowGroup, columnName, Type.LONG);
+		var nulls = readNulls(chunk, rowGroups.get(rowGroup).numRows());
+		var values = new long[rowGroups.get(rowGroup).numRows()];
+		long previous = 0;
+		for (int i = 0; i < values.length; ++i) {
+			if (!nulls.get(i)) {
+				long zigzag = readVarLong(chunk);
+				previous += (zigzag >>> 1) ^ -(zigzag & 1);
+				values[i] = previous;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return The rows of the row group whose value in the named column is
+	 *         absent.
+	 */
+	public BitSet readNulls(int rowGroup, String columnName) throws IOException {
+		var column = columns.get(requireColumn(columnName));
+		return readNulls(readChunk(rowGroup, columnName, column.type()), rowGroups.get(rowGroup).numRows());
+	}
+
+	private ByteBuffer readChunk(int rowGroup, String columnName, Type expectedType) throws IOException {
+		int columnIndex = requireColumn(columnName);
+		if (columns.get(columnIndex).type() != expectedType) {
+			throw new IllegalArgumentException("Column %1$s is of type %2$s, not %3$s".formatted(
+				columnName, columns.get(columnIndex).type(), expectedType));
+		}
+		var info = rowGroups.get(rowGroup).chunks()[columnIndex];
+		var compressed = read(channel, info.offset(), info.compressedLength());
+		var inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			var bytes = new byte[info.length()];
+			int length = 0;
+			while (length < bytes.length && !inflater.finished()) {
+				int numInflated = inflater.inflate(bytes, length, bytes.length - length);
+				if (numInflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += numInflated;
+			}
+			if (length != bytes.length) {
+				throw new IOException("Truncated chunk of column %1$s in %2$s".formatted(columnName, file));
+			}
+			return ByteBuffer.wrap(bytes);
+		} catch (DataFormatException ex) {
+			throw new IOException("Corrupt chunk of column %1$s in %2$s".formatted(columnName, file), ex);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private int requireColumn(String columnName) {
+		int columnIndex = columnIndex(columnName);
+		if (columnIndex == -1) {
+			throw new IllegalArgumentException("No column named %1$s".formatted(columnName));
+		}
+		return columnIndex;
+	}
+
+	private static BitSet readNulls(ByteBuffer chunk, int numRows) {
+		if ((chunk.get() & HAS_NULLS) == 0) {
+			return new BitSet();
+		}
+		var bitmap = new byte[(numRows + 7) / 8];
+		chunk.get(bitmap);
+		return BitSet.valueOf(bitmap);
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		return buffer.flip();
+	}
+
+	static int readVarint(ByteBuffer buffer) {
+		long value = readVarLong(buffer);
+		if (value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Varint out of range: " + value);
+		}
+		return (int) value;
+	}
+
+	static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
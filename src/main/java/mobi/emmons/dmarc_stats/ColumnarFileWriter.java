@@ -0,0 +1,260 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a columnar file (see ColumnarFile) one row at a time. Rows are
+ * buffered until a row group is full, and then each column of the group is
+ * encoded, compressed, and written out, so that memory use is bounded by the
+ * row group size rather than the size of the file. The buffers grow with the
+ * rows actually buffered and are released when the group is written out, and
+ * the file is open only while a group is written, so that an idle writer costs
+ * little. The file is written to a temporary file, which replaces the target
+ * only when commit is called.
+ */
+public final class ColumnarFileWriter implements Closeable {
+	public static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+	private static final int MIN_BUFFER_CAPACITY = 64;
+
+	private static record ChunkInfo(long offset, int compressedLength, int length) {}
+
+	private static record RowGroup(int numRows, List<ChunkInfo> chunks) {}
+
+	private final Path targetFile;
+	private final Path tempFile;
+	private final List<ColumnarFile.Column> columns;
+	private final int rowGroupSize;
+	private final Object[] buffers;
+	private final BitSet[] nulls;
+	private final List<RowGroup> rowGroups = new ArrayList<>();
+	private int bufferCapacity = 0;
+	private int numBufferedRows = 0;
+	private long position = 8;	// past the magic number and version
+	private boolean committed = false;
+
+	public ColumnarFileWriter(Path targetFile, List<ColumnarFile.Column> columns, int rowGroupSize)
+			throws IOException {
+		if (rowGroupSize < 1) {
+			throw new IllegalArgumentException("rowGroupSize must be positive");
+		}
+		this.targetFile = targetFile;
+		this.columns = List.copyOf(columns);
+		this.rowGroupSize = rowGroupSize;
+		buffers = new Object[this.columns.size()];
+		nulls = new BitSet[this.columns.size()];
+		releaseBuffers();
+		tempFile = targetFile.resolveSibling(targetFile.getFileName() + ".tmp");
+		try (var out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+			out.writeInt(ColumnarFile.MAGIC);
+			out.writeInt(ColumnarFile.FORMAT_VERSION);
+		}
+	}
+
+	/**
+	 * Adds a row, whose values are Strings or Longs according to the types of
+	 * the columns, or null.
+	 */
+	public void addRow(Object... values) throws IOException {
+		if (values.length != columns.size()) {
+			throw new IllegalArgumentException("Expected %1$d values, but got %2$d".formatted(
+				columns.size(), values.length));
+		}
+		if (numBufferedRows == bufferCapacity) {
+			growBuffers();
+		}
+		for (int i = 0; i < values.length; ++i) {
+			if (values[i] == null) {
+				nulls[i].set(numBufferedRows);
+			} else if (buffers[i] instanceof String[] strings) {
+				strings[numBufferedRows] = (String) values[i];
+			} else {
+				((long[]) buffers[i])[numBufferedRows] = ((Long) values[i]).longValue();
+			}
+		}
+		if (++numBufferedRows == rowGroupSize) {
+			flushRowGroup();
+		}
+	}
+
+	/**
+	 * @return The number of rows added but not yet written out.
+	 */
+	public int numBufferedRows() {
+		return numBufferedRows;
+	}
+
+	/**
+	 * Writes out the buffered rows as a row group, even if it is not full.
+	 */
+	public void flushRowGroup() throws IOException {
+		if (numBufferedRows == 0) {
+			return;
+		}
+		List<ChunkInfo> chunks = new ArrayList<>(columns.size());
+		var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try (var out = openForAppend()) {
+			var deflateBuffer = new byte[8192];
+			for (int i = 0; i < columns.size(); ++i) {
+				chunks.add(writeChunk(encodeChunk(i), deflater, deflateBuffer, out));
+			}
+		} finally {
+			deflater.end();
+		}
+		rowGroups.add(new RowGroup(numBufferedRows, chunks));
+		releaseBuffers();
+		numBufferedRows = 0;
+	}
+
+	private void growBuffers() {
+		bufferCapacity = Math.min(rowGroupSize, Math.max(MIN_BUFFER_CAPACITY, 2 * bufferCapacity));
+		for (int i = 0; i < buffers.length; ++i) {
+			buffers[i] = (buffers[i] instanceof String[] strings)
+				? Arrays.copyOf(strings, bufferCapacity)
+				: Arrays.copyOf((long[]) buffers[i], bufferCapacity);
+		}
+	}
+
+	private void releaseBuffers() {
+		bufferCapacity = 0;
+		for (int i = 0; i < buffers.length; ++i) {
+			buffers[i] = (columns.get(i).type() == ColumnarFile.Type.STRING)
+				? new String[0]
+				: new long[0];
+			nulls[i] = new BitSet();
+		}
+	}
+
+	private DataOutputStream openForAppend() throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(
+			Files.newOutputStream(tempFile, StandardOpenOption.APPEND)));
+	}
+
+	private byte[] encodeChunk(int columnIndex) {
+		var bytes = new ByteArrayOutputStream(4 * numBufferedRows);
+		var columnNulls = nulls[columnIndex];
+		if (columnNulls.isEmpty()) {
+			bytes.write(0);
+		} else {
+			bytes.write(ColumnarFile.HAS_NULLS);
+			var bitmap = Arrays.copyOf(columnNulls.toByteArray(), (numBufferedRows + 7) / 8);
+			bytes.write(bitmap, 0, bitmap.length);
+		}
+
+		if (buffers[columnIndex] instanceof String[] strings) {
+			Map<String, Integer> dictionary = new HashMap<>();
+			List<String> entries = new ArrayList<>();
+			var indexes = new int[numBufferedRows];
+			for (int i = 0; i < numBufferedRows; ++i) {
+				if (!columnNulls.get(i)) {
+					indexes[i] = dictionary.computeIfAbsent(strings[i], str -> {
+						entries.add(str);
+						return entries.size() - 1;
+					});
+				}
+			}
+			writeVarLong(entries.size(), bytes);
+			for (var entry : entries) {
+				var utf8 = entry.getBytes(StandardCharsets.UTF_8);
+				writeVarLong(utf8.length, bytes);
+				bytes.write(utf8, 0, utf8.length);
+			}
+			for (int i = 0; i < numBufferedRows; ++i) {
+				if (!columnNulls.get(i)) {
+					writeVarLong(indexes[i], bytes);
+				}
+			}
+		} else {
+			var longs = (long[]) buffers[columnIndex];
+			long previous = 0;
+			for (int i = 0; i < numBufferedRows; ++i) {
+				if (!columnNulls.get(i)) {
+					long delta = longs[i] - previous;
+					writeVarLong((delta << 1) ^ (delta >> 63), bytes);
+					previous = longs[i];
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private ChunkInfo writeChunk(byte[] chunk, Deflater deflater, byte[] deflateBuffer, DataOutputStream out)
+			throws IOException {
+		long offset = position;
+		deflater.reset();
+		deflater.setInput(chunk);
+		deflater.finish();
+		int compressedLength = 0;
+		while (!deflater.finished()) {
+			int numDeflated = deflater.deflate(deflateBuffer);
+			out.write(deflateBuffer, 0, numDeflated);
+			compressedLength += numDeflated;
+		}
+		position += compressedLength;
+		return new ChunkInfo(offset, compressedLength, chunk.length);
+	}
+
+	private static void writeVarLong(long value, ByteArrayOutputStream bytes) {
+		while ((value & ~0x7fL) != 0) {
+			bytes.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		bytes.write((int) value);
+	}
+
+	/**
+	 * Writes out any buffered rows and the footer, and moves the file into
+	 * place.
+	 */
+	public void commit() throws IOException {
+		flushRowGroup();
+		var footer = new ByteArrayOutputStream();
+		try (var footerOut = new DataOutputStream(footer)) {
+			footerOut.writeInt(columns.size());
+			for (var column : columns) {
+				FeedbackBinaryCodec.writeString(column.name(), footerOut);
+				footerOut.writeByte(column.type().ordinal());
+			}
+			footerOut.writeInt(rowGroups.size());
+			for (var rowGroup : rowGroups) {
+				footerOut.writeInt(rowGroup.numRows());
+				for (var chunk : rowGroup.chunks()) {
+					footerOut.writeLong(chunk.offset());
+					footerOut.writeInt(chunk.compressedLength());
+					footerOut.writeInt(chunk.length());
+				}
+			}
+		}
+		try (var out = openForAppend()) {
+			footer.writeTo(out);
+			out.writeInt(footer.size());
+			out.writeInt(ColumnarFile.MAGIC);
+		}
+		Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		committed = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!committed) {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+}
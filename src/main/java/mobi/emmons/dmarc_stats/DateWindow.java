@@ -0,0 +1,71 @@
+package mobi.emmons.dmarc_stats;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Objects;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * A half-open interval of time, [from, to). A report falls within the window
+ * if the beginning of its date range does.
+ */
+public record DateWindow(Instant from, Instant to) {
+	public static final DateWindow ALL = new DateWindow(Instant.MIN, Instant.MAX);
+
+	public DateWindow {
+		Objects.requireNonNull(from, "from");
+		Objects.requireNonNull(to, "to");
+		if (to.isBefore(from)) {
+			throw new IllegalArgumentException("The window must not end before it begins");
+		}
+	}
+
+	/**
+	 * @param fromDay The first day of the window, or null for no lower bound.
+	 * @param toDay   The day after the window, or null for no upper bound.
+	 * @return The window from the start of fromDay to the start of toDay (UTC).
+	 */
+	public static DateWindow ofDays(LocalDate fromDay, LocalDate toDay) {
+		return new DateWindow(
+			(fromDay == null) ? Instant.MIN : fromDay.atStartOfDay(ZoneOffset.UTC).toInstant(),
+			(toDay == null) ? Instant.MAX : toDay.atStartOfDay(ZoneOffset.UTC).toInstant());
+	}
+
+	public boolean contains(long epochSeconds) {
+		return from.getEpochSecond() <= epochSeconds && epochSeconds < to.getEpochSecond();
+	}
+
+	public boolean contains(Feedback feedback) {
+		return contains(beginOf(feedback));
+	}
+
+	/**
+	 * @return True if any instant of the given UTC day lies within the window.
+	 */
+	public boolean overlapsDay(LocalDate day) {
+		return overlapsDays(day, day.plusDays(1));
+	}
+
+	/**
+	 * @return True if any instant from the start of firstDay up to the start of
+	 *         endDay (UTC) lies within the window.
+	 */
+	public boolean overlapsDays(LocalDate firstDay, LocalDate endDay) {
+		var rangeStart = firstDay.atStartOfDay(ZoneOffset.UTC).toInstant();
+		var rangeEnd = endDay.atStartOfDay(ZoneOffset.UTC).toInstant();
+		return rangeStart.isBefore(to) && rangeEnd.isAfter(from);
+	}
+
+	/**
+	 * @return The beginning of the report's date range in epoch seconds, or zero
+	 *         if the report does not state it.
+	 */
+	public static long beginOf(Feedback feedback) {
+		var metadata = feedback.getReportMetadata();
+		var dateRange = (metadata == null) ? null : metadata.getDateRange();
+		var begin = (dateRange == null) ? null : dateRange.getBegin();
+		return (begin == null) ? 0L : begin.longValue();
+	}
+}
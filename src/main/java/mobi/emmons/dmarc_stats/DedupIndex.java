@@ -0,0 +1,198 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers every report that has been ingested, so that a report sent twice
+ * is stored and counted only once. Each report is known by two 64-bit hashes:
+ * one of its (org_name, report_id) pair, and one of its attachment as received.
+ * The latter lets an exact resend be skipped before it is even parsed.
+ *
+ * The index is an append-only file of 16-byte records, loaded at open into a
+ * pair of primitive hash sets. A truncated trailing record, as left by a crash,
+ * is dropped. This class is not thread-safe.
+ */
+public final class DedupIndex implements Closeable {
+	public static final String FILE_NAME = "dedup-index.bin";
+
+	/** The content hash recorded for reports whose attachment is not known. */
+	public static final long UNKNOWN_CONTENT = 0L;
+
+	private static final int MAGIC = 0x44445550;	// "DDUP"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 2 * Integer.BYTES;
+	private static final int RECORD_SIZE = 2 * Long.BYTES;
+
+	private final LongHashSet reportKeys;
+	private final LongHashSet contentHashes;
+	private final DataOutputStream appender;
+
+	private DedupIndex(LongHashSet reportKeys, LongHashSet contentHashes, FileChannel channel) {
+		this.reportKeys = reportKeys;
+		this.contentHashes = contentHashes;
+		appender = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+	}
+
+	public static DedupIndex open(Path indexFile) throws IOException {
+		var channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		try {
+			long numRecords = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+			var reportKeys = new LongHashSet(Math.clamp(numRecords, 0, Integer.MAX_VALUE / 4));
+			var contentHashes = new LongHashSet(Math.clamp(numRecords, 0, Integer.MAX_VALUE / 4));
+			if (hasValidHeader(channel)) {
+				readRecords(channel, numRecords, reportKeys, contentHashes);
+				long end = HEADER_SIZE + numRecords * RECORD_SIZE;
+				channel.truncate(end);
+				channel.position(end);
+			} else {
+				if (channel.size() > 0) {
+					System.out.format("Ignoring malformed dedup index %1$s%n", indexFile);
+				}
+				channel.truncate(0);
+				var header = ByteBuffer.allocate(HEADER_SIZE)
+					.putInt(MAGIC)
+					.putInt(FORMAT_VERSION)
+					.flip();
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+			}
+			return new DedupIndex(reportKeys, contentHashes, channel);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private static boolean hasValidHeader(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return false;
+		}
+		var header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		header.flip();
+		return header.getInt() == MAGIC && header.getInt() == FORMAT_VERSION;
+	}
+
+	private static void readRecords(FileChannel channel, long numRecords, LongHashSet reportKeys,
+			LongHashSet contentHashes) throws IOException {
+		var buffer = ByteBuffer.allocate(4096 * RECORD_SIZE);
+		long position = HEADER_SIZE;
+		long recordsLeft = numRecords;
+		while (recordsLeft > 0) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), recordsLeft * RECORD_SIZE));
+			readFully(channel, buffer, position);
+			buffer.flip();
+			position += buffer.limit();
+			while (buffer.hasRemaining()) {
+				reportKeys.add(buffer.getLong());
+				long contentHash = buffer.getLong();
+				if (contentHash != UNKNOWN_CONTENT) {
+					contentHashes.add(contentHash);
+				}
+				--recordsLeft;
+			}
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of dedup index");
+			}
+		}
+	}
+
+	/**
+	 * @return The number of distinct reports in the index.
+	 */
+	public int size() {
+		return reportKeys.size();
+	}
+
+	public boolean containsContent(long contentHash) {
+		return contentHash != UNKNOWN_CONTENT && contentHashes.contains(contentHash);
+	}
+
+	public boolean containsReport(String orgName, String reportId) {
+		return reportKeys.contains(reportKey(orgName, reportId));
+	}
+
+	/**
+	 * Records a report. The content hash is recorded even if the report itself
+	 * is already known, so that a later resend of the same attachment is caught
+	 * before parsing.
+	 *
+	 * @return True if the report was not already in the index.
+	 */
+	public boolean add(String orgName, String reportId, long contentHash) throws IOException {
+		long reportKey = reportKey(orgName, reportId);
+		boolean isNewReport = reportKeys.add(reportKey);
+		boolean isNewContent = (contentHash != UNKNOWN_CONTENT) && contentHashes.add(contentHash);
+		if (isNewReport || isNewContent) {
+			appender.writeLong(reportKey);
+			appender.writeLong(contentHash);
+		}
+		return isNewReport;
+	}
+
+	/**
+	 * Writes out the records added so far, for a long-running process that
+	 * closes the index only at exit.
+	 */
+	public void flush() throws IOException {
+		appender.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		appender.close();
+	}
+
+	static long reportKey(String orgName, String reportId) {
+		var digest = newDigest();
+		digest.update(String.valueOf(orgName).getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(String.valueOf(reportId).getBytes(StandardCharsets.UTF_8));
+		return toHash64(digest.digest());
+	}
+
+	/**
+	 * @return A 64-bit hash of the stream's content, never UNKNOWN_CONTENT.
+	 */
+	static long contentHash(InputStream is) throws IOException {
+		var digest = newDigest();
+		var buffer = new byte[8192];
+		for (int numRead; (numRead = is.read(buffer)) != -1;) {
+			digest.update(buffer, 0, numRead);
+		}
+		long hash = toHash64(digest.digest());
+		return (hash == UNKNOWN_CONTENT) ? 1L : hash;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 is not available", ex);
+		}
+	}
+
+	private static long toHash64(byte[] digest) {
+		return ByteBuffer.wrap(digest).getLong();
+	}
+}
@@ -1,125 +1,1136 @@
 package mobi.emmons.dmarc_stats;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.BiPredicate;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.glassfish.jaxb.runtime.marshaller.NamespacePrefixMapper;
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import jakarta.mail.MessagingException;
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Marshaller;
 import mobi.emmons.dmarc_stats.generated.Feedback;
 
 public class DmarcReportStore {
-	private static final String DMARC_NS = "http://dmarc.org/dmarc-xml/0.1";
+	public static enum SyncMode {
+		/** Download the messages not flagged SEEN. */
+		UNSEEN,
+		/** Download the messages with a UID beyond the saved UidCheckpoint. */
+		UID
+	}
+
+	public static enum StorageFormat {
+		/** Re-marshal each parsed report as formatted XML (dmarc-<id>.xml). */
+		XML,
+		/**
+		 * Keep the attachment as the sender compressed it (dmarc-<id>.xml.gz), or
+		 * recompressed with gzip if it was zipped.
+		 */
+		GZIP_ORIGINAL
+	}
+
+	public static enum StorageLayout {
+		/** All reports in the storage directory itself. */
+		FLAT,
+		/**
+		 * Reports in yyyy/MM/dd subdirectories by the (UTC) day their date range
+		 * begins, each with a ShardManifest.
+		 */
+		DATE_SHARDED
+	}
+
+	static final String DMARC_NS = "http://dmarc.org/dmarc-xml/0.1";
+
+	private static final String XML_SUFFIX = ".xml";
+	private static final String GZIP_SUFFIX = ".gz";
+	private static final String REPORT_FILE_GLOB = "dmarc-*.{xml,xml.gz}";
+
+	public static final int DEFAULT_INGEST_CHUNK_SIZE = 500;
 
 	private final File storageDir;
-	private final String emailHost;
-	private final String emailUser;
-	private final String emailPassword;
+	private final MailAccount emailAccount;
 	private final String emailFolder;
+	private ReportCodec codec = ReportCodec.forBackend(ReportCodec.Backend.JAXB);
+	private ParallelReportLoader parallelLoader = null;
+	private boolean useSnapshot = false;
+	private SyncMode syncMode = SyncMode.UNSEEN;
+	private int fetchChunkSize = MessageDownloader.DEFAULT_FETCH_CHUNK_SIZE;
+	private int numDownloadConnections = 1;
+	private int ingestChunkSize = DEFAULT_INGEST_CHUNK_SIZE;
+	private StorageFormat storageFormat = StorageFormat.XML;
+	private boolean useDedupIndex = false;
+	private StorageLayout storageLayout = StorageLayout.FLAT;
+	private boolean useRollups = false;
+	private boolean useSketches = false;
 
 	public DmarcReportStore(File storageDir, String emailHost, String emailUser,
 			String emailPassword, String emailFolder) {
-		this.storageDir = Objects.requireNonNull(storageDir, "storageDir");
-		this.emailHost = Util.requireNonBlank(emailHost, "emailHost");
-		this.emailUser = Util.requireNonBlank(emailUser, "emailUser");
-		this.emailPassword = Util.requireNonBlank(emailPassword, "emailPassword");
+		this(storageDir, MailAccount.imaps(emailHost, emailUser, emailPassword), emailFolder);
+	}
+
+	public DmarcReportStore(File storageDir, MailAccount emailAccount, String emailFolder) {
+		this.storageDir = prepareStorageDir(storageDir);
+		this.emailAccount = Objects.requireNonNull(emailAccount, "emailAccount");
 		this.emailFolder = Util.requireNonBlank(emailFolder, "emailFolder");
+	}
 
+	/**
+	 * Creates an offline store, which reads and maintains the reports already
+	 * stored but never connects to a mail server.
+	 */
+	public DmarcReportStore(File storageDir) {
+		this.storageDir = prepareStorageDir(storageDir);
+		emailAccount = null;
+		emailFolder = null;
+	}
+
+	private static File prepareStorageDir(File storageDir) {
+		Objects.requireNonNull(storageDir, "storageDir");
 		if (!storageDir.exists()) {
 			storageDir.mkdirs();
 		} else if (!storageDir.isDirectory()) {
 			throw new IllegalArgumentException("storageDir must be a directory");
 		}
+		return storageDir;
+	}
+
+	/**
+	 * Selects the XML parser used both for stored reports and for newly
+	 * downloaded ones.
+	 *
+	 * @param backend The parser backend to use.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withParserBackend(ReportCodec.Backend backend) {
+		codec = ReportCodec.forBackend(backend);
+		return this;
+	}
+
+	/**
+	 * Loads stored reports with the given loader. Pass null (the default) to
+	 * load them one at a time on the calling thread.
+	 *
+	 * @param loader The loader used by getDownloadedReports, or null.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withParallelLoad(ParallelReportLoader loader) {
+		parallelLoader = loader;
+		return this;
+	}
+
+	/**
+	 * Enables the persistent snapshot of parsed reports (see ReportSnapshot), so
+	 * that only new or changed report files are parsed when loading the store.
+	 *
+	 * @param enabled Whether to read and maintain the snapshot.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withSnapshot(boolean enabled) {
+		useSnapshot = enabled;
+		return this;
+	}
+
+	/**
+	 * Selects how new messages are found in the email folder.
+	 *
+	 * @param mode The sync mode.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withSyncMode(SyncMode mode) {
+		syncMode = Objects.requireNonNull(mode, "mode");
+		return this;
+	}
+
+	/**
+	 * Sets the number of messages whose headers are prefetched at once (see
+	 * MessageDownloader.withFetchChunkSize).
+	 *
+	 * @param chunkSize The number of messages per prefetch.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withFetchChunkSize(int chunkSize) {
+		fetchChunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Downloads new messages over the given number of connections at once (see
+	 * ParallelMessageDownloader).
+	 *
+	 * @param numConnections The number of connections, where 1 (the default)
+	 *        downloads over the same single connection used to set flags.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withDownloadConnections(int numConnections) {
+		if (numConnections < 1) {
+			throw new IllegalArgumentException("numConnections must be positive");
+		}
+		numDownloadConnections = numConnections;
+		return this;
+	}
+
+	/**
+	 * Sets the number of new messages ingested per chunk. Each chunk is
+	 * committed before the next is downloaded: its reports are stored, its
+	 * messages flagged SEEN (and the UID checkpoint advanced), and the dedup
+	 * index and rollups saved. An ingest that fails part way thus loses only
+	 * the chunk in progress, and the next one resumes after the last chunk
+	 * committed. Messages that cannot be decoded or parsed do not fail the
+	 * ingest, but are set aside in the store's quarantine directory (see
+	 * Quarantine) and flagged SEEN with the rest of their chunk.
+	 *
+	 * @param chunkSize The number of messages per chunk.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withIngestChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		ingestChunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Selects how newly downloaded reports are written to the store. Stored
+	 * reports are read in either format, regardless of this setting.
+	 *
+	 * @param format The storage format.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withStorageFormat(StorageFormat format) {
+		storageFormat = Objects.requireNonNull(format, "format");
+		return this;
+	}
+
+	/**
+	 * Enables the persistent dedup index (see DedupIndex), so that a report that
+	 * is received more than once is stored and handed to the consumer only once.
+	 *
+	 * @param enabled Whether to read and maintain the dedup index.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withDedupIndex(boolean enabled) {
+		useDedupIndex = enabled;
+		return this;
+	}
+
+	/**
+	 * Selects where newly downloaded reports are written. Stored reports are
+	 * found in either layout, regardless of this setting; see
+	 * migrateToShardedLayout to move a flat store's existing reports.
+	 *
+	 * @param layout The storage layout.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withStorageLayout(StorageLayout layout) {
+		storageLayout = Objects.requireNonNull(layout, "layout");
+		return this;
+	}
+
+	/**
+	 * Enables the day and week rollups (see RollupStore), which are then updated
+	 * with every report ingested. Missing rollups are built from the stored
+	 * reports, all of which are then read regardless of the date window.
+	 *
+	 * @param enabled Whether to read and maintain the rollups.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withRollups(boolean enabled) {
+		useRollups = enabled;
+		return this;
+	}
+
+	/**
+	 * Enables the per-domain and per-org sender sketches (see SketchStore),
+	 * which are then updated with every report ingested. Missing sketches are
+	 * built from the stored reports, all of which are then read regardless of
+	 * the date window.
+	 *
+	 * @param enabled Whether to read and maintain the sketches.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public DmarcReportStore withSketches(boolean enabled) {
+		useSketches = enabled;
+		return this;
 	}
 
 	public List<Feedback> getAllReports() throws IOException, MessagingException {
-		var reports = getDownloadedReports();
-		System.out.format("Num reports in store: %1$d%n", reports.size());
-
-		var counter = new AtomicLong();
-		try (var downloader = new MessageDownloader(emailHost, emailUser, emailPassword,
-				emailFolder, MessageDownloader.OpenMode.READ_WRITE)) {
-			var msgInfos = downloader.download();
-			msgInfos.stream()
-				.map(MsgInfo::xmlPart)
-				.map(DmarcReportStore::parseReport)
-				.peek(this::writeReportToStorage)
-				.peek(feedback -> counter.incrementAndGet())
-				.forEach(reports::add);
-			downloader.setMessageSeenFlags(msgInfos);
-		}
-
-		System.out.format("Downloaded %1$d new reports%n", counter.get());
+		List<Feedback> reports = new ArrayList<>();
+		forEachReport(reports::add);
 		return reports;
 	}
 
+	/**
+	 * Hands every stored report to the consumer, then downloads, stores, and
+	 * hands over each new report. No report is retained here, so the consumer
+	 * alone decides how much of the archive is held in memory. An offline store
+	 * hands over its stored reports only.
+	 */
+	public void forEachReport(Consumer<Feedback> consumer) throws IOException, MessagingException {
+		forEachReport(DateWindow.ALL, consumer);
+	}
+
+	/**
+	 * Like forEachReport(Consumer), but hands over only the reports within the
+	 * window. In a date-sharded store, only the shards for the window's days are
+	 * read. New reports are downloaded and stored whether in the window or not.
+	 */
+	public void forEachReport(DateWindow window, Consumer<Feedback> consumer)
+			throws IOException, MessagingException {
+		try (var ingest = new Ingest(window, consumer)) {
+			loadStoredReports(ingest);
+			downloadNewReports(ingest);
+		}
+	}
+
+	/**
+	 * Downloads and stores new reports, keeping the dedup index, rollups, and
+	 * sketches up to date, but hands no report over. Stored reports are not
+	 * parsed, unless one of those is empty and must be built from them. This
+	 * suits a run that reads only the rollups or sketches.
+	 */
+	public void syncNewReports() throws IOException, MessagingException {
+		try (var ingest = new Ingest(DateWindow.ALL, feedback -> {})) {
+			if (ingest.needsStoredReports()) {
+				loadStoredReports(ingest);
+			}
+			downloadNewReports(ingest);
+		}
+	}
+
+	/**
+	 * Like forEachReport(DateWindow, Consumer), but gathers the reports within
+	 * the window into a compact RecordTable rather than handing them over one
+	 * by one. Stored reports are parsed straight into the table when loaded
+	 * sequentially with the STAX backend, and otherwise parsed and copied in
+	 * one at a time, so that no Feedback outlives its own parse. (With the
+	 * dedup index, rollups, or sketches enabled, stored reports take the usual
+	 * path, so that those stay complete.)
+	 */
+	public RecordTable loadRecordTable(DateWindow window) throws IOException, MessagingException {
+		var builder = new RecordTable.Builder(window);
+		try (var ingest = new Ingest(window, builder::add)) {
+			if (ingest.tracksStoredReports()) {
+				loadStoredReports(ingest);
+			} else {
+				var reportPaths = listReportPaths(window, entry -> window.contains(entry.begin()));
+				var loadResult = (parallelLoader == null)
+					? ParallelReportLoader.loadSequentially(reportPaths,
+						path -> parseReportFile(path.toFile(), builder), isKept -> {})
+					: parallelLoader.load(reportPaths, path -> parseReportFile(path.toFile()), builder::add);
+				loadResult.printFailures();
+				System.out.format("Num reports in store: %1$d%n", builder.numReports());
+			}
+			downloadNewReports(ingest);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Imports the reports in archived mail (see MessageArchive) instead of
+	 * downloading them, such as to backfill years of reports without pushing
+	 * them back through the IMAP server. Messages are decoded and their reports
+	 * parsed on the archive's worker threads, and then stored one at a time in
+	 * archive order: reports already in the store are skipped, and messages
+	 * that cannot be decoded or parsed are quarantined. The dedup index,
+	 * rollups, and sketches (if enabled) are saved after every chunk of
+	 * messages (see withIngestChunkSize).
+	 */
+	public MessageArchive.Result importArchives(List<Path> archives, MessageArchive archive)
+			throws IOException {
+		var quarantine = new Quarantine(storageDir.toPath().resolve(Quarantine.DIR_NAME));
+		MessageArchive.Result result;
+		try (var ingest = new Ingest(DateWindow.ALL, feedback -> {})) {
+			if (ingest.tracksStoredReports()) {
+				loadStoredReports(ingest);
+			}
+			var numUncommitted = new AtomicLong();
+			try {
+				result = archive.read(archives, quarantine,
+					message -> ingest.parse(new MsgInfo(message).payload()),
+					report -> {
+						ingest.store(report);
+						if (numUncommitted.incrementAndGet() >= ingestChunkSize) {
+							try {
+								ingest.checkpoint();
+							} catch (IOException ex) {
+								throw new UncheckedIOException(ex);
+							}
+							numUncommitted.set(0);
+						}
+					},
+					report -> {
+						try {
+							report.payload().close();
+						} catch (IOException ex) {
+							throw new UncheckedIOException(ex);
+						}
+					});
+			} catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+
+			System.out.format("Imported %1$d new reports from %2$d archived messages%n",
+				ingest.numStored, result.numMessages());
+			if (ingest.dedupIndex != null) {
+				System.out.format("Skipped %1$d duplicate reports%n", ingest.numDuplicates);
+			}
+		}
+		if (quarantine.numMessages() > 0) {
+			System.out.format("Quarantined %1$d messages in %2$s%n", quarantine.numMessages(), quarantine.dir());
+		}
+		return result;
+	}
+
+	private void downloadNewReports(Ingest ingest) throws IOException, MessagingException {
+		if (emailAccount == null) {
+			return;
+		}
+
+		try (var downloader = connect()) {
+			downloadNewReports(downloader, ingest);
+		}
+
+		System.out.format("Downloaded %1$d new reports%n", ingest.numStored);
+		if (ingest.dedupIndex != null) {
+			System.out.format("Skipped %1$d duplicate reports%n", ingest.numDuplicates);
+		}
+	}
+
+	/**
+	 * Starts a long-lived ingest, for a process that stays up between the
+	 * arrival of reports (see WatchDaemon). Like forEachReport, this hands the
+	 * stored reports within the window to the consumer. But rather than
+	 * downloading once and finishing, it returns a Watch that holds the dedup
+	 * index and rollups open, so that each new batch of messages costs only its
+	 * own download and parse. Close the Watch to save them.
+	 */
+	public Watch watch(DateWindow window, Consumer<Feedback> consumer) throws IOException {
+		if (emailAccount == null) {
+			throw new IllegalStateException("An offline store cannot watch for new reports");
+		}
+		var ingest = new Ingest(window, consumer);
+		try {
+			loadStoredReports(ingest);
+		} catch (IOException | RuntimeException ex) {
+			try {
+				ingest.close();
+			} catch (IOException closeEx) {
+				ex.addSuppressed(closeEx);
+			}
+			throw ex;
+		}
+		return new Watch(ingest);
+	}
+
+	/**
+	 * An ingest started by watch(), which stays open until closed. Not
+	 * thread-safe: the consumer is called on the thread that calls sync.
+	 */
+	public final class Watch implements Closeable {
+		private final Ingest ingest;
+
+		private Watch(Ingest ingest) {
+			this.ingest = ingest;
+		}
+
+		/**
+		 * Opens a read-write connection to the store's mail folder, suitable for
+		 * sync and for waiting on with MessageDownloader.awaitChange.
+		 */
+		public MessageDownloader connect() throws MessagingException {
+			return DmarcReportStore.this.connect();
+		}
+
+		/**
+		 * Downloads, stores, and hands to the consumer the reports that arrived
+		 * since the last sync (judged by the store's sync mode), then saves the
+		 * dedup index, rollups, and sketches.
+		 *
+		 * @return The number of new reports stored.
+		 */
+		public long sync(MessageDownloader downloader) throws IOException, MessagingException {
+			long numStoredBefore = ingest.numStored;
+			downloadNewReports(downloader, ingest);
+			ingest.checkpoint();
+			long numNew = ingest.numStored - numStoredBefore;
+			if (numNew > 0) {
+				System.out.format("Downloaded %1$d new reports%n", numNew);
+			}
+			return numNew;
+		}
+
+		/**
+		 * @return The rollups kept up to date by this watch, or null if rollups
+		 *         are disabled.
+		 */
+		public RollupStore rollups() {
+			return ingest.rollups;
+		}
+
+		/**
+		 * @return The sender sketches kept up to date by this watch, or null if
+		 *         sketches are disabled.
+		 */
+		public SketchStore sketches() {
+			return ingest.sketches;
+		}
+
+		@Override
+		public void close() throws IOException {
+			ingest.close();
+		}
+	}
+
+	private MessageDownloader connect() throws MessagingException {
+		return new MessageDownloader(emailAccount, emailFolder, MessageDownloader.OpenMode.READ_WRITE)
+			.withFetchChunkSize(fetchChunkSize);
+	}
+
+	private void loadStoredReports(Ingest ingest) throws IOException {
+		boolean isRebuilding = (ingest.rollups != null && ingest.rollups.isEmpty())
+			|| (ingest.sketches != null && ingest.sketches.isEmpty());
+		var loadWindow = isRebuilding ? DateWindow.ALL : ingest.window;
+		var loadResult = loadWindow.equals(DateWindow.ALL)
+			? loadDownloadedReports(ingest::acceptStored)
+			: loadDownloadedReports(loadWindow, ingest::acceptStored);
+		loadResult.printFailures();
+		System.out.format("Num reports in store: %1$d%n", loadResult.numLoaded());
+	}
+
+	private void downloadNewReports(MessageDownloader downloader, Ingest ingest)
+			throws IOException, MessagingException {
+		if (syncMode == SyncMode.UID) {
+			downloadByUid(downloader, ingest);
+		} else {
+			ingestInChunks(downloader, downloader.findUnseenUids(), ingest, lastUid -> {});
+		}
+	}
+
+	private void downloadByUid(MessageDownloader downloader, Ingest ingest)
+			throws IOException, MessagingException {
+		var checkpointFile = storageDir.toPath().resolve(UidCheckpoint.FILE_NAME);
+		var checkpoint = UidCheckpoint.load(checkpointFile);
+		long uidValidity = downloader.getUidValidity();
+		long lastUid = 0;
+		if (checkpoint == null) {
+			System.out.format("No UID sync state found; performing full sync%n");
+		} else if (!checkpoint.appliesTo(emailFolder, uidValidity)) {
+			System.out.format("UIDVALIDITY of %1$s changed; performing full resync%n", emailFolder);
+		} else {
+			lastUid = checkpoint.lastUid();
+		}
+
+		var uids = downloader.findUidsNewerThan(lastUid);
+		if (uids.length == 0) {
+			new UidCheckpoint(emailFolder, uidValidity, lastUid).save(checkpointFile);
+		}
+		ingestInChunks(downloader, uids, ingest,
+			committedUid -> new UidCheckpoint(emailFolder, uidValidity, committedUid).save(checkpointFile));
+	}
+
+	@FunctionalInterface
+	private static interface ChunkCommitListener {
+		/**
+		 * Called once each chunk is committed, with the highest UID in the chunk.
+		 */
+		void committed(long lastUid) throws IOException;
+	}
+
+	/**
+	 * Downloads the messages with the given UIDs (in ascending order), and
+	 * parses and stores their reports, one chunk at a time (see
+	 * withIngestChunkSize). Messages are downloaded over several connections if
+	 * so configured, but always flagged and quarantined using the caller's
+	 * read-write connection. Since a chunk's reports are stored before the
+	 * chunk is committed, a run that stops mid-chunk downloads that chunk
+	 * again next time, and Ingest.store skips the reports it already stored.
+	 */
+	private void ingestInChunks(MessageDownloader downloader, long[] uids, Ingest ingest,
+			ChunkCommitListener listener) throws IOException, MessagingException {
+		if (uids.length == 0) {
+			return;
+		}
+		long uidValidity = downloader.getUidValidity();
+		var quarantine = new Quarantine(storageDir.toPath().resolve(Quarantine.DIR_NAME));
+		try (var parallelDownloader = (numDownloadConnections > 1)
+				? new ParallelMessageDownloader(emailAccount, emailFolder, numDownloadConnections, fetchChunkSize)
+				: null) {
+			for (int start = 0; start < uids.length; start += ingestChunkSize) {
+				var chunk = Arrays.copyOfRange(uids, start, Math.min(uids.length, start + ingestChunkSize));
+				var result = (parallelDownloader == null)
+					? downloader.downloadByUid(chunk)
+					: parallelDownloader.downloadByUid(chunk);
+				List<DownloadResult.Failure> failures = new ArrayList<>(result.failures());
+				for (var msgInfo : result.msgInfos()) {
+					try {
+						ingest.store(msgInfo.payload());
+					} catch (UnexpectedMessageFormatException ex) {
+						failures.add(new DownloadResult.Failure(msgInfo.imapUid(), ex));
+					}
+				}
+				for (var failure : failures) {
+					quarantine.add(downloader, uidValidity, failure);
+				}
+
+				downloader.setMessageSeenFlagsByUid(chunk);
+				ingest.checkpoint();
+				listener.committed(chunk[chunk.length - 1]);
+			}
+		}
+		if (quarantine.numMessages() > 0) {
+			System.out.format("Quarantined %1$d messages in %2$s%n", quarantine.numMessages(), quarantine.dir());
+		}
+	}
+
+	/**
+	 * A report parsed by Ingest.parse but not yet stored. The content hash is
+	 * DedupIndex.UNKNOWN_CONTENT unless the dedup index is enabled.
+	 */
+	private static record ParsedReport(ReportPayload payload, Feedback feedback, long contentHash) {}
+
+	/**
+	 * The state of one forEachReport or importArchives call: where new reports
+	 * go, the dedup index and rollups (if enabled), and what has been counted
+	 * so far.
+	 */
+	private final class Ingest implements Closeable {
+		private final DateWindow window;
+		private final Consumer<Feedback> consumer;
+		private final DedupIndex dedupIndex;
+		private final RollupStore rollups;
+		private final SketchStore sketches;
+		private final Map<Path, ShardManifest> manifests = new HashMap<>();
+		private long numStored = 0;
+		private long numDuplicates = 0;
+
+		Ingest(DateWindow window, Consumer<Feedback> consumer) throws IOException {
+			this.window = window;
+			this.consumer = consumer;
+			dedupIndex = useDedupIndex
+				? DedupIndex.open(storageDir.toPath().resolve(DedupIndex.FILE_NAME))
+				: null;
+			rollups = useRollups
+				? RollupStore.open(storageDir.toPath())
+				: null;
+			sketches = useSketches
+				? SketchStore.open(storageDir.toPath())
+				: null;
+		}
+
+		/**
+		 * @return True if stored reports must be handed to acceptStored to keep
+		 *         the dedup index, rollups, or sketches complete.
+		 */
+		boolean tracksStoredReports() {
+			return dedupIndex != null || rollups != null || sketches != null;
+		}
+
+		/**
+		 * @return True if the dedup index, rollups, or sketches are empty, and so
+		 *         cannot be complete until the stored reports are handed to
+		 *         acceptStored.
+		 */
+		boolean needsStoredReports() {
+			return (dedupIndex != null && dedupIndex.size() == 0)
+				|| (rollups != null && rollups.isEmpty())
+				|| (sketches != null && sketches.isEmpty());
+		}
+
+		/**
+		 * Hands over a report loaded from the store. Indexing stored reports keeps
+		 * the dedup index, rollups, and sketches complete even when they are new or
+		 * were deleted.
+		 */
+		void acceptStored(Feedback feedback) {
+			var metadata = feedback.getReportMetadata();
+			if (dedupIndex != null && metadata != null) {
+				try {
+					dedupIndex.add(metadata.getOrgName(), metadata.getReportId(), DedupIndex.UNKNOWN_CONTENT);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}
+			if (rollups != null) {
+				rollups.add(feedback);
+			}
+			if (sketches != null) {
+				sketches.add(feedback);
+			}
+			if (window.contains(feedback)) {
+				consumer.accept(feedback);
+			}
+		}
+
+		/**
+		 * Parses the report streamed from the payload, stores it, and hands it to
+		 * the consumer. Known duplicates are skipped, when possible before they
+		 * are parsed, as are reports already stored: those were handed to the
+		 * consumer (if in the window) when the stored reports were loaded. The
+		 * payload is discarded afterwards.
+		 *
+		 * @throws UnexpectedMessageFormatException If the report cannot be
+		 *         decompressed or parsed.
+		 */
+		void store(ReportPayload payload) {
+			try (payload) {
+				long contentHash = DedupIndex.UNKNOWN_CONTENT;
+				if (dedupIndex != null) {
+					contentHash = payload.contentHash();
+					if (dedupIndex.containsContent(contentHash)) {
+						++numDuplicates;
+						return;
+					}
+				}
+				store(payload, parseFeedback(payload), contentHash);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		/**
+		 * Parses the report streamed from the payload, without storing it, so
+		 * that reports can be parsed on worker threads and then stored in order.
+		 * Unlike the other methods, this one is thread-safe. The payload is
+		 * discarded if parsing fails, and otherwise by store(ParsedReport).
+		 *
+		 * @throws UnexpectedMessageFormatException If the report cannot be
+		 *         decompressed or parsed.
+		 */
+		ParsedReport parse(ReportPayload payload) throws IOException {
+			try {
+				long contentHash = (dedupIndex != null)
+					? payload.contentHash()
+					: DedupIndex.UNKNOWN_CONTENT;
+				return new ParsedReport(payload, parseFeedback(payload), contentHash);
+			} catch (IOException | RuntimeException ex) {
+				payload.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * Stores a report from parse(ReportPayload) and hands it to the consumer,
+		 * skipping known duplicates and stored reports like store(ReportPayload). The
+		 * payload is discarded afterwards.
+		 */
+		void store(ParsedReport report) {
+			try (var payload = report.payload()) {
+				if (dedupIndex != null && dedupIndex.containsContent(report.contentHash())) {
+					++numDuplicates;
+					return;
+				}
+				store(payload, report.feedback(), report.contentHash());
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		/**
+		 * @throws UnexpectedMessageFormatException If the report cannot be
+		 *         parsed, or lacks the report ID that names its storage file.
+		 */
+		private Feedback parseFeedback(ReportPayload payload) {
+			Feedback feedback;
+			try (var is = payload.openXml()) {
+				feedback = codec.parse(is);
+			} catch (IOException | RuntimeException ex) {
+				throw new UnexpectedMessageFormatException(ex, "Unable to parse report: %1$s", ex);
+			}
+			var metadata = feedback.getReportMetadata();
+			if (metadata == null) {
+				throw new UnexpectedMessageFormatException("Report has no report_metadata element");
+			} else if (!Util.isNonBlank(metadata.getReportId())) {
+				throw new UnexpectedMessageFormatException("Report has no report_id");
+			}
+			return feedback;
+		}
+
+		private void store(ReportPayload payload, Feedback feedback, long contentHash) throws IOException {
+			var metadata = feedback.getReportMetadata();
+			if (dedupIndex != null) {
+				if (dedupIndex.containsReport(metadata.getOrgName(), metadata.getReportId())) {
+					// Records the content hash, so that this resend is caught before parsing:
+					dedupIndex.add(metadata.getOrgName(), metadata.getReportId(), contentHash);
+					++numDuplicates;
+					return;
+				}
+			} else if (isStored(feedback)) {
+				return;
+			}
+			writeReportToStorage(feedback, payload, manifests);
+			// Indexed only once written, so that a failed write is retried next time:
+			if (dedupIndex != null) {
+				dedupIndex.add(metadata.getOrgName(), metadata.getReportId(), contentHash);
+			}
+			++numStored;
+			if (rollups != null) {
+				rollups.add(feedback);
+			}
+			if (sketches != null) {
+				sketches.add(feedback);
+			}
+			if (window.contains(feedback)) {
+				consumer.accept(feedback);
+			}
+		}
+
+		/**
+		 * Saves the shard manifests, dedup index, rollups, and sketches, without
+		 * closing them.
+		 */
+		void checkpoint() throws IOException {
+			saveManifests(manifests);
+			if (rollups != null) {
+				rollups.save();
+			}
+			if (sketches != null) {
+				sketches.save();
+			}
+			if (dedupIndex != null) {
+				dedupIndex.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				saveManifests(manifests);
+				if (rollups != null) {
+					rollups.save();
+				}
+				if (sketches != null) {
+					sketches.save();
+				}
+			} finally {
+				if (dedupIndex != null) {
+					dedupIndex.close();
+				}
+			}
+		}
+	}
+
 	public List<Feedback> getDownloadedReports() throws IOException {
-		var fs = FileSystems.getDefault();
-		var matcher = fs.getPathMatcher("glob:dmarc-*.xml");
-		BiPredicate<Path, BasicFileAttributes> predicate = (path, attrs) -> {
-			return attrs.isRegularFile() && matcher.matches(path.getFileName());
+		List<Feedback> reports = new ArrayList<>();
+		var result = loadDownloadedReports(reports::add);
+		result.printFailures();
+		return reports;
+	}
+
+	/**
+	 * Parses every stored report and hands each one to the consumer, in order of
+	 * file path. Reports that fail to parse are skipped and listed in the result.
+	 */
+	public ReportLoadResult loadDownloadedReports(Consumer<Feedback> consumer) throws IOException {
+		var reportFiles = listStoredReportFiles();
+		var reportPaths = List.copyOf(reportFiles.keySet());
+		if (!useSnapshot) {
+			return load(reportPaths, path -> parseReportFile(path.toFile()), consumer);
+		}
+
+		var snapshotFile = storageDir.toPath().resolve(ReportSnapshot.FILE_NAME);
+		var snapshot = ReportSnapshot.open(snapshotFile);
+		// Decide from the file attributes alone whether the snapshot needs
+		// rewriting, so that a warm start writes nothing:
+		boolean isStale = (snapshot.size() != reportFiles.size())
+			|| reportFiles.entrySet().stream().anyMatch(entry -> !snapshot.contains(
+				getSnapshotKey(entry.getKey()), entry.getValue().size(),
+				entry.getValue().lastModifiedTime().toMillis()));
+		var numFromSnapshot = new AtomicLong();
+		Function<Path, SnapshotEntry> parser = path -> {
+			var attrs = reportFiles.get(path);
+			var key = getSnapshotKey(path);
+			long lastModified = attrs.lastModifiedTime().toMillis();
+			var encodedReport = snapshot.get(key, attrs.size(), lastModified);
+			if (encodedReport != null) {
+				numFromSnapshot.incrementAndGet();
+				return new SnapshotEntry(key, attrs.size(), lastModified, encodedReport,
+					ReportSnapshot.decode(encodedReport));
+			}
+			var feedback = parseReportFile(path.toFile());
+			return new SnapshotEntry(key, attrs.size(), lastModified,
+				ByteBuffer.wrap(FeedbackBinaryCodec.encode(feedback)), feedback);
 		};
-		try (var stream = Files.find(storageDir.toPath(), Integer.MAX_VALUE, predicate, FileVisitOption.FOLLOW_LINKS)) {
-			return stream
-				.map(Path::toFile)
-				.map(DmarcReportStore::parseReport)
-				.collect(Collectors.toCollection(ArrayList::new));
+
+		if (!isStale) {
+			var result = load(reportPaths, parser, entry -> consumer.accept(entry.feedback()));
+			System.out.format("Loaded %1$d of %2$d stored reports from the snapshot%n",
+				numFromSnapshot.get(), result.numLoaded());
+			return result;
+		}
+		try (var writer = ReportSnapshot.newWriter(snapshotFile)) {
+			var result = load(reportPaths, parser, entry -> {
+				try {
+					writer.add(entry.key(), entry.size(), entry.lastModified(), entry.encodedReport());
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+				consumer.accept(entry.feedback());
+			});
+			writer.commit();
+			System.out.format("Loaded %1$d of %2$d stored reports from the snapshot%n",
+				numFromSnapshot.get(), result.numLoaded());
+			return result;
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
 		}
 	}
 
-	private static Feedback parseReport(File reportFile) {
-		try (var rdr = new FileReader(reportFile, StandardCharsets.UTF_8)) {
-			return parseReport(rdr);
-		} catch (IOException ex) {
-			throw new UncheckedIOException(ex);
-		}
+	/**
+	 * Parses the stored reports within the window and hands each one to the
+	 * consumer. In the shards of a date-sharded store, only the shards for the
+	 * window's days are visited, and only the files their manifests place in the
+	 * window are parsed. Files missing from a manifest, and those stored flat,
+	 * are parsed and then filtered. The snapshot is not used.
+	 */
+	public ReportLoadResult loadDownloadedReports(DateWindow window, Consumer<Feedback> consumer)
+			throws IOException {
+		var reportPaths = listReportPaths(window, entry -> window.contains(entry.begin()));
+		var numInWindow = new AtomicLong();
+		var result = load(reportPaths, path -> parseReportFile(path.toFile()), feedback -> {
+			if (window.contains(feedback)) {
+				numInWindow.incrementAndGet();
+				consumer.accept(feedback);
+			}
+		});
+		return new ReportLoadResult(numInWindow.get(), result.failures());
 	}
 
-	public static Feedback parseReport(String reportXml) {
-		try (var rdr = new StringReader(reportXml)) {
-			return parseReport(rdr);
+	/**
+	 * Hands the consumer each stored report that passes the query's report-level
+	 * filters. These are pushed down as far as they go: only the shards for the
+	 * query's days are visited, files whose manifest entries do not match are
+	 * never opened, and other files are parsed only until their headers show
+	 * whether they match (in full, with the JAXB backend). Record-level filters
+	 * are left to the consumer. The snapshot is not used.
+	 *
+	 * @return The outcome, where numLoaded counts the matching reports.
+	 */
+	public ReportLoadResult queryStoredReports(ReportQuery query, Consumer<Feedback> consumer)
+			throws IOException {
+		var reportPaths = listReportPaths(query.dateWindow(),
+			entry -> query.matchesReport(entry.orgName(), entry.policyDomain(), entry.begin()));
+		var numMatched = new AtomicLong();
+		var result = load(reportPaths, path -> parseReportFile(path.toFile(), query::matchesReport),
+			feedback -> {
+				if (feedback != null) {
+					numMatched.incrementAndGet();
+					consumer.accept(feedback);
+				}
+			});
+		return new ReportLoadResult(numMatched.get(), result.failures());
+	}
+
+	/**
+	 * @return In order, the files stored flat, and those in the shards that
+	 *         overlap the window and either pass the manifest filter or are
+	 *         missing from their shard's manifest.
+	 */
+	private List<Path> listReportPaths(DateWindow window, Predicate<ShardManifest.Entry> manifestFilter)
+			throws IOException {
+		List<Path> reportPaths = new ArrayList<>();
+		listReportFiles(storageDir.toPath(), reportPaths);
+		for (var shardDir : listShardDirs(window)) {
+			var manifest = ShardManifest.load(shardDir);
+			List<Path> shardFiles = new ArrayList<>();
+			listReportFiles(shardDir, shardFiles);
+			for (var file : shardFiles) {
+				var entry = manifest.get(file.getFileName().toString());
+				if (entry == null || manifestFilter.test(entry)) {
+					reportPaths.add(file);
+				}
+			}
 		}
+		reportPaths.sort(null);
+		return reportPaths;
 	}
 
-	private static Feedback parseReport(Reader reportRdr) {
+	/**
+	 * Moves every report stored flat in the storage directory into its date
+	 * shard, and records it in the shard's manifest. Each report is parsed to
+	 * find its date; files that fail to parse are left where they are. The
+	 * migration can be interrupted and rerun safely.
+	 *
+	 * @return The outcome, where numLoaded counts the reports moved.
+	 */
+	public ReportLoadResult migrateToShardedLayout() throws IOException {
+		var root = storageDir.toPath();
+		List<Path> flatFiles = new ArrayList<>();
+		listReportFiles(root, flatFiles);
+		flatFiles.sort(null);
+
+		Map<Path, ShardManifest> manifests = new HashMap<>();
 		try {
-			var dbf = DocumentBuilderFactory.newInstance();
-			dbf.setNamespaceAware(false);
-			var doc = dbf.newDocumentBuilder().parse(new InputSource(reportRdr));
+			return load(flatFiles, path -> new MigratedReport(path, parseReportFile(path.toFile())), report -> {
+				var shardDir = ShardManifest.shardDir(root, DateWindow.beginOf(report.feedback()));
+				var fileName = report.path().getFileName().toString();
+				try {
+					Files.createDirectories(shardDir);
+					Files.move(report.path(), shardDir.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+					var manifest = manifests.get(shardDir);
+					if (manifest == null) {
+						manifest = ShardManifest.load(shardDir);
+						manifests.put(shardDir, manifest);
+					}
+					manifest.put(ShardManifest.Entry.of(fileName, report.feedback()));
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			});
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			for (var manifest : manifests.values()) {
+				manifest.save();
+			}
+		}
+	}
+
+	private static record MigratedReport(Path path, Feedback feedback) {}
+
+	private static void listReportFiles(Path dir, List<Path> reportFiles) throws IOException {
+		var matcher = FileSystems.getDefault().getPathMatcher("glob:" + REPORT_FILE_GLOB);
+		try (var files = Files.newDirectoryStream(dir)) {
+			for (var file : files) {
+				if (matcher.matches(file.getFileName()) && Files.isRegularFile(file)) {
+					reportFiles.add(file);
+				}
+			}
+		}
+	}
 
-			// translateNamespaces(doc);
+	/**
+	 * @return The shard directories, yyyy/MM/dd, whose days overlap the window.
+	 */
+	private List<Path> listShardDirs(DateWindow window) throws IOException {
+		var root = storageDir.toPath();
+		List<Path> shardDirs = new ArrayList<>();
+		for (var yearDir : listNumberedDirs(root, 4)) {
+			int year = Integer.parseInt(yearDir.getFileName().toString());
+			if (!window.overlapsDays(LocalDate.of(year, 1, 1), LocalDate.of(year + 1, 1, 1))) {
+				continue;
+			}
+			for (var monthDir : listNumberedDirs(yearDir, 2)) {
+				for (var dayDir : listNumberedDirs(monthDir, 2)) {
+					var day = ShardManifest.shardDay(root, dayDir);
+					if (day != null && window.overlapsDay(day)) {
+						shardDirs.add(dayDir);
+					}
+				}
+			}
+		}
+		return shardDirs;
+	}
 
-			var unmarshaller = JAXBContext.newInstance(Feedback.class).createUnmarshaller();
-			return unmarshaller.unmarshal(doc, Feedback.class).getValue();
+	private static List<Path> listNumberedDirs(Path parent, int numDigits) throws IOException {
+		List<Path> dirs = new ArrayList<>();
+		try (var children = Files.newDirectoryStream(parent,
+				child -> child.getFileName().toString().matches("\\d{%1$d}".formatted(numDigits))
+					&& Files.isDirectory(child))) {
+			children.forEach(dirs::add);
+		}
+		return dirs;
+	}
+
+	private <T> ReportLoadResult load(List<Path> reportPaths, Function<Path, T> parser,
+			Consumer<T> consumer) throws IOException {
+		return (parallelLoader == null)
+			? ParallelReportLoader.loadSequentially(reportPaths, parser, consumer)
+			: parallelLoader.load(reportPaths, parser, consumer);
+	}
+
+	private String getSnapshotKey(Path reportFile) {
+		return storageDir.toPath().relativize(reportFile).toString().replace(File.separatorChar, '/');
+	}
+
+	private static record SnapshotEntry(String key, long size, long lastModified,
+		ByteBuffer encodedReport, Feedback feedback) {}
+
+	private SortedMap<Path, BasicFileAttributes> listStoredReportFiles() throws IOException {
+		var fs = FileSystems.getDefault();
+		var matcher = fs.getPathMatcher("glob:" + REPORT_FILE_GLOB);
+		SortedMap<Path, BasicFileAttributes> reportFiles = new TreeMap<>();
+		Files.walkFileTree(storageDir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+			new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile() && matcher.matches(file.getFileName())) {
+						reportFiles.put(file, attrs);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		return reportFiles;
+	}
+
+	private Feedback parseReportFile(File reportFile) {
+		try (var is = openReportFile(reportFile)) {
+			return codec.parse(is);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private boolean parseReportFile(File reportFile, RecordTable.Builder builder) {
+		try (var is = openReportFile(reportFile)) {
+			return codec.parseInto(is, builder);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private Feedback parseReportFile(File reportFile, Predicate<Feedback> headerFilter) {
+		try (var is = openReportFile(reportFile)) {
+			return codec.parse(is, headerFilter);
 		} catch (IOException ex) {
 			throw new UncheckedIOException(ex);
-		} catch (ParserConfigurationException | SAXException | JAXBException ex) {
-			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static InputStream openReportFile(File reportFile) throws IOException {
+		var is = new BufferedInputStream(new FileInputStream(reportFile));
+		if (!reportFile.getName().endsWith(GZIP_SUFFIX)) {
+			return is;
+		}
+		try {
+			return PipelineMetrics.meterDecompression(is, compressed -> new GZIPInputStream(compressed, 64 * 1024));
+		} catch (IOException ex) {
+			is.close();
+			throw ex;
+		}
+	}
+
+	public static Feedback parseReport(String reportXml) {
+		try (var rdr = new StringReader(reportXml)) {
+			return ReportCodec.forBackend(ReportCodec.Backend.JAXB).parse(rdr);
 		}
 	}
 
@@ -129,23 +1140,96 @@ public class DmarcReportStore {
 			.translateNamespaces(doc);
 	}
 
-	private void writeReportToStorage(Feedback feedback) {
-		try {
-			var filePath = new File(storageDir, "dmarc-%1$s.xml".formatted(
-				feedback.getReportMetadata().getReportId()));
-			var marshaller = JAXBContext.newInstance(Feedback.class).createMarshaller();
-			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-			marshaller.setProperty("org.glassfish.jaxb.namespacePrefixMapper", new NamespacePrefixMapper() {
-				@Override
-				public String getPreferredPrefix(String nsUri, String suggestion, boolean requirePrefix) {
-					return "http://dmarc.org/dmarc-xml/0.1".equals(nsUri)
-						? "dmarc"
-						: null;
+	private File getStorageFile(Feedback feedback, StorageFormat format, StorageLayout layout) {
+		var suffix = (format == StorageFormat.GZIP_ORIGINAL) ? XML_SUFFIX + GZIP_SUFFIX : XML_SUFFIX;
+		var fileName = "dmarc-%1$s%2$s".formatted(feedback.getReportMetadata().getReportId(), suffix);
+		return (layout == StorageLayout.DATE_SHARDED)
+			? ShardManifest.shardDir(storageDir.toPath(), DateWindow.beginOf(feedback)).resolve(fileName).toFile()
+			: new File(storageDir, fileName);
+	}
+
+	private boolean isStored(Feedback feedback) {
+		for (var layout : StorageLayout.values()) {
+			for (var format : StorageFormat.values()) {
+				if (getStorageFile(feedback, format, layout).exists()) {
+					return true;
 				}
-			});
-			marshaller.marshal(feedback, filePath);
-		} catch (JAXBException ex) {
-			throw new IllegalStateException(ex);
+			}
+		}
+		return false;
+	}
+
+	void writeReportToStorage(Feedback feedback, ReportPayload payload) throws IOException {
+		Map<Path, ShardManifest> manifests = new HashMap<>();
+		writeReportToStorage(feedback, payload, manifests);
+		saveManifests(manifests);
+	}
+
+	/**
+	 * Writes the report to its storage file. In the date-sharded layout, the
+	 * report is also entered in its shard's manifest, which is loaded into
+	 * manifests if it is not there already, but not saved: the caller saves
+	 * the manifests once per batch of reports (see saveManifests), rather than
+	 * rewriting a shard's manifest for every report. A report stored but not
+	 * yet in its manifest is still found, since files missing from a manifest
+	 * are always read.
+	 */
+	private void writeReportToStorage(Feedback feedback, ReportPayload payload,
+			Map<Path, ShardManifest> manifests) throws IOException {
+		var storageFile = getStorageFile(feedback, storageFormat, storageLayout);
+		if (storageLayout == StorageLayout.DATE_SHARDED) {
+			Files.createDirectories(storageFile.toPath().getParent());
+		}
+		writeReportFile(feedback, payload, storageFile);
+		if (storageLayout == StorageLayout.DATE_SHARDED) {
+			var shardDir = storageFile.toPath().getParent();
+			var manifest = manifests.get(shardDir);
+			if (manifest == null) {
+				manifest = ShardManifest.load(shardDir);
+				manifests.put(shardDir, manifest);
+			}
+			manifest.put(ShardManifest.Entry.of(storageFile.getName(), feedback));
+		}
+	}
+
+	/**
+	 * Saves the manifests updated by writeReportToStorage, and forgets them.
+	 */
+	private static void saveManifests(Map<Path, ShardManifest> manifests) throws IOException {
+		for (var manifest : manifests.values()) {
+			manifest.save();
+		}
+		manifests.clear();
+	}
+
+	private void writeReportFile(Feedback feedback, ReportPayload payload, File storageFile)
+			throws IOException {
+		try (var span = PipelineMetrics.start(PipelineMetrics.Stage.MARSHAL_TO_DISK)) {
+			writeReportContent(feedback, payload, storageFile.toPath());
+			if (span.isRecording()) {
+				span.bytes(0, Files.size(storageFile.toPath()));
+			}
+		}
+	}
+
+	private void writeReportContent(Feedback feedback, ReportPayload payload, Path targetPath)
+			throws IOException {
+		if (storageFormat == StorageFormat.XML) {
+			codec.write(feedback, targetPath.toFile());
+			return;
+		}
+
+		// Write to a temporary file first, so that an interrupted write never
+		// leaves a truncated report behind:
+		var tempPath = targetPath.resolveSibling(targetPath.getFileName() + ".tmp");
+		try {
+			try (var os = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+				payload.writeGzipTo(os);
+			}
+			Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempPath);
 		}
 	}
 }
@@ -0,0 +1,25 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.List;
+
+/**
+ * The messages that were downloaded and decoded, in UID order, together with
+ * the messages that could not be decoded.
+ */
+public record DownloadResult(List<MsgInfo> msgInfos, List<Failure> failures) {
+	public record Failure(long imapUid, Exception cause) {}
+
+	public DownloadResult {
+		msgInfos = List.copyOf(msgInfos);
+		failures = List.copyOf(failures);
+	}
+
+	public void printFailures() {
+		if (!failures.isEmpty()) {
+			System.out.format("Failed to decode %1$d messages:%n", failures.size());
+			for (var failure : failures) {
+				System.out.format("   UID %1$d: %2$s%n", failure.imapUid(), failure.cause());
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import mobi.emmons.dmarc_stats.generated.AlignmentType;
+import mobi.emmons.dmarc_stats.generated.AuthResultType;
+import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.DKIMResultType;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DateRangeType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.IdentifierType;
+import mobi.emmons.dmarc_stats.generated.PolicyEvaluatedType;
+import mobi.emmons.dmarc_stats.generated.PolicyOverrideReason;
+import mobi.emmons.dmarc_stats.generated.PolicyOverrideType;
+import mobi.emmons.dmarc_stats.generated.PolicyPublishedType;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+import mobi.emmons.dmarc_stats.generated.SPFAuthResultType;
+import mobi.emmons.dmarc_stats.generated.SPFDomainScope;
+import mobi.emmons.dmarc_stats.generated.SPFResultType;
+
+/**
+ * A compact binary encoding of the data in a Feedback object. Strings are a
+ * length (-1 for null) followed by UTF-8 bytes, enums are a byte holding the
+ * ordinal plus one (zero for null), and optional numbers and sub-objects are
+ * preceded by a presence byte. The layout is versioned by ReportSnapshot, so
+ * any change here must be accompanied by a bump of its format version.
+ */
+final class FeedbackBinaryCodec {
+	private FeedbackBinaryCodec() {}	// prevent instantiation
+
+	public static byte[] encode(Feedback feedback) {
+		try (
+			var bytes = new ByteArrayOutputStream(1024);
+			var out = new DataOutputStream(bytes);
+		) {
+			writeFeedback(feedback, out);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	public static Feedback decode(ByteBuffer buffer) {
+		var feedback = new Feedback();
+		var version = readString(buffer);
+		feedback.setVersion((version == null) ? null : new BigDecimal(version));
+		if (readPresence(buffer)) {
+			feedback.setReportMetadata(readReportMetadata(buffer));
+		}
+		if (readPresence(buffer)) {
+			feedback.setPolicyPublished(readPolicyPublished(buffer));
+		}
+		int numRecords = buffer.getInt();
+		for (int i = 0; i < numRecords; ++i) {
+			feedback.getRecord().add(readRecord(buffer));
+		}
+		return feedback;
+	}
+
+	private static void writeFeedback(Feedback feedback, DataOutput out) throws IOException {
+		writeString((feedback.getVersion() == null) ? null : feedback.getVersion().toPlainString(), out);
+		var metadata = feedback.getReportMetadata();
+		if (writePresence(metadata, out)) {
+			writeString(metadata.getOrgName(), out);
+			writeString(metadata.getEmail(), out);
+			writeString(metadata.getExtraContactInfo(), out);
+			writeString(metadata.getReportId(), out);
+			var dateRange = metadata.getDateRange();
+			if (writePresence(dateRange, out)) {
+				writeLong(dateRange.getBegin(), out);
+				writeLong(dateRange.getEnd(), out);
+			}
+			writeStrings(metadata.getError(), out);
+		}
+		var policy = feedback.getPolicyPublished();
+		if (writePresence(policy, out)) {
+			writeString(policy.getDomain(), out);
+			writeEnum(policy.getAdkim(), out);
+			writeEnum(policy.getAspf(), out);
+			writeEnum(policy.getP(), out);
+			writeEnum(policy.getSp(), out);
+			writeLong(policy.getPct(), out);
+			writeString(policy.getFo(), out);
+		}
+		out.writeInt(feedback.getRecord().size());
+		for (var record : feedback.getRecord()) {
+			writeRecord(record, out);
+		}
+	}
+
+	private static void writeRecord(RecordType record, DataOutput out) throws IOException {
+		var row = record.getRow();
+		if (writePresence(row, out)) {
+			writeString(row.getSourceIp(), out);
+			writeLong(row.getCount(), out);
+			var policyEvaluated = row.getPolicyEvaluated();
+			if (writePresence(policyEvaluated, out)) {
+				writeEnum(policyEvaluated.getDisposition(), out);
+				writeEnum(policyEvaluated.getDkim(), out);
+				writeEnum(policyEvaluated.getSpf(), out);
+				out.writeInt(policyEvaluated.getReason().size());
+				for (var reason : policyEvaluated.getReason()) {
+					writeEnum(reason.getType(), out);
+					writeString(reason.getComment(), out);
+				}
+			}
+		}
+		var identifiers = record.getIdentifiers();
+		if (writePresence(identifiers, out)) {
+			writeString(identifiers.getEnvelopeTo(), out);
+			writeString(identifiers.getEnvelopeFrom(), out);
+			writeString(identifiers.getHeaderFrom(), out);
+		}
+		var authResults = record.getAuthResults();
+		if (writePresence(authResults, out)) {
+			out.writeInt(authResults.getDkim().size());
+			for (var dkim : authResults.getDkim()) {
+				writeString(dkim.getDomain(), out);
+				writeString(dkim.getSelector(), out);
+				writeEnum(dkim.getResult(), out);
+				writeString(dkim.getHumanResult(), out);
+			}
+			out.writeInt(authResults.getSpf().size());
+			for (var spf : authResults.getSpf()) {
+				writeString(spf.getDomain(), out);
+				writeEnum(spf.getScope(), out);
+				writeEnum(spf.getResult(), out);
+			}
+		}
+	}
+
+	private static ReportMetadataType readReportMetadata(ByteBuffer buffer) {
+		var metadata = new ReportMetadataType();
+		metadata.setOrgName(readString(buffer));
+		metadata.setEmail(readString(buffer));
+		metadata.setExtraContactInfo(readString(buffer));
+		metadata.setReportId(readString(buffer));
+		if (readPresence(buffer)) {
+			var dateRange = new DateRangeType();
+			dateRange.setBegin(readLong(buffer));
+			dateRange.setEnd(readLong(buffer));
+			metadata.setDateRange(dateRange);
+		}
+		readStrings(buffer, metadata.getError());
+		return metadata;
+	}
+
+	private static PolicyPublishedType readPolicyPublished(ByteBuffer buffer) {
+		var policy = new PolicyPublishedType();
+		policy.setDomain(readString(buffer));
+		policy.setAdkim(readEnum(buffer, AlignmentType.values()));
+		policy.setAspf(readEnum(buffer, AlignmentType.values()));
+		policy.setP(readEnum(buffer, DispositionType.values()));
+		policy.setSp(readEnum(buffer, DispositionType.values()));
+		policy.setPct(readLong(buffer));
+		policy.setFo(readString(buffer));
+		return policy;
+	}
+
+	private static RecordType readRecord(ByteBuffer buffer) {
+		var record = new RecordType();
+		if (readPresence(buffer)) {
+			var row = new RowType();
+			row.setSourceIp(readString(buffer));
+			row.setCount(readLong(buffer));
+			if (readPresence(buffer)) {
+				var policyEvaluated = new PolicyEvaluatedType();
+				policyEvaluated.setDisposition(readEnum(buffer, DispositionType.values()));
+				policyEvaluated.setDkim(readEnum(buffer, DMARCResultType.values()));
+				policyEvaluated.setSpf(readEnum(buffer, DMARCResultType.values()));
+				int numReasons = buffer.getInt();
+				for (int i = 0; i < numReasons; ++i) {
+					var reason = new PolicyOverrideReason();
+					reason.setType(readEnum(buffer, PolicyOverrideType.values()));
+					reason.setComment(readString(buffer));
+					policyEvaluated.getReason().add(reason);
+				}
+				row.setPolicyEvaluated(policyEvaluated);
+			}
+			record.setRow(row);
+		}
+		if (readPresence(buffer)) {
+			var identifiers = new IdentifierType();
+			identifiers.setEnvelopeTo(readString(buffer));
+			identifiers.setEnvelopeFrom(readString(buffer));
+			identifiers.setHeaderFrom(readString(buffer));
+			record.setIdentifiers(identifiers);
+		}
+		if (readPresence(buffer)) {
+			var authResults = new AuthResultType();
+			int numDkim = buffer.getInt();
+			for (int i = 0; i < numDkim; ++i) {
+				var dkim = new DKIMAuthResultType();
+				dkim.setDomain(readString(buffer));
+				dkim.setSelector(readString(buffer));
+				dkim.setResult(readEnum(buffer, DKIMResultType.values()));
+				dkim.setHumanResult(readString(buffer));
+				authResults.getDkim().add(dkim);
+			}
+			int numSpf = buffer.getInt();
+			for (int i = 0; i < numSpf; ++i) {
+				var spf = new SPFAuthResultType();
+				spf.setDomain(readString(buffer));
+				spf.setScope(readEnum(buffer, SPFDomainScope.values()));
+				spf.setResult(readEnum(buffer, SPFResultType.values()));
+				authResults.getSpf().add(spf);
+			}
+			record.setAuthResults(authResults);
+		}
+		return record;
+	}
+
+	private static boolean writePresence(Object obj, DataOutput out) throws IOException {
+		out.writeBoolean(obj != null);
+		return obj != null;
+	}
+
+	private static boolean readPresence(ByteBuffer buffer) {
+		return buffer.get() != 0;
+	}
+
+	static void writeString(String str, DataOutput out) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+		} else {
+			var bytes = str.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		var bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeStrings(List<String> strs, DataOutput out) throws IOException {
+		out.writeInt(strs.size());
+		for (var str : strs) {
+			writeString(str, out);
+		}
+	}
+
+	private static void readStrings(ByteBuffer buffer, List<String> strs) {
+		int numStrs = buffer.getInt();
+		for (int i = 0; i < numStrs; ++i) {
+			strs.add(readString(buffer));
+		}
+	}
+
+	private static void writeLong(Long value, DataOutput out) throws IOException {
+		if (writePresence(value, out)) {
+			out.writeLong(value.longValue());
+		}
+	}
+
+	private static Long readLong(ByteBuffer buffer) {
+		return readPresence(buffer)
+			? Long.valueOf(buffer.getLong())
+			: null;
+	}
+
+	private static void writeEnum(Enum<?> value, DataOutput out) throws IOException {
+		out.writeByte((value == null) ? 0 : value.ordinal() + 1);
+	}
+
+	private static <E extends Enum<E>> E readEnum(ByteBuffer buffer, E[] values) {
+		int code = buffer.get();
+		return (code == 0) ? null : values[code - 1];
+	}
+}
@@ -0,0 +1,117 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+
+/**
+ * Sums columns of long measures per group, where a group is keyed by a fixed
+ * number of int IDs. Groups are stored densely, in order of first appearance,
+ * and found through an open-addressing table of group indexes, so adding to
+ * an existing group allocates nothing. This class is not thread-safe.
+ */
+final class GroupByAggregator {
+	private static final int MIN_CAPACITY = 16;
+
+	private final int arity;
+	private final int numMeasures;
+	private int[] table = new int[MIN_CAPACITY];	// Group index + 1, or 0 if empty
+	private int[] groupKeys;
+	private long[] groupMeasures;
+	private int numGroups = 0;
+
+	GroupByAggregator(int arity, int numMeasures) {
+		if (arity < 1 || numMeasures < 1) {
+			throw new IllegalArgumentException("arity and numMeasures must be positive");
+		}
+		this.arity = arity;
+		this.numMeasures = numMeasures;
+		groupKeys = new int[MIN_CAPACITY * arity];
+		groupMeasures = new long[MIN_CAPACITY * numMeasures];
+	}
+
+	int arity() {
+		return arity;
+	}
+
+	int numMeasures() {
+		return numMeasures;
+	}
+
+	int numGroups() {
+		return numGroups;
+	}
+
+	/**
+	 * @param key The group's key, of which the first arity elements are used.
+	 *        It is copied, so the caller may reuse the array.
+	 * @return The index of the group, which is created if new.
+	 */
+	int groupFor(int[] key) {
+		int mask = table.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			int entry = table[i];
+			if (entry == 0) {
+				int group = newGroup(key);
+				table[i] = group + 1;
+				if (2 * numGroups > table.length) {
+					rehash();
+				}
+				return group;
+			} else if (keyEquals(entry - 1, key)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	void add(int group, int measure, long amount) {
+		groupMeasures[group * numMeasures + measure] += amount;
+	}
+
+	int key(int group, int dimension) {
+		return groupKeys[group * arity + dimension];
+	}
+
+	long measure(int group, int measure) {
+		return groupMeasures[group * numMeasures + measure];
+	}
+
+	private int newGroup(int[] key) {
+		if (numGroups * arity == groupKeys.length) {
+			groupKeys = Arrays.copyOf(groupKeys, 2 * groupKeys.length);
+			groupMeasures = Arrays.copyOf(groupMeasures, 2 * groupMeasures.length);
+		}
+		System.arraycopy(key, 0, groupKeys, numGroups * arity, arity);
+		return numGroups++;
+	}
+
+	private boolean keyEquals(int group, int[] key) {
+		int offset = group * arity;
+		for (int d = 0; d < arity; ++d) {
+			if (groupKeys[offset + d] != key[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		table = new int[2 * table.length];
+		int mask = table.length - 1;
+		var key = new int[arity];
+		for (int group = 0; group < numGroups; ++group) {
+			System.arraycopy(groupKeys, group * arity, key, 0, arity);
+			int i = hash(key) & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = group + 1;
+		}
+	}
+
+	private int hash(int[] key) {
+		int hash = 0;
+		for (int d = 0; d < arity; ++d) {
+			hash = (hash + key[d]) * 0x9e3779b9;
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,125 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct items added to
+ * it in a fixed amount of memory: one byte per register, of which there are
+ * 2^precision. The standard error of the estimate is about 1.04 / sqrt(2^p),
+ * or 1.6% at the default precision of 12 (4 KB). Small counts are estimated by
+ * linear counting, and so are close to exact.
+ *
+ * Items are added as 64-bit hashes, which must be well mixed (see mix64).
+ * Sketches of equal precision merge losslessly: the merge of two sketches is
+ * the sketch of the union of their items. This class is not thread-safe.
+ */
+public final class HyperLogLog {
+	public static final int DEFAULT_PRECISION = 12;
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 18;
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("precision must be in [%1$d, %2$d]".formatted(
+				MIN_PRECISION, MAX_PRECISION));
+		}
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+
+	public int precision() {
+		return precision;
+	}
+
+	/**
+	 * Adds an item, given as a well-mixed 64-bit hash of it. The top precision
+	 * bits choose a register, and the position of the first one bit in the rest
+	 * is the register's candidate value.
+	 */
+	public void addHash(long hash) {
+		int index = (int) (hash >>> (64 - precision));
+		int rank = Math.min(Long.numberOfLeadingZeros(hash << precision), 64 - precision) + 1;
+		if (rank > registers[index]) {
+			registers[index] = (byte) rank;
+		}
+	}
+
+	/**
+	 * @return The estimated number of distinct items added.
+	 */
+	public long estimate() {
+		int numRegisters = registers.length;
+		double sum = 0;
+		int numZeros = 0;
+		for (var register : registers) {
+			sum += Math.scalb(1.0, -register);
+			if (register == 0) {
+				++numZeros;
+			}
+		}
+		double alpha = switch (numRegisters) {
+			case 16 -> 0.673;
+			case 32 -> 0.697;
+			case 64 -> 0.709;
+			default -> 0.7213 / (1.0 + 1.079 / numRegisters);
+		};
+		double estimate = alpha * numRegisters * numRegisters / sum;
+		if (estimate <= 2.5 * numRegisters && numZeros > 0) {
+			estimate = numRegisters * Math.log((double) numRegisters / numZeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Adds the other sketch's items to this one.
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("Cannot merge sketches of precision %1$d and %2$d".formatted(
+				precision, other.precision));
+		}
+		for (int i = 0; i < registers.length; ++i) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeByte(precision);
+		out.write(registers);
+	}
+
+	public static HyperLogLog readFrom(ByteBuffer buffer) {
+		var sketch = new HyperLogLog(buffer.get());
+		buffer.get(sketch.registers);
+		for (var register : sketch.registers) {
+			if (register < 0 || register > 64 - sketch.precision + 1) {
+				throw new IllegalArgumentException("Register value out of range: " + register);
+			}
+		}
+		return sketch;
+	}
+
+	/**
+	 * The finalization step of MurmurHash3, which spreads the bits of a value
+	 * (such as an IPv4 address) over the whole hash.
+	 */
+	static long mix64(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+}
@@ -0,0 +1,192 @@
+package mobi.emmons.dmarc_stats;
+
+/**
+ * Parses and formats textual IP addresses as primitives: an IPv4 address as
+ * the 32 bits of an int, and an IPv6 address as the high and low 64 bits of a
+ * pair of longs. Unlike InetAddress, nothing here allocates while parsing or
+ * ever consults DNS.
+ */
+final class IpAddresses {
+	private IpAddresses() {}	// prevent instantiation
+
+	/**
+	 * @return The address's 32 bits as a non-negative long, or -1 if the text is
+	 *         not a dotted-quad IPv4 address.
+	 */
+	static long parseIpv4(CharSequence text) {
+		return (text == null) ? -1L : parseIpv4(text, 0, text.length());
+	}
+
+	static long parseIpv4(CharSequence text, int start, int end) {
+		long bits = 0;
+		int numOctets = 0;
+		int i = start;
+		while (i < end) {
+			int octet = 0;
+			int numDigits = 0;
+			for (; i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9'; ++i) {
+				if (++numDigits > 3) {
+					return -1L;
+				}
+				octet = 10 * octet + (text.charAt(i) - '0');
+			}
+			if (numDigits == 0 || octet > 255 || ++numOctets > 4) {
+				return -1L;
+			}
+			bits = (bits << 8) | octet;
+			if (i < end) {
+				if (text.charAt(i) != '.' || i + 1 == end) {
+					return -1L;
+				}
+				++i;
+			}
+		}
+		return (numOctets == 4) ? bits : -1L;
+	}
+
+	/**
+	 * Parses an IPv6 address, including the "::" shorthand and an embedded IPv4
+	 * tail, into result[0] (the high 64 bits) and result[1] (the low 64 bits).
+	 *
+	 * @return False, leaving result unchanged, if the text is not an IPv6
+	 *         address. Zone IDs ("%eth0") are not accepted.
+	 */
+	static boolean parseIpv6(CharSequence text, long[] result) {
+		if (text == null || text.length() < 2) {
+			return false;
+		}
+		int length = text.length();
+		long headHigh = 0;
+		long headLow = 0;
+		int numHeadGroups = 0;
+		long tailHigh = 0;
+		long tailLow = 0;
+		int numTailGroups = 0;
+		boolean hasDoubleColon = false;
+
+		int i = 0;
+		if (text.charAt(0) == ':') {
+			if (text.charAt(1) != ':') {
+				return false;
+			}
+			hasDoubleColon = true;
+			i = 2;
+		}
+		while (i < length) {
+			int groupStart = i;
+			int group = 0;
+			int numDigits = 0;
+			for (int digit; i < length && (digit = Character.digit(text.charAt(i), 16)) >= 0; ++i) {
+				if (++numDigits > 4) {
+					return false;
+				}
+				group = (group << 4) | digit;
+			}
+
+			if (i < length && text.charAt(i) == '.') {
+				// An embedded IPv4 address supplies the last two groups:
+				long ipv4 = parseIpv4(text, groupStart, length);
+				if (ipv4 < 0) {
+					return false;
+				}
+				if (hasDoubleColon) {
+					tailHigh = (tailHigh << 32) | (tailLow >>> 32);
+					tailLow = (tailLow << 32) | ipv4;
+					numTailGroups += 2;
+				} else {
+					headHigh = (headHigh << 32) | (headLow >>> 32);
+					headLow = (headLow << 32) | ipv4;
+					numHeadGroups += 2;
+				}
+				break;
+			} else if (numDigits == 0) {
+				return false;
+			}
+
+			if (hasDoubleColon) {
+				tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+				tailLow = (tailLow << 16) | group;
+				++numTailGroups;
+			} else {
+				headHigh = (headHigh << 16) | (headLow >>> 48);
+				headLow = (headLow << 16) | group;
+				++numHeadGroups;
+			}
+
+			if (i == length) {
+				break;
+			} else if (text.charAt(i) != ':' || i + 1 == length) {
+				return false;
+			}
+			++i;
+			if (text.charAt(i) == ':') {
+				if (hasDoubleColon) {
+					return false;
+				}
+				hasDoubleColon = true;
+				++i;
+			}
+		}
+
+		int numGroups = numHeadGroups + numTailGroups;
+		if (hasDoubleColon ? numGroups > 7 : numGroups != 8) {
+			return false;
+		}
+		// Move the groups before the "::" to the top of the address:
+		for (int shift = 0; shift < 8 - numHeadGroups; ++shift) {
+			headHigh = (headHigh << 16) | (headLow >>> 48);
+			headLow <<= 16;
+		}
+		result[0] = headHigh | tailHigh;
+		result[1] = headLow | tailLow;
+		return true;
+	}
+
+	static String formatIpv4(int bits) {
+		return "%1$d.%2$d.%3$d.%4$d".formatted(bits >>> 24, (bits >>> 16) & 0xff,
+			(bits >>> 8) & 0xff, bits & 0xff);
+	}
+
+	/**
+	 * @return The address in the canonical text form of RFC 5952.
+	 */
+	static String formatIpv6(long high, long low) {
+		int[] groups = new int[8];
+		for (int i = 0; i < 4; ++i) {
+			groups[i] = (int) (high >>> (48 - 16 * i)) & 0xffff;
+			groups[i + 4] = (int) (low >>> (48 - 16 * i)) & 0xffff;
+		}
+
+		// Find the first longest run of at least two zero groups:
+		int bestStart = -1;
+		int bestLength = 1;
+		for (int i = 0; i < 8;) {
+			if (groups[i] != 0) {
+				++i;
+				continue;
+			}
+			int runStart = i;
+			while (i < 8 && groups[i] == 0) {
+				++i;
+			}
+			if (i - runStart > bestLength) {
+				bestStart = runStart;
+				bestLength = i - runStart;
+			}
+		}
+
+		var buffer = new StringBuilder(39);
+		for (int i = 0; i < 8; ++i) {
+			if (i == bestStart) {
+				buffer.append("::");
+				i += bestLength - 1;
+				continue;
+			}
+			if (buffer.length() > 0 && buffer.charAt(buffer.length() - 1) != ':') {
+				buffer.append(':');
+			}
+			buffer.append(Integer.toHexString(groups[i]));
+		}
+		return buffer.toString();
+	}
+}
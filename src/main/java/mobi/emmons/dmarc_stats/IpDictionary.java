@@ -0,0 +1,270 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int IDs to source IP addresses. IPv4 addresses are keyed by
+ * their 32 bits and IPv6 addresses by their two 64-bit halves, each in its own
+ * open-addressing table, so that "192.0.2.1" and "192.000.002.001" share an
+ * ID and no lookup allocates. Text that is not an IP address is kept as a
+ * string. This class is not thread-safe.
+ */
+final class IpDictionary {
+	static final byte KIND_IPV4 = 0;
+	static final byte KIND_IPV6 = 1;
+	static final byte KIND_OTHER = 2;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] v4Slots = new int[MIN_CAPACITY];
+	private int[] v4SlotIds = new int[MIN_CAPACITY];	// ID + 1, or 0 if empty
+	private int v4Size = 0;
+
+	private long[] v6SlotHighs = new long[MIN_CAPACITY];
+	private long[] v6SlotLows = new long[MIN_CAPACITY];
+	private int[] v6SlotIds = new int[MIN_CAPACITY];	// ID + 1, or 0 if empty
+	private int v6Size = 0;
+
+	private final StringDictionary others = new StringDictionary();
+	private int[] otherIds = new int[MIN_CAPACITY];	// ID + 1 by string dictionary ID
+
+	// By ID; an IPv4 address and a string dictionary ID are held in the low half:
+	private byte[] kinds = new byte[MIN_CAPACITY];
+	private long[] highs = new long[MIN_CAPACITY];
+	private long[] lows = new long[MIN_CAPACITY];
+	private int size = 0;
+
+	private final long[] parsedIpv6 = new long[2];
+
+	int size() {
+		return size;
+	}
+
+	int idOf(String ipAddress) {
+		long ipv4 = IpAddresses.parseIpv4(ipAddress);
+		if (ipv4 >= 0) {
+			return ipv4Id((int) ipv4);
+		} else if (IpAddresses.parseIpv6(ipAddress, parsedIpv6)) {
+			return ipv6Id(parsedIpv6[0], parsedIpv6[1]);
+		}
+
+		int otherId = others.idOf(ipAddress);
+		if (otherId >= otherIds.length) {
+			otherIds = Arrays.copyOf(otherIds, 2 * otherIds.length);
+		}
+		if (otherIds[otherId] == 0) {
+			otherIds[otherId] = newId(KIND_OTHER, 0, otherId) + 1;
+		}
+		return otherIds[otherId] - 1;
+	}
+
+	/**
+	 * Forgets the addresses with IDs from newSize on, as if they had never been
+	 * looked up. Costs time in proportion to the number forgotten.
+	 */
+	void truncate(int newSize) {
+		int numOthers = others.size();
+		while (size > newSize) {
+			int id = --size;
+			switch (kinds[id]) {
+				case KIND_IPV4 -> removeIpv4((int) lows[id]);
+				case KIND_IPV6 -> removeIpv6(highs[id], lows[id]);
+				default -> {
+					otherIds[(int) lows[id]] = 0;
+					numOthers = (int) lows[id];
+				}
+			}
+		}
+		others.truncate(numOthers);
+	}
+
+	byte kind(int id) {
+		return kinds[id];
+	}
+
+	int ipv4Bits(int id) {
+		return (int) lows[id];
+	}
+
+	long ipv6High(int id) {
+		return highs[id];
+	}
+
+	long ipv6Low(int id) {
+		return lows[id];
+	}
+
+	String format(int id) {
+		return switch (kinds[id]) {
+			case KIND_IPV4 -> IpAddresses.formatIpv4((int) lows[id]);
+			case KIND_IPV6 -> IpAddresses.formatIpv6(highs[id], lows[id]);
+			default -> others.valueOf((int) lows[id]);
+		};
+	}
+
+	/**
+	 * @return For each ID, its position in sorted order: IPv4 addresses
+	 *         numerically, then IPv6 addresses numerically, then anything else
+	 *         alphabetically.
+	 */
+	int[] ranks() {
+		var ids = new Integer[size];
+		for (int id = 0; id < size; ++id) {
+			ids[id] = id;
+		}
+		Arrays.sort(ids, this::compare);
+		var ranks = new int[size];
+		for (int rank = 0; rank < size; ++rank) {
+			ranks[ids[rank]] = rank;
+		}
+		return ranks;
+	}
+
+	private int compare(int lhs, int rhs) {
+		int result = Byte.compare(kinds[lhs], kinds[rhs]);
+		if (result == 0 && kinds[lhs] == KIND_OTHER) {
+			result = others.valueOf((int) lows[lhs]).compareTo(others.valueOf((int) lows[rhs]));
+		} else if (result == 0) {
+			result = Long.compareUnsigned(highs[lhs], highs[rhs]);
+			if (result == 0) {
+				result = Long.compareUnsigned(lows[lhs], lows[rhs]);
+			}
+		}
+		return result;
+	}
+
+	int ipv4Id(int bits) {
+		int mask = v4Slots.length - 1;
+		for (int i = mix(bits) & mask;; i = (i + 1) & mask) {
+			if (v4SlotIds[i] == 0) {
+				int id = newId(KIND_IPV4, 0, Integer.toUnsignedLong(bits));
+				v4Slots[i] = bits;
+				v4SlotIds[i] = id + 1;
+				if (2 * ++v4Size > v4Slots.length) {
+					rehashIpv4();
+				}
+				return id;
+			} else if (v4Slots[i] == bits) {
+				return v4SlotIds[i] - 1;
+			}
+		}
+	}
+
+	int ipv6Id(long high, long low) {
+		int mask = v6SlotIds.length - 1;
+		for (int i = mix(high, low) & mask;; i = (i + 1) & mask) {
+			if (v6SlotIds[i] == 0) {
+				int id = newId(KIND_IPV6, high, low);
+				v6SlotHighs[i] = high;
+				v6SlotLows[i] = low;
+				v6SlotIds[i] = id + 1;
+				if (2 * ++v6Size > v6SlotIds.length) {
+					rehashIpv6();
+				}
+				return id;
+			} else if (v6SlotHighs[i] == high && v6SlotLows[i] == low) {
+				return v6SlotIds[i] - 1;
+			}
+		}
+	}
+
+	private void removeIpv4(int bits) {
+		int mask = v4Slots.length - 1;
+		int i = mix(bits) & mask;
+		while (v4Slots[i] != bits || v4SlotIds[i] == 0) {
+			i = (i + 1) & mask;
+		}
+		for (int j = (i + 1) & mask; v4SlotIds[j] != 0; j = (j + 1) & mask) {
+			int home = mix(v4Slots[j]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				v4Slots[i] = v4Slots[j];
+				v4SlotIds[i] = v4SlotIds[j];
+				i = j;
+			}
+		}
+		v4SlotIds[i] = 0;
+		--v4Size;
+	}
+
+	private void removeIpv6(long high, long low) {
+		int mask = v6SlotIds.length - 1;
+		int i = mix(high, low) & mask;
+		while (v6SlotHighs[i] != high || v6SlotLows[i] != low || v6SlotIds[i] == 0) {
+			i = (i + 1) & mask;
+		}
+		for (int j = (i + 1) & mask; v6SlotIds[j] != 0; j = (j + 1) & mask) {
+			int home = mix(v6SlotHighs[j], v6SlotLows[j]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				v6SlotHighs[i] = v6SlotHighs[j];
+				v6SlotLows[i] = v6SlotLows[j];
+				v6SlotIds[i] = v6SlotIds[j];
+				i = j;
+			}
+		}
+		v6SlotIds[i] = 0;
+		--v6Size;
+	}
+
+	private int newId(byte kind, long high, long low) {
+		if (size == kinds.length) {
+			kinds = Arrays.copyOf(kinds, 2 * size);
+			highs = Arrays.copyOf(highs, 2 * size);
+			lows = Arrays.copyOf(lows, 2 * size);
+		}
+		kinds[size] = kind;
+		highs[size] = high;
+		lows[size] = low;
+		return size++;
+	}
+
+	private void rehashIpv4() {
+		var oldSlots = v4Slots;
+		var oldSlotIds = v4SlotIds;
+		v4Slots = new int[2 * oldSlots.length];
+		v4SlotIds = new int[v4Slots.length];
+		int mask = v4Slots.length - 1;
+		for (int j = 0; j < oldSlots.length; ++j) {
+			if (oldSlotIds[j] != 0) {
+				int i = mix(oldSlots[j]) & mask;
+				while (v4SlotIds[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				v4Slots[i] = oldSlots[j];
+				v4SlotIds[i] = oldSlotIds[j];
+			}
+		}
+	}
+
+	private void rehashIpv6() {
+		var oldHighs = v6SlotHighs;
+		var oldLows = v6SlotLows;
+		var oldSlotIds = v6SlotIds;
+		v6SlotHighs = new long[2 * oldSlotIds.length];
+		v6SlotLows = new long[v6SlotHighs.length];
+		v6SlotIds = new int[v6SlotHighs.length];
+		int mask = v6SlotIds.length - 1;
+		for (int j = 0; j < oldSlotIds.length; ++j) {
+			if (oldSlotIds[j] != 0) {
+				int i = mix(oldHighs[j], oldLows[j]) & mask;
+				while (v6SlotIds[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				v6SlotHighs[i] = oldHighs[j];
+				v6SlotLows[i] = oldLows[j];
+				v6SlotIds[i] = oldSlotIds[j];
+			}
+		}
+	}
+
+	private static int mix(int value) {
+		value *= 0x9e3779b9;
+		return value ^ (value >>> 16);
+	}
+
+	private static int mix(long high, long low) {
+		long value = high * 0x9e3779b97f4a7c15L + low;
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		return (int) (value ^ (value >>> 33));
+	}
+}
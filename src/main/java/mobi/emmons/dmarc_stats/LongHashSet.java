@@ -0,0 +1,106 @@
+package mobi.emmons.dmarc_stats;
+
+/**
+ * A set of primitive longs, using open addressing with linear probing. Unlike
+ * a HashSet&lt;Long&gt;, it allocates nothing per element, so millions of
+ * entries cost about 16 bytes each.
+ */
+final class LongHashSet {
+	private static final int MIN_CAPACITY = 16;
+
+	// Zero marks an empty slot, so the value zero is tracked separately:
+	private long[] slots;
+	private boolean containsZero;
+	private int size;
+
+	LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	LongHashSet(int expectedSize) {
+		slots = new long[tableSizeFor(expectedSize)];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean contains(long value) {
+		if (value == 0) {
+			return containsZero;
+		}
+		int mask = slots.length - 1;
+		for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+			long slot = slots[i];
+			if (slot == value) {
+				return true;
+			} else if (slot == 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return True if the value was added, false if it was already present.
+	 */
+	boolean add(long value) {
+		if (value == 0) {
+			if (containsZero) {
+				return false;
+			}
+			containsZero = true;
+			++size;
+			return true;
+		}
+		if (insert(slots, value)) {
+			++size;
+			// Keep the load factor at or below one half:
+			if (2 * size > slots.length) {
+				rehash(2 * slots.length);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void rehash(int newCapacity) {
+		var newSlots = new long[newCapacity];
+		for (long slot : slots) {
+			if (slot != 0) {
+				insert(newSlots, slot);
+			}
+		}
+		slots = newSlots;
+	}
+
+	private static boolean insert(long[] table, long value) {
+		int mask = table.length - 1;
+		for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+			long slot = table[i];
+			if (slot == value) {
+				return false;
+			} else if (slot == 0) {
+				table[i] = value;
+				return true;
+			}
+		}
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < 2L * expectedSize && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	// The finalization step of MurmurHash3, so that clustered values spread out:
+	private static int mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int) value;
+	}
+}
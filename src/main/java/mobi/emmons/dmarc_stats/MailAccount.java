@@ -0,0 +1,37 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Properties;
+
+/**
+ * The connection details for a mail store. A port of -1 selects the protocol's
+ * default port.
+ */
+public record MailAccount(String protocol, String host, int port, String user, String password) {
+	public MailAccount {
+		Util.requireNonBlank(protocol, "protocol");
+		Util.requireNonBlank(host, "host");
+		Util.requireNonBlank(user, "user");
+		Util.requireNonBlank(password, "password");
+	}
+
+	public static MailAccount imaps(String host, String user, String password) {
+		return new MailAccount("imaps", host, -1, user, password);
+	}
+
+	public Properties toSessionProperties() {
+		var p = new Properties();
+		p.put("mail.store.protocol", protocol);
+		p.put("mail.host", host);
+		p.put("mail.user", user);
+		if (port > 0) {
+			p.put("mail.%1$s.port".formatted(protocol), Integer.toString(port));
+		}
+		return p;
+	}
+
+	@Override
+	public String toString() {
+		// Keep the password out of logs and exception messages:
+		return "%1$s://%2$s@%3$s%4$s".formatted(protocol, user, host, (port > 0) ? ":" + port : "");
+	}
+}
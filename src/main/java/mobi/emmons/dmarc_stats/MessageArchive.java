@@ -0,0 +1,439 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Reads report messages from mail archives on disk instead of an IMAP folder:
+ * mbox files, Maildir directories (the messages in their cur and new
+ * subdirectories), and loose .eml files, or directory trees holding any of
+ * these. Each message is parsed into a MimeMessage locally and decoded on a
+ * pool of worker threads, while the results are delivered to a consumer on the
+ * calling thread, in archive order.
+ *
+ * As with ParallelReportLoader, at most maxInFlight messages are read but not
+ * yet consumed at any moment, so a multi-gigabyte mbox is streamed rather than
+ * loaded. A message that fails to decode is recorded as a failure (and
+ * quarantined, if a Quarantine is given) and does not stop the read.
+ */
+public final class MessageArchive {
+	public static final String EML_SUFFIX = ".eml";
+
+	private static final byte[] FROM_LINE_PREFIX = "From ".getBytes(StandardCharsets.US_ASCII);
+	private static final List<String> MAILDIR_SUBDIRS = List.of("cur", "new");
+
+	// Messages are parsed from memory, so the session needs no configuration:
+	private static final Session SESSION = Session.getInstance(new Properties());
+
+	@FunctionalInterface
+	public static interface MessageDecoder<T> {
+		/**
+		 * Called on a worker thread, so it must be thread-safe.
+		 */
+		T decode(MimeMessage message) throws MessagingException, IOException;
+	}
+
+	/**
+	 * @param numDecoded The number of messages decoded and consumed, which
+	 *        together with the failures makes up all the messages read.
+	 */
+	public static record Result(long numDecoded, List<Failure> failures) {
+		/**
+		 * A message that could not be decoded, located by its file, or for mbox
+		 * files by "&lt;file&gt;#&lt;n&gt;", where n counts the messages from 1.
+		 */
+		public static record Failure(String location, Exception cause) {}
+
+		public Result {
+			failures = List.copyOf(failures);
+		}
+
+		/**
+		 * @return The number of messages read, whether or not they decoded.
+		 */
+		public long numMessages() {
+			return numDecoded + failures.size();
+		}
+
+		public void printFailures() {
+			if (!failures.isEmpty()) {
+				System.out.format("Failed to decode %1$d archived messages:%n", failures.size());
+				for (var failure : failures) {
+					System.out.format("   %1$s: %2$s%n", failure.location(), failure.cause());
+				}
+			}
+		}
+	}
+
+	private final int parallelism;
+	private final int maxInFlight;
+
+	public MessageArchive(int parallelism, int maxInFlight) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.parallelism = parallelism;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Decodes the messages in the archives and hands the results to the
+	 * consumer. A file named on its own is read as an mbox if it begins with a
+	 * "From " line, and otherwise as a single message. Within a directory tree,
+	 * only .eml files, files beginning with a "From " line, and Maildirs are
+	 * read; other files are ignored.
+	 *
+	 * @param quarantine Where to save the messages that fail to decode, or null
+	 * @param discard    Releases a result that was decoded but will never be
+	 *                   consumed, because the read was cut short
+	 */
+	<T> Result read(List<Path> archives, Quarantine quarantine, MessageDecoder<T> decoder,
+			Consumer<T> consumer, Consumer<T> discard) throws IOException {
+		try (var executor = new ForkJoinPool(parallelism)) {
+			var reader = new Reader<>(executor, quarantine, decoder, consumer, discard);
+			try {
+				for (var archive : archives) {
+					if (Files.isDirectory(archive)) {
+						readDir(archive, reader);
+					} else if (Files.isRegularFile(archive)) {
+						readFile(archive, true, reader);
+					} else {
+						throw new IOException("'%1$s' is not a file or directory".formatted(archive));
+					}
+				}
+				reader.drain();
+			} catch (InterruptedException ex) {
+				reader.cancel();
+				Thread.currentThread().interrupt();
+				var ioEx = new InterruptedIOException("Interrupted while reading archived messages");
+				ioEx.initCause(ex);
+				throw ioEx;
+			} catch (IOException | RuntimeException ex) {
+				reader.cancel();
+				throw ex;
+			}
+			return new Result(reader.numDecoded, reader.failures);
+		}
+	}
+
+	private static void readDir(Path dir, Reader<?> reader) throws IOException, InterruptedException {
+		if (isMaildir(dir)) {
+			for (var subdirName : MAILDIR_SUBDIRS) {
+				var subdir = dir.resolve(subdirName);
+				if (Files.isDirectory(subdir)) {
+					for (var file : listSorted(subdir)) {
+						if (Files.isRegularFile(file)) {
+							reader.submit(new ArchivedMessage(file.toString(), file, null));
+						}
+					}
+				}
+			}
+		} else {
+			for (var child : listSorted(dir)) {
+				if (Files.isDirectory(child)) {
+					readDir(child, reader);
+				} else if (Files.isRegularFile(child)) {
+					readFile(child, false, reader);
+				}
+			}
+		}
+	}
+
+	private static void readFile(Path file, boolean isNamed, Reader<?> reader)
+			throws IOException, InterruptedException {
+		if (file.getFileName().toString().toLowerCase().endsWith(EML_SUFFIX)) {
+			reader.submit(new ArchivedMessage(file.toString(), file, null));
+		} else if (isMbox(file)) {
+			try (var mbox = new MboxReader(Files.newInputStream(file))) {
+				int messageNum = 0;
+				for (byte[] content; (content = mbox.next()) != null;) {
+					++messageNum;
+					reader.submit(new ArchivedMessage("%1$s#%2$d".formatted(file, messageNum), null, content));
+				}
+			}
+		} else if (isNamed) {
+			reader.submit(new ArchivedMessage(file.toString(), file, null));
+		}
+	}
+
+	/**
+	 * @return True if the directory has a cur or new subdirectory. (The tmp
+	 *         subdirectory holds messages still being delivered, so it is never
+	 *         read.)
+	 */
+	static boolean isMaildir(Path dir) {
+		return MAILDIR_SUBDIRS.stream()
+			.anyMatch(subdirName -> Files.isDirectory(dir.resolve(subdirName)));
+	}
+
+	static boolean isMbox(Path file) throws IOException {
+		try (var is = Files.newInputStream(file)) {
+			return Arrays.equals(FROM_LINE_PREFIX, is.readNBytes(FROM_LINE_PREFIX.length));
+		}
+	}
+
+	/**
+	 * @return The directory's entries, sorted by name, skipping hidden ones.
+	 */
+	private static List<Path> listSorted(Path dir) throws IOException {
+		try (Stream<Path> children = Files.list(dir)) {
+			return children
+				.filter(child -> !child.getFileName().toString().startsWith("."))
+				.sorted()
+				.toList();
+		}
+	}
+
+	/**
+	 * One message of an archive: either a file to read on the worker thread, or
+	 * content already split out of an mbox.
+	 */
+	private static record ArchivedMessage(String location, Path file, byte[] content) {
+		byte[] readContent() throws IOException {
+			return (content != null) ? content : Files.readAllBytes(file);
+		}
+	}
+
+	private static record PendingDecode<T>(ArchivedMessage message, Future<T> future) {}
+
+	/**
+	 * The state of one read call: the window of messages being decoded, and what
+	 * has been consumed so far.
+	 */
+	private final class Reader<T> {
+		private final ForkJoinPool executor;
+		private final Quarantine quarantine;
+		private final MessageDecoder<T> decoder;
+		private final Consumer<T> consumer;
+		private final Consumer<T> discard;
+		private final ArrayDeque<PendingDecode<T>> window = new ArrayDeque<>(maxInFlight);
+		private final List<Result.Failure> failures = new ArrayList<>();
+		private long numDecoded = 0;
+		private volatile boolean isCancelled = false;
+
+		Reader(ForkJoinPool executor, Quarantine quarantine, MessageDecoder<T> decoder, Consumer<T> consumer,
+				Consumer<T> discard) {
+			this.executor = executor;
+			this.quarantine = quarantine;
+			this.decoder = decoder;
+			this.consumer = consumer;
+			this.discard = discard;
+		}
+
+		void submit(ArchivedMessage message) throws IOException, InterruptedException {
+			if (window.size() >= maxInFlight) {
+				consumeOldest();
+			}
+			window.addLast(new PendingDecode<>(message, executor.submit(() -> isCancelled
+				? null
+				: decoder.decode(new MimeMessage(SESSION, new ByteArrayInputStream(message.readContent()))))));
+		}
+
+		void drain() throws IOException, InterruptedException {
+			while (!window.isEmpty()) {
+				consumeOldest();
+			}
+		}
+
+		/**
+		 * Stops the decoding of messages not yet started, and discards the
+		 * results of those already decoded or under way. Waits for the latter,
+		 * since a result cannot be released until it exists.
+		 */
+		void cancel() {
+			isCancelled = true;
+			boolean isInterrupted = false;
+			while (!window.isEmpty()) {
+				var future = window.removeFirst().future();
+				T result = null;
+				for (;;) {
+					try {
+						result = future.get();
+						break;
+					} catch (ExecutionException ex) {
+						break;
+					} catch (InterruptedException ex) {
+						isInterrupted = true;
+					}
+				}
+				if (result != null) {
+					try {
+						discard.accept(result);
+					} catch (RuntimeException ex) {
+						// The read is failing already, so keep releasing the rest
+					}
+				}
+			}
+			if (isInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void consumeOldest() throws IOException, InterruptedException {
+			var pending = window.removeFirst();
+			T result;
+			try {
+				result = pending.future().get();
+			} catch (ExecutionException ex) {
+				var cause = (ex.getCause() instanceof Exception causeEx) ? causeEx : ex;
+				failures.add(new Result.Failure(pending.message().location(), cause));
+				if (quarantine != null) {
+					byte[] content;
+					try {
+						content = pending.message().readContent();
+					} catch (IOException readEx) {
+						content = null;
+					}
+					quarantine.add(pending.message().location(), content, cause);
+				}
+				return;
+			}
+			consumer.accept(result);
+			++numDecoded;
+		}
+	}
+
+	/**
+	 * Splits an mbox file into its messages. Each message begins with a "From "
+	 * line that follows a blank line (or begins the file). The "From " line and
+	 * the blank line before it are not part of the message, and body lines
+	 * escaped as "&gt;From " (or "&gt;&gt;From " and so on, in the mboxrd
+	 * format) lose one '&gt;'. Line endings are kept as they are.
+	 */
+	static final class MboxReader implements Closeable {
+		private final InputStream in;
+		private final byte[] buffer = new byte[64 * 1024];
+		private int pos = 0;
+		private int limit = 0;
+		private byte[] line = new byte[256];
+		private int lineLength = 0;
+		private boolean isPrevLineBlank = true;
+		private boolean isInMessage = false;
+
+		MboxReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return The next message, or null at the end of the file.
+		 */
+		byte[] next() throws IOException {
+			var message = new ByteArrayOutputStream();
+			while (readLine()) {
+				if (isPrevLineBlank && startsWith(0, FROM_LINE_PREFIX)) {
+					isPrevLineBlank = false;
+					if (isInMessage) {
+						return withoutTrailingBlankLine(message);
+					}
+					isInMessage = true;
+					continue;
+				}
+				isPrevLineBlank = isBlankLine();
+				if (isInMessage) {
+					int start = (line[0] == '>' && isEscapedFromLine()) ? 1 : 0;
+					message.write(line, start, lineLength - start);
+				}
+			}
+			if (isInMessage) {
+				isInMessage = false;
+				return withoutTrailingBlankLine(message);
+			}
+			return null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Reads the next line, with its line ending, into line.
+		 *
+		 * @return False at the end of the file.
+		 */
+		private boolean readLine() throws IOException {
+			lineLength = 0;
+			for (;;) {
+				if (pos == limit) {
+					int numRead = in.read(buffer);
+					pos = 0;
+					limit = Math.max(0, numRead);
+					if (numRead <= 0) {
+						return lineLength > 0;
+					}
+				}
+				int start = pos;
+				while (pos < limit && buffer[pos] != '\n') {
+					++pos;
+				}
+				boolean isEndOfLine = (pos < limit);
+				if (isEndOfLine) {
+					++pos;
+				}
+				int length = pos - start;
+				if (lineLength + length > line.length) {
+					line = Arrays.copyOf(line, Math.max(2 * line.length, lineLength + length));
+				}
+				System.arraycopy(buffer, start, line, lineLength, length);
+				lineLength += length;
+				if (isEndOfLine) {
+					return true;
+				}
+			}
+		}
+
+		private boolean startsWith(int offset, byte[] prefix) {
+			return lineLength - offset >= prefix.length
+				&& Arrays.equals(line, offset, offset + prefix.length, prefix, 0, prefix.length);
+		}
+
+		private boolean isEscapedFromLine() {
+			int offset = 0;
+			while (offset < lineLength && line[offset] == '>') {
+				++offset;
+			}
+			return startsWith(offset, FROM_LINE_PREFIX);
+		}
+
+		private boolean isBlankLine() {
+			return (lineLength == 1 && line[0] == '\n')
+				|| (lineLength == 2 && line[0] == '\r' && line[1] == '\n');
+		}
+
+		private static byte[] withoutTrailingBlankLine(ByteArrayOutputStream message) {
+			var bytes = message.toByteArray();
+			int length = bytes.length;
+			if (length >= 3 && bytes[length - 1] == '\n' && bytes[length - 2] == '\r'
+					&& bytes[length - 3] == '\n') {
+				length -= 2;
+			} else if (length >= 2 && bytes[length - 1] == '\n' && bytes[length - 2] == '\n') {
+				length -= 1;
+			}
+			return (length == bytes.length) ? bytes : Arrays.copyOf(bytes, length);
+		}
+	}
+}
@@ -1,19 +1,32 @@
 package mobi.emmons.dmarc_stats;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
-import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+
+import jakarta.mail.FetchProfile;
 import jakarta.mail.Flags;
 import jakarta.mail.Folder;
+import jakarta.mail.FolderClosedException;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.Store;
+import jakarta.mail.StoreClosedException;
+import jakarta.mail.UIDFolder;
 import jakarta.mail.search.ComparisonTerm;
 import jakarta.mail.search.FlagTerm;
 import jakarta.mail.search.ReceivedDateTerm;
@@ -22,35 +35,81 @@ import jakarta.mail.search.SearchTerm;
 public class MessageDownloader implements AutoCloseable {
 	public static enum OpenMode { READ_ONLY, READ_WRITE }
 
-	private final String host;
-	private final String user;
-	private final String password;
+	public static final int DEFAULT_FETCH_CHUNK_SIZE = 100;
+
+	// Everything MsgInfo reads from a message other than its content. With IMAP,
+	// prefetching this turns several round trips per message into one per chunk.
+	private static final FetchProfile FETCH_PROFILE = newFetchProfile();
+
+	private final MailAccount account;
 	private final OpenMode openMode;
 	private final String folder;
 
 	private final Store emailStore;
 	private final Folder emailFolder;
+	private int fetchChunkSize = DEFAULT_FETCH_CHUNK_SIZE;
+
+	// For awaitChange and wakeUp:
+	private final Semaphore wakeUps = new Semaphore(0);
+	private ScheduledExecutorService idleWatchdog = null;
+	private volatile boolean isIdling = false;
 
 	public MessageDownloader(String host, String user, String password, String folder, OpenMode openMode) throws MessagingException {
-		this.host = Util.requireNonBlank(host, "host");
-		this.user = Util.requireNonBlank(user, "user");
-		this.password = Util.requireNonBlank(password, "password");
+		this(MailAccount.imaps(host, user, password), folder, openMode);
+	}
+
+	public MessageDownloader(MailAccount account, String folder, OpenMode openMode) throws MessagingException {
+		this.account = Objects.requireNonNull(account, "account");
 		this.folder = Util.requireNonBlank(folder, "folder");
 		this.openMode = Objects.requireNonNull(openMode, "openMode");
 
-		emailStore = connectToStore(this.host, this.user, this.password);
-		emailFolder = openFolder(emailStore, this.folder, this.openMode);
+		emailStore = connectToStore(this.account);
+		try {
+			emailFolder = openFolder(emailStore, this.folder, this.openMode);
+		} catch (MessagingException ex) {
+			try {
+				emailStore.close();
+			} catch (MessagingException closeEx) {
+				ex.addSuppressed(closeEx);
+			}
+			throw ex;
+		}
+	}
+
+	private static FetchProfile newFetchProfile() {
+		var profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		profile.add("Content-Type");
+		profile.add("Content-Disposition");
+		return profile;
+	}
+
+	/**
+	 * Sets the number of messages whose headers and structure are prefetched
+	 * with a single Folder.fetch call. A size of one or less disables
+	 * prefetching, so that each message's data is fetched on first access.
+	 *
+	 * @param chunkSize The number of messages per prefetch.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public MessageDownloader withFetchChunkSize(int chunkSize) {
+		fetchChunkSize = chunkSize;
+		return this;
 	}
 
 	public static Store connectToStore(String host, String user, String password) throws MessagingException {
-		var p = new Properties();
-		p.put("mail.store.protocol", "imaps");
-		p.put("mail.host", host);
-		p.put("mail.user", user);
-		var emailSession = Session.getDefaultInstance(p);
+		return connectToStore(MailAccount.imaps(host, user, password));
+	}
+
+	public static Store connectToStore(MailAccount account) throws MessagingException {
+		// Not the default session, because that ignores the properties passed to
+		// all but the first call, and each account needs its own:
+		var emailSession = Session.getInstance(account.toSessionProperties());
 
 		var store = emailSession.getStore();
-		store.connect(user, password);
+		store.connect(account.user(), account.password());
 		return store;
 	}
 
@@ -61,8 +120,79 @@ public class MessageDownloader implements AutoCloseable {
 		return emailFolder;
 	}
 
+	/**
+	 * @return True if the server supports IMAP IDLE, so that awaitChange can
+	 *         learn of new messages as soon as they arrive.
+	 */
+	public boolean supportsIdle() throws MessagingException {
+		return emailStore instanceof IMAPStore imapStore
+			&& emailFolder instanceof IMAPFolder
+			&& imapStore.hasCapability("IDLE");
+	}
+
+	/**
+	 * Waits until the server reports a change to the folder (such as a new
+	 * message), the timeout passes, or another thread calls wakeUp. If the
+	 * server supports IMAP IDLE, it is used, and the timeout should be under the
+	 * 29 minutes after which RFC 2177 allows servers to drop an idle client.
+	 * Otherwise, this simply waits out the timeout, after which the caller polls
+	 * the folder.
+	 */
+	public void awaitChange(Duration timeout) throws MessagingException, InterruptedException {
+		if (!supportsIdle()) {
+			if (wakeUps.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+				wakeUps.drainPermits();
+			}
+			return;
+		}
+
+		if (idleWatchdog == null) {
+			idleWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				var thread = new Thread(runnable, "IMAP IDLE watchdog");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		isIdling = true;
+		var abort = idleWatchdog.schedule(this::abortIdle, timeout.toMillis(), TimeUnit.MILLISECONDS);
+		try {
+			if (wakeUps.drainPermits() == 0) {
+				((IMAPFolder) emailFolder).idle(true);
+			}
+		} finally {
+			isIdling = false;
+			abort.cancel(false);
+		}
+	}
+
+	/**
+	 * Ends a wait in awaitChange early, or makes the next one return at once.
+	 * May be called from any thread.
+	 */
+	public void wakeUp() {
+		wakeUps.release();
+		if (isIdling) {
+			abortIdle();
+		}
+	}
+
+	// Any command on the folder from another thread ends the IDLE in progress:
+	private void abortIdle() {
+		try {
+			((IMAPFolder) emailFolder).doCommand(protocol -> {
+				protocol.noop();
+				return null;
+			});
+		} catch (MessagingException ex) {
+			// The connection is broken, which ends the IDLE anyway
+		}
+	}
+
 	@Override
 	public void close() {
+		if (idleWatchdog != null) {
+			idleWatchdog.shutdownNow();
+		}
 		MessageDownloaderCloseException folderCloseEx = null;
 		try {
 			if (emailFolder != null) {
@@ -100,18 +230,151 @@ public class MessageDownloader implements AutoCloseable {
 	private List<MsgInfo> download(SearchTerm filter) throws MessagingException, IOException {
 		List<MsgInfo> msgInfos = new ArrayList<>();
 
-		Message[] messages = emailFolder.search(filter);
+		Message[] messages = search(filter);
+		forEachPrefetched(messages, message -> msgInfos.add(new MsgInfo(message)));
+
+		return msgInfos;
+	}
+
+	@SuppressWarnings("try")
+	private Message[] search(SearchTerm filter) throws MessagingException {
+		try (var span = PipelineMetrics.start(PipelineMetrics.Stage.IMAP_SEARCH)) {
+			return emailFolder.search(filter);
+		}
+	}
+
+	@SuppressWarnings("try")
+	private static Message[] getMessagesByUid(UIDFolder uidFolder, long start, long end)
+			throws MessagingException {
+		try (var span = PipelineMetrics.start(PipelineMetrics.Stage.IMAP_SEARCH)) {
+			return uidFolder.getMessagesByUID(start, end);
+		}
+	}
+
+	@FunctionalInterface
+	private static interface MessageConsumer {
+		void accept(Message message) throws MessagingException, IOException;
+	}
+
+	@SuppressWarnings("try")
+	private void forEachPrefetched(Message[] messages, MessageConsumer consumer)
+			throws MessagingException, IOException {
+		int chunkSize = Math.max(1, fetchChunkSize);
+		for (int start = 0; start < messages.length; start += chunkSize) {
+			var chunk = Arrays.copyOfRange(messages, start, Math.min(messages.length, start + chunkSize));
+			if (fetchChunkSize > 1) {
+				try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CONTENT_FETCH)) {
+					emailFolder.fetch(chunk, FETCH_PROFILE);
+				}
+			}
+			for (var message : chunk) {
+				// Consumers decode the message, which fetches its content:
+				try (var span = PipelineMetrics.start(PipelineMetrics.Stage.CONTENT_FETCH)) {
+					consumer.accept(message);
+				}
+			}
+		}
+	}
+
+	public long getUidValidity() throws MessagingException {
+		return getUidFolder().getUIDValidity();
+	}
+
+	public long[] findUnseenUids() throws MessagingException {
+		return getUids(search(buildFilter()));
+	}
+
+	public long[] findUidsNewerThan(long lastUid) throws MessagingException {
+		var uidFolder = getUidFolder();
+		return Arrays.stream(getUids(getMessagesByUid(uidFolder, lastUid + 1, UIDFolder.LASTUID)))
+			.filter(uid -> uid > lastUid)
+			.toArray();
+	}
+
+	private long[] getUids(Message[] messages) throws MessagingException {
+		var uidFolder = getUidFolder();
+		var uidProfile = new FetchProfile();
+		uidProfile.add(UIDFolder.FetchProfileItem.UID);
+		emailFolder.fetch(messages, uidProfile);
+		long[] uids = new long[messages.length];
+		int numUids = 0;
 		for (var message : messages) {
-			msgInfos.add(new MsgInfo(message));
+			if (message != null && !message.isExpunged()) {
+				uids[numUids++] = uidFolder.getUID(message);
+			}
 		}
+		uids = Arrays.copyOf(uids, numUids);
+		Arrays.sort(uids);
+		return uids;
+	}
 
-		return msgInfos;
+	/**
+	 * Downloads and decodes the messages with the given UIDs. Unlike the other
+	 * download methods, a message that cannot be decoded does not end the
+	 * download, but is instead listed among the result's failures. Messages
+	 * that have been expunged are skipped.
+	 */
+	public DownloadResult downloadByUid(long[] uids) throws MessagingException, IOException {
+		var uidFolder = getUidFolder();
+		List<MsgInfo> msgInfos = new ArrayList<>();
+		List<DownloadResult.Failure> failures = new ArrayList<>();
+
+		Message[] messages = Arrays.stream(uidFolder.getMessagesByUID(uids))
+			.filter(Objects::nonNull)
+			.toArray(Message[]::new);
+		forEachPrefetched(messages, message -> {
+			try {
+				msgInfos.add(new MsgInfo(message));
+			} catch (FolderClosedException | StoreClosedException ex) {
+				throw ex;
+			} catch (RuntimeException | MessagingException | IOException ex) {
+				failures.add(new DownloadResult.Failure(uidFolder.getUID(message), ex));
+			}
+		});
+
+		return new DownloadResult(msgInfos, failures);
+	}
+
+	/**
+	 * Writes the message with the given UID to os, in full and as it was
+	 * received.
+	 *
+	 * @return False, having written nothing, if the message has been expunged.
+	 */
+	public boolean writeMessageByUid(long uid, OutputStream os) throws MessagingException, IOException {
+		var message = getUidFolder().getMessageByUID(uid);
+		if (message == null || message.isExpunged()) {
+			return false;
+		}
+		message.writeTo(os);
+		return true;
+	}
+
+	public void setMessageSeenFlagsByUid(long[] uids) throws MessagingException {
+		if (uids.length == 0) {
+			return;
+		}
+		Message[] messages = Arrays.stream(getUidFolder().getMessagesByUID(uids))
+			.filter(Objects::nonNull)
+			.toArray(Message[]::new);
+		var flags = new Flags(Flags.Flag.SEEN);
+		emailFolder.setFlags(messages, flags, true);
+	}
+
+	private UIDFolder getUidFolder() {
+		if (emailFolder instanceof UIDFolder uidFolder) {
+			return uidFolder;
+		}
+		throw new IllegalStateException("Folder %1$s does not support UIDs".formatted(folder));
 	}
 
 	public void setMessageSeenFlags(List<MsgInfo> msgInfos) throws MessagingException {
 		int[] msgNumbers = msgInfos.stream()
 			.mapToInt(MsgInfo::imapMsgNum)
 			.toArray();
+		if (msgNumbers.length == 0) {
+			return;
+		}
 		var flags = new Flags(Flags.Flag.SEEN);
 		emailFolder.setFlags(msgNumbers, flags, true);
 	}
@@ -0,0 +1,79 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int IDs to the networks that source IPs roll up to under a
+ * NetworkGrouping. The IDs of the grouping's network names come first, and
+ * unnamed networks follow, keyed by their network address in an IpDictionary,
+ * so that looking up an address allocates nothing. This class is not
+ * thread-safe.
+ */
+final class NetworkDictionary {
+	private final NetworkGrouping grouping;
+	private final int numNames;
+	private final long ipv4Mask;
+	private final long ipv6HighMask;
+	private final long ipv6LowMask;
+	private final IpDictionary networks = new IpDictionary();
+	private final long[] parsedIpv6 = new long[2];
+
+	NetworkDictionary(NetworkGrouping grouping) {
+		this.grouping = grouping;
+		numNames = grouping.numNames();
+		ipv4Mask = Cidr.ipv4Mask(grouping.ipv4PrefixLength());
+		ipv6HighMask = Cidr.highMask(grouping.ipv6PrefixLength());
+		ipv6LowMask = Cidr.lowMask(grouping.ipv6PrefixLength());
+	}
+
+	int idOf(String sourceIp) {
+		var ipAddress = Util.nullToEmpty(sourceIp).strip();
+		long ipv4 = IpAddresses.parseIpv4(ipAddress);
+		if (ipv4 >= 0) {
+			int nameIndex = grouping.namedIpv4Network((int) ipv4);
+			return (nameIndex != CidrTrie.NO_VALUE)
+				? nameIndex
+				: numNames + networks.ipv4Id((int) (ipv4 & ipv4Mask));
+		} else if (IpAddresses.parseIpv6(ipAddress, parsedIpv6)) {
+			int nameIndex = grouping.namedIpv6Network(parsedIpv6[0], parsedIpv6[1]);
+			return (nameIndex != CidrTrie.NO_VALUE)
+				? nameIndex
+				: numNames + networks.ipv6Id(parsedIpv6[0] & ipv6HighMask, parsedIpv6[1] & ipv6LowMask);
+		}
+		return numNames + networks.idOf(ipAddress);
+	}
+
+	String format(int id) {
+		if (id < numNames) {
+			return grouping.name(id);
+		}
+		int networkId = id - numNames;
+		return switch (networks.kind(networkId)) {
+			case IpDictionary.KIND_IPV4 -> "%1$s/%2$d".formatted(
+				networks.format(networkId), grouping.ipv4PrefixLength());
+			case IpDictionary.KIND_IPV6 -> "%1$s/%2$d".formatted(
+				networks.format(networkId), grouping.ipv6PrefixLength());
+			default -> networks.format(networkId);
+		};
+	}
+
+	/**
+	 * @return For each ID, its position in sorted order: network names
+	 *         alphabetically, then unnamed networks in the order of
+	 *         IpDictionary.ranks().
+	 */
+	int[] ranks() {
+		var nameIds = new Integer[numNames];
+		Arrays.setAll(nameIds, id -> id);
+		Arrays.sort(nameIds, (lhs, rhs) -> grouping.name(lhs).compareTo(grouping.name(rhs)));
+		var networkRanks = networks.ranks();
+		var ranks = new int[numNames + networkRanks.length];
+		for (int rank = 0; rank < numNames; ++rank) {
+			ranks[nameIds[rank]] = rank;
+		}
+		for (int id = 0; id < networkRanks.length; ++id) {
+			ranks[numNames + id] = numNames + networkRanks[id];
+		}
+		return ranks;
+	}
+}
@@ -0,0 +1,157 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+
+/**
+ * Says how source IPs roll up into networks: an address within one of the
+ * named networks (such as "our ESP ranges") belongs to the most specific one
+ * that contains it, and any other address belongs to its enclosing /24 (IPv4)
+ * or /48 (IPv6) network, or to networks of whatever prefix lengths are
+ * configured instead. Several networks may share a name, and the named
+ * networks are held in a CidrTrie, so classifying an address allocates
+ * nothing.
+ *
+ * Configure a grouping completely before using it; once configured, it may be
+ * shared among threads.
+ */
+public final class NetworkGrouping {
+	public static final int DEFAULT_IPV4_PREFIX_LENGTH = 24;
+	public static final int DEFAULT_IPV6_PREFIX_LENGTH = 48;
+
+	private static final String NAME_COLUMN = "Name";
+	private static final String NETWORK_COLUMN = "Network";
+	private static final CSVFormat READ_FORMAT = CSVFormat.Builder.create()
+		.setHeader()
+		.setSkipHeaderRecord(true)
+		.setTrim(true)
+		.setIgnoreEmptyLines(true)
+		.build();
+
+	private int ipv4PrefixLength = DEFAULT_IPV4_PREFIX_LENGTH;
+	private int ipv6PrefixLength = DEFAULT_IPV6_PREFIX_LENGTH;
+	private final List<String> names = new ArrayList<>();
+	private final Map<String, Integer> nameIndices = new HashMap<>();
+	private final CidrTrie namedNetworks = new CidrTrie();
+
+	/**
+	 * @param ipv4 The prefix length of the networks that unnamed IPv4 addresses
+	 *             roll up to, from 0 to 32
+	 * @param ipv6 The prefix length of the networks that unnamed IPv6 addresses
+	 *             roll up to, from 0 to 128
+	 * @return {@code this} to enable call chaining.
+	 */
+	public NetworkGrouping withPrefixLengths(int ipv4, int ipv6) {
+		if (ipv4 < 0 || ipv4 > 32) {
+			throw new IllegalArgumentException("IPv4 prefix length %1$d is out of range".formatted(ipv4));
+		}
+		if (ipv6 < 0 || ipv6 > 128) {
+			throw new IllegalArgumentException("IPv6 prefix length %1$d is out of range".formatted(ipv6));
+		}
+		ipv4PrefixLength = ipv4;
+		ipv6PrefixLength = ipv6;
+		return this;
+	}
+
+	/**
+	 * Names a network. If the same network is named twice, the later name wins.
+	 *
+	 * @return {@code this} to enable call chaining.
+	 */
+	public NetworkGrouping withNamedNetwork(String name, Cidr network) {
+		var trimmedName = Util.requireNonBlank(name, "name").strip();
+		var index = nameIndices.computeIfAbsent(trimmedName, key -> {
+			names.add(key);
+			return names.size() - 1;
+		});
+		namedNetworks.put(network, index);
+		return this;
+	}
+
+	/**
+	 * Names the networks listed in a CSV file with the columns "Name" and
+	 * "Network", the latter in CIDR notation.
+	 *
+	 * @return {@code this} to enable call chaining.
+	 * @throws IllegalArgumentException If a row lacks a name or network
+	 */
+	public NetworkGrouping withNamedNetworks(Path csvFile) throws IOException {
+		try (var parser = CSVParser.parse(csvFile, StandardCharsets.UTF_8, READ_FORMAT)) {
+			if (!parser.getHeaderNames().containsAll(List.of(NAME_COLUMN, NETWORK_COLUMN))) {
+				throw new IllegalArgumentException("'%1$s' must have the columns %2$s and %3$s"
+					.formatted(csvFile, NAME_COLUMN, NETWORK_COLUMN));
+			}
+			for (var record : parser) {
+				try {
+					withNamedNetwork(record.get(NAME_COLUMN), Cidr.parse(record.get(NETWORK_COLUMN)));
+				} catch (IllegalArgumentException ex) {
+					throw new IllegalArgumentException("Invalid network in record %1$d of '%2$s'"
+						.formatted(record.getRecordNumber(), csvFile), ex);
+				}
+			}
+		}
+		return this;
+	}
+
+	public int ipv4PrefixLength() {
+		return ipv4PrefixLength;
+	}
+
+	public int ipv6PrefixLength() {
+		return ipv6PrefixLength;
+	}
+
+	/**
+	 * @return The number of distinct network names.
+	 */
+	public int numNames() {
+		return names.size();
+	}
+
+	/**
+	 * @return The network a source IP rolls up to: a network name, a network in
+	 *         CIDR notation, or (if the text is not an IP address) the text
+	 *         itself.
+	 */
+	public String networkOf(String sourceIp) {
+		var ipAddress = Util.nullToEmpty(sourceIp).strip();
+		long ipv4 = IpAddresses.parseIpv4(ipAddress);
+		var bits = new long[2];
+		if (ipv4 >= 0) {
+			int index = namedIpv4Network((int) ipv4);
+			return (index == CidrTrie.NO_VALUE)
+				? new Cidr(false, 0, ipv4, ipv4PrefixLength).toString()
+				: name(index);
+		} else if (IpAddresses.parseIpv6(ipAddress, bits)) {
+			int index = namedIpv6Network(bits[0], bits[1]);
+			return (index == CidrTrie.NO_VALUE)
+				? new Cidr(true, bits[0], bits[1], ipv6PrefixLength).toString()
+				: name(index);
+		}
+		return ipAddress;
+	}
+
+	String name(int index) {
+		return names.get(index);
+	}
+
+	/**
+	 * @return The name index of the most specific named network containing the
+	 *         address, or CidrTrie.NO_VALUE if there is none.
+	 */
+	int namedIpv4Network(int bits) {
+		return namedNetworks.longestMatchIpv4(bits);
+	}
+
+	int namedIpv6Network(long high, long low) {
+		return namedNetworks.longestMatch(high, low);
+	}
+}
@@ -0,0 +1,130 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * Downloads a large set of messages over several connections to the same
+ * folder at once. The UIDs to download are sorted and split into contiguous
+ * ranges, one per connection, and each range is fetched and decoded on its own
+ * thread. The merged result is in UID order, just as from a single connection.
+ *
+ * The connections are opened read-only; flags are set by the caller through
+ * its own read-write connection, so that only messages that were processed
+ * successfully are marked.
+ */
+public class ParallelMessageDownloader implements AutoCloseable {
+	private final List<MessageDownloader> downloaders;
+
+	public ParallelMessageDownloader(MailAccount account, String folder, int numConnections,
+			int fetchChunkSize) throws MessagingException {
+		if (numConnections < 1) {
+			throw new IllegalArgumentException("numConnections must be positive");
+		}
+		downloaders = new ArrayList<>(numConnections);
+		try {
+			for (int i = 0; i < numConnections; ++i) {
+				downloaders.add(new MessageDownloader(account, folder, MessageDownloader.OpenMode.READ_ONLY)
+					.withFetchChunkSize(fetchChunkSize));
+			}
+		} catch (MessagingException | RuntimeException ex) {
+			try {
+				closeAll(downloaders);
+			} catch (MessageDownloaderCloseException closeEx) {
+				ex.addSuppressed(closeEx);
+			}
+			throw ex;
+		}
+	}
+
+	public int getNumConnections() {
+		return downloaders.size();
+	}
+
+	public DownloadResult downloadByUid(long[] uids) throws MessagingException, IOException {
+		var sortedUids = uids.clone();
+		Arrays.sort(sortedUids);
+		var ranges = partition(sortedUids, downloaders.size());
+		if (ranges.isEmpty()) {
+			return new DownloadResult(List.of(), List.of());
+		}
+
+		List<Future<DownloadResult>> futures = new ArrayList<>(ranges.size());
+		try (var executor = Executors.newFixedThreadPool(ranges.size())) {
+			for (int i = 0; i < ranges.size(); ++i) {
+				var downloader = downloaders.get(i);
+				var range = ranges.get(i);
+				futures.add(executor.submit(() -> downloader.downloadByUid(range)));
+			}
+
+			List<MsgInfo> msgInfos = new ArrayList<>(uids.length);
+			List<DownloadResult.Failure> failures = new ArrayList<>();
+			for (var future : futures) {
+				var rangeResult = future.get();
+				msgInfos.addAll(rangeResult.msgInfos());
+				failures.addAll(rangeResult.failures());
+			}
+			return new DownloadResult(msgInfos, failures);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof MessagingException msgEx) {
+				throw msgEx;
+			} else if (ex.getCause() instanceof IOException ioEx) {
+				throw ioEx;
+			} else if (ex.getCause() instanceof RuntimeException rtEx) {
+				throw rtEx;
+			}
+			throw new IllegalStateException(ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			var ioEx = new InterruptedIOException("Interrupted while downloading messages");
+			ioEx.initCause(ex);
+			throw ioEx;
+		}
+	}
+
+	/**
+	 * Splits sortedUids into at most numRanges contiguous ranges of nearly equal
+	 * size. Empty ranges are omitted.
+	 */
+	static List<long[]> partition(long[] sortedUids, int numRanges) {
+		List<long[]> ranges = new ArrayList<>(numRanges);
+		int rangeCount = Math.min(numRanges, sortedUids.length);
+		for (int i = 0; i < rangeCount; ++i) {
+			int from = (int) ((long) sortedUids.length * i / rangeCount);
+			int to = (int) ((long) sortedUids.length * (i + 1) / rangeCount);
+			ranges.add(Arrays.copyOfRange(sortedUids, from, to));
+		}
+		return ranges;
+	}
+
+	@Override
+	public void close() {
+		closeAll(downloaders);
+	}
+
+	private static void closeAll(List<MessageDownloader> downloaders) {
+		MessageDownloaderCloseException closeEx = null;
+		for (var downloader : downloaders) {
+			try {
+				downloader.close();
+			} catch (MessageDownloaderCloseException ex) {
+				if (closeEx == null) {
+					closeEx = ex;
+				} else {
+					closeEx.addSuppressed(ex);
+				}
+			}
+		}
+		if (closeEx != null) {
+			throw closeEx;
+		}
+	}
+}
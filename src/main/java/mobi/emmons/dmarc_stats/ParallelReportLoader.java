@@ -0,0 +1,130 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Parses report files on a pool of worker threads while delivering the results
+ * to a consumer on the calling thread, in the same order as the input list.
+ *
+ * At most maxInFlight files are submitted but not yet consumed at any moment,
+ * so memory use is bounded regardless of how many files there are. A file that
+ * fails to parse is recorded as a failure and does not stop the load.
+ */
+public class ParallelReportLoader {
+	public static enum WorkerPool {
+		/** A ForkJoinPool with the configured parallelism. */
+		FORK_JOIN,
+		/**
+		 * One virtual thread per file. Concurrency is then limited only by
+		 * maxInFlight, and the JDK's carrier pool decides how many cores are used.
+		 */
+		VIRTUAL_THREADS
+	}
+
+	private final int parallelism;
+	private final int maxInFlight;
+	private final WorkerPool workerPool;
+
+	public ParallelReportLoader(int parallelism, int maxInFlight, WorkerPool workerPool) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.parallelism = parallelism;
+		this.maxInFlight = maxInFlight;
+		this.workerPool = Objects.requireNonNull(workerPool, "workerPool");
+	}
+
+	public <T> ReportLoadResult load(List<Path> reportFiles, Function<Path, T> parser,
+			Consumer<T> consumer) throws InterruptedIOException {
+		long numLoaded = 0;
+		List<ReportLoadResult.Failure> failures = new ArrayList<>();
+		var window = new ArrayDeque<PendingParse<T>>(maxInFlight);
+		try (var executor = newExecutor()) {
+			try {
+				for (var reportFile : reportFiles) {
+					if (window.size() >= maxInFlight) {
+						numLoaded += consumeOldest(window, consumer, failures);
+					}
+					window.addLast(new PendingParse<>(reportFile,
+						executor.submit(() -> parser.apply(reportFile))));
+				}
+				while (!window.isEmpty()) {
+					numLoaded += consumeOldest(window, consumer, failures);
+				}
+			} catch (InterruptedException ex) {
+				// Cancel before the executor's close waits for the parses in flight:
+				window.forEach(pending -> pending.future().cancel(true));
+				Thread.currentThread().interrupt();
+				var ioEx = new InterruptedIOException("Interrupted while loading stored reports");
+				ioEx.initCause(ex);
+				throw ioEx;
+			}
+		}
+		return new ReportLoadResult(numLoaded, failures);
+	}
+
+	/**
+	 * Loads the files one at a time on the calling thread, with the same failure
+	 * handling as the parallel load: a parser exception is recorded as a
+	 * failure, while an Error propagates.
+	 */
+	public static <T> ReportLoadResult loadSequentially(List<Path> reportFiles, Function<Path, T> parser,
+			Consumer<T> consumer) {
+		long numLoaded = 0;
+		List<ReportLoadResult.Failure> failures = new ArrayList<>();
+		for (var reportFile : reportFiles) {
+			T report;
+			try {
+				report = parser.apply(reportFile);
+			} catch (RuntimeException ex) {
+				failures.add(new ReportLoadResult.Failure(reportFile, ex));
+				continue;
+			}
+			consumer.accept(report);
+			++numLoaded;
+		}
+		return new ReportLoadResult(numLoaded, failures);
+	}
+
+	private static <T> int consumeOldest(ArrayDeque<PendingParse<T>> window, Consumer<T> consumer,
+			List<ReportLoadResult.Failure> failures) throws InterruptedException {
+		var pending = window.removeFirst();
+		T report;
+		try {
+			report = pending.future().get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Error error) {
+				throw error;
+			}
+			var cause = (ex.getCause() instanceof Exception causeEx) ? causeEx : ex;
+			failures.add(new ReportLoadResult.Failure(pending.reportFile(), cause));
+			return 0;
+		}
+		consumer.accept(report);
+		return 1;
+	}
+
+	private ExecutorService newExecutor() {
+		return switch (workerPool) {
+			case FORK_JOIN -> new ForkJoinPool(parallelism);
+			case VIRTUAL_THREADS -> Executors.newVirtualThreadPerTaskExecutor();
+		};
+	}
+
+	private static record PendingParse<T>(Path reportFile, Future<T> future) {}
+}
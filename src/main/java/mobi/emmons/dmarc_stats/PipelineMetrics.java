@@ -0,0 +1,433 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Counters and latency histograms for each stage of the ingest pipeline, from
+ * the IMAP search to the CSV output, plus the bytes in and out of
+ * decompression and the numbers of reports and records parsed. Each pass
+ * through a stage is also emitted as a PipelineStageEvent for JDK Flight
+ * Recorder.
+ *
+ * The metrics are process-wide, because the stages run in static helpers and
+ * on several threads. They are disabled by default, and while disabled, start
+ * returns a shared no-op span, so instrumentation costs one volatile read per
+ * stage. Stages can nest (e.g., a DOM parse includes the decompression it
+ * pulls from), so stage times are not additive.
+ */
+public final class PipelineMetrics {
+	public enum Stage {
+		IMAP_SEARCH("IMAP Search"),
+		CONTENT_FETCH("Content Fetch"),
+		DECOMPRESSION("Decompression"),
+		DOM_PARSE("DOM Parse"),
+		JAXB_UNMARSHAL("JAXB Unmarshal"),
+		STAX_PARSE("StAX Parse"),
+		MARSHAL_TO_DISK("Marshal to Disk"),
+		CSV_WRITE("CSV Write");
+
+		private final String label;
+
+		Stage(String label) {
+			this.label = label;
+		}
+
+		public String label() {
+			return label;
+		}
+	}
+
+	/**
+	 * The metrics of one stage. Percentiles come from a log-linear histogram,
+	 * and so are upper bounds within 12.5% of the true value.
+	 */
+	public record StageSummary(Stage stage, long count, long totalNanos, long p50Nanos, long p90Nanos,
+		long p99Nanos, long maxNanos, long bytesIn, long bytesOut) {
+
+		public long meanNanos() {
+			return (count == 0) ? 0 : totalNanos / count;
+		}
+	}
+
+	public record Summary(Duration elapsed, long numReports, long numRecords, List<StageSummary> stages) {
+		public Summary {
+			stages = List.copyOf(stages);
+		}
+
+		public double perSecond(long count) {
+			double seconds = elapsed.toNanos() / 1e9;
+			return (seconds <= 0) ? 0 : count / seconds;
+		}
+	}
+
+	@FunctionalInterface
+	interface Decompressor {
+		InputStream open(InputStream compressed) throws IOException;
+	}
+
+	/**
+	 * One pass through a stage, recorded when closed.
+	 */
+	public static final class Span implements AutoCloseable {
+		private static final Span NO_OP = new Span(null);
+
+		private final Stage stage;
+		private final long startNanos;
+		private final PipelineStageEvent event;
+		private long activeNanos = -1;
+		private long bytesIn = 0;
+		private long bytesOut = 0;
+		private long numRecords = 0;
+		private boolean isClosed = false;
+
+		private Span(Stage stage) {
+			this.stage = stage;
+			if (stage == null) {
+				startNanos = 0;
+				event = null;
+			} else {
+				event = new PipelineStageEvent();
+				event.begin();
+				startNanos = System.nanoTime();
+			}
+		}
+
+		/**
+		 * @return True unless metrics were disabled when the span started, in
+		 *         which case the span records nothing and extra measurements
+		 *         (like file sizes) need not be taken.
+		 */
+		public boolean isRecording() {
+			return stage != null;
+		}
+
+		/**
+		 * Adds to the bytes in and out of the stage.
+		 *
+		 * @return {@code this} to enable call chaining.
+		 */
+		public Span bytes(long in, long out) {
+			if (stage != null) {
+				bytesIn += in;
+				bytesOut += out;
+			}
+			return this;
+		}
+
+		/**
+		 * Counts a report produced by the stage and its records.
+		 *
+		 * @return The report, for the convenience of the caller.
+		 */
+		public Feedback counted(Feedback feedback) {
+			if (stage != null && feedback != null) {
+				numRecords += feedback.getRecord().size();
+				NUM_REPORTS.increment();
+				NUM_RECORDS.add(feedback.getRecord().size());
+			}
+			return feedback;
+		}
+
+		/**
+		 * Counts a report produced by the stage in some form other than a
+		 * Feedback, such as a row range of a RecordTable.
+		 */
+		public void counted(int numReportRecords) {
+			if (stage != null) {
+				numRecords += numReportRecords;
+				NUM_REPORTS.increment();
+				NUM_RECORDS.add(numReportRecords);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (stage == null || isClosed) {
+				return;
+			}
+			isClosed = true;
+			long nanos = (activeNanos >= 0) ? activeNanos : System.nanoTime() - startNanos;
+			STATS[stage.ordinal()].record(nanos, bytesIn, bytesOut);
+			event.end();
+			if (event.shouldCommit()) {
+				event.stage = stage.label();
+				event.activeTime = nanos;
+				event.bytesIn = bytesIn;
+				event.bytesOut = bytesOut;
+				event.records = numRecords;
+				event.commit();
+			}
+		}
+	}
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int NUM_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+
+	private static final class StageStats {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		private final LongAdder bytesIn = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+		private final AtomicLongArray histogram = new AtomicLongArray(NUM_BUCKETS);
+
+		void record(long nanos, long in, long out) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			bytesIn.add(in);
+			bytesOut.add(out);
+			histogram.incrementAndGet(bucketOf(nanos));
+		}
+
+		StageSummary summarize(Stage stage) {
+			var counts = new long[NUM_BUCKETS];
+			long total = 0;
+			for (int i = 0; i < counts.length; ++i) {
+				counts[i] = histogram.get(i);
+				total += counts[i];
+			}
+			long max = maxNanos.get();
+			return new StageSummary(stage, count.sum(), totalNanos.sum(), percentile(counts, total, 0.50, max),
+				percentile(counts, total, 0.90, max), percentile(counts, total, 0.99, max), max,
+				bytesIn.sum(), bytesOut.sum());
+		}
+	}
+
+	private static final StageStats[] STATS = new StageStats[Stage.values().length];
+	private static final LongAdder NUM_REPORTS = new LongAdder();
+	private static final LongAdder NUM_RECORDS = new LongAdder();
+	private static volatile boolean isEnabled = false;
+	private static volatile long enabledNanos = 0;
+
+	static {
+		reset();
+	}
+
+	private PipelineMetrics() {}	// prevent instantiation
+
+	/**
+	 * Clears the metrics and starts recording.
+	 */
+	public static synchronized void enable() {
+		reset();
+		isEnabled = true;
+	}
+
+	/**
+	 * Stops recording. The metrics recorded so far remain available.
+	 */
+	public static synchronized void disable() {
+		isEnabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return isEnabled;
+	}
+
+	private static void reset() {
+		for (int i = 0; i < STATS.length; ++i) {
+			STATS[i] = new StageStats();
+		}
+		NUM_REPORTS.reset();
+		NUM_RECORDS.reset();
+		enabledNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts a pass through a stage, to be closed (with try-with-resources)
+	 * when the stage is done.
+	 */
+	public static Span start(Stage stage) {
+		return isEnabled ? new Span(stage) : Span.NO_OP;
+	}
+
+	/**
+	 * Opens a decompressing stream, which (while metrics are enabled) records
+	 * as a DECOMPRESSION pass when closed: the compressed bytes it read, the
+	 * decompressed bytes it returned, and the time spent inside its reads.
+	 */
+	static InputStream meterDecompression(InputStream compressed, Decompressor decompressor)
+			throws IOException {
+		if (!isEnabled) {
+			return decompressor.open(compressed);
+		}
+		var span = new Span(Stage.DECOMPRESSION);
+		var countingStream = new CountingInputStream(compressed);
+		return new MeteredInputStream(decompressor.open(countingStream), countingStream, span);
+	}
+
+	public static Summary summary() {
+		List<StageSummary> stages = new ArrayList<>();
+		for (var stage : Stage.values()) {
+			stages.add(STATS[stage.ordinal()].summarize(stage));
+		}
+		return new Summary(Duration.ofNanos(System.nanoTime() - enabledNanos), NUM_REPORTS.sum(),
+			NUM_RECORDS.sum(), stages);
+	}
+
+	/**
+	 * Prints the summary as a table of the stages that ran.
+	 */
+	public static void printSummary(PrintStream out) {
+		var summary = summary();
+		out.format("%nPipeline metrics over %1$.1f s: %2$d reports (%3$.1f/s), %4$d records (%5$.1f/s)%n",
+			summary.elapsed().toMillis() / 1000.0, summary.numReports(),
+			summary.perSecond(summary.numReports()), summary.numRecords(),
+			summary.perSecond(summary.numRecords()));
+		out.format("   %1$-16s %2$8s %3$10s %4$9s %5$9s %6$9s %7$9s %8$9s %9$12s %10$12s%n", "Stage", "Count",
+			"Total ms", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms", "Bytes in", "Bytes out");
+		for (var stage : summary.stages()) {
+			if (stage.count() > 0) {
+				out.format("   %1$-16s %2$8d %3$10.1f %4$9.3f %5$9.3f %6$9.3f %7$9.3f %8$9.3f %9$12d %10$12d%n",
+					stage.stage().label(), stage.count(), millis(stage.totalNanos()), millis(stage.meanNanos()),
+					millis(stage.p50Nanos()), millis(stage.p90Nanos()), millis(stage.p99Nanos()),
+					millis(stage.maxNanos()), stage.bytesIn(), stage.bytesOut());
+			}
+		}
+	}
+
+	static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * @return The histogram bucket of a duration. Each power of two is split
+	 *         into NUM_SUB_BUCKETS linear buckets, so durations of any magnitude
+	 *         are bucketed with the same relative precision.
+	 */
+	static int bucketOf(long nanos) {
+		if (nanos < NUM_SUB_BUCKETS) {
+			return (int) Math.max(0, nanos);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (NUM_SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | subBucket;
+	}
+
+	/**
+	 * @return The largest duration in the bucket.
+	 */
+	static long bucketUpperBound(int bucket) {
+		if (bucket < NUM_SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket & (NUM_SUB_BUCKETS - 1);
+		return ((NUM_SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	private static long percentile(long[] counts, long total, double fraction, long max) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		long cumulative = 0;
+		for (int bucket = 0; bucket < counts.length; ++bucket) {
+			cumulative += counts[bucket];
+			if (cumulative >= rank) {
+				return Math.min(bucketUpperBound(bucket), max);
+			}
+		}
+		return max;
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		private long numBytes = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				++numBytes;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int numRead = super.read(buffer, offset, length);
+			if (numRead > 0) {
+				numBytes += numRead;
+			}
+			return numRead;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long numSkipped = super.skip(n);
+			numBytes += numSkipped;
+			return numSkipped;
+		}
+	}
+
+	private static final class MeteredInputStream extends FilterInputStream {
+		private final CountingInputStream compressed;
+		private final Span span;
+		private long numBytes = 0;
+		private long activeNanos = 0;
+
+		MeteredInputStream(InputStream decompressed, CountingInputStream compressed, Span span) {
+			super(decompressed);
+			this.compressed = compressed;
+			this.span = span;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = super.read();
+			activeNanos += System.nanoTime() - start;
+			if (b >= 0) {
+				++numBytes;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			long start = System.nanoTime();
+			int numRead = super.read(buffer, offset, length);
+			activeNanos += System.nanoTime() - start;
+			if (numRead > 0) {
+				numBytes += numRead;
+			}
+			return numRead;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long start = System.nanoTime();
+			long numSkipped = super.skip(n);
+			activeNanos += System.nanoTime() - start;
+			numBytes += numSkipped;
+			return numSkipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				span.activeNanos = activeNanos;
+				span.bytes(compressed.numBytes, numBytes).close();
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package mobi.emmons.dmarc_stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JDK Flight Recorder event for one pass through a stage of the ingest
+ * pipeline (see PipelineMetrics). Recorded only while metrics are enabled.
+ */
+@Name("mobi.emmons.dmarc_stats.PipelineStage")
+@Label("DMARC Pipeline Stage")
+@Category("DMARC Stats")
+@Description("One pass through a stage of the DMARC report ingest pipeline")
+@StackTrace(false)
+final class PipelineStageEvent extends Event {
+	@Label("Stage")
+	String stage;
+
+	@Label("Active Time")
+	@Description("Time spent in the stage, which for decompression excludes time the consumer spent between reads")
+	@Timespan(Timespan.NANOSECONDS)
+	long activeTime;
+
+	@Label("Bytes In")
+	@DataAmount
+	long bytesIn;
+
+	@Label("Bytes Out")
+	@DataAmount
+	long bytesOut;
+
+	@Label("Records")
+	long records;
+}
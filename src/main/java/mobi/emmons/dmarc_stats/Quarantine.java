@@ -0,0 +1,114 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * The directory where messages that cannot be decoded or parsed are set aside,
+ * so that one bad message does not end an ingest. Each one is saved as it was
+ * received, in msg-<uidvalidity>-<uid>.eml (or archive-<hash>.eml for a message
+ * read from a MessageArchive, where hash is the first 128 bits of the SHA-256
+ * digest of its location), next to a .txt file that records why it was
+ * rejected. The messages themselves stay in the mail folder or archive.
+ */
+final class Quarantine {
+	static final String DIR_NAME = "quarantine";
+
+	private final Path quarantineDir;
+	private long numMessages = 0;
+
+	Quarantine(Path quarantineDir) {
+		this.quarantineDir = quarantineDir;
+	}
+
+	/**
+	 * Saves a copy of the failed message, read over the downloader's connection,
+	 * along with its cause. A message that has since been expunged leaves only
+	 * the cause behind.
+	 */
+	void add(MessageDownloader downloader, long uidValidity, DownloadResult.Failure failure)
+			throws IOException, MessagingException {
+		Files.createDirectories(quarantineDir);
+		var baseName = "msg-%1$d-%2$d".formatted(uidValidity, failure.imapUid());
+		var messageFile = quarantineDir.resolve(baseName + ".eml");
+		var tempFile = quarantineDir.resolve(baseName + ".eml.tmp");
+		boolean isSaved;
+		try (var os = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+			isSaved = downloader.writeMessageByUid(failure.imapUid(), os);
+		}
+		if (isSaved) {
+			Files.move(tempFile, messageFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} else {
+			Files.delete(tempFile);
+		}
+		Files.writeString(quarantineDir.resolve(baseName + ".txt"),
+			describe("UID: %1$d".formatted(failure.imapUid()), failure.cause()), StandardCharsets.UTF_8);
+		++numMessages;
+		System.out.format("Quarantined message UID %1$d: %2$s%n", failure.imapUid(), failure.cause());
+	}
+
+	/**
+	 * Saves a copy of a failed message read from a MessageArchive, along with
+	 * its cause and its location in the archive. A message that could no longer
+	 * be read (content is null) leaves only the cause behind.
+	 */
+	void add(String location, byte[] content, Exception cause) throws IOException {
+		Files.createDirectories(quarantineDir);
+		var baseName = "archive-%1$s".formatted(locationHash(location));
+		if (content != null) {
+			var messageFile = quarantineDir.resolve(baseName + ".eml");
+			var tempFile = quarantineDir.resolve(baseName + ".eml.tmp");
+			Files.write(tempFile, content);
+			Files.move(tempFile, messageFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		Files.writeString(quarantineDir.resolve(baseName + ".txt"),
+			describe("Location: %1$s".formatted(location), cause), StandardCharsets.UTF_8);
+		++numMessages;
+		System.out.format("Quarantined archived message %1$s: %2$s%n", location, cause);
+	}
+
+	/**
+	 * @return The number of messages quarantined by this instance.
+	 */
+	long numMessages() {
+		return numMessages;
+	}
+
+	Path dir() {
+		return quarantineDir;
+	}
+
+	private static String locationHash(String location) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 is not available", ex);
+		}
+		var hash = digest.digest(location.getBytes(StandardCharsets.UTF_8));
+		return HexFormat.of().formatHex(Arrays.copyOf(hash, 16));
+	}
+
+	private static String describe(String source, Exception cause) {
+		var text = new StringWriter();
+		try (var wtr = new PrintWriter(text)) {
+			wtr.format("%1$s%n%n", source);
+			cause.printStackTrace(wtr);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,203 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+
+/**
+ * Answers ad-hoc questions about a report store without downloading anything:
+ * filters the stored reports and their records, optionally groups and totals
+ * them, and writes the result as CSV to a file or to standard output.
+ */
+public class QueryCli {
+	private final File storageDir;
+	private final NetworkGrouping networkGrouping = new NetworkGrouping();
+	private final ReportQuery query = new ReportQuery().withNetworkGrouping(networkGrouping);
+	private ReportCodec.Backend parserBackend = ReportCodec.Backend.STAX;
+	private int loadThreads = 1;
+	private LocalDate fromDay = null;
+	private LocalDate toDay = null;
+	private File outputFile = null;
+	private Path asnDatabaseFile = null;
+
+	public static void main(String[] args) {
+		try {
+			QueryCli cli = new QueryCli(args);
+			cli.run();
+		} catch (CmdLineException ex) {
+			usage(ex.getMessage());
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private static void usage(String message)
+	{
+		System.out.format("%n");
+		if (message != null && !message.isEmpty()) {
+			System.out.format("%1$s%n%n", message);
+		}
+		System.out.format("Usage: %1$s [options] <storage-dir>%n%n", QueryCli.class.getName());
+		System.out.format("Filters (lists are comma-separated; a record must match every filter given):%n");
+		System.out.format("   --from=YYYY-MM-DD    Reports beginning on or after this day (UTC)%n");
+		System.out.format("   --to=YYYY-MM-DD      Reports beginning before this day (UTC)%n");
+		System.out.format("   --domain=LIST        Reports for these policy domains%n");
+		System.out.format("   --org=LIST           Reports from these organizations%n");
+		System.out.format("   --source-ip=LIST     Records whose source IP is in these addresses or CIDR networks%n");
+		System.out.format("   --disposition=LIST   Records with these dispositions (none, quarantine, reject)%n");
+		System.out.format("   --dkim=LIST          Records with these DMARC DKIM results (pass, fail)%n");
+		System.out.format("   --spf=LIST           Records with these DMARC SPF results (pass, fail)%n");
+		System.out.format("Output:%n");
+		System.out.format("   --group-by=LIST      Total the records per group of these dimensions:%n");
+		System.out.format("                        %1$s%n", Stream.of(Dimension.values())
+			.map(dimension -> dimension.name().toLowerCase().replace('_', '-'))
+			.collect(Collectors.joining(", ")));
+		System.out.format("   --networks=FILE      Name the networks listed in a CSV file with the columns%n");
+		System.out.format("                        Name and Network, for the source-network dimension%n");
+		System.out.format("   --network-prefixes=V4,V6%n");
+		System.out.format("                        Prefix lengths of the unnamed networks that the%n");
+		System.out.format("                        source-network dimension rolls source IPs up to%n");
+		System.out.format("                        (default %1$d,%2$d)%n",
+			NetworkGrouping.DEFAULT_IPV4_PREFIX_LENGTH, NetworkGrouping.DEFAULT_IPV6_PREFIX_LENGTH);
+		System.out.format("   --asn-db=FILE        Label source IPs with their ASN and organization from an%n");
+		System.out.format("                        IP range to ASN table (such as iptoasn.com's ip2asn TSV),%n");
+		System.out.format("                        compiled on first use to FILE%1$s, for listed records%n",
+			AsnDatabase.COMPILED_SUFFIX);
+		System.out.format("                        and the source-asn dimension%n");
+		System.out.format("   --output=FILE        Write the CSV to FILE instead of standard output%n");
+		System.out.format("Loading:%n");
+		System.out.format("   --parser=jaxb|stax   XML parser backend for reports (default stax, which skips%n");
+		System.out.format("                        the records of non-matching reports)%n");
+		System.out.format("   --load-threads=N     Parse stored reports on N threads (default 1)%n%n");
+	}
+
+	private QueryCli(String[] args) throws CmdLineException {
+		List<String> positionalArgs = new ArrayList<>();
+		for (var arg : args) {
+			if (arg.startsWith("--")) {
+				parseOption(arg);
+			} else {
+				positionalArgs.add(arg);
+			}
+		}
+
+		if (positionalArgs.size() < 1) {
+			throw new CmdLineException("Too few arguments");
+		} else if (positionalArgs.size() > 1) {
+			throw new CmdLineException("Too many arguments");
+		}
+		storageDir = new File(positionalArgs.get(0));
+		if (!storageDir.isDirectory()) {
+			throw new CmdLineException("'%1$s' is not a directory", positionalArgs.get(0));
+		}
+		query.withDateWindow(DateWindow.ofDays(fromDay, toDay));
+		if (asnDatabaseFile == null && query.groupBy().contains(Dimension.SOURCE_ASN)) {
+			throw new CmdLineException("The source-asn dimension requires option --asn-db");
+		}
+	}
+
+	private void parseOption(String arg) throws CmdLineException {
+		int equalsIndex = arg.indexOf('=');
+		var name = (equalsIndex == -1) ? arg.substring(2) : arg.substring(2, equalsIndex);
+		var value = (equalsIndex == -1) ? "" : arg.substring(equalsIndex + 1);
+		switch (name) {
+			case "from" -> fromDay = App.parseDateOption(name, value);
+			case "to" -> toDay = App.parseDateOption(name, value);
+			case "domain" -> query.withPolicyDomains(parseListOption(name, value));
+			case "org" -> query.withOrgNames(parseListOption(name, value));
+			case "source-ip" -> query.withSourceNetworks(parseCidrListOption(name, value));
+			case "disposition" -> query.withDispositions(
+				App.parseEnumListOption(DispositionType.class, name, value));
+			case "dkim" -> query.withDkimResults(App.parseEnumListOption(DMARCResultType.class, name, value));
+			case "spf" -> query.withSpfResults(App.parseEnumListOption(DMARCResultType.class, name, value));
+			case "group-by" -> query.withGroupBy(App.parseEnumListOption(Dimension.class, name, value));
+			case "networks" -> App.parseNetworksOption(networkGrouping, name, value);
+			case "network-prefixes" -> App.parseNetworkPrefixesOption(networkGrouping, name, value);
+			case "asn-db" -> asnDatabaseFile = App.parsePathOption(name, value);
+			case "output" -> outputFile = parseFileOption(name, value);
+			case "parser" -> parserBackend = App.parseEnumOption(ReportCodec.Backend.class, name, value);
+			case "load-threads" -> loadThreads = App.parseIntOption(name, value);
+			default -> throw new CmdLineException("Unrecognized option '%1$s'", arg);
+		}
+	}
+
+	private static List<String> parseListOption(String name, String value) throws CmdLineException {
+		var items = Stream.of(value.split(","))
+			.map(String::strip)
+			.filter(item -> !item.isEmpty())
+			.toList();
+		if (items.isEmpty()) {
+			throw new CmdLineException("Option --%1$s requires a value", name);
+		}
+		return items;
+	}
+
+	private static File parseFileOption(String name, String value) throws CmdLineException {
+		if (value.isBlank()) {
+			throw new CmdLineException("Option --%1$s requires a value", name);
+		}
+		return new File(value.strip());
+	}
+
+	private static List<Cidr> parseCidrListOption(String name, String value) throws CmdLineException {
+		List<Cidr> networks = new ArrayList<>();
+		for (var item : parseListOption(name, value)) {
+			try {
+				networks.add(Cidr.parse(item));
+			} catch (IllegalArgumentException ex) {
+				throw new CmdLineException(ex, "Invalid value '%1$s' for option --%2$s", item, name);
+			}
+		}
+		return networks;
+	}
+
+	private void run() throws IOException {
+		var store = new DmarcReportStore(storageDir)
+			.withParserBackend(parserBackend);
+		if (loadThreads > 1) {
+			store.withParallelLoad(new ParallelReportLoader(loadThreads, 4 * loadThreads,
+				ParallelReportLoader.WorkerPool.FORK_JOIN));
+		}
+		if (asnDatabaseFile != null) {
+			query.withAsnDatabase(AsnDatabase.open(asnDatabaseFile));
+		}
+		var engine = new QueryEngine(store);
+
+		QueryEngine.Result result;
+		PrintStream messages;
+		if (outputFile == null) {
+			// Keep standard output clean for the CSV:
+			messages = System.err;
+			var out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+			result = engine.run(query, out);
+			out.flush();
+		} else {
+			messages = System.out;
+			try (var out = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+				result = engine.run(query, out);
+			}
+		}
+
+		if (!result.failures().isEmpty()) {
+			messages.format("Failed to load %1$d stored reports:%n", result.failures().size());
+			for (var failure : result.failures()) {
+				messages.format("   %1$s: %2$s%n", failure.path(), failure.cause());
+			}
+		}
+		messages.format("Matched %1$d records in %2$d reports; wrote %3$d rows%n",
+			result.numRecordsMatched(), result.numReportsMatched(), result.numRowsWritten());
+	}
+}
@@ -0,0 +1,187 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.ReportAggregator.Measure;
+import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.SPFAuthResultType;
+
+/**
+ * Runs a ReportQuery over the stored reports and writes the result as CSV.
+ * Without a group-by, each matching record is written as soon as its report
+ * is parsed; with one, the matching records are totaled per group (see
+ * ReportAggregator) and the groups are written, sorted, at the end.
+ */
+public final class QueryEngine {
+	public record Result(long numReportsMatched, long numRecordsMatched, long numRowsWritten,
+		List<ReportLoadResult.Failure> failures) {
+
+		public Result {
+			failures = List.copyOf(failures);
+		}
+	}
+
+	private static final String[] RECORD_HEADER = { "Report ID", "Org. Name", "Policy Domain", "Begin",
+		"Source IP", "Count", "Disposition", "DKIM", "SPF", "Header From", "Envelope From",
+		"DKIM Domain", "SPF Domain" };
+	private static final String[] ASN_HEADER = { "Source ASN", "Source AS Organization" };
+
+	private final DmarcReportStore store;
+
+	public QueryEngine(DmarcReportStore store) {
+		this.store = Objects.requireNonNull(store, "store");
+	}
+
+	/**
+	 * @param out Receives the CSV, which is flushed (if possible) but not closed.
+	 */
+	public Result run(ReportQuery query, Appendable out) throws IOException {
+		var asnDatabase = query.asnDatabase();
+		var aggregator = query.groupBy().isEmpty() ? null : new ReportAggregator(
+			query.groupBy(), query.networkGrouping(), asnDatabase);
+		var numRecords = new long[1];
+		var numRows = new long[1];
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader((aggregator != null) ? groupHeader(aggregator) : recordHeader(asnDatabase))
+			.setRecordSeparator(System.lineSeparator())
+			.build();
+		// The caller owns out, so the printer is flushed but not closed:
+		var printer = csvFormat.print(out);
+		ReportLoadResult loadResult;
+		try {
+			loadResult = store.queryStoredReports(query, feedback -> {
+				for (var record : feedback.getRecord()) {
+					if (!query.matchesRecord(record)) {
+						continue;
+					}
+					++numRecords[0];
+					if (aggregator != null) {
+						aggregator.add(feedback, record);
+					} else {
+						printRecord(printer, feedback, record, asnDatabase);
+						++numRows[0];
+					}
+				}
+			});
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+		if (aggregator != null) {
+			numRows[0] = printGroups(aggregator, printer);
+		}
+		printer.flush();
+		return new Result(loadResult.numLoaded(), numRecords[0], numRows[0], loadResult.failures());
+	}
+
+	/**
+	 * @return The CSV header of listed records, which has ASN columns if there
+	 *         is an ASN database.
+	 */
+	static String[] recordHeader(AsnDatabase asnDatabase) {
+		return (asnDatabase == null)
+			? RECORD_HEADER
+			: Stream.concat(Stream.of(RECORD_HEADER), Stream.of(ASN_HEADER)).toArray(String[]::new);
+	}
+
+	static String[] groupHeader(ReportAggregator aggregator) {
+		return Stream.concat(
+				aggregator.dimensions().stream().map(Dimension::label),
+				Stream.of(Measure.values()).map(Measure::label))
+			.toArray(String[]::new);
+	}
+
+	/**
+	 * Writes each of the aggregator's groups, sorted by its dimensions in order,
+	 * as a row of dimension values followed by measures.
+	 *
+	 * @return The number of rows written.
+	 */
+	static long printGroups(ReportAggregator aggregator, CSVPrinter printer) throws IOException {
+		var row = new Object[aggregator.dimensions().size() + Measure.values().length];
+		try {
+			aggregator.forEachGroup(aggregator.dimensions(), (values, measures) -> {
+				System.arraycopy(values, 0, row, 0, values.length);
+				for (int m = 0; m < measures.length; ++m) {
+					row[values.length + m] = measures[m];
+				}
+				try {
+					printer.printRecord(row);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			});
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+		return aggregator.numGroups();
+	}
+
+	private static void printRecord(CSVPrinter printer, Feedback feedback, RecordType record,
+			AsnDatabase asnDatabase) {
+		try {
+			printer.printRecord(recordValues(feedback, record, asnDatabase));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * @return The values of a listed record, in the order of recordHeader.
+	 */
+	static List<Object> recordValues(Feedback feedback, RecordType record, AsnDatabase asnDatabase) {
+		var metadata = feedback.getReportMetadata();
+		var policy = feedback.getPolicyPublished();
+		var row = record.getRow();
+		var policyEvaluated = (row == null) ? null : row.getPolicyEvaluated();
+		var identifiers = record.getIdentifiers();
+		var authResults = record.getAuthResults();
+		var sourceIp = (row == null) ? "" : Util.nullToEmpty(row.getSourceIp());
+		List<Object> values = new ArrayList<>(RECORD_HEADER.length + ASN_HEADER.length);
+		Collections.addAll(values,
+			(metadata == null) ? "" : Util.nullToEmpty(metadata.getReportId()),
+			(metadata == null) ? "" : Util.nullToEmpty(metadata.getOrgName()),
+			(policy == null) ? "" : Util.nullToEmpty(policy.getDomain()),
+			Instant.ofEpochSecond(DateWindow.beginOf(feedback)),
+			sourceIp,
+			(row == null || row.getCount() == null) ? 1L : row.getCount(),
+			(policyEvaluated == null || policyEvaluated.getDisposition() == null)
+				? "" : policyEvaluated.getDisposition().value(),
+			(policyEvaluated == null || policyEvaluated.getDkim() == null)
+				? "" : policyEvaluated.getDkim().value(),
+			(policyEvaluated == null || policyEvaluated.getSpf() == null)
+				? "" : policyEvaluated.getSpf().value(),
+			(identifiers == null) ? "" : Util.nullToEmpty(identifiers.getHeaderFrom()),
+			(identifiers == null) ? "" : Util.nullToEmpty(identifiers.getEnvelopeFrom()),
+			(authResults == null) ? "" : authResults.getDkim().stream()
+				.filter(Objects::nonNull)
+				.map(DKIMAuthResultType::getDomain)
+				.filter(Util::isNonBlank)
+				.collect(Collectors.joining("; ")),
+			(authResults == null) ? "" : authResults.getSpf().stream()
+				.filter(Objects::nonNull)
+				.map(SPFAuthResultType::getDomain)
+				.filter(Util::isNonBlank)
+				.collect(Collectors.joining("; ")));
+		if (asnDatabase != null) {
+			int asnIndex = asnDatabase.asnIndexOf(sourceIp.strip());
+			values.add((asnIndex == AsnDatabase.NOT_FOUND)
+				? "" : Integer.toUnsignedString(asnDatabase.asn(asnIndex)));
+			values.add((asnIndex == AsnDatabase.NOT_FOUND) ? "" : asnDatabase.organization(asnIndex));
+		}
+		return values;
+	}
+}
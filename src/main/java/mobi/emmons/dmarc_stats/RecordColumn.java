@@ -0,0 +1,169 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.SPFAuthResultType;
+
+/**
+ * The columns of the flattened record table written by ColumnarExport: one row
+ * per record, carrying its report's identity and date range alongside every
+ * field of the record itself. Absent values are null. A record may carry
+ * several DKIM and SPF results, so each of their fields holds the values of
+ * all of them, in order, separated by "; ".
+ */
+public enum RecordColumn {
+	REPORT_ID("report_id", ColumnarFile.Type.STRING),
+	ORG_NAME("org_name", ColumnarFile.Type.STRING),
+	POLICY_DOMAIN("policy_domain", ColumnarFile.Type.STRING),
+	BEGIN("begin", ColumnarFile.Type.LONG),
+	END("end", ColumnarFile.Type.LONG),
+	SOURCE_IP("source_ip", ColumnarFile.Type.STRING),
+	COUNT("count", ColumnarFile.Type.LONG),
+	DISPOSITION("disposition", ColumnarFile.Type.STRING),
+	POLICY_DKIM("policy_dkim", ColumnarFile.Type.STRING),
+	POLICY_SPF("policy_spf", ColumnarFile.Type.STRING),
+	OVERRIDE_REASONS("override_reasons", ColumnarFile.Type.STRING),
+	ENVELOPE_TO("envelope_to", ColumnarFile.Type.STRING),
+	ENVELOPE_FROM("envelope_from", ColumnarFile.Type.STRING),
+	HEADER_FROM("header_from", ColumnarFile.Type.STRING),
+	DKIM_DOMAINS("dkim_domains", ColumnarFile.Type.STRING),
+	DKIM_SELECTORS("dkim_selectors", ColumnarFile.Type.STRING),
+	DKIM_RESULTS("dkim_results", ColumnarFile.Type.STRING),
+	SPF_DOMAINS("spf_domains", ColumnarFile.Type.STRING),
+	SPF_SCOPES("spf_scopes", ColumnarFile.Type.STRING),
+	SPF_RESULTS("spf_results", ColumnarFile.Type.STRING);
+
+	private final String columnName;
+	private final ColumnarFile.Type type;
+
+	private RecordColumn(String columnName, ColumnarFile.Type type) {
+		this.columnName = columnName;
+		this.type = type;
+	}
+
+	public String columnName() {
+		return columnName;
+	}
+
+	public ColumnarFile.Type type() {
+		return type;
+	}
+
+	/**
+	 * @return The columns, in order, as they are described in a columnar file.
+	 */
+	public static List<ColumnarFile.Column> schema() {
+		return Stream.of(values())
+			.map(column -> new ColumnarFile.Column(column.columnName, column.type))
+			.toList();
+	}
+
+	/**
+	 * @return This column's value for the record, which is a String or a Long
+	 *         according to the column's type, or null if absent.
+	 */
+	Object extract(Feedback feedback, RecordType record) {
+		var metadata = feedback.getReportMetadata();
+		var dateRange = (metadata == null) ? null : metadata.getDateRange();
+		var policy = feedback.getPolicyPublished();
+		var row = record.getRow();
+		var policyEvaluated = (row == null) ? null : row.getPolicyEvaluated();
+		var identifiers = record.getIdentifiers();
+		var authResults = record.getAuthResults();
+		var dkims = (authResults == null) ? List.<DKIMAuthResultType>of() : authResults.getDkim();
+		var spfs = (authResults == null) ? List.<SPFAuthResultType>of() : authResults.getSpf();
+		return switch (this) {
+			case REPORT_ID -> (metadata == null) ? null : metadata.getReportId();
+			case ORG_NAME -> (metadata == null) ? null : metadata.getOrgName();
+			case POLICY_DOMAIN -> (policy == null) ? null : policy.getDomain();
+			case BEGIN -> (dateRange == null) ? null : dateRange.getBegin();
+			case END -> (dateRange == null) ? null : dateRange.getEnd();
+			case SOURCE_IP -> (row == null) ? null : row.getSourceIp();
+			case COUNT -> (row == null) ? null : row.getCount();
+			case DISPOSITION -> (policyEvaluated == null || policyEvaluated.getDisposition() == null)
+				? null : policyEvaluated.getDisposition().value();
+			case POLICY_DKIM -> (policyEvaluated == null || policyEvaluated.getDkim() == null)
+				? null : policyEvaluated.getDkim().value();
+			case POLICY_SPF -> (policyEvaluated == null || policyEvaluated.getSpf() == null)
+				? null : policyEvaluated.getSpf().value();
+			case OVERRIDE_REASONS -> (policyEvaluated == null) ? null : join(policyEvaluated.getReason(),
+				reason -> (reason.getType() == null) ? null : reason.getType().value());
+			case ENVELOPE_TO -> (identifiers == null) ? null : identifiers.getEnvelopeTo();
+			case ENVELOPE_FROM -> (identifiers == null) ? null : identifiers.getEnvelopeFrom();
+			case HEADER_FROM -> (identifiers == null) ? null : identifiers.getHeaderFrom();
+			case DKIM_DOMAINS -> join(dkims, DKIMAuthResultType::getDomain);
+			case DKIM_SELECTORS -> join(dkims, DKIMAuthResultType::getSelector);
+			case DKIM_RESULTS -> join(dkims, dkim -> (dkim.getResult() == null) ? null : dkim.getResult().value());
+			case SPF_DOMAINS -> join(spfs, SPFAuthResultType::getDomain);
+			case SPF_SCOPES -> join(spfs, spf -> (spf.getScope() == null) ? null : spf.getScope().value());
+			case SPF_RESULTS -> join(spfs, spf -> (spf.getResult() == null) ? null : spf.getResult().value());
+		};
+	}
+
+	/**
+	 * @return This column's value for a row of the table, as for
+	 *         extract(Feedback, RecordType), given the row's report.
+	 */
+	Object extract(RecordTable table, int report, int row) {
+		return switch (this) {
+			case REPORT_ID -> table.reportId(report);
+			case ORG_NAME -> table.orgName(report);
+			case POLICY_DOMAIN -> table.policyDomain(report);
+			case BEGIN -> boxed(table.begin(report));
+			case END -> boxed(table.end(report));
+			case SOURCE_IP -> table.sourceIp(row);
+			case COUNT -> boxed(table.count(row));
+			case DISPOSITION -> (table.disposition(row) == null) ? null : table.disposition(row).value();
+			case POLICY_DKIM -> (table.policyDkim(row) == null) ? null : table.policyDkim(row).value();
+			case POLICY_SPF -> (table.policySpf(row) == null) ? null : table.policySpf(row).value();
+			case OVERRIDE_REASONS -> join(table.numOverrideReasons(row), i ->
+				(table.overrideReasonType(row, i) == null) ? null : table.overrideReasonType(row, i).value());
+			case ENVELOPE_TO -> table.envelopeTo(row);
+			case ENVELOPE_FROM -> table.envelopeFrom(row);
+			case HEADER_FROM -> table.headerFrom(row);
+			case DKIM_DOMAINS -> join(table.numDkimResults(row), i -> table.dkimDomain(row, i));
+			case DKIM_SELECTORS -> join(table.numDkimResults(row), i -> table.dkimSelector(row, i));
+			case DKIM_RESULTS -> join(table.numDkimResults(row), i ->
+				(table.dkimResult(row, i) == null) ? null : table.dkimResult(row, i).value());
+			case SPF_DOMAINS -> join(table.numSpfResults(row), i -> table.spfDomain(row, i));
+			case SPF_SCOPES -> join(table.numSpfResults(row), i ->
+				(table.spfScope(row, i) == null) ? null : table.spfScope(row, i).value());
+			case SPF_RESULTS -> join(table.numSpfResults(row), i ->
+				(table.spfResult(row, i) == null) ? null : table.spfResult(row, i).value());
+		};
+	}
+
+	private static Long boxed(long value) {
+		return (value == RecordTable.NO_VALUE) ? null : Long.valueOf(value);
+	}
+
+	private static String join(int numItems, IntFunction<String> getter) {
+		return (numItems == 0) ? null : IntStream.range(0, numItems)
+			.mapToObj(getter)
+			.map(Util::nullToEmpty)
+			.collect(Collectors.joining("; "));
+	}
+
+	/**
+	 * @return The non-null items' values, joined with "; ", where an absent
+	 *         value leaves an empty place, or null if there are no items.
+	 */
+	private static <T> String join(List<T> items, Function<T, String> getter) {
+		var nonNullItems = items.stream()
+			.filter(Objects::nonNull)
+			.toList();
+		return nonNullItems.isEmpty() ? null : nonNullItems.stream()
+			.map(getter)
+			.map(Util::nullToEmpty)
+			.collect(Collectors.joining("; "));
+	}
+}
@@ -0,0 +1,615 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+
+import mobi.emmons.dmarc_stats.generated.DKIMResultType;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.PolicyOverrideType;
+import mobi.emmons.dmarc_stats.generated.SPFDomainScope;
+import mobi.emmons.dmarc_stats.generated.SPFResultType;
+
+/**
+ * A compact, read-only table of report records, held column by column in
+ * primitive arrays rather than as a graph of generated JAXB objects. Every
+ * string is dictionary-encoded to an int, so that an org name or domain that
+ * appears in thousands of records is held once; source IPs are held as their
+ * binary addresses (see IpDictionary); and enumerated values are held as
+ * bytes. A record costs a few dozen bytes, plus a few more per DKIM result,
+ * SPF result, and override reason.
+ *
+ * Reports are numbered from zero in the order they were added, and so are
+ * rows (one per record). The rows of a report are contiguous, from firstRow
+ * up to endRow, and each row's DKIM results, SPF results, and override
+ * reasons are numbered from zero within the row. Absent strings and enumerated
+ * values read as null, and absent numbers as NO_VALUE. Source IPs read in
+ * canonical form.
+ *
+ * Tables are filled by a Builder, which the StAX parser feeds directly (see
+ * ReportCodec.parseInto), so that no Feedback is created.
+ * Once built, a table may be read from several threads.
+ */
+public final class RecordTable {
+	/** The value of an absent begin, end, or count. */
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private static final int NULL_ID = -1;
+	private static final int MIN_CAPACITY = 16;
+
+	private static final DispositionType[] DISPOSITIONS = DispositionType.values();
+	private static final DMARCResultType[] DMARC_RESULTS = DMARCResultType.values();
+	private static final PolicyOverrideType[] OVERRIDE_TYPES = PolicyOverrideType.values();
+	private static final DKIMResultType[] DKIM_RESULTS = DKIMResultType.values();
+	private static final SPFDomainScope[] SPF_SCOPES = SPFDomainScope.values();
+	private static final SPFResultType[] SPF_RESULTS = SPFResultType.values();
+
+	private final StringDictionary strings = new StringDictionary();
+	private final IpDictionary ipAddresses = new IpDictionary();
+
+	// By report. Report r's rows are [firstRows[r], firstRows[r + 1]):
+	private int numReports = 0;
+	private int[] reportIds = new int[MIN_CAPACITY];
+	private int[] orgNames = new int[MIN_CAPACITY];
+	private int[] policyDomains = new int[MIN_CAPACITY];
+	private long[] begins = new long[MIN_CAPACITY];
+	private long[] ends = new long[MIN_CAPACITY];
+	private int[] firstRows = new int[MIN_CAPACITY + 1];
+
+	// By row. Row r's DKIM results are [dkimStarts[r], dkimStarts[r + 1]), and
+	// likewise for its SPF results and override reasons:
+	private int numRows = 0;
+	private int[] sourceIps = new int[MIN_CAPACITY];
+	private long[] counts = new long[MIN_CAPACITY];
+	private byte[] dispositions = new byte[MIN_CAPACITY];
+	private byte[] policyDkims = new byte[MIN_CAPACITY];
+	private byte[] policySpfs = new byte[MIN_CAPACITY];
+	private int[] envelopeTos = new int[MIN_CAPACITY];
+	private int[] envelopeFroms = new int[MIN_CAPACITY];
+	private int[] headerFroms = new int[MIN_CAPACITY];
+	private int[] dkimStarts = new int[MIN_CAPACITY + 1];
+	private int[] spfStarts = new int[MIN_CAPACITY + 1];
+	private int[] reasonStarts = new int[MIN_CAPACITY + 1];
+
+	private int numDkims = 0;
+	private int[] dkimDomains = new int[MIN_CAPACITY];
+	private int[] dkimSelectors = new int[MIN_CAPACITY];
+	private byte[] dkimResults = new byte[MIN_CAPACITY];
+
+	private int numSpfs = 0;
+	private int[] spfDomains = new int[MIN_CAPACITY];
+	private byte[] spfScopes = new byte[MIN_CAPACITY];
+	private byte[] spfResults = new byte[MIN_CAPACITY];
+
+	private int numReasons = 0;
+	private byte[] reasonTypes = new byte[MIN_CAPACITY];
+	private int[] reasonComments = new int[MIN_CAPACITY];
+
+	private RecordTable() {}
+
+	public int numReports() {
+		return numReports;
+	}
+
+	public int numRows() {
+		return numRows;
+	}
+
+	public int firstRow(int report) {
+		return firstRows[report];
+	}
+
+	public int endRow(int report) {
+		return firstRows[report + 1];
+	}
+
+	/**
+	 * @return The report to which the row belongs, found by binary search.
+	 */
+	public int reportOf(int row) {
+		if (row < 0 || row >= numRows) {
+			throw new IndexOutOfBoundsException(row);
+		}
+		int low = 0;
+		int high = numReports - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (firstRows[mid] <= row) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	public String reportId(int report) {
+		return string(reportIds[report]);
+	}
+
+	public String orgName(int report) {
+		return string(orgNames[report]);
+	}
+
+	public String policyDomain(int report) {
+		return string(policyDomains[report]);
+	}
+
+	public long begin(int report) {
+		return begins[report];
+	}
+
+	public long end(int report) {
+		return ends[report];
+	}
+
+	public String sourceIp(int row) {
+		return (sourceIps[row] == NULL_ID) ? null : ipAddresses.format(sourceIps[row]);
+	}
+
+	public long count(int row) {
+		return counts[row];
+	}
+
+	public DispositionType disposition(int row) {
+		return decode(DISPOSITIONS, dispositions[row]);
+	}
+
+	public DMARCResultType policyDkim(int row) {
+		return decode(DMARC_RESULTS, policyDkims[row]);
+	}
+
+	public DMARCResultType policySpf(int row) {
+		return decode(DMARC_RESULTS, policySpfs[row]);
+	}
+
+	public String envelopeTo(int row) {
+		return string(envelopeTos[row]);
+	}
+
+	public String envelopeFrom(int row) {
+		return string(envelopeFroms[row]);
+	}
+
+	public String headerFrom(int row) {
+		return string(headerFroms[row]);
+	}
+
+	public int numOverrideReasons(int row) {
+		return reasonStarts[row + 1] - reasonStarts[row];
+	}
+
+	public PolicyOverrideType overrideReasonType(int row, int index) {
+		return decode(OVERRIDE_TYPES, reasonTypes[reasonStarts[row] + index]);
+	}
+
+	public String overrideReasonComment(int row, int index) {
+		return string(reasonComments[reasonStarts[row] + index]);
+	}
+
+	public int numDkimResults(int row) {
+		return dkimStarts[row + 1] - dkimStarts[row];
+	}
+
+	public String dkimDomain(int row, int index) {
+		return string(dkimDomains[dkimStarts[row] + index]);
+	}
+
+	public String dkimSelector(int row, int index) {
+		return string(dkimSelectors[dkimStarts[row] + index]);
+	}
+
+	public DKIMResultType dkimResult(int row, int index) {
+		return decode(DKIM_RESULTS, dkimResults[dkimStarts[row] + index]);
+	}
+
+	public int numSpfResults(int row) {
+		return spfStarts[row + 1] - spfStarts[row];
+	}
+
+	public String spfDomain(int row, int index) {
+		return string(spfDomains[spfStarts[row] + index]);
+	}
+
+	public SPFDomainScope spfScope(int row, int index) {
+		return decode(SPF_SCOPES, spfScopes[spfStarts[row] + index]);
+	}
+
+	public SPFResultType spfResult(int row, int index) {
+		return decode(SPF_RESULTS, spfResults[spfStarts[row] + index]);
+	}
+
+	/**
+	 * @return The number of distinct strings held, across all columns.
+	 */
+	public int numDistinctStrings() {
+		return strings.size();
+	}
+
+	private String string(int id) {
+		return (id == NULL_ID) ? null : strings.valueOf(id);
+	}
+
+	private static <E extends Enum<E>> E decode(E[] values, byte code) {
+		return (code == 0) ? null : values[code - 1];
+	}
+
+	private static byte encode(Enum<?> value) {
+		return (value == null) ? 0 : (byte) (value.ordinal() + 1);
+	}
+
+	/**
+	 * Fills a RecordTable one report at a time. Each report is bracketed by
+	 * startReport and endReport, and each of its records by startRecord and
+	 * endRecord; within those brackets, the setters may be called in any
+	 * order, and those not called leave their values absent. A report that
+	 * fails to parse part way through is dropped with discardReport. This class
+	 * is not thread-safe.
+	 */
+	public static final class Builder {
+		private final DateWindow window;
+		private RecordTable table = new RecordTable();
+		private boolean isInReport = false;
+		private boolean isInRecord = false;
+		// The dictionary sizes when the report in progress was started, so that
+		// a dropped report takes the strings and IPs it added with it:
+		private int stringsMark = 0;
+		private int ipAddressesMark = 0;
+
+		public Builder() {
+			this(DateWindow.ALL);
+		}
+
+		/**
+		 * @param window The window that reports must fall within to be kept.
+		 */
+		public Builder(DateWindow window) {
+			this.window = window;
+		}
+
+		public int numReports() {
+			return requireTable().numReports;
+		}
+
+		public int numRows() {
+			return requireTable().numRows;
+		}
+
+		public void startReport() {
+			var t = requireTable();
+			if (isInReport) {
+				throw new IllegalStateException("The previous report was not ended");
+			}
+			int report = t.numReports;
+			if (report == t.reportIds.length) {
+				int capacity = 2 * t.reportIds.length;
+				t.reportIds = Arrays.copyOf(t.reportIds, capacity);
+				t.orgNames = Arrays.copyOf(t.orgNames, capacity);
+				t.policyDomains = Arrays.copyOf(t.policyDomains, capacity);
+				t.begins = Arrays.copyOf(t.begins, capacity);
+				t.ends = Arrays.copyOf(t.ends, capacity);
+				t.firstRows = Arrays.copyOf(t.firstRows, capacity + 1);
+			}
+			t.reportIds[report] = NULL_ID;
+			t.orgNames[report] = NULL_ID;
+			t.policyDomains[report] = NULL_ID;
+			t.begins[report] = NO_VALUE;
+			t.ends[report] = NO_VALUE;
+			stringsMark = t.strings.size();
+			ipAddressesMark = t.ipAddresses.size();
+			isInReport = true;
+		}
+
+		public void reportId(String reportId) {
+			requireReport().reportIds[table.numReports] = idOf(reportId);
+		}
+
+		public void orgName(String orgName) {
+			requireReport().orgNames[table.numReports] = idOf(orgName);
+		}
+
+		public void policyDomain(String policyDomain) {
+			requireReport().policyDomains[table.numReports] = idOf(policyDomain);
+		}
+
+		public void begin(long begin) {
+			requireReport().begins[table.numReports] = begin;
+		}
+
+		public void end(long end) {
+			requireReport().ends[table.numReports] = end;
+		}
+
+		/**
+		 * @return True if the report in progress falls within the window, as far
+		 *         as is known so far, so that a parser can skip the records of a
+		 *         report that will not be kept.
+		 */
+		public boolean isReportWanted() {
+			long begin = requireReport().begins[table.numReports];
+			return window.contains((begin == NO_VALUE) ? 0L : begin);
+		}
+
+		/**
+		 * Ends the report in progress, keeping it if it falls within the window.
+		 *
+		 * @return True if the report was kept.
+		 */
+		public boolean endReport() {
+			if (isInRecord) {
+				throw new IllegalStateException("The last record was not ended");
+			}
+			if (!isReportWanted()) {
+				discardReport();
+				return false;
+			}
+			var t = table;
+			t.firstRows[++t.numReports] = t.numRows;
+			isInReport = false;
+			return true;
+		}
+
+		/**
+		 * Drops the report in progress, if any, along with its records and the
+		 * strings and IPs that no kept report uses.
+		 */
+		public void discardReport() {
+			var t = requireTable();
+			if (isInReport) {
+				t.numRows = t.firstRows[t.numReports];
+				t.numDkims = t.dkimStarts[t.numRows];
+				t.numSpfs = t.spfStarts[t.numRows];
+				t.numReasons = t.reasonStarts[t.numRows];
+				t.strings.truncate(stringsMark);
+				t.ipAddresses.truncate(ipAddressesMark);
+			}
+			isInReport = false;
+			isInRecord = false;
+		}
+
+		public void startRecord() {
+			var t = requireReport();
+			if (isInRecord) {
+				throw new IllegalStateException("The previous record was not ended");
+			}
+			int row = t.numRows;
+			if (row == t.sourceIps.length) {
+				int capacity = 2 * t.sourceIps.length;
+				t.sourceIps = Arrays.copyOf(t.sourceIps, capacity);
+				t.counts = Arrays.copyOf(t.counts, capacity);
+				t.dispositions = Arrays.copyOf(t.dispositions, capacity);
+				t.policyDkims = Arrays.copyOf(t.policyDkims, capacity);
+				t.policySpfs = Arrays.copyOf(t.policySpfs, capacity);
+				t.envelopeTos = Arrays.copyOf(t.envelopeTos, capacity);
+				t.envelopeFroms = Arrays.copyOf(t.envelopeFroms, capacity);
+				t.headerFroms = Arrays.copyOf(t.headerFroms, capacity);
+				t.dkimStarts = Arrays.copyOf(t.dkimStarts, capacity + 1);
+				t.spfStarts = Arrays.copyOf(t.spfStarts, capacity + 1);
+				t.reasonStarts = Arrays.copyOf(t.reasonStarts, capacity + 1);
+			}
+			t.sourceIps[row] = NULL_ID;
+			t.counts[row] = NO_VALUE;
+			t.dispositions[row] = 0;
+			t.policyDkims[row] = 0;
+			t.policySpfs[row] = 0;
+			t.envelopeTos[row] = NULL_ID;
+			t.envelopeFroms[row] = NULL_ID;
+			t.headerFroms[row] = NULL_ID;
+			isInRecord = true;
+		}
+
+		public void sourceIp(String sourceIp) {
+			requireRecord().sourceIps[table.numRows] = (sourceIp == null)
+				? NULL_ID
+				: table.ipAddresses.idOf(sourceIp.strip());
+		}
+
+		public void count(long count) {
+			requireRecord().counts[table.numRows] = count;
+		}
+
+		public void disposition(DispositionType disposition) {
+			requireRecord().dispositions[table.numRows] = encode(disposition);
+		}
+
+		public void policyDkim(DMARCResultType result) {
+			requireRecord().policyDkims[table.numRows] = encode(result);
+		}
+
+		public void policySpf(DMARCResultType result) {
+			requireRecord().policySpfs[table.numRows] = encode(result);
+		}
+
+		public void envelopeTo(String envelopeTo) {
+			requireRecord().envelopeTos[table.numRows] = idOf(envelopeTo);
+		}
+
+		public void envelopeFrom(String envelopeFrom) {
+			requireRecord().envelopeFroms[table.numRows] = idOf(envelopeFrom);
+		}
+
+		public void headerFrom(String headerFrom) {
+			requireRecord().headerFroms[table.numRows] = idOf(headerFrom);
+		}
+
+		public void addOverrideReason(PolicyOverrideType type, String comment) {
+			var t = requireRecord();
+			if (t.numReasons == t.reasonTypes.length) {
+				t.reasonTypes = Arrays.copyOf(t.reasonTypes, 2 * t.numReasons);
+				t.reasonComments = Arrays.copyOf(t.reasonComments, 2 * t.numReasons);
+			}
+			t.reasonTypes[t.numReasons] = encode(type);
+			t.reasonComments[t.numReasons] = idOf(comment);
+			++t.numReasons;
+		}
+
+		public void addDkimResult(String domain, String selector, DKIMResultType result) {
+			var t = requireRecord();
+			if (t.numDkims == t.dkimDomains.length) {
+				t.dkimDomains = Arrays.copyOf(t.dkimDomains, 2 * t.numDkims);
+				t.dkimSelectors = Arrays.copyOf(t.dkimSelectors, 2 * t.numDkims);
+				t.dkimResults = Arrays.copyOf(t.dkimResults, 2 * t.numDkims);
+			}
+			t.dkimDomains[t.numDkims] = idOf(domain);
+			t.dkimSelectors[t.numDkims] = idOf(selector);
+			t.dkimResults[t.numDkims] = encode(result);
+			++t.numDkims;
+		}
+
+		public void addSpfResult(String domain, SPFDomainScope scope, SPFResultType result) {
+			var t = requireRecord();
+			if (t.numSpfs == t.spfDomains.length) {
+				t.spfDomains = Arrays.copyOf(t.spfDomains, 2 * t.numSpfs);
+				t.spfScopes = Arrays.copyOf(t.spfScopes, 2 * t.numSpfs);
+				t.spfResults = Arrays.copyOf(t.spfResults, 2 * t.numSpfs);
+			}
+			t.spfDomains[t.numSpfs] = idOf(domain);
+			t.spfScopes[t.numSpfs] = encode(scope);
+			t.spfResults[t.numSpfs] = encode(result);
+			++t.numSpfs;
+		}
+
+		public void endRecord() {
+			var t = requireRecord();
+			int end = ++t.numRows;
+			t.dkimStarts[end] = t.numDkims;
+			t.spfStarts[end] = t.numSpfs;
+			t.reasonStarts[end] = t.numReasons;
+			isInRecord = false;
+		}
+
+		/**
+		 * Adds a report that has already been parsed, such as one decoded from
+		 * the binary storage format or a snapshot.
+		 *
+		 * @return True if the report falls within the window and was kept.
+		 */
+		public boolean add(Feedback feedback) {
+			startReport();
+			var metadata = feedback.getReportMetadata();
+			if (metadata != null) {
+				reportId(metadata.getReportId());
+				orgName(metadata.getOrgName());
+				var dateRange = metadata.getDateRange();
+				if (dateRange != null && dateRange.getBegin() != null) {
+					begin(dateRange.getBegin());
+				}
+				if (dateRange != null && dateRange.getEnd() != null) {
+					end(dateRange.getEnd());
+				}
+			}
+			if (feedback.getPolicyPublished() != null) {
+				policyDomain(feedback.getPolicyPublished().getDomain());
+			}
+			if (!isReportWanted()) {
+				discardReport();
+				return false;
+			}
+			for (var record : feedback.getRecord()) {
+				startRecord();
+				var row = record.getRow();
+				if (row != null) {
+					sourceIp(row.getSourceIp());
+					if (row.getCount() != null) {
+						count(row.getCount());
+					}
+					var policyEvaluated = row.getPolicyEvaluated();
+					if (policyEvaluated != null) {
+						disposition(policyEvaluated.getDisposition());
+						policyDkim(policyEvaluated.getDkim());
+						policySpf(policyEvaluated.getSpf());
+						for (var reason : policyEvaluated.getReason()) {
+							if (reason != null) {
+								addOverrideReason(reason.getType(), reason.getComment());
+							}
+						}
+					}
+				}
+				var identifiers = record.getIdentifiers();
+				if (identifiers != null) {
+					envelopeTo(identifiers.getEnvelopeTo());
+					envelopeFrom(identifiers.getEnvelopeFrom());
+					headerFrom(identifiers.getHeaderFrom());
+				}
+				var authResults = record.getAuthResults();
+				if (authResults != null) {
+					for (var dkim : authResults.getDkim()) {
+						if (dkim != null) {
+							addDkimResult(dkim.getDomain(), dkim.getSelector(), dkim.getResult());
+						}
+					}
+					for (var spf : authResults.getSpf()) {
+						if (spf != null) {
+							addSpfResult(spf.getDomain(), spf.getScope(), spf.getResult());
+						}
+					}
+				}
+				endRecord();
+			}
+			return endReport();
+		}
+
+		/**
+		 * @return The table, with its arrays trimmed to size. The builder cannot
+		 *         be used afterwards.
+		 */
+		public RecordTable build() {
+			var t = requireTable();
+			if (isInReport) {
+				throw new IllegalStateException("The last report was not ended");
+			}
+			t.reportIds = Arrays.copyOf(t.reportIds, t.numReports);
+			t.orgNames = Arrays.copyOf(t.orgNames, t.numReports);
+			t.policyDomains = Arrays.copyOf(t.policyDomains, t.numReports);
+			t.begins = Arrays.copyOf(t.begins, t.numReports);
+			t.ends = Arrays.copyOf(t.ends, t.numReports);
+			t.firstRows = Arrays.copyOf(t.firstRows, t.numReports + 1);
+			t.sourceIps = Arrays.copyOf(t.sourceIps, t.numRows);
+			t.counts = Arrays.copyOf(t.counts, t.numRows);
+			t.dispositions = Arrays.copyOf(t.dispositions, t.numRows);
+			t.policyDkims = Arrays.copyOf(t.policyDkims, t.numRows);
+			t.policySpfs = Arrays.copyOf(t.policySpfs, t.numRows);
+			t.envelopeTos = Arrays.copyOf(t.envelopeTos, t.numRows);
+			t.envelopeFroms = Arrays.copyOf(t.envelopeFroms, t.numRows);
+			t.headerFroms = Arrays.copyOf(t.headerFroms, t.numRows);
+			t.dkimStarts = Arrays.copyOf(t.dkimStarts, t.numRows + 1);
+			t.spfStarts = Arrays.copyOf(t.spfStarts, t.numRows + 1);
+			t.reasonStarts = Arrays.copyOf(t.reasonStarts, t.numRows + 1);
+			t.dkimDomains = Arrays.copyOf(t.dkimDomains, t.numDkims);
+			t.dkimSelectors = Arrays.copyOf(t.dkimSelectors, t.numDkims);
+			t.dkimResults = Arrays.copyOf(t.dkimResults, t.numDkims);
+			t.spfDomains = Arrays.copyOf(t.spfDomains, t.numSpfs);
+			t.spfScopes = Arrays.copyOf(t.spfScopes, t.numSpfs);
+			t.spfResults = Arrays.copyOf(t.spfResults, t.numSpfs);
+			t.reasonTypes = Arrays.copyOf(t.reasonTypes, t.numReasons);
+			t.reasonComments = Arrays.copyOf(t.reasonComments, t.numReasons);
+			table = null;
+			return t;
+		}
+
+		private int idOf(String value) {
+			return (value == null) ? NULL_ID : table.strings.idOf(value);
+		}
+
+		private RecordTable requireTable() {
+			if (table == null) {
+				throw new IllegalStateException("The table has already been built");
+			}
+			return table;
+		}
+
+		private RecordTable requireReport() {
+			if (!isInReport) {
+				throw new IllegalStateException("No report is in progress");
+			}
+			return table;
+		}
+
+		private RecordTable requireRecord() {
+			if (!isInRecord) {
+				throw new IllegalStateException("No record is in progress");
+			}
+			return table;
+		}
+	}
+}
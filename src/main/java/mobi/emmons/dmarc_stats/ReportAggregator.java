@@ -0,0 +1,347 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.PolicyEvaluatedType;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.SPFAuthResultType;
+
+/**
+ * Groups report records by a chosen list of dimensions and sums, per group,
+ * the number of messages the records represent along with their disposition
+ * and DMARC DKIM/SPF tallies. Every record is weighted by its row count.
+ *
+ * Dimension values are dictionary-encoded to int IDs (source IPs by their
+ * binary address, source networks by the network's address or name, and
+ * source ASNs by their index in the AsnDatabase), so that adding a record
+ * looks up a tuple of ints in a primitive hash table and allocates nothing for
+ * groups already seen. Values are decoded and sorted only when the groups are
+ * read out. This class is not thread-safe.
+ */
+public final class ReportAggregator {
+	public enum Dimension {
+		ORG_NAME("Org. Name"),
+		POLICY_DOMAIN("Policy Domain"),
+		SOURCE_IP("Source IP"),
+		SOURCE_NETWORK("Source Network"),
+		SOURCE_ASN("Source ASN"),
+		HEADER_FROM("Header From"),
+		ENVELOPE_FROM("Envelope From"),
+		DKIM_DOMAIN("DKIM Domain"),
+		DKIM_SELECTOR("DKIM Selector"),
+		SPF_DOMAIN("SPF Domain");
+
+		private final String label;
+
+		Dimension(String label) {
+			this.label = label;
+		}
+
+		public String label() {
+			return label;
+		}
+	}
+
+	public enum Measure {
+		MESSAGES("Messages"),
+		DISPOSITION_NONE("Disposition None"),
+		DISPOSITION_QUARANTINE("Disposition Quarantine"),
+		DISPOSITION_REJECT("Disposition Reject"),
+		DKIM_PASS("DKIM Pass"),
+		DKIM_FAIL("DKIM Fail"),
+		SPF_PASS("SPF Pass"),
+		SPF_FAIL("SPF Fail");
+
+		private final String label;
+
+		Measure(String label) {
+			this.label = label;
+		}
+
+		public String label() {
+			return label;
+		}
+	}
+
+	@FunctionalInterface
+	public interface GroupConsumer {
+		/**
+		 * @param values   The group's dimension values, in the order the
+		 *                 aggregator's dimensions were given
+		 * @param measures The group's totals, indexed by Measure ordinal
+		 */
+		void accept(String[] values, long[] measures);
+	}
+
+	private static final Measure[] MEASURES = Measure.values();
+	private static final DKIMAuthResultType NO_DKIM_RESULT = new DKIMAuthResultType();
+	private static final SPFAuthResultType NO_SPF_RESULT = new SPFAuthResultType();
+
+	private final Dimension[] dimensions;
+	private final StringDictionary strings = new StringDictionary();
+	private final IpDictionary ipAddresses = new IpDictionary();
+	private final NetworkDictionary networks;
+	private final AsnDatabase asnDatabase;
+	private final GroupByAggregator groups;
+	private final int[] scratchKey;
+	private long numRecords = 0;
+
+	public ReportAggregator(List<Dimension> dimensions) {
+		this(dimensions, new NetworkGrouping());
+	}
+
+	/**
+	 * @param networkGrouping How the SOURCE_NETWORK dimension rolls source IPs
+	 *                        up into networks
+	 */
+	public ReportAggregator(List<Dimension> dimensions, NetworkGrouping networkGrouping) {
+		this(dimensions, networkGrouping, null);
+	}
+
+	/**
+	 * @param networkGrouping How the SOURCE_NETWORK dimension rolls source IPs
+	 *                        up into networks
+	 * @param asnDatabase     Where the SOURCE_ASN dimension looks up source IPs,
+	 *                        or null if that dimension is not aggregated
+	 */
+	public ReportAggregator(List<Dimension> dimensions, NetworkGrouping networkGrouping,
+			AsnDatabase asnDatabase) {
+		if (dimensions == null || dimensions.isEmpty()) {
+			throw new IllegalArgumentException("At least one dimension is required");
+		}
+		if (asnDatabase == null && dimensions.contains(Dimension.SOURCE_ASN)) {
+			throw new IllegalArgumentException("Dimension SOURCE_ASN requires an ASN database");
+		}
+		this.dimensions = dimensions.toArray(Dimension[]::new);
+		groups = new GroupByAggregator(this.dimensions.length, MEASURES.length);
+		scratchKey = new int[this.dimensions.length];
+		networks = new NetworkDictionary(Objects.requireNonNull(networkGrouping, "networkGrouping"));
+		this.asnDatabase = asnDatabase;
+	}
+
+	public List<Dimension> dimensions() {
+		return List.of(dimensions);
+	}
+
+	public int numGroups() {
+		return groups.numGroups();
+	}
+
+	public long numRecords() {
+		return numRecords;
+	}
+
+	public void add(Feedback feedback) {
+		for (var record : feedback.getRecord()) {
+			add(feedback, record);
+		}
+	}
+
+	public void add(Feedback feedback, RecordType record) {
+		for (int d = 0; d < dimensions.length; ++d) {
+			scratchKey[d] = idOf(dimensions[d], feedback, record);
+		}
+		int group = groups.groupFor(scratchKey);
+
+		var row = record.getRow();
+		long count = (row == null || row.getCount() == null) ? 1L : row.getCount();
+		groups.add(group, Measure.MESSAGES.ordinal(), count);
+		var policyEvaluated = (row == null) ? null : row.getPolicyEvaluated();
+		if (policyEvaluated != null) {
+			addPolicyEvaluated(group, policyEvaluated, count);
+		}
+		++numRecords;
+	}
+
+	/**
+	 * Adds every row of the table.
+	 */
+	public void add(RecordTable table) {
+		for (int report = 0; report < table.numReports(); ++report) {
+			for (int row = table.firstRow(report); row < table.endRow(report); ++row) {
+				add(table, report, row);
+			}
+		}
+	}
+
+	/**
+	 * Adds a row of the table, given the row's report.
+	 */
+	public void add(RecordTable table, int report, int row) {
+		for (int d = 0; d < dimensions.length; ++d) {
+			scratchKey[d] = idOf(dimensions[d], table, report, row);
+		}
+		int group = groups.groupFor(scratchKey);
+
+		long count = (table.count(row) == RecordTable.NO_VALUE) ? 1L : table.count(row);
+		groups.add(group, Measure.MESSAGES.ordinal(), count);
+		addPolicyEvaluated(group, table.disposition(row), table.policyDkim(row), table.policySpf(row), count);
+		++numRecords;
+	}
+
+	private void addPolicyEvaluated(int group, PolicyEvaluatedType policyEvaluated, long count) {
+		addPolicyEvaluated(group, policyEvaluated.getDisposition(), policyEvaluated.getDkim(),
+			policyEvaluated.getSpf(), count);
+	}
+
+	private void addPolicyEvaluated(int group, DispositionType disposition, DMARCResultType dkim,
+			DMARCResultType spf, long count) {
+		if (disposition != null) {
+			var measure = switch (disposition) {
+				case NONE -> Measure.DISPOSITION_NONE;
+				case QUARANTINE -> Measure.DISPOSITION_QUARANTINE;
+				case REJECT -> Measure.DISPOSITION_REJECT;
+			};
+			groups.add(group, measure.ordinal(), count);
+		}
+		if (dkim != null) {
+			groups.add(group, (dkim == DMARCResultType.PASS)
+				? Measure.DKIM_PASS.ordinal() : Measure.DKIM_FAIL.ordinal(), count);
+		}
+		if (spf != null) {
+			groups.add(group, (spf == DMARCResultType.PASS)
+				? Measure.SPF_PASS.ordinal() : Measure.SPF_FAIL.ordinal(), count);
+		}
+	}
+
+	// Missing report or record elements map to the ID of null (or of "" for
+	// source IPs), as in the RecordTable:
+	private int idOf(Dimension dimension, Feedback feedback, RecordType record) {
+		var metadata = feedback.getReportMetadata();
+		var policy = feedback.getPolicyPublished();
+		var row = record.getRow();
+		var sourceIp = (row == null) ? null : row.getSourceIp();
+		var identifiers = record.getIdentifiers();
+		return switch (dimension) {
+			case ORG_NAME -> strings.idOf((metadata == null) ? null : metadata.getOrgName());
+			case POLICY_DOMAIN -> strings.idOf((policy == null) ? null : policy.getDomain());
+			case SOURCE_IP -> ipAddresses.idOf(Util.nullToEmpty(sourceIp).strip());
+			case SOURCE_NETWORK -> networks.idOf(sourceIp);
+			case SOURCE_ASN -> asnIdOf(sourceIp);
+			case HEADER_FROM -> strings.idOf((identifiers == null) ? null : identifiers.getHeaderFrom());
+			case ENVELOPE_FROM -> strings.idOf((identifiers == null) ? null : identifiers.getEnvelopeFrom());
+			case DKIM_DOMAIN -> strings.idOf(firstDkim(record).getDomain());
+			case DKIM_SELECTOR -> strings.idOf(firstDkim(record).getSelector());
+			case SPF_DOMAIN -> strings.idOf(firstSpf(record).getDomain());
+		};
+	}
+
+	private int idOf(Dimension dimension, RecordTable table, int report, int row) {
+		return switch (dimension) {
+			case ORG_NAME -> strings.idOf(table.orgName(report));
+			case POLICY_DOMAIN -> strings.idOf(table.policyDomain(report));
+			case SOURCE_IP -> ipAddresses.idOf(Util.nullToEmpty(table.sourceIp(row)));
+			case SOURCE_NETWORK -> networks.idOf(table.sourceIp(row));
+			case SOURCE_ASN -> asnIdOf(table.sourceIp(row));
+			case HEADER_FROM -> strings.idOf(table.headerFrom(row));
+			case ENVELOPE_FROM -> strings.idOf(table.envelopeFrom(row));
+			case DKIM_DOMAIN -> strings.idOf((table.numDkimResults(row) == 0) ? null : table.dkimDomain(row, 0));
+			case DKIM_SELECTOR -> strings.idOf((table.numDkimResults(row) == 0)
+				? null : table.dkimSelector(row, 0));
+			case SPF_DOMAIN -> strings.idOf((table.numSpfResults(row) == 0) ? null : table.spfDomain(row, 0));
+		};
+	}
+
+	// Addresses in no known range share the ID after the last ASN index:
+	private int asnIdOf(String sourceIp) {
+		int asnIndex = asnDatabase.asnIndexOf(Util.nullToEmpty(sourceIp).strip());
+		return (asnIndex == AsnDatabase.NOT_FOUND) ? asnDatabase.numAsns() : asnIndex;
+	}
+
+	// Reports that carry several DKIM or SPF results are grouped by the first:
+	private static DKIMAuthResultType firstDkim(RecordType record) {
+		if (record.getAuthResults() == null) {
+			return NO_DKIM_RESULT;
+		}
+		var results = record.getAuthResults().getDkim();
+		return (results.isEmpty() || results.get(0) == null) ? NO_DKIM_RESULT : results.get(0);
+	}
+
+	private static SPFAuthResultType firstSpf(RecordType record) {
+		if (record.getAuthResults() == null) {
+			return NO_SPF_RESULT;
+		}
+		var results = record.getAuthResults().getSpf();
+		return (results.isEmpty() || results.get(0) == null) ? NO_SPF_RESULT : results.get(0);
+	}
+
+	/**
+	 * Passes each group to the consumer, sorted by the values of the given
+	 * dimensions in turn. Strings sort alphabetically and source IPs
+	 * numerically, IPv4 before IPv6. Source networks sort by name, then
+	 * numerically like source IPs. Source ASNs sort by AS number, with unknown
+	 * ones last. The arrays passed to the consumer are reused from one group to
+	 * the next.
+	 *
+	 * @param sortOrder Some or all of this aggregator's dimensions
+	 */
+	public void forEachGroup(List<Dimension> sortOrder, GroupConsumer consumer) {
+		var sortPositions = sortOrder.stream()
+			.mapToInt(this::positionOf)
+			.toArray();
+		var stringRanks = strings.ranks();
+		var ipRanks = ipAddresses.ranks();
+		var networkRanks = networks.ranks();
+		// ASN indices are already in order of AS number:
+		var asnRanks = (asnDatabase == null) ? null : new int[asnDatabase.numAsns() + 1];
+		if (asnRanks != null) {
+			Arrays.setAll(asnRanks, id -> id);
+		}
+		int[][] ranksByPosition = new int[dimensions.length][];
+		for (int d = 0; d < dimensions.length; ++d) {
+			ranksByPosition[d] = switch (dimensions[d]) {
+				case SOURCE_IP -> ipRanks;
+				case SOURCE_NETWORK -> networkRanks;
+				case SOURCE_ASN -> asnRanks;
+				default -> stringRanks;
+			};
+		}
+
+		var order = new Integer[groups.numGroups()];
+		Arrays.setAll(order, group -> group);
+		Arrays.sort(order, (lhs, rhs) -> {
+			for (int d : sortPositions) {
+				int result = Integer.compare(ranksByPosition[d][groups.key(lhs, d)],
+					ranksByPosition[d][groups.key(rhs, d)]);
+				if (result != 0) {
+					return result;
+				}
+			}
+			return 0;
+		});
+
+		var values = new String[dimensions.length];
+		var measures = new long[MEASURES.length];
+		for (int group : order) {
+			for (int d = 0; d < dimensions.length; ++d) {
+				int id = groups.key(group, d);
+				values[d] = switch (dimensions[d]) {
+					case SOURCE_IP -> ipAddresses.format(id);
+					case SOURCE_NETWORK -> networks.format(id);
+					case SOURCE_ASN -> (id == asnDatabase.numAsns()) ? "" : asnDatabase.label(id);
+					default -> strings.valueOf(id);
+				};
+			}
+			for (int m = 0; m < measures.length; ++m) {
+				measures[m] = groups.measure(group, m);
+			}
+			consumer.accept(values, measures);
+		}
+	}
+
+	private int positionOf(Dimension dimension) {
+		for (int d = 0; d < dimensions.length; ++d) {
+			if (dimensions[d] == dimension) {
+				return d;
+			}
+		}
+		throw new IllegalArgumentException(
+			"Dimension %1$s is not aggregated".formatted(dimension));
+	}
+}
@@ -0,0 +1,213 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.glassfish.jaxb.runtime.marshaller.NamespacePrefixMapper;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Parses and writes DMARC aggregate reports. Instances are thread-safe: the
+ * JAXBContext is created once per JVM, and each thread lazily gets its own
+ * DocumentBuilder, Unmarshaller, and Marshaller, none of which are themselves
+ * thread-safe.
+ */
+public class ReportCodec {
+	public static enum Backend {
+		/** Namespace-unaware DOM parse followed by JAXB unmarshalling. */
+		JAXB,
+		/** Single-pass StAX parse directly into the generated classes. */
+		STAX
+	}
+
+	private static final ReportCodec JAXB_CODEC = new ReportCodec(Backend.JAXB);
+	private static final ReportCodec STAX_CODEC = new ReportCodec(Backend.STAX);
+
+	private static final NamespacePrefixMapper PREFIX_MAPPER = new NamespacePrefixMapper() {
+		@Override
+		public String getPreferredPrefix(String nsUri, String suggestion, boolean requirePrefix) {
+			return DmarcReportStore.DMARC_NS.equals(nsUri)
+				? "dmarc"
+				: null;
+		}
+	};
+
+	private static final ThreadLocal<DocumentBuilder> DOC_BUILDER = ThreadLocal.withInitial(
+		ReportCodec::newDocumentBuilder);
+	private static final ThreadLocal<Unmarshaller> UNMARSHALLER = ThreadLocal.withInitial(
+		ReportCodec::newUnmarshaller);
+	private static final ThreadLocal<Marshaller> MARSHALLER = ThreadLocal.withInitial(
+		ReportCodec::newMarshaller);
+
+	private final Backend backend;
+
+	private ReportCodec(Backend backend) {
+		this.backend = Objects.requireNonNull(backend, "backend");
+	}
+
+	public static ReportCodec forBackend(Backend backend) {
+		return switch (Objects.requireNonNull(backend, "backend")) {
+			case JAXB -> JAXB_CODEC;
+			case STAX -> STAX_CODEC;
+		};
+	}
+
+	public Backend getBackend() {
+		return backend;
+	}
+
+	public Feedback parse(Reader reportRdr) {
+		if (backend == Backend.STAX) {
+			try (var span = PipelineMetrics.start(PipelineMetrics.Stage.STAX_PARSE)) {
+				return span.counted(StaxReportParser.parse(reportRdr));
+			}
+		}
+		return parseWithJaxb(new InputSource(reportRdr));
+	}
+
+	public Feedback parse(InputStream reportStream) {
+		if (backend == Backend.STAX) {
+			try (var span = PipelineMetrics.start(PipelineMetrics.Stage.STAX_PARSE)) {
+				return span.counted(StaxReportParser.parse(reportStream));
+			}
+		}
+		return parseWithJaxb(new InputSource(reportStream));
+	}
+
+	/**
+	 * Parses a report unless the header filter rejects it. With the STAX
+	 * backend, a rejected report's records are never read; JAXB reads the whole
+	 * report before the filter is applied.
+	 *
+	 * @param headerFilter Decides, from the report's metadata and published
+	 *                     policy, whether the report is wanted.
+	 * @return The report, or null if the filter rejected it.
+	 */
+	public Feedback parse(InputStream reportStream, Predicate<Feedback> headerFilter) {
+		Objects.requireNonNull(headerFilter, "headerFilter");
+		if (backend == Backend.STAX) {
+			try (var span = PipelineMetrics.start(PipelineMetrics.Stage.STAX_PARSE)) {
+				return span.counted(StaxReportParser.parse(reportStream, headerFilter));
+			}
+		}
+		var feedback = parseWithJaxb(new InputSource(reportStream));
+		return headerFilter.test(feedback) ? feedback : null;
+	}
+
+	/**
+	 * Parses a report into a RecordTable. With the STAX backend, the parser
+	 * feeds the builder directly, so that no Feedback is created; JAXB parses
+	 * the whole report first and then copies it in. A report that fails to
+	 * parse leaves the builder as it was.
+	 *
+	 * @return True if the report falls within the builder's window and was
+	 *         kept.
+	 */
+	public boolean parseInto(InputStream reportStream, RecordTable.Builder builder) {
+		Objects.requireNonNull(builder, "builder");
+		if (backend == Backend.STAX) {
+			try (var span = PipelineMetrics.start(PipelineMetrics.Stage.STAX_PARSE)) {
+				int numRowsBefore = builder.numRows();
+				boolean isKept = StaxReportParser.parseInto(reportStream, builder);
+				if (isKept) {
+					span.counted(builder.numRows() - numRowsBefore);
+				}
+				return isKept;
+			}
+		}
+		return builder.add(parseWithJaxb(new InputSource(reportStream)));
+	}
+
+	@SuppressWarnings("try")
+	private static Feedback parseWithJaxb(InputSource reportSrc) {
+		var docBuilder = DOC_BUILDER.get();
+		try {
+			Document doc;
+			try (var span = PipelineMetrics.start(PipelineMetrics.Stage.DOM_PARSE)) {
+				doc = docBuilder.parse(reportSrc);
+			}
+
+			// Because the DOM is not namespace-aware, reports with and without the
+			// DMARC namespace both unmarshal correctly, so translateNamespaces is
+			// not needed here.
+
+			try (var span = PipelineMetrics.start(PipelineMetrics.Stage.JAXB_UNMARSHAL)) {
+				return span.counted(UNMARSHALLER.get().unmarshal(doc, Feedback.class).getValue());
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		} catch (SAXException | JAXBException ex) {
+			throw new IllegalStateException(ex);
+		} finally {
+			docBuilder.reset();
+		}
+	}
+
+	public void write(Feedback feedback, File filePath) {
+		try {
+			MARSHALLER.get().marshal(feedback, filePath);
+		} catch (JAXBException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static DocumentBuilder newDocumentBuilder() {
+		try {
+			var dbf = DocumentBuilderFactory.newInstance();
+			dbf.setNamespaceAware(false);
+			return dbf.newDocumentBuilder();
+		} catch (ParserConfigurationException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static Unmarshaller newUnmarshaller() {
+		try {
+			return JaxbContextHolder.CONTEXT.createUnmarshaller();
+		} catch (JAXBException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static Marshaller newMarshaller() {
+		try {
+			var marshaller = JaxbContextHolder.CONTEXT.createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+			marshaller.setProperty("org.glassfish.jaxb.namespacePrefixMapper", PREFIX_MAPPER);
+			return marshaller;
+		} catch (JAXBException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	// Initialization-on-demand holder, so that the (expensive) context is built
+	// only when first needed, and only once:
+	private static class JaxbContextHolder {
+		static final JAXBContext CONTEXT = newContext();
+
+		private static JAXBContext newContext() {
+			try {
+				return JAXBContext.newInstance(Feedback.class);
+			} catch (JAXBException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package mobi.emmons.dmarc_stats;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public record ReportLoadResult(long numLoaded, List<Failure> failures) {
+	public record Failure(Path path, Exception cause) {}
+
+	public ReportLoadResult {
+		failures = List.copyOf(failures);
+	}
+
+	public void printFailures() {
+		if (!failures.isEmpty()) {
+			System.out.format("Failed to load %1$d stored reports:%n", failures.size());
+			for (var failure : failures) {
+				System.out.format("   %1$s: %2$s%n", failure.path(), failure.cause());
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A report attachment, held in its compressed form. The attachment is read
+ * from the message while its folder is open, but it is decompressed only when
+ * openXml is called, and then as a stream, so that the XML text of a report is
+ * never held in memory as a whole. Attachments larger than the spill threshold
+ * are kept in a temporary file rather than on the heap.
+ *
+ * Closing the payload deletes its temporary file, if any.
+ */
+public final class ReportPayload implements Closeable {
+	public static enum Compression { GZIP, ZIP }
+
+	public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+	// Zip's end of central directory record and central directory file header:
+	private static final int ZIP_EOCD_SIGNATURE = 0x06054b50;
+	private static final int ZIP_EOCD_SIZE = 22;
+	private static final int ZIP_CEN_SIGNATURE = 0x02014b50;
+	private static final int ZIP_CEN_SIZE = 46;
+
+	private final Compression compression;
+	private final byte[] compressedBytes;	// null if spilled
+	private final Path spillFile;			// null if held in memory
+	private final long compressedSize;
+	private final int numXmlFiles;
+
+	private ReportPayload(Compression compression, byte[] compressedBytes, Path spillFile,
+			long compressedSize) throws IOException {
+		this.compression = Objects.requireNonNull(compression, "compression");
+		this.compressedBytes = compressedBytes;
+		this.spillFile = spillFile;
+		this.compressedSize = compressedSize;
+		numXmlFiles = (compression == Compression.ZIP) ? countZipXmlFiles() : 1;
+	}
+
+	public static ReportPayload capture(InputStream attachment, Compression compression) throws IOException {
+		return capture(attachment, compression, DEFAULT_SPILL_THRESHOLD);
+	}
+
+	/**
+	 * Reads the whole (still compressed) attachment. For a zip attachment, the
+	 * entry names are checked as well, so that a malformed attachment is found
+	 * while the message is being downloaded rather than when it is parsed.
+	 */
+	public static ReportPayload capture(InputStream attachment, Compression compression,
+			int spillThreshold) throws IOException {
+		var head = attachment.readNBytes(spillThreshold);
+		int nextByte = (head.length < spillThreshold) ? -1 : attachment.read();
+		if (nextByte == -1) {
+			return new ReportPayload(compression, head, null, head.length);
+		}
+
+		var spillFile = Files.createTempFile("dmarc-payload-", ".bin");
+		spillFile.toFile().deleteOnExit();	// In case the payload is never closed
+		try {
+			long size;
+			try (var os = Files.newOutputStream(spillFile)) {
+				os.write(head);
+				os.write(nextByte);
+				size = head.length + 1 + attachment.transferTo(os);
+			}
+			return new ReportPayload(compression, null, spillFile, size);
+		} catch (IOException | RuntimeException ex) {
+			Files.deleteIfExists(spillFile);
+			throw ex;
+		}
+	}
+
+	public Compression compression() {
+		return compression;
+	}
+
+	public long compressedSize() {
+		return compressedSize;
+	}
+
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * @return The number of XML files in the attachment. A gzip attachment
+	 *         always holds exactly one.
+	 */
+	public int numXmlFiles() {
+		return numXmlFiles;
+	}
+
+	/**
+	 * @return A 64-bit hash of the attachment as received (see DedupIndex).
+	 */
+	public long contentHash() throws IOException {
+		try (var is = openCompressed()) {
+			return DedupIndex.contentHash(is);
+		}
+	}
+
+	/**
+	 * @return A stream of the decompressed XML of the report. The caller must
+	 *         close it.
+	 */
+	public InputStream openXml() throws IOException {
+		var rawStream = openCompressed();
+		try {
+			return PipelineMetrics.meterDecompression(rawStream, compressed -> switch (compression) {
+				case GZIP -> new GZIPInputStream(compressed, 64 * 1024);
+				case ZIP -> openZipXmlEntry(compressed);
+			});
+		} catch (IOException | RuntimeException ex) {
+			rawStream.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Decompresses the whole report into a string. This defeats the purpose of
+	 * the streaming payload, and so is intended only for diagnostics and tests.
+	 */
+	public String readXml() {
+		try (var is = openXml()) {
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Writes the report, gzip-compressed, to os. A gzip attachment is copied
+	 * byte for byte, with no decompression at all; the XML entry of a zip
+	 * attachment is recompressed.
+	 */
+	public void writeGzipTo(OutputStream os) throws IOException {
+		if (compression == Compression.GZIP) {
+			if (compressedBytes != null) {
+				os.write(compressedBytes);
+			} else {
+				Files.copy(spillFile, os);
+			}
+		} else {
+			try (var is = openXml()) {
+				// Finish rather than close the gzip stream, leaving os open:
+				var gzos = new GZIPOutputStream(os, 64 * 1024);
+				is.transferTo(gzos);
+				gzos.finish();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (spillFile != null) {
+			Files.deleteIfExists(spillFile);
+		}
+	}
+
+	private InputStream openCompressed() throws IOException {
+		return (compressedBytes != null)
+			? new ByteArrayInputStream(compressedBytes)
+			: new BufferedInputStream(Files.newInputStream(spillFile));
+	}
+
+	private static InputStream openZipXmlEntry(InputStream rawStream) throws IOException {
+		var zis = new ZipInputStream(rawStream, StandardCharsets.UTF_8);
+		for (;;) {
+			var zipEntry = zis.getNextEntry();
+			if (zipEntry == null) {
+				throw new UnexpectedMessageFormatException(
+					"No XML file found in DMARC email zip attachment");
+			} else if ("xml".equals(MsgInfo.getFileExt(zipEntry.getName()))) {
+				return zis;
+			}
+		}
+	}
+
+	/**
+	 * Counts the entries listed in the zip's central directory, which lies at
+	 * the end of the attachment, without inflating any of them. (Zip64
+	 * archives are not supported, but no report needs one.)
+	 */
+	private int countZipXmlFiles() throws IOException {
+		try {
+			int tailLength = (int) Math.min(compressedSize, ZIP_EOCD_SIZE + 0xffff);
+			var tail = readCompressed(compressedSize - tailLength, tailLength);
+			int eocd = tailLength - ZIP_EOCD_SIZE;
+			while (eocd >= 0 && tail.getInt(eocd) != ZIP_EOCD_SIGNATURE) {
+				--eocd;
+			}
+			if (eocd < 0) {
+				throw new UnexpectedMessageFormatException("Zip attachment has no central directory");
+			}
+			int numEntries = Short.toUnsignedInt(tail.getShort(eocd + 10));
+			long dirSize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+			long dirOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+			if (dirOffset + dirSize > compressedSize) {
+				throw new UnexpectedMessageFormatException("Zip attachment's central directory is truncated");
+			}
+			var dir = readCompressed(dirOffset, (int) dirSize);
+			int pos = 0;
+			for (int i = 0; i < numEntries; ++i) {
+				if (dir.getInt(pos) != ZIP_CEN_SIGNATURE) {
+					throw new UnexpectedMessageFormatException("Zip attachment's central directory is malformed");
+				}
+				int nameLength = Short.toUnsignedInt(dir.getShort(pos + 28));
+				int extraLength = Short.toUnsignedInt(dir.getShort(pos + 30));
+				int commentLength = Short.toUnsignedInt(dir.getShort(pos + 32));
+				var nameBytes = new byte[nameLength];
+				dir.get(pos + ZIP_CEN_SIZE, nameBytes);
+				String zipEntryExt = MsgInfo.getFileExt(new String(nameBytes, StandardCharsets.UTF_8));
+				if (!"xml".equals(zipEntryExt)) {
+					throw new UnexpectedMessageFormatException(
+						"Message content has file extension %1$s", zipEntryExt);
+				}
+				pos += ZIP_CEN_SIZE + nameLength + extraLength + commentLength;
+			}
+			return numEntries;
+		} catch (IndexOutOfBoundsException ex) {
+			throw new UnexpectedMessageFormatException(ex, "Zip attachment is malformed");
+		}
+	}
+
+	/**
+	 * @return length bytes of the attachment, starting at offset, in little
+	 *         endian order as zip headers are.
+	 */
+	private ByteBuffer readCompressed(long offset, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		if (compressedBytes != null) {
+			buffer.put(0, compressedBytes, (int) offset, length);
+		} else {
+			try (var channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) {
+						throw new EOFException("Unexpected end of spilled attachment " + spillFile);
+					}
+				}
+			}
+			buffer.clear();
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,207 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+
+/**
+ * The filters and grouping of a query over the report store. Filters are split
+ * by what they need to see: the date window, policy domains, and org names are
+ * report-level and are checked against shard manifests and report headers, so
+ * that non-matching reports are skipped before their records are read. Source
+ * networks, dispositions, and DMARC DKIM/SPF results are checked per record.
+ * An empty filter matches everything, and domain and org names match without
+ * regard to case.
+ */
+public final class ReportQuery {
+	private DateWindow window = DateWindow.ALL;
+	private Set<String> policyDomains = Set.of();
+	private Set<String> orgNames = Set.of();
+	private List<Cidr> sourceNetworks = List.of();
+	private Set<DispositionType> dispositions = EnumSet.noneOf(DispositionType.class);
+	private Set<DMARCResultType> dkimResults = EnumSet.noneOf(DMARCResultType.class);
+	private Set<DMARCResultType> spfResults = EnumSet.noneOf(DMARCResultType.class);
+	private List<Dimension> groupBy = List.of();
+	private NetworkGrouping networkGrouping = new NetworkGrouping();
+	private AsnDatabase asnDatabase = null;
+
+	/**
+	 * Selects the reports whose date range begins within the window.
+	 *
+	 * @param dateWindow The window.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withDateWindow(DateWindow dateWindow) {
+		window = Objects.requireNonNull(dateWindow, "dateWindow");
+		return this;
+	}
+
+	/**
+	 * @param domains The policy domains to select, or none for all.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withPolicyDomains(Collection<String> domains) {
+		policyDomains = normalize(domains);
+		return this;
+	}
+
+	/**
+	 * @param names The reporting organizations to select, or none for all.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withOrgNames(Collection<String> names) {
+		orgNames = normalize(names);
+		return this;
+	}
+
+	/**
+	 * @param networks Select records whose source IP is in any of these, or in
+	 *                 any network if none are given.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withSourceNetworks(Collection<Cidr> networks) {
+		sourceNetworks = List.copyOf(networks);
+		return this;
+	}
+
+	/**
+	 * @param values The dispositions to select, or none for all.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withDispositions(Collection<DispositionType> values) {
+		dispositions = values.isEmpty() ? EnumSet.noneOf(DispositionType.class) : EnumSet.copyOf(values);
+		return this;
+	}
+
+	/**
+	 * @param values The DMARC DKIM results to select, or none for all.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withDkimResults(Collection<DMARCResultType> values) {
+		dkimResults = values.isEmpty() ? EnumSet.noneOf(DMARCResultType.class) : EnumSet.copyOf(values);
+		return this;
+	}
+
+	/**
+	 * @param values The DMARC SPF results to select, or none for all.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withSpfResults(Collection<DMARCResultType> values) {
+		spfResults = values.isEmpty() ? EnumSet.noneOf(DMARCResultType.class) : EnumSet.copyOf(values);
+		return this;
+	}
+
+	/**
+	 * @param dimensions Group the selected records by these dimensions and total
+	 *                   their measures, or list every record if none are given.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withGroupBy(List<Dimension> dimensions) {
+		groupBy = List.copyOf(dimensions);
+		return this;
+	}
+
+	/**
+	 * @param grouping How the SOURCE_NETWORK group-by dimension rolls source IPs
+	 *                 up into networks.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withNetworkGrouping(NetworkGrouping grouping) {
+		networkGrouping = Objects.requireNonNull(grouping, "grouping");
+		return this;
+	}
+
+	/**
+	 * @param database Labels each listed record's source IP with its ASN and
+	 *                 organization, and serves the SOURCE_ASN group-by
+	 *                 dimension, or null for neither.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public ReportQuery withAsnDatabase(AsnDatabase database) {
+		asnDatabase = database;
+		return this;
+	}
+
+	public DateWindow dateWindow() {
+		return window;
+	}
+
+	public List<Dimension> groupBy() {
+		return groupBy;
+	}
+
+	public NetworkGrouping networkGrouping() {
+		return networkGrouping;
+	}
+
+	public AsnDatabase asnDatabase() {
+		return asnDatabase;
+	}
+
+	/**
+	 * @return True if a report with this metadata may match, judged without
+	 *         reading its records.
+	 */
+	public boolean matchesReport(String orgName, String policyDomain, long beginEpochSeconds) {
+		return window.contains(beginEpochSeconds)
+			&& matches(orgNames, orgName)
+			&& matches(policyDomains, policyDomain);
+	}
+
+	public boolean matchesReport(Feedback feedback) {
+		var metadata = feedback.getReportMetadata();
+		var policy = feedback.getPolicyPublished();
+		return matchesReport((metadata == null) ? null : metadata.getOrgName(),
+			(policy == null) ? null : policy.getDomain(), DateWindow.beginOf(feedback));
+	}
+
+	public boolean matchesRecord(RecordType record) {
+		var row = record.getRow();
+		var policyEvaluated = (row == null) ? null : row.getPolicyEvaluated();
+		if (!dispositions.isEmpty() && (policyEvaluated == null
+				|| !dispositions.contains(policyEvaluated.getDisposition()))) {
+			return false;
+		}
+		if (!dkimResults.isEmpty() && (policyEvaluated == null
+				|| !dkimResults.contains(policyEvaluated.getDkim()))) {
+			return false;
+		}
+		if (!spfResults.isEmpty() && (policyEvaluated == null
+				|| !spfResults.contains(policyEvaluated.getSpf()))) {
+			return false;
+		}
+		return sourceNetworks.isEmpty() || matchesSourceIp((row == null) ? null : row.getSourceIp());
+	}
+
+	private boolean matchesSourceIp(String sourceIp) {
+		var ipAddress = Util.nullToEmpty(sourceIp);
+		long ipv4 = IpAddresses.parseIpv4(ipAddress);
+		if (ipv4 >= 0) {
+			return sourceNetworks.stream().anyMatch(network -> network.containsIpv4((int) ipv4));
+		}
+		var bits = new long[2];
+		return IpAddresses.parseIpv6(ipAddress, bits)
+			&& sourceNetworks.stream().anyMatch(network -> network.containsIpv6(bits[0], bits[1]));
+	}
+
+	private static Set<String> normalize(Collection<String> values) {
+		return values.stream()
+			.map(value -> value.strip().toLowerCase(Locale.ROOT))
+			.collect(Collectors.toUnmodifiableSet());
+	}
+
+	private static boolean matches(Set<String> allowed, String value) {
+		return allowed.isEmpty()
+			|| (value != null && allowed.contains(value.strip().toLowerCase(Locale.ROOT)));
+	}
+}
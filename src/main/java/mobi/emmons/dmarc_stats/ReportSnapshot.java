@@ -0,0 +1,199 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * A persistent cache of parsed reports, stored next to the reports themselves.
+ * Each entry holds the FeedbackBinaryCodec encoding of one report file and is
+ * keyed by that file's path relative to the storage directory, its size, and
+ * its modification time. An entry is used only if all three still match.
+ *
+ * The snapshot is memory-mapped when opened, and entries are decoded on demand
+ * directly from the mapping, so that a warm start reads each report's data once
+ * without any XML parsing. Mappings are limited to 2 GB; a larger snapshot is
+ * ignored (and rebuilt) rather than mapped.
+ *
+ * Since a mapped file cannot be replaced on every platform, a rebuilt snapshot
+ * is committed under the name report-snapshot.bin.new, and takes the place of
+ * the old one the next time the snapshot is opened, before it is mapped.
+ */
+public class ReportSnapshot {
+	public static final String FILE_NAME = "report-snapshot.bin";
+
+	private static final int MAGIC = 0x444d5253;	// "DMRS"
+	private static final int FORMAT_VERSION = 1;
+	private static final String PENDING_SUFFIX = ".new";
+
+	private static record Entry(long size, long lastModified, int offset, int length) {}
+
+	private final ByteBuffer mapping;
+	private final Map<String, Entry> entries;
+
+	private ReportSnapshot(ByteBuffer mapping, Map<String, Entry> entries) {
+		this.mapping = mapping;
+		this.entries = entries;
+	}
+
+	public static ReportSnapshot empty() {
+		return new ReportSnapshot(ByteBuffer.allocate(0), Map.of());
+	}
+
+	/**
+	 * Maps and indexes the given snapshot file. A missing, oversized, corrupt, or
+	 * out-of-date snapshot yields an empty snapshot, so that every report is
+	 * re-parsed and the snapshot is rebuilt.
+	 */
+	public static ReportSnapshot open(Path snapshotFile) throws IOException {
+		var pendingFile = pendingFile(snapshotFile);
+		if (Files.isRegularFile(pendingFile)) {
+			try {
+				Files.move(pendingFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException ex) {
+				// The old snapshot is still mapped (by an earlier load in this
+				// process), so map the new one where it is:
+				snapshotFile = pendingFile;
+			}
+		}
+		if (!Files.isRegularFile(snapshotFile)) {
+			return empty();
+		}
+		ByteBuffer mapping;
+		try (var channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				System.out.format("Ignoring report snapshot larger than 2 GB: %1$s%n", snapshotFile);
+				return empty();
+			}
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			return new ReportSnapshot(mapping, readIndex(mapping.duplicate()));
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			System.out.format("Ignoring corrupt report snapshot %1$s%n", snapshotFile);
+			return empty();
+		}
+	}
+
+	private static Map<String, Entry> readIndex(ByteBuffer buffer) {
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+			return Map.of();
+		}
+		Map<String, Entry> entries = new HashMap<>();
+		while (buffer.hasRemaining()) {
+			var key = FeedbackBinaryCodec.readString(buffer);
+			long size = buffer.getLong();
+			long lastModified = buffer.getLong();
+			int length = buffer.getInt();
+			int offset = buffer.position();
+			buffer.position(offset + length);
+			entries.put(key, new Entry(size, lastModified, offset, length));
+		}
+		return entries;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return True if the snapshot has an up-to-date entry for the given key.
+	 */
+	public boolean contains(String key, long size, long lastModified) {
+		var entry = entries.get(key);
+		return entry != null && entry.size() == size && entry.lastModified() == lastModified;
+	}
+
+	/**
+	 * @return The encoded report for the given key, or null if the snapshot has
+	 *         no entry for the key or the entry is stale. The returned buffer is
+	 *         independent of any other, and so is safe to use from any thread.
+	 */
+	public ByteBuffer get(String key, long size, long lastModified) {
+		if (!contains(key, size, lastModified)) {
+			return null;
+		}
+		var entry = entries.get(key);
+		return mapping.slice(entry.offset(), entry.length());
+	}
+
+	public static Feedback decode(ByteBuffer encodedReport) {
+		return FeedbackBinaryCodec.decode(encodedReport.duplicate());
+	}
+
+	public static Writer newWriter(Path snapshotFile) throws IOException {
+		return new Writer(snapshotFile);
+	}
+
+	private static Path pendingFile(Path snapshotFile) {
+		return snapshotFile.resolveSibling(snapshotFile.getFileName() + PENDING_SUFFIX);
+	}
+
+	/**
+	 * Writes a new snapshot to a temporary file, which becomes the pending
+	 * snapshot (to replace the old one when the snapshot is next opened) only
+	 * when commit is called. Closing a writer without committing it leaves the
+	 * old snapshot in place.
+	 */
+	public static class Writer implements Closeable {
+		private final Path pendingFile;
+		private final Path tempFile;
+		private final DataOutputStream out;
+		private byte[] copyBuffer = new byte[0];
+		private boolean committed = false;
+
+		private Writer(Path snapshotFile) throws IOException {
+			pendingFile = pendingFile(snapshotFile);
+			tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+		}
+
+		public void add(String key, long size, long lastModified, ByteBuffer encodedReport) throws IOException {
+			var bytes = encodedReport.duplicate();
+			int length = bytes.remaining();
+			FeedbackBinaryCodec.writeString(key, out);
+			out.writeLong(size);
+			out.writeLong(lastModified);
+			out.writeInt(length);
+			if (bytes.hasArray()) {
+				out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+			} else {
+				if (copyBuffer.length < length) {
+					copyBuffer = new byte[Math.max(length, 2 * copyBuffer.length)];
+				}
+				bytes.get(copyBuffer, 0, length);
+				out.write(copyBuffer, 0, length);
+			}
+		}
+
+		public void commit() throws IOException {
+			out.close();
+			Files.move(tempFile, pendingFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				Files.deleteIfExists(tempFile);
+			}
+		}
+	}
+}
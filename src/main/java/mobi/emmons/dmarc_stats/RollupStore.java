@@ -0,0 +1,326 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+
+/**
+ * Pre-aggregated message counts by day and by week, kept in the directory
+ * "rollups" of the store and updated as reports are ingested. Each rollup row
+ * totals the messages (weighted by row count) and records that share a period,
+ * policy domain, reporting org, source IP, disposition, DMARC DKIM and SPF
+ * results, and header_from, so that summaries over long periods read a few
+ * thousand rows instead of parsing every stored report.
+ *
+ * A report's period is the UTC day, or the ISO week starting on Monday, on
+ * which its date range begins. The store remembers which reports it has
+ * counted, so adding a report again changes nothing. This class is not
+ * thread-safe.
+ */
+public final class RollupStore {
+	public static final String DIR_NAME = "rollups";
+
+	public static enum Granularity {
+		DAY("day.csv"),
+		WEEK("week.csv");
+
+		private final String fileName;
+
+		Granularity(String fileName) {
+			this.fileName = fileName;
+		}
+
+		public LocalDate periodStart(LocalDate day) {
+			return (this == DAY) ? day : day.with(DayOfWeek.MONDAY);
+		}
+
+		public LocalDate periodEnd(LocalDate periodStart) {
+			return (this == DAY) ? periodStart.plusDays(1) : periodStart.plusWeeks(1);
+		}
+	}
+
+	public record Row(LocalDate periodStart, String policyDomain, String orgName, String sourceIp,
+		String disposition, String dkim, String spf, String headerFrom, long numMessages,
+		long numRecords) {}
+
+	private static final String REPORTS_FILE_NAME = "reports.bin";
+	private static final String[] HEADER = { "Period Start", "Policy Domain", "Org. Name",
+		"Source IP", "Disposition", "DKIM", "SPF", "Header From", "Messages", "Records" };
+	private static final CSVFormat WRITE_FORMAT = CSVFormat.Builder.create()
+		.setHeader(HEADER)
+		.setRecordSeparator("\n")
+		.build();
+	private static final CSVFormat READ_FORMAT = CSVFormat.Builder.create()
+		.setHeader()
+		.setSkipHeaderRecord(true)
+		.build();
+
+	// Key positions within a cube's group key:
+	private static final int PERIOD = 0;
+	private static final int POLICY_DOMAIN = 1;
+	private static final int ORG_NAME = 2;
+	private static final int SOURCE_IP = 3;
+	private static final int DISPOSITION = 4;
+	private static final int DKIM = 5;
+	private static final int SPF = 6;
+	private static final int HEADER_FROM = 7;
+	private static final int ARITY = 8;
+
+	// Measure positions:
+	private static final int MESSAGES = 0;
+	private static final int RECORDS = 1;
+
+	private final Path rollupDir;
+	private final StringDictionary strings = new StringDictionary();
+	private final IpDictionary ipAddresses = new IpDictionary();
+	private final GroupByAggregator[] cubes = new GroupByAggregator[Granularity.values().length];
+	private final LongHashSet reportKeySet = new LongHashSet();
+	private long[] reportKeys = new long[64];
+	private int numReports = 0;
+	private boolean isModified = false;
+	private final int[] scratchKey = new int[ARITY];
+
+	private RollupStore(Path rollupDir) {
+		this.rollupDir = rollupDir;
+		for (var granularity : Granularity.values()) {
+			cubes[granularity.ordinal()] = new GroupByAggregator(ARITY, 2);
+		}
+	}
+
+	/**
+	 * @return The rollups under storageDir. If they are missing or unreadable,
+	 *         they are empty, and isEmpty() says so, so that the caller can
+	 *         rebuild them from the stored reports.
+	 */
+	public static RollupStore open(Path storageDir) throws IOException {
+		var rollupDir = storageDir.resolve(DIR_NAME);
+		var store = new RollupStore(rollupDir);
+		if (!Files.isRegularFile(rollupDir.resolve(REPORTS_FILE_NAME))) {
+			return store;
+		}
+		try {
+			store.readReportKeys();
+			for (var granularity : Granularity.values()) {
+				store.readCube(granularity);
+			}
+			return store;
+		} catch (IllegalArgumentException | IllegalStateException | DateTimeParseException
+				| EOFException | NoSuchFileException | UncheckedIOException ex) {
+			// Includes NumberFormatException, and the CSV parser's own errors (which
+			// it wraps in UncheckedIOException). Rollups can always be rebuilt:
+			System.out.format("Ignoring malformed rollups in %1$s%n", rollupDir);
+			return new RollupStore(rollupDir);
+		}
+	}
+
+	/**
+	 * @return True if no report has been counted.
+	 */
+	public boolean isEmpty() {
+		return numReports == 0;
+	}
+
+	public int numReports() {
+		return numReports;
+	}
+
+	public int numRows(Granularity granularity) {
+		return cubes[granularity.ordinal()].numGroups();
+	}
+
+	/**
+	 * Counts the report's records, unless the report was counted before. A
+	 * report without report_metadata cannot be told apart from others, and so
+	 * is not counted.
+	 *
+	 * @return True if the report was counted.
+	 */
+	public boolean add(Feedback feedback) {
+		var metadata = feedback.getReportMetadata();
+		if (metadata == null) {
+			return false;
+		}
+		long reportKey = DedupIndex.reportKey(metadata.getOrgName(), metadata.getReportId());
+		if (!reportKeySet.add(reportKey)) {
+			return false;
+		}
+		if (numReports == reportKeys.length) {
+			reportKeys = Arrays.copyOf(reportKeys, 2 * numReports);
+		}
+		reportKeys[numReports++] = reportKey;
+		isModified = true;
+
+		var day = LocalDate.ofInstant(Instant.ofEpochSecond(DateWindow.beginOf(feedback)), ZoneOffset.UTC);
+		var policy = feedback.getPolicyPublished();
+		scratchKey[POLICY_DOMAIN] = strings.idOf((policy == null) ? null : policy.getDomain());
+		scratchKey[ORG_NAME] = strings.idOf(metadata.getOrgName());
+		for (var record : feedback.getRecord()) {
+			setRecordKey(record);
+			long count = (record.getRow() == null || record.getRow().getCount() == null)
+				? 1L : record.getRow().getCount();
+			for (var granularity : Granularity.values()) {
+				scratchKey[PERIOD] = (int) granularity.periodStart(day).toEpochDay();
+				var cube = cubes[granularity.ordinal()];
+				int group = cube.groupFor(scratchKey);
+				cube.add(group, MESSAGES, count);
+				cube.add(group, RECORDS, 1);
+			}
+		}
+		return true;
+	}
+
+	private void setRecordKey(RecordType record) {
+		var row = record.getRow();
+		var policyEvaluated = (row == null) ? null : row.getPolicyEvaluated();
+		scratchKey[SOURCE_IP] = ipAddresses.idOf(
+			(row == null) ? "" : Util.nullToEmpty(row.getSourceIp()).strip());
+		scratchKey[DISPOSITION] = strings.idOf((policyEvaluated == null || policyEvaluated.getDisposition() == null)
+			? null : policyEvaluated.getDisposition().value());
+		scratchKey[DKIM] = strings.idOf((policyEvaluated == null || policyEvaluated.getDkim() == null)
+			? null : policyEvaluated.getDkim().value());
+		scratchKey[SPF] = strings.idOf((policyEvaluated == null || policyEvaluated.getSpf() == null)
+			? null : policyEvaluated.getSpf().value());
+		scratchKey[HEADER_FROM] = strings.idOf(
+			(record.getIdentifiers() == null) ? null : record.getIdentifiers().getHeaderFrom());
+	}
+
+	/**
+	 * @return The rows whose periods overlap the window, sorted by period and
+	 *         then by the remaining columns in order.
+	 */
+	public List<Row> rows(Granularity granularity, DateWindow window) {
+		var cube = cubes[granularity.ordinal()];
+		var stringRanks = strings.ranks();
+		var ipRanks = ipAddresses.ranks();
+		List<Integer> groups = new ArrayList<>();
+		for (int group = 0; group < cube.numGroups(); ++group) {
+			var periodStart = LocalDate.ofEpochDay(cube.key(group, PERIOD));
+			if (window.overlapsDays(periodStart, granularity.periodEnd(periodStart))) {
+				groups.add(group);
+			}
+		}
+		groups.sort((lhs, rhs) -> {
+			int result = Integer.compare(cube.key(lhs, PERIOD), cube.key(rhs, PERIOD));
+			for (int d = POLICY_DOMAIN; result == 0 && d < ARITY; ++d) {
+				var ranks = (d == SOURCE_IP) ? ipRanks : stringRanks;
+				result = Integer.compare(ranks[cube.key(lhs, d)], ranks[cube.key(rhs, d)]);
+			}
+			return result;
+		});
+		return groups.stream()
+			.map(group -> new Row(LocalDate.ofEpochDay(cube.key(group, PERIOD)),
+				strings.valueOf(cube.key(group, POLICY_DOMAIN)),
+				strings.valueOf(cube.key(group, ORG_NAME)),
+				ipAddresses.format(cube.key(group, SOURCE_IP)),
+				strings.valueOf(cube.key(group, DISPOSITION)),
+				strings.valueOf(cube.key(group, DKIM)),
+				strings.valueOf(cube.key(group, SPF)),
+				strings.valueOf(cube.key(group, HEADER_FROM)),
+				cube.measure(group, MESSAGES),
+				cube.measure(group, RECORDS)))
+			.toList();
+	}
+
+	/**
+	 * Writes the rollups, if anything was added since they were opened. Each
+	 * file is replaced atomically, and the list of counted reports last, so an
+	 * interrupted save leaves rollups that are at worst rebuilt.
+	 */
+	public void save() throws IOException {
+		if (!isModified) {
+			return;
+		}
+		Files.createDirectories(rollupDir);
+		// Until the list of counted reports is replaced, it must not be trusted:
+		Files.deleteIfExists(rollupDir.resolve(REPORTS_FILE_NAME));
+		for (var granularity : Granularity.values()) {
+			writeCube(granularity);
+		}
+		var reportsFile = rollupDir.resolve(REPORTS_FILE_NAME);
+		var tempFile = rollupDir.resolve(REPORTS_FILE_NAME + ".tmp");
+		try (var os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			os.writeInt(numReports);
+			for (int i = 0; i < numReports; ++i) {
+				os.writeLong(reportKeys[i]);
+			}
+		}
+		Files.move(tempFile, reportsFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		isModified = false;
+	}
+
+	private void readReportKeys() throws IOException {
+		var reportsFile = rollupDir.resolve(REPORTS_FILE_NAME);
+		try (var is = new DataInputStream(new BufferedInputStream(Files.newInputStream(reportsFile)))) {
+			int count = is.readInt();
+			if (count < 0) {
+				throw new IllegalStateException("Negative report count");
+			}
+			reportKeys = new long[Math.max(64, count)];
+			for (int i = 0; i < count; ++i) {
+				long reportKey = is.readLong();
+				if (reportKeySet.add(reportKey)) {
+					reportKeys[numReports++] = reportKey;
+				}
+			}
+		}
+	}
+
+	private void readCube(Granularity granularity) throws IOException {
+		var cube = cubes[granularity.ordinal()];
+		var key = new int[ARITY];
+		var cubeFile = rollupDir.resolve(granularity.fileName);
+		try (var parser = CSVParser.parse(cubeFile, StandardCharsets.UTF_8, READ_FORMAT)) {
+			for (var record : parser) {
+				key[PERIOD] = (int) LocalDate.parse(record.get(HEADER[0])).toEpochDay();
+				key[POLICY_DOMAIN] = strings.idOf(record.get(HEADER[1]));
+				key[ORG_NAME] = strings.idOf(record.get(HEADER[2]));
+				key[SOURCE_IP] = ipAddresses.idOf(record.get(HEADER[3]));
+				key[DISPOSITION] = strings.idOf(record.get(HEADER[4]));
+				key[DKIM] = strings.idOf(record.get(HEADER[5]));
+				key[SPF] = strings.idOf(record.get(HEADER[6]));
+				key[HEADER_FROM] = strings.idOf(record.get(HEADER[7]));
+				int group = cube.groupFor(key);
+				cube.add(group, MESSAGES, Long.parseLong(record.get(HEADER[8])));
+				cube.add(group, RECORDS, Long.parseLong(record.get(HEADER[9])));
+			}
+		}
+	}
+
+	private void writeCube(Granularity granularity) throws IOException {
+		var cubeFile = rollupDir.resolve(granularity.fileName);
+		var tempFile = rollupDir.resolve(granularity.fileName + ".tmp");
+		try (var printer = WRITE_FORMAT.print(tempFile, StandardCharsets.UTF_8)) {
+			for (var row : rows(granularity, DateWindow.ALL)) {
+				printer.printRecord(row.periodStart(), row.policyDomain(), row.orgName(),
+					row.sourceIp(), row.disposition(), row.dkim(), row.spf(), row.headerFrom(),
+					row.numMessages(), row.numRecords());
+			}
+		}
+		Files.move(tempFile, cubeFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+}
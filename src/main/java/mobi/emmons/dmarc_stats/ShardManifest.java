@@ -0,0 +1,153 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * The index of one shard of a date-sharded store. A shard is the directory
+ * yyyy/MM/dd holding the reports whose date range begins on that day (UTC), and
+ * its manifest lists each report file with enough metadata to decide whether
+ * the file is worth parsing.
+ */
+final class ShardManifest {
+	static final String FILE_NAME = "manifest.csv";
+
+	private static final String[] HEADER = { "File", "Report ID", "Org. Name", "Policy Domain",
+		"Begin", "End", "Num Records" };
+	private static final CSVFormat WRITE_FORMAT = CSVFormat.Builder.create()
+		.setHeader(HEADER)
+		.setRecordSeparator("\n")
+		.build();
+	private static final CSVFormat READ_FORMAT = CSVFormat.Builder.create()
+		.setHeader()
+		.setSkipHeaderRecord(true)
+		.build();
+
+	record Entry(String fileName, String reportId, String orgName, String policyDomain,
+		long begin, long end, int numRecords) {
+
+		static Entry of(String fileName, Feedback feedback) {
+			var metadata = feedback.getReportMetadata();
+			var dateRange = metadata.getDateRange();
+			var policy = feedback.getPolicyPublished();
+			return new Entry(fileName, metadata.getReportId(), metadata.getOrgName(),
+				(policy == null) ? null : policy.getDomain(),
+				DateWindow.beginOf(feedback),
+				(dateRange == null || dateRange.getEnd() == null) ? 0L : dateRange.getEnd().longValue(),
+				feedback.getRecord().size());
+		}
+	}
+
+	private final Path shardDir;
+	private final SortedMap<String, Entry> entries;
+	private final boolean exists;
+
+	private ShardManifest(Path shardDir, SortedMap<String, Entry> entries, boolean exists) {
+		this.shardDir = shardDir;
+		this.entries = entries;
+		this.exists = exists;
+	}
+
+	/**
+	 * @return The shard's manifest, or an empty one if the shard has none yet.
+	 */
+	static ShardManifest load(Path shardDir) throws IOException {
+		var manifestFile = shardDir.resolve(FILE_NAME);
+		SortedMap<String, Entry> entries = new TreeMap<>();
+		if (!Files.isRegularFile(manifestFile)) {
+			return new ShardManifest(shardDir, entries, false);
+		}
+		try (var parser = CSVParser.parse(manifestFile, StandardCharsets.UTF_8, READ_FORMAT)) {
+			for (var record : parser) {
+				var entry = new Entry(record.get(HEADER[0]), record.get(HEADER[1]), record.get(HEADER[2]),
+					record.get(HEADER[3]), Long.parseLong(record.get(HEADER[4])),
+					Long.parseLong(record.get(HEADER[5])), Integer.parseInt(record.get(HEADER[6])));
+				entries.put(entry.fileName(), entry);
+			}
+		} catch (IllegalArgumentException | IllegalStateException | UncheckedIOException ex) {
+			// Includes NumberFormatException, and the parser's own errors. The manifest is only a guide, so the
+			// shard is treated as unindexed:
+			System.out.format("Ignoring malformed shard manifest %1$s%n", manifestFile);
+			return new ShardManifest(shardDir, new TreeMap<>(), false);
+		}
+		return new ShardManifest(shardDir, entries, true);
+	}
+
+	boolean exists() {
+		return exists;
+	}
+
+	Collection<Entry> entries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	Entry get(String fileName) {
+		return entries.get(fileName);
+	}
+
+	ShardManifest put(Entry entry) {
+		entries.put(entry.fileName(), entry);
+		return this;
+	}
+
+	void save() throws IOException {
+		var manifestFile = shardDir.resolve(FILE_NAME);
+		var tempFile = shardDir.resolve(FILE_NAME + ".tmp");
+		try (var printer = WRITE_FORMAT.print(tempFile, StandardCharsets.UTF_8)) {
+			for (var entry : entries.values()) {
+				printer.printRecord(entry.fileName(), entry.reportId(), entry.orgName(),
+					entry.policyDomain(), entry.begin(), entry.end(), entry.numRecords());
+			}
+		}
+		Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return The directory yyyy/MM/dd under storageRoot for the UTC day on which
+	 *         the given instant falls.
+	 */
+	static Path shardDir(Path storageRoot, long beginEpochSeconds) {
+		var day = LocalDate.ofInstant(Instant.ofEpochSecond(beginEpochSeconds), ZoneOffset.UTC);
+		return storageRoot
+			.resolve("%1$04d".formatted(day.getYear()))
+			.resolve("%1$02d".formatted(day.getMonthValue()))
+			.resolve("%1$02d".formatted(day.getDayOfMonth()));
+	}
+
+	/**
+	 * @return The day of the shard at yyyy/MM/dd under storageRoot, or null if
+	 *         the directory is not a shard.
+	 */
+	static LocalDate shardDay(Path storageRoot, Path dir) {
+		var relPath = storageRoot.relativize(dir);
+		if (relPath.getNameCount() != 3) {
+			return null;
+		}
+		try {
+			return LocalDate.of(
+				Integer.parseInt(relPath.getName(0).toString()),
+				Integer.parseInt(relPath.getName(1).toString()),
+				Integer.parseInt(relPath.getName(2).toString()));
+		} catch (NumberFormatException | DateTimeException ex) {
+			return null;
+		}
+	}
+}
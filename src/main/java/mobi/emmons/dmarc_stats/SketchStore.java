@@ -0,0 +1,288 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Sketches of each policy domain's and each reporting org's senders, kept in
+ * the file "sender-sketches.bin" of the store and updated as reports are
+ * ingested: a HyperLogLog of the distinct source IPs, and a SpaceSaving sketch
+ * of the source IPs that sent the most messages (weighted by row count). Each
+ * domain or org costs a fixed amount of memory however many IPs send for it,
+ * unlike exact per-domain sets of IPs.
+ *
+ * Like RollupStore, the store remembers which reports it has counted, so
+ * adding a report again changes nothing, and a missing or unreadable file
+ * leaves the store empty, to be rebuilt from the stored reports. This class is
+ * not thread-safe.
+ */
+public final class SketchStore {
+	public static final String FILE_NAME = "sender-sketches.bin";
+	public static final int DEFAULT_TOP_SENDERS = 50;
+
+	private static final int MAGIC = 0x444d534b;	// "DMSK"
+	private static final int FORMAT_VERSION = 1;
+
+	// Enough counters that the top DEFAULT_TOP_SENDERS are rarely in doubt:
+	private static final int TOP_SENDERS_CAPACITY = 4 * DEFAULT_TOP_SENDERS;
+
+	/**
+	 * The sketches of one policy domain's or reporting org's senders.
+	 */
+	public static final class SenderSketch {
+		private final HyperLogLog distinctIps;
+		private final SpaceSaving topSenders;
+
+		public SenderSketch() {
+			this(new HyperLogLog(), new SpaceSaving(TOP_SENDERS_CAPACITY));
+		}
+
+		private SenderSketch(HyperLogLog distinctIps, SpaceSaving topSenders) {
+			this.distinctIps = distinctIps;
+			this.topSenders = topSenders;
+		}
+
+		void add(String sourceIp, long ipHash, long numMessages) {
+			distinctIps.addHash(ipHash);
+			topSenders.add(sourceIp, numMessages);
+		}
+
+		/**
+		 * @return The estimated number of distinct source IPs.
+		 */
+		public long numDistinctSourceIps() {
+			return distinctIps.estimate();
+		}
+
+		public long numMessages() {
+			return topSenders.totalWeight();
+		}
+
+		/**
+		 * @return Up to k source IPs with the most messages, in descending order.
+		 */
+		public List<SpaceSaving.Entry> topSenders(int k) {
+			return topSenders.top(k);
+		}
+
+		public void merge(SenderSketch other) {
+			distinctIps.merge(other.distinctIps);
+			topSenders.merge(other.topSenders);
+		}
+
+		void writeTo(DataOutput out) throws IOException {
+			distinctIps.writeTo(out);
+			topSenders.writeTo(out);
+		}
+
+		static SenderSketch readFrom(ByteBuffer buffer) {
+			return new SenderSketch(HyperLogLog.readFrom(buffer), SpaceSaving.readFrom(buffer));
+		}
+	}
+
+	private final Path sketchFile;
+	private final SortedMap<String, SenderSketch> byPolicyDomain = new TreeMap<>();
+	private final SortedMap<String, SenderSketch> byOrgName = new TreeMap<>();
+	private final LongHashSet reportKeySet = new LongHashSet();
+	private long[] reportKeys = new long[64];
+	private int numReports = 0;
+	private boolean isModified = false;
+	private final long[] ipv6Scratch = new long[2];
+
+	private SketchStore(Path sketchFile) {
+		this.sketchFile = sketchFile;
+	}
+
+	/**
+	 * @return The sketches under storageDir. If they are missing or unreadable,
+	 *         they are empty, and isEmpty() says so, so that the caller can
+	 *         rebuild them from the stored reports.
+	 */
+	public static SketchStore open(Path storageDir) throws IOException {
+		var sketchFile = storageDir.resolve(FILE_NAME);
+		var store = new SketchStore(sketchFile);
+		if (!Files.isRegularFile(sketchFile)) {
+			return store;
+		}
+		try {
+			store.read(ByteBuffer.wrap(Files.readAllBytes(sketchFile)));
+			return store;
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			System.out.format("Ignoring malformed sender sketches in %1$s%n", sketchFile);
+			return new SketchStore(sketchFile);
+		}
+	}
+
+	/**
+	 * @return True if no report has been counted.
+	 */
+	public boolean isEmpty() {
+		return numReports == 0;
+	}
+
+	public int numReports() {
+		return numReports;
+	}
+
+	/**
+	 * Adds the report's source IPs to the sketches of its policy domain and
+	 * reporting org, unless the report was counted before. A report without
+	 * report_metadata cannot be told apart from others, and so is not counted.
+	 *
+	 * @return True if the report was counted.
+	 */
+	public boolean add(Feedback feedback) {
+		var metadata = feedback.getReportMetadata();
+		if (metadata == null) {
+			return false;
+		}
+		long reportKey = DedupIndex.reportKey(metadata.getOrgName(), metadata.getReportId());
+		if (!reportKeySet.add(reportKey)) {
+			return false;
+		}
+		if (numReports == reportKeys.length) {
+			reportKeys = Arrays.copyOf(reportKeys, 2 * numReports);
+		}
+		reportKeys[numReports++] = reportKey;
+		isModified = true;
+
+		var policy = feedback.getPolicyPublished();
+		var domainSketch = byPolicyDomain.computeIfAbsent(
+			(policy == null) ? "" : Util.nullToEmpty(policy.getDomain()), key -> new SenderSketch());
+		var orgSketch = byOrgName.computeIfAbsent(Util.nullToEmpty(metadata.getOrgName()),
+			key -> new SenderSketch());
+		for (var record : feedback.getRecord()) {
+			var row = record.getRow();
+			var sourceIp = (row == null) ? "" : Util.nullToEmpty(row.getSourceIp()).strip();
+			long ipHash;
+			long ipv4 = IpAddresses.parseIpv4(sourceIp);
+			if (ipv4 != -1L) {
+				sourceIp = IpAddresses.formatIpv4((int) ipv4);
+				ipHash = HyperLogLog.mix64(ipv4);
+			} else if (IpAddresses.parseIpv6(sourceIp, ipv6Scratch)) {
+				sourceIp = IpAddresses.formatIpv6(ipv6Scratch[0], ipv6Scratch[1]);
+				ipHash = HyperLogLog.mix64(HyperLogLog.mix64(ipv6Scratch[0]) ^ ipv6Scratch[1]);
+			} else {
+				ipHash = HyperLogLog.mix64(sourceIp.hashCode() ^ 0x5bd1e9955bd1e995L);
+			}
+			long count = (row == null || row.getCount() == null) ? 1L : row.getCount();
+			domainSketch.add(sourceIp, ipHash, count);
+			orgSketch.add(sourceIp, ipHash, count);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The sketches of each policy domain, by domain.
+	 */
+	public SortedMap<String, SenderSketch> byPolicyDomain() {
+		return Collections.unmodifiableSortedMap(byPolicyDomain);
+	}
+
+	/**
+	 * @return The sketches of each reporting org, by org name.
+	 */
+	public SortedMap<String, SenderSketch> byOrgName() {
+		return Collections.unmodifiableSortedMap(byOrgName);
+	}
+
+	/**
+	 * Adds the other store's sketches to this one's, such as those of another
+	 * mail folder. The two should have counted different reports: a report
+	 * counted by both would add its messages to the top senders twice (though
+	 * its source IPs to the distinct counts only once).
+	 */
+	public void merge(SketchStore other) {
+		mergeSketches(byPolicyDomain, other.byPolicyDomain);
+		mergeSketches(byOrgName, other.byOrgName);
+		for (int i = 0; i < other.numReports; ++i) {
+			if (reportKeySet.add(other.reportKeys[i])) {
+				if (numReports == reportKeys.length) {
+					reportKeys = Arrays.copyOf(reportKeys, 2 * numReports);
+				}
+				reportKeys[numReports++] = other.reportKeys[i];
+			}
+		}
+		isModified = true;
+	}
+
+	private static void mergeSketches(Map<String, SenderSketch> target, Map<String, SenderSketch> source) {
+		for (var entry : source.entrySet()) {
+			target.computeIfAbsent(entry.getKey(), key -> new SenderSketch()).merge(entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes the sketches, if anything was added since they were opened,
+	 * replacing the file atomically.
+	 */
+	public void save() throws IOException {
+		if (!isModified) {
+			return;
+		}
+		var tempFile = sketchFile.resolveSibling(sketchFile.getFileName() + ".tmp");
+		try (var os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			os.writeInt(MAGIC);
+			os.writeInt(FORMAT_VERSION);
+			os.writeInt(numReports);
+			for (int i = 0; i < numReports; ++i) {
+				os.writeLong(reportKeys[i]);
+			}
+			writeSketches(byPolicyDomain, os);
+			writeSketches(byOrgName, os);
+		}
+		Files.move(tempFile, sketchFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		isModified = false;
+	}
+
+	private static void writeSketches(Map<String, SenderSketch> sketches, DataOutput out) throws IOException {
+		out.writeInt(sketches.size());
+		for (var entry : sketches.entrySet()) {
+			FeedbackBinaryCodec.writeString(entry.getKey(), out);
+			entry.getValue().writeTo(out);
+		}
+	}
+
+	private void read(ByteBuffer buffer) {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+			throw new IllegalArgumentException("Not a sketch file of the current version");
+		}
+		int count = buffer.getInt();
+		if (count < 0) {
+			throw new IllegalArgumentException("Negative report count");
+		}
+		reportKeys = new long[Math.max(64, count)];
+		for (int i = 0; i < count; ++i) {
+			long reportKey = buffer.getLong();
+			if (reportKeySet.add(reportKey)) {
+				reportKeys[numReports++] = reportKey;
+			}
+		}
+		readSketches(buffer, byPolicyDomain);
+		readSketches(buffer, byOrgName);
+	}
+
+	private static void readSketches(ByteBuffer buffer, Map<String, SenderSketch> sketches) {
+		int count = buffer.getInt();
+		for (int i = 0; i < count; ++i) {
+			var key = FeedbackBinaryCodec.readString(buffer);
+			sketches.put(Util.nullToEmpty(key), SenderSketch.readFrom(buffer));
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Space-Saving sketch of the items with the greatest total weight (here,
+ * the source IPs sending the most messages), in a fixed number of counters.
+ * While there are free counters, every item is counted exactly. After that, a
+ * new item takes over the counter with the least count, and inherits that
+ * count as its possible overcount (its error). Each entry's count is thus an
+ * upper bound on the item's true weight, and count - error a lower bound. Any
+ * item whose true weight exceeds the total weight divided by the capacity is
+ * guaranteed to hold a counter, so a capacity of a few times the number of
+ * items wanted makes the top of the list reliable.
+ *
+ * The counters are kept in a min-heap, so that adding costs O(log capacity).
+ * Sketches merge as in Agarwal et al., "Mergeable Summaries". This class is
+ * not thread-safe.
+ */
+public final class SpaceSaving {
+	public static record Entry(String item, long count, long error) {}
+
+	private static final Comparator<Entry> BY_COUNT_DESCENDING = Comparator
+		.comparingLong(Entry::count).reversed()
+		.thenComparing(Entry::item);
+
+	private final int capacity;
+	private final String[] items;
+	private final long[] counts;
+	private final long[] errors;
+	private final Map<String, Integer> heapIndexes;
+	private int size = 0;
+	private long totalWeight = 0;
+
+	public SpaceSaving(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		items = new String[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		heapIndexes = new HashMap<>(2 * capacity);
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The total weight of all items added, counted or not.
+	 */
+	public long totalWeight() {
+		return totalWeight;
+	}
+
+	public void add(String item, long weight) {
+		if (weight < 0) {
+			throw new IllegalArgumentException("weight must not be negative");
+		}
+		totalWeight += weight;
+		var index = heapIndexes.get(item);
+		if (index != null) {
+			counts[index] += weight;
+			siftDown(index);
+		} else if (size < capacity) {
+			set(size, item, weight, 0);
+			siftUp(size++);
+		} else {
+			heapIndexes.remove(items[0]);
+			set(0, item, counts[0] + weight, counts[0]);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * @return The least count that an item absent from the sketch may have,
+	 *         which is zero until every counter is taken.
+	 */
+	public long minCount() {
+		return (size < capacity) ? 0 : counts[0];
+	}
+
+	/**
+	 * @return Up to k entries, in descending order of count.
+	 */
+	public List<Entry> top(int k) {
+		return entries().stream()
+			.sorted(BY_COUNT_DESCENDING)
+			.limit(k)
+			.toList();
+	}
+
+	private List<Entry> entries() {
+		List<Entry> entries = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			entries.add(new Entry(items[i], counts[i], errors[i]));
+		}
+		return entries;
+	}
+
+	/**
+	 * Adds the other sketch's items to this one. An item that one sketch lacks
+	 * is taken to have that sketch's minCount, both as count and as error, and
+	 * the greatest counts of the union are kept.
+	 */
+	public void merge(SpaceSaving other) {
+		Map<String, Entry> merged = new HashMap<>();
+		long thisMin = minCount();
+		long otherMin = other.minCount();
+		for (var entry : entries()) {
+			merged.put(entry.item(), new Entry(entry.item(), entry.count() + otherMin,
+				entry.error() + otherMin));
+		}
+		for (var entry : other.entries()) {
+			var existing = merged.get(entry.item());
+			merged.put(entry.item(), (existing == null)
+				? new Entry(entry.item(), entry.count() + thisMin, entry.error() + thisMin)
+				: new Entry(entry.item(), existing.count() - otherMin + entry.count(),
+					existing.error() - otherMin + entry.error()));
+		}
+		long mergedTotalWeight = totalWeight + other.totalWeight;
+		clear();
+		merged.values().stream()
+			.sorted(BY_COUNT_DESCENDING)
+			.limit(capacity)
+			.forEach(this::push);
+		totalWeight = mergedTotalWeight;
+	}
+
+	private void clear() {
+		heapIndexes.clear();
+		size = 0;
+		totalWeight = 0;
+	}
+
+	private void push(Entry entry) {
+		set(size, entry.item(), entry.count(), entry.error());
+		siftUp(size++);
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(capacity);
+		out.writeLong(totalWeight);
+		out.writeInt(size);
+		for (int i = 0; i < size; ++i) {
+			FeedbackBinaryCodec.writeString(items[i], out);
+			out.writeLong(counts[i]);
+			out.writeLong(errors[i]);
+		}
+	}
+
+	public static SpaceSaving readFrom(ByteBuffer buffer) {
+		var sketch = new SpaceSaving(buffer.getInt());
+		long totalWeight = buffer.getLong();
+		int size = buffer.getInt();
+		if (size < 0 || size > sketch.capacity) {
+			throw new IllegalArgumentException("Sketch size out of range: " + size);
+		}
+		for (int i = 0; i < size; ++i) {
+			var item = FeedbackBinaryCodec.readString(buffer);
+			if (item == null || sketch.heapIndexes.containsKey(item)) {
+				throw new IllegalArgumentException("Null or repeated item in sketch");
+			}
+			sketch.push(new Entry(item, buffer.getLong(), buffer.getLong()));
+		}
+		sketch.totalWeight = totalWeight;
+		return sketch;
+	}
+
+	private void set(int index, String item, long count, long error) {
+		items[index] = item;
+		counts[index] = count;
+		errors[index] = error;
+		heapIndexes.put(item, index);
+	}
+
+	private void siftUp(int index) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (counts[parent] <= counts[index]) {
+				break;
+			}
+			swap(index, parent);
+			index = parent;
+		}
+	}
+
+	private void siftDown(int index) {
+		for (;;) {
+			int smallest = index;
+			int left = 2 * index + 1;
+			int right = left + 1;
+			if (left < size && counts[left] < counts[smallest]) {
+				smallest = left;
+			}
+			if (right < size && counts[right] < counts[smallest]) {
+				smallest = right;
+			}
+			if (smallest == index) {
+				return;
+			}
+			swap(index, smallest);
+			index = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		var item = items[i];
+		long count = counts[i];
+		long error = errors[i];
+		set(i, items[j], counts[j], errors[j]);
+		set(j, item, count, error);
+	}
+}
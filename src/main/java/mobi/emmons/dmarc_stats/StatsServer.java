@@ -0,0 +1,512 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.csv.CSVFormat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.ReportAggregator.Measure;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Serves statistics about an in-memory set of reports over HTTP, as JSON or
+ * (given {@code format=csv}) CSV:
+ *
+ * <ul>
+ * <li>{@code /domains}: messages and DKIM and SPF pass rates per policy
+ * domain</li>
+ * <li>{@code /top-ips}: the source IPs sending the most messages per org,
+ * {@code limit} (default 10) of them each</li>
+ * <li>{@code /records}: the matching records themselves, at most
+ * {@code limit} (default 1000) of them</li>
+ * <li>{@code /metrics}: the PipelineMetrics, if enabled, which are never
+ * cached</li>
+ * </ul>
+ *
+ * Every endpoint accepts the filters {@code from} and {@code to} (days, as in
+ * App's options), {@code domain}, {@code org} and {@code ip} (an address or
+ * CIDR network), and {@code /records} also accepts {@code report} (a report
+ * ID). Each request is handled on its own virtual thread.
+ *
+ * Each response is computed once and then served from a cache until
+ * reportsChanged is called, so that many dashboard clients polling the same
+ * URLs cost one scan of the reports per ingest rather than one per request.
+ * Reports may be added while the server is running, from any thread.
+ */
+public final class StatsServer implements Closeable {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_TOP_IPS_LIMIT = 10;
+	public static final int DEFAULT_RECORDS_LIMIT = 1000;
+	private static final int MAX_CACHED_RESPONSES = 256;
+
+	private static final String[] DOMAINS_HEADER = { "Policy Domain", "Messages", "DKIM Pass", "DKIM Fail",
+		"SPF Pass", "SPF Fail", "DKIM Pass Rate", "SPF Pass Rate" };
+	private static final String[] TOP_IPS_HEADER = { "Org. Name", "Source IP", "Messages", "DKIM Pass",
+		"SPF Pass" };
+	private static final String[] METRICS_HEADER = { "Stage", "Count", "Per Second", "Total ms", "Mean ms",
+		"p50 ms", "p90 ms", "p99 ms", "Max ms", "Bytes In", "Bytes Out" };
+
+	private enum Format {
+		JSON("application/json; charset=utf-8"),
+		CSV("text/csv; charset=utf-8");
+
+		private final String contentType;
+
+		Format(String contentType) {
+			this.contentType = contentType;
+		}
+	}
+
+	private record Table(String[] header, List<Object[]> rows) {}
+
+	private record Response(long generation, String contentType, byte[] body) {}
+
+	/** A response being computed, or computed already, from a generation of reports. */
+	private record CachedResponse(long generation, FutureTask<Response> task) {}
+
+	private final AsnDatabase asnDatabase;
+	private final List<Feedback> reports = new ArrayList<>();
+	private final ReadWriteLock reportsLock = new ReentrantReadWriteLock();
+	private final ConcurrentHashMap<String, CachedResponse> cache = new ConcurrentHashMap<>();
+	private volatile long generation = 0;
+	private final ExecutorService executor;
+	private final HttpServer server;
+
+	/**
+	 * @param address     The address to listen on, whose port may be zero to
+	 *                    pick a free one
+	 * @param asnDatabase Labels the source IPs of listed records with their
+	 *                    ASN, or null
+	 */
+	public StatsServer(InetSocketAddress address, AsnDatabase asnDatabase) throws IOException {
+		this.asnDatabase = asnDatabase;
+		executor = Executors.newVirtualThreadPerTaskExecutor();
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/domains", exchange -> handle(exchange, this::domains, true));
+		server.createContext("/top-ips", exchange -> handle(exchange, this::topIps, true));
+		server.createContext("/records", exchange -> handle(exchange, this::records, true));
+		server.createContext("/metrics", exchange -> handle(exchange, StatsServer::metrics, false));
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Adds a report to the set served. Cached responses go on being served
+	 * until reportsChanged is called, so a batch of reports can be added and
+	 * then published at once.
+	 */
+	public void add(Feedback feedback) {
+		reportsLock.writeLock().lock();
+		try {
+			reports.add(feedback);
+		} finally {
+			reportsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Discards the cached responses, so that the next request for each is
+	 * computed from the reports added since.
+	 */
+	public synchronized void reportsChanged() {
+		++generation;
+		cache.clear();
+	}
+
+	/**
+	 * @return The number of reports in the set served.
+	 */
+	public int numReports() {
+		reportsLock.readLock().lock();
+		try {
+			return reports.size();
+		} finally {
+			reportsLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.close();
+	}
+
+	@FunctionalInterface
+	private interface Endpoint {
+		Table compute(Map<String, String> params, ReportQuery query);
+	}
+
+	private void handle(HttpExchange exchange, Endpoint endpoint, boolean isCacheable) throws IOException {
+		try (exchange) {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "GET");
+				sendError(exchange, 405, "Only GET is supported");
+				return;
+			}
+			var uri = exchange.getRequestURI();
+			if (!uri.getPath().equals(exchange.getHttpContext().getPath())) {
+				sendError(exchange, 404, "Not found");
+				return;
+			}
+			Response response;
+			try {
+				var params = parseQuery(uri.getRawQuery());
+				response = isCacheable
+					? cachedResponse(uri.getPath() + "?" + Util.nullToEmpty(uri.getRawQuery()), params, endpoint)
+					: render(generation, params, endpoint);
+			} catch (IllegalArgumentException ex) {
+				sendError(exchange, 400, ex.getMessage());
+				return;
+			} catch (RuntimeException ex) {
+				System.out.format("Failed to serve %1$s:%n", uri);
+				ex.printStackTrace(System.out);
+				sendError(exchange, 500, "Internal server error");
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", response.contentType());
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			exchange.sendResponseHeaders(200, response.body().length);
+			exchange.getResponseBody().write(response.body());
+		}
+	}
+
+	/**
+	 * Serves a response from the cache if it was computed from the current
+	 * reports, or else computes it. Concurrent requests for the same URL wait
+	 * for one computation rather than each doing their own. The computation
+	 * runs outside the map, so that reportsChanged never waits on a scan of
+	 * the reports. A computation that fails is not cached.
+	 */
+	private Response cachedResponse(String key, Map<String, String> params, Endpoint endpoint) {
+		long currentGeneration = generation;
+		for (;;) {
+			var cached = cache.get(key);
+			if (cached != null && cached.generation() >= currentGeneration) {
+				return await(cached.task());
+			}
+			if (cached == null && cache.size() >= MAX_CACHED_RESPONSES) {
+				cache.clear();
+			}
+			var entry = new CachedResponse(currentGeneration,
+				new FutureTask<>(() -> render(currentGeneration, params, endpoint)));
+			boolean isInstalled = (cached == null)
+				? cache.putIfAbsent(key, entry) == null
+				: cache.replace(key, cached, entry);
+			if (isInstalled) {
+				entry.task().run();
+				try {
+					return await(entry.task());
+				} catch (RuntimeException | Error ex) {
+					cache.remove(key, entry);
+					throw ex;
+				}
+			}
+		}
+	}
+
+	private static Response await(FutureTask<Response> task) {
+		try {
+			return task.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException runtimeEx) {
+				throw runtimeEx;
+			} else if (ex.getCause() instanceof Error error) {
+				throw error;
+			}
+			throw new IllegalStateException(ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while awaiting a response", ex);
+		}
+	}
+
+	private Response render(long responseGeneration, Map<String, String> params, Endpoint endpoint) {
+		var format = parseFormat(params.get("format"));
+		var query = parseFilters(params);
+		Table table;
+		reportsLock.readLock().lock();
+		try {
+			table = endpoint.compute(params, query);
+		} finally {
+			reportsLock.readLock().unlock();
+		}
+		var body = switch (format) {
+			case JSON -> toJson(table);
+			case CSV -> toCsv(table);
+		};
+		return new Response(responseGeneration, format.contentType, body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Table domains(Map<String, String> params, ReportQuery query) {
+		var aggregator = aggregate(List.of(Dimension.POLICY_DOMAIN), query);
+		List<Object[]> rows = new ArrayList<>();
+		aggregator.forEachGroup(aggregator.dimensions(), (values, measures) -> {
+			long dkimPass = measures[Measure.DKIM_PASS.ordinal()];
+			long dkimFail = measures[Measure.DKIM_FAIL.ordinal()];
+			long spfPass = measures[Measure.SPF_PASS.ordinal()];
+			long spfFail = measures[Measure.SPF_FAIL.ordinal()];
+			rows.add(new Object[] { values[0], measures[Measure.MESSAGES.ordinal()], dkimPass, dkimFail,
+				spfPass, spfFail, rate(dkimPass, dkimFail), rate(spfPass, spfFail) });
+		});
+		return new Table(DOMAINS_HEADER, rows);
+	}
+
+	private Table topIps(Map<String, String> params, ReportQuery query) {
+		int limit = parseLimit(params.get("limit"), DEFAULT_TOP_IPS_LIMIT);
+		var aggregator = aggregate(List.of(Dimension.ORG_NAME, Dimension.SOURCE_IP), query);
+		Map<String, List<Object[]>> rowsByOrg = new LinkedHashMap<>();
+		aggregator.forEachGroup(aggregator.dimensions(), (values, measures) -> rowsByOrg
+			.computeIfAbsent(values[0], org -> new ArrayList<>())
+			.add(new Object[] { values[0], values[1], measures[Measure.MESSAGES.ordinal()],
+				measures[Measure.DKIM_PASS.ordinal()], measures[Measure.SPF_PASS.ordinal()] }));
+		List<Object[]> rows = new ArrayList<>();
+		for (var orgRows : rowsByOrg.values()) {
+			// Stable, so that ties stay in source IP order:
+			orgRows.sort((lhs, rhs) -> Long.compare((Long) rhs[2], (Long) lhs[2]));
+			rows.addAll(orgRows.subList(0, Math.min(limit, orgRows.size())));
+		}
+		return new Table(TOP_IPS_HEADER, rows);
+	}
+
+	private Table records(Map<String, String> params, ReportQuery query) {
+		int limit = parseLimit(params.get("limit"), DEFAULT_RECORDS_LIMIT);
+		var reportId = params.get("report");
+		List<Object[]> rows = new ArrayList<>();
+		for (var feedback : reports) {
+			if (rows.size() >= limit) {
+				break;
+			}
+			var metadata = feedback.getReportMetadata();
+			if (!query.matchesReport(feedback) || (reportId != null
+					&& (metadata == null || !reportId.equals(Util.nullToEmpty(metadata.getReportId()).strip())))) {
+				continue;
+			}
+			for (var record : feedback.getRecord()) {
+				if (rows.size() >= limit) {
+					break;
+				}
+				if (query.matchesRecord(record)) {
+					rows.add(QueryEngine.recordValues(feedback, record, asnDatabase).toArray());
+				}
+			}
+		}
+		return new Table(QueryEngine.recordHeader(asnDatabase), rows);
+	}
+
+	private static Table metrics(Map<String, String> params, ReportQuery query) {
+		var summary = PipelineMetrics.summary();
+		List<Object[]> rows = new ArrayList<>();
+		rows.add(new Object[] { "Reports", summary.numReports(), summary.perSecond(summary.numReports()),
+			null, null, null, null, null, null, null, null });
+		rows.add(new Object[] { "Records", summary.numRecords(), summary.perSecond(summary.numRecords()),
+			null, null, null, null, null, null, null, null });
+		for (var stage : summary.stages()) {
+			rows.add(new Object[] { stage.stage().label(), stage.count(), summary.perSecond(stage.count()),
+				PipelineMetrics.millis(stage.totalNanos()), PipelineMetrics.millis(stage.meanNanos()),
+				PipelineMetrics.millis(stage.p50Nanos()), PipelineMetrics.millis(stage.p90Nanos()),
+				PipelineMetrics.millis(stage.p99Nanos()), PipelineMetrics.millis(stage.maxNanos()),
+				stage.bytesIn(), stage.bytesOut() });
+		}
+		return new Table(METRICS_HEADER, rows);
+	}
+
+	private ReportAggregator aggregate(List<Dimension> dimensions, ReportQuery query) {
+		var aggregator = new ReportAggregator(dimensions);
+		for (var feedback : reports) {
+			if (query.matchesReport(feedback)) {
+				for (var record : feedback.getRecord()) {
+					if (query.matchesRecord(record)) {
+						aggregator.add(feedback, record);
+					}
+				}
+			}
+		}
+		return aggregator;
+	}
+
+	private static Double rate(long numPass, long numFail) {
+		long total = numPass + numFail;
+		return (total == 0) ? null : Double.valueOf((double) numPass / total);
+	}
+
+	static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> params = new HashMap<>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return params;
+		}
+		for (var pair : rawQuery.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int equalsIndex = pair.indexOf('=');
+			var name = (equalsIndex < 0) ? pair : pair.substring(0, equalsIndex);
+			var value = (equalsIndex < 0) ? "" : pair.substring(equalsIndex + 1);
+			params.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+				URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static ReportQuery parseFilters(Map<String, String> params) {
+		var query = new ReportQuery()
+			.withDateWindow(DateWindow.ofDays(parseDay(params, "from"), parseDay(params, "to")));
+		if (Util.isNonBlank(params.get("domain"))) {
+			query.withPolicyDomains(List.of(params.get("domain")));
+		}
+		if (Util.isNonBlank(params.get("org"))) {
+			query.withOrgNames(List.of(params.get("org")));
+		}
+		if (Util.isNonBlank(params.get("ip"))) {
+			query.withSourceNetworks(List.of(Cidr.parse(params.get("ip"))));
+		}
+		return query;
+	}
+
+	private static LocalDate parseDay(Map<String, String> params, String name) {
+		var value = params.get(name);
+		if (!Util.isNonBlank(value)) {
+			return null;
+		}
+		try {
+			return LocalDate.parse(value.strip());
+		} catch (DateTimeParseException ex) {
+			throw new IllegalArgumentException(
+				"Invalid value '%1$s' for parameter %2$s (expected YYYY-MM-DD)".formatted(value, name), ex);
+		}
+	}
+
+	private static int parseLimit(String value, int defaultLimit) {
+		if (!Util.isNonBlank(value)) {
+			return defaultLimit;
+		}
+		try {
+			int limit = Integer.parseInt(value.strip());
+			if (limit >= 1) {
+				return limit;
+			}
+		} catch (NumberFormatException ex) {
+			// Fall through to the exception below
+		}
+		throw new IllegalArgumentException(
+			"Invalid value '%1$s' for parameter limit (expected a positive integer)".formatted(value));
+	}
+
+	private static Format parseFormat(String value) {
+		if (!Util.isNonBlank(value)) {
+			return Format.JSON;
+		}
+		try {
+			return Format.valueOf(value.strip().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException(
+				"Invalid value '%1$s' for parameter format (expected json or csv)".formatted(value), ex);
+		}
+	}
+
+	/**
+	 * @return The table as a JSON array with an object per row, whose keys are
+	 *         the column headings.
+	 */
+	private static String toJson(Table table) {
+		var json = new StringBuilder("[");
+		for (int r = 0; r < table.rows().size(); ++r) {
+			var row = table.rows().get(r);
+			json.append((r == 0) ? "\n{" : ",\n{");
+			for (int c = 0; c < table.header().length; ++c) {
+				if (c > 0) {
+					json.append(',');
+				}
+				appendJsonString(json, table.header()[c]);
+				json.append(':');
+				var value = row[c];
+				if (value == null) {
+					json.append("null");
+				} else if (value instanceof Number || value instanceof Boolean) {
+					json.append(value);
+				} else {
+					appendJsonString(json, value.toString());
+				}
+			}
+			json.append('}');
+		}
+		return json.append("\n]\n").toString();
+	}
+
+	private static void appendJsonString(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char ch = value.charAt(i);
+			switch (ch) {
+				case '"' -> json.append("\\\"");
+				case '\\' -> json.append("\\\\");
+				case '\n' -> json.append("\\n");
+				case '\r' -> json.append("\\r");
+				case '\t' -> json.append("\\t");
+				default -> {
+					if (ch < 0x20) {
+						json.append("\\u%1$04x".formatted((int) ch));
+					} else {
+						json.append(ch);
+					}
+				}
+			}
+		}
+		json.append('"');
+	}
+
+	private static String toCsv(Table table) {
+		var csvFormat = CSVFormat.Builder.create()
+			.setHeader(table.header())
+			.setRecordSeparator("\r\n")
+			.build();
+		var csv = new StringBuilder();
+		try (var printer = csvFormat.print(csv)) {
+			for (var row : table.rows()) {
+				printer.printRecord(row);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return csv.toString();
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		var body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+}
@@ -0,0 +1,464 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import mobi.emmons.dmarc_stats.generated.AlignmentType;
+import mobi.emmons.dmarc_stats.generated.AuthResultType;
+import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.DKIMResultType;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DateRangeType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.IdentifierType;
+import mobi.emmons.dmarc_stats.generated.PolicyEvaluatedType;
+import mobi.emmons.dmarc_stats.generated.PolicyOverrideReason;
+import mobi.emmons.dmarc_stats.generated.PolicyOverrideType;
+import mobi.emmons.dmarc_stats.generated.PolicyPublishedType;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+import mobi.emmons.dmarc_stats.generated.SPFAuthResultType;
+import mobi.emmons.dmarc_stats.generated.SPFDomainScope;
+import mobi.emmons.dmarc_stats.generated.SPFResultType;
+
+/**
+ * Parses a DMARC aggregate report straight from a StAX event stream into the
+ * JAXB-generated classes, without building an intermediate DOM, or into a
+ * RecordTable.Builder, without building a Feedback.
+ *
+ * Elements are matched by local name only, so reports that declare the DMARC
+ * namespace (whether as the default namespace or with a prefix) and reports
+ * that declare no namespace at all are handled identically in a single pass.
+ * Unknown elements are skipped. As with JAXB's default validation handling,
+ * unparseable numeric and enumerated values are left null rather than failing
+ * the whole report.
+ */
+final class StaxReportParser {
+	private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = ThreadLocal.withInitial(
+		StaxReportParser::newInputFactory);
+
+	private StaxReportParser() {}	// prevent instantiation
+
+	public static Feedback parse(Reader reportRdr) {
+		try {
+			return parse(INPUT_FACTORY.get().createXMLStreamReader(reportRdr), null);
+		} catch (XMLStreamException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public static Feedback parse(InputStream reportStream) {
+		return parse(reportStream, null);
+	}
+
+	/**
+	 * Parses a report unless the header filter rejects it. The filter sees the
+	 * report's version, metadata, and published policy, and is applied at the
+	 * first record, so the records of a rejected report are never read.
+	 *
+	 * @param headerFilter Decides whether the report is wanted, or null to parse
+	 *                     every report.
+	 * @return The report, or null if the filter rejected it.
+	 */
+	public static Feedback parse(InputStream reportStream, Predicate<Feedback> headerFilter) {
+		try {
+			return parse(INPUT_FACTORY.get().createXMLStreamReader(reportStream), headerFilter);
+		} catch (XMLStreamException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static Feedback parse(XMLStreamReader rdr, Predicate<Feedback> headerFilter)
+			throws XMLStreamException {
+		try {
+			rdr.nextTag();
+			if (!"feedback".equals(rdr.getLocalName())) {
+				throw new IllegalStateException("Unexpected root element '%1$s' in DMARC report"
+					.formatted(rdr.getLocalName()));
+			}
+			var feedback = new Feedback();
+			boolean isHeaderChecked = (headerFilter == null);
+			while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				switch (rdr.getLocalName()) {
+					case "version" -> feedback.setVersion(parseDecimal(rdr));
+					case "report_metadata" -> feedback.setReportMetadata(parseReportMetadata(rdr));
+					case "policy_published" -> feedback.setPolicyPublished(parsePolicyPublished(rdr));
+					case "record" -> {
+						// The schema puts the header first, but a report that does not is
+						// parsed in full and checked at the end:
+						if (!isHeaderChecked && feedback.getReportMetadata() != null
+								&& feedback.getPolicyPublished() != null) {
+							if (!headerFilter.test(feedback)) {
+								return null;
+							}
+							isHeaderChecked = true;
+						}
+						feedback.getRecord().add(parseRecord(rdr));
+					}
+					default -> skipElement(rdr);
+				}
+			}
+			return (isHeaderChecked || headerFilter.test(feedback)) ? feedback : null;
+		} finally {
+			rdr.close();
+		}
+	}
+
+	/**
+	 * Parses a report straight into the builder's table, without creating a
+	 * Feedback. A report outside the builder's window has its records skipped
+	 * once its header is read, and is not kept. A report that fails to parse is
+	 * discarded from the builder before the failure is thrown.
+	 *
+	 * @return True if the report was kept.
+	 */
+	public static boolean parseInto(InputStream reportStream, RecordTable.Builder builder) {
+		try {
+			var rdr = INPUT_FACTORY.get().createXMLStreamReader(reportStream);
+			try {
+				return parseInto(rdr, builder);
+			} finally {
+				rdr.close();
+			}
+		} catch (XMLStreamException ex) {
+			builder.discardReport();
+			throw new IllegalStateException(ex);
+		} catch (RuntimeException ex) {
+			builder.discardReport();
+			throw ex;
+		}
+	}
+
+	private static boolean parseInto(XMLStreamReader rdr, RecordTable.Builder builder)
+			throws XMLStreamException {
+		rdr.nextTag();
+		if (!"feedback".equals(rdr.getLocalName())) {
+			throw new IllegalStateException("Unexpected root element '%1$s' in DMARC report"
+				.formatted(rdr.getLocalName()));
+		}
+		builder.startReport();
+		boolean hasMetadata = false;
+		boolean hasPolicy = false;
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "report_metadata" -> {
+					parseReportMetadata(rdr, builder);
+					hasMetadata = true;
+				}
+				case "policy_published" -> {
+					parsePolicyPublished(rdr, builder);
+					hasPolicy = true;
+				}
+				case "record" -> {
+					if (hasMetadata && hasPolicy && !builder.isReportWanted()) {
+						builder.discardReport();
+						return false;
+					}
+					parseRecord(rdr, builder);
+				}
+				default -> skipElement(rdr);
+			}
+		}
+		return builder.endReport();
+	}
+
+	private static void parseReportMetadata(XMLStreamReader rdr, RecordTable.Builder builder)
+			throws XMLStreamException {
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "org_name" -> builder.orgName(rdr.getElementText());
+				case "report_id" -> builder.reportId(rdr.getElementText());
+				case "date_range" -> {
+					var dateRange = parseDateRange(rdr);
+					if (dateRange.getBegin() != null) {
+						builder.begin(dateRange.getBegin());
+					}
+					if (dateRange.getEnd() != null) {
+						builder.end(dateRange.getEnd());
+					}
+				}
+				default -> skipElement(rdr);
+			}
+		}
+	}
+
+	private static void parsePolicyPublished(XMLStreamReader rdr, RecordTable.Builder builder)
+			throws XMLStreamException {
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if ("domain".equals(rdr.getLocalName())) {
+				builder.policyDomain(rdr.getElementText());
+			} else {
+				skipElement(rdr);
+			}
+		}
+	}
+
+	private static void parseRecord(XMLStreamReader rdr, RecordTable.Builder builder) throws XMLStreamException {
+		builder.startRecord();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "row" -> parseRow(rdr, builder);
+				case "identifiers" -> parseIdentifiers(rdr, builder);
+				case "auth_results" -> parseAuthResults(rdr, builder);
+				default -> skipElement(rdr);
+			}
+		}
+		builder.endRecord();
+	}
+
+	private static void parseRow(XMLStreamReader rdr, RecordTable.Builder builder) throws XMLStreamException {
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "source_ip" -> builder.sourceIp(rdr.getElementText());
+				case "count" -> {
+					var count = parseLong(rdr);
+					if (count != null) {
+						builder.count(count);
+					}
+				}
+				case "policy_evaluated" -> {
+					var policyEvaluated = parsePolicyEvaluated(rdr);
+					builder.disposition(policyEvaluated.getDisposition());
+					builder.policyDkim(policyEvaluated.getDkim());
+					builder.policySpf(policyEvaluated.getSpf());
+					for (var reason : policyEvaluated.getReason()) {
+						builder.addOverrideReason(reason.getType(), reason.getComment());
+					}
+				}
+				default -> skipElement(rdr);
+			}
+		}
+	}
+
+	private static void parseIdentifiers(XMLStreamReader rdr, RecordTable.Builder builder)
+			throws XMLStreamException {
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "envelope_to" -> builder.envelopeTo(rdr.getElementText());
+				case "envelope_from" -> builder.envelopeFrom(rdr.getElementText());
+				case "header_from" -> builder.headerFrom(rdr.getElementText());
+				default -> skipElement(rdr);
+			}
+		}
+	}
+
+	private static void parseAuthResults(XMLStreamReader rdr, RecordTable.Builder builder)
+			throws XMLStreamException {
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "dkim" -> {
+					var dkim = parseDkimAuthResult(rdr);
+					builder.addDkimResult(dkim.getDomain(), dkim.getSelector(), dkim.getResult());
+				}
+				case "spf" -> {
+					var spf = parseSpfAuthResult(rdr);
+					builder.addSpfResult(spf.getDomain(), spf.getScope(), spf.getResult());
+				}
+				default -> skipElement(rdr);
+			}
+		}
+	}
+
+	private static ReportMetadataType parseReportMetadata(XMLStreamReader rdr) throws XMLStreamException {
+		var metadata = new ReportMetadataType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "org_name" -> metadata.setOrgName(rdr.getElementText());
+				case "email" -> metadata.setEmail(rdr.getElementText());
+				case "extra_contact_info" -> metadata.setExtraContactInfo(rdr.getElementText());
+				case "report_id" -> metadata.setReportId(rdr.getElementText());
+				case "date_range" -> metadata.setDateRange(parseDateRange(rdr));
+				case "error" -> metadata.getError().add(rdr.getElementText());
+				default -> skipElement(rdr);
+			}
+		}
+		return metadata;
+	}
+
+	private static DateRangeType parseDateRange(XMLStreamReader rdr) throws XMLStreamException {
+		var dateRange = new DateRangeType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "begin" -> dateRange.setBegin(parseLong(rdr));
+				case "end" -> dateRange.setEnd(parseLong(rdr));
+				default -> skipElement(rdr);
+			}
+		}
+		return dateRange;
+	}
+
+	private static PolicyPublishedType parsePolicyPublished(XMLStreamReader rdr) throws XMLStreamException {
+		var policy = new PolicyPublishedType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "domain" -> policy.setDomain(rdr.getElementText());
+				case "adkim" -> policy.setAdkim(parseEnum(rdr, AlignmentType::fromValue));
+				case "aspf" -> policy.setAspf(parseEnum(rdr, AlignmentType::fromValue));
+				case "p" -> policy.setP(parseEnum(rdr, DispositionType::fromValue));
+				case "sp" -> policy.setSp(parseEnum(rdr, DispositionType::fromValue));
+				case "pct" -> policy.setPct(parseLong(rdr));
+				case "fo" -> policy.setFo(rdr.getElementText());
+				default -> skipElement(rdr);
+			}
+		}
+		return policy;
+	}
+
+	private static RecordType parseRecord(XMLStreamReader rdr) throws XMLStreamException {
+		var record = new RecordType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "row" -> record.setRow(parseRow(rdr));
+				case "identifiers" -> record.setIdentifiers(parseIdentifiers(rdr));
+				case "auth_results" -> record.setAuthResults(parseAuthResults(rdr));
+				default -> skipElement(rdr);
+			}
+		}
+		return record;
+	}
+
+	private static RowType parseRow(XMLStreamReader rdr) throws XMLStreamException {
+		var row = new RowType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "source_ip" -> row.setSourceIp(rdr.getElementText());
+				case "count" -> row.setCount(parseLong(rdr));
+				case "policy_evaluated" -> row.setPolicyEvaluated(parsePolicyEvaluated(rdr));
+				default -> skipElement(rdr);
+			}
+		}
+		return row;
+	}
+
+	private static PolicyEvaluatedType parsePolicyEvaluated(XMLStreamReader rdr) throws XMLStreamException {
+		var policyEvaluated = new PolicyEvaluatedType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "disposition" -> policyEvaluated.setDisposition(parseEnum(rdr, DispositionType::fromValue));
+				case "dkim" -> policyEvaluated.setDkim(parseEnum(rdr, DMARCResultType::fromValue));
+				case "spf" -> policyEvaluated.setSpf(parseEnum(rdr, DMARCResultType::fromValue));
+				case "reason" -> policyEvaluated.getReason().add(parseReason(rdr));
+				default -> skipElement(rdr);
+			}
+		}
+		return policyEvaluated;
+	}
+
+	private static PolicyOverrideReason parseReason(XMLStreamReader rdr) throws XMLStreamException {
+		var reason = new PolicyOverrideReason();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "type" -> reason.setType(parseEnum(rdr, PolicyOverrideType::fromValue));
+				case "comment" -> reason.setComment(rdr.getElementText());
+				default -> skipElement(rdr);
+			}
+		}
+		return reason;
+	}
+
+	private static IdentifierType parseIdentifiers(XMLStreamReader rdr) throws XMLStreamException {
+		var identifiers = new IdentifierType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "envelope_to" -> identifiers.setEnvelopeTo(rdr.getElementText());
+				case "envelope_from" -> identifiers.setEnvelopeFrom(rdr.getElementText());
+				case "header_from" -> identifiers.setHeaderFrom(rdr.getElementText());
+				default -> skipElement(rdr);
+			}
+		}
+		return identifiers;
+	}
+
+	private static AuthResultType parseAuthResults(XMLStreamReader rdr) throws XMLStreamException {
+		var authResults = new AuthResultType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "dkim" -> authResults.getDkim().add(parseDkimAuthResult(rdr));
+				case "spf" -> authResults.getSpf().add(parseSpfAuthResult(rdr));
+				default -> skipElement(rdr);
+			}
+		}
+		return authResults;
+	}
+
+	private static DKIMAuthResultType parseDkimAuthResult(XMLStreamReader rdr) throws XMLStreamException {
+		var dkim = new DKIMAuthResultType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "domain" -> dkim.setDomain(rdr.getElementText());
+				case "selector" -> dkim.setSelector(rdr.getElementText());
+				case "result" -> dkim.setResult(parseEnum(rdr, DKIMResultType::fromValue));
+				case "human_result" -> dkim.setHumanResult(rdr.getElementText());
+				default -> skipElement(rdr);
+			}
+		}
+		return dkim;
+	}
+
+	private static SPFAuthResultType parseSpfAuthResult(XMLStreamReader rdr) throws XMLStreamException {
+		var spf = new SPFAuthResultType();
+		while (rdr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (rdr.getLocalName()) {
+				case "domain" -> spf.setDomain(rdr.getElementText());
+				case "scope" -> spf.setScope(parseEnum(rdr, SPFDomainScope::fromValue));
+				case "result" -> spf.setResult(parseEnum(rdr, SPFResultType::fromValue));
+				default -> skipElement(rdr);
+			}
+		}
+		return spf;
+	}
+
+	private static Long parseLong(XMLStreamReader rdr) throws XMLStreamException {
+		try {
+			return Long.valueOf(rdr.getElementText().strip());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private static BigDecimal parseDecimal(XMLStreamReader rdr) throws XMLStreamException {
+		try {
+			return new BigDecimal(rdr.getElementText().strip());
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private static <T> T parseEnum(XMLStreamReader rdr, Function<String, T> fromValue) throws XMLStreamException {
+		try {
+			return fromValue.apply(rdr.getElementText().strip());
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	private static void skipElement(XMLStreamReader rdr) throws XMLStreamException {
+		for (int depth = 1; depth > 0;) {
+			int event = rdr.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				++depth;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				--depth;
+			}
+		}
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		var factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		return factory;
+	}
+}
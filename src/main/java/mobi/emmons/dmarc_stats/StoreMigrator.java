@@ -0,0 +1,53 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Moves the reports of a flat store into the date-sharded layout (see
+ * DmarcReportStore.StorageLayout). After migrating, run App with
+ * --layout=date-sharded so that new reports are sharded too.
+ */
+public class StoreMigrator {
+	private final File storageDir;
+
+	public static void main(String[] args) {
+		try {
+			StoreMigrator migrator = new StoreMigrator(args);
+			migrator.run();
+		} catch (CmdLineException ex) {
+			usage(ex.getMessage());
+		} catch (Throwable ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private static void usage(String message)
+	{
+		System.out.format("%n");
+		if (message != null && !message.isEmpty()) {
+			System.out.format("%1$s%n%n", message);
+		}
+		System.out.format("Usage: %1$s <storage-dir>%n%n", StoreMigrator.class.getName());
+	}
+
+	private StoreMigrator(String[] args) throws CmdLineException {
+		if (args.length < 1) {
+			throw new CmdLineException("Too few arguments");
+		} else if (args.length > 1) {
+			throw new CmdLineException("Too many arguments");
+		}
+		storageDir = new File(args[0]);
+		if (!storageDir.isDirectory()) {
+			throw new CmdLineException("'%1$s' is not a directory", args[0]);
+		}
+	}
+
+	private void run() throws IOException {
+		var store = new DmarcReportStore(storageDir)
+			.withParserBackend(ReportCodec.Backend.STAX);
+		var result = store.migrateToShardedLayout();
+		result.printFailures();
+		System.out.format("Moved %1$d reports into date shards%n", result.numLoaded());
+	}
+}
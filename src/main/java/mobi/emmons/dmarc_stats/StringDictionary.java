@@ -0,0 +1,125 @@
+package mobi.emmons.dmarc_stats;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int IDs to strings, in order of first appearance, so that
+ * aggregation keys can be tuples of ints. Looking up a string that already has
+ * an ID allocates nothing. Null is treated as the empty string.
+ */
+final class StringDictionary {
+	private static final int MIN_CAPACITY = 16;
+
+	private String[] slots = new String[MIN_CAPACITY];
+	private int[] slotIds = new int[MIN_CAPACITY];
+	private String[] values = new String[MIN_CAPACITY];
+	private int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	int idOf(String value) {
+		var key = (value == null) ? "" : value;
+		int mask = slots.length - 1;
+		for (int i = mix(key.hashCode()) & mask;; i = (i + 1) & mask) {
+			var slot = slots[i];
+			if (slot == null) {
+				return insert(key, i);
+			} else if (slot.equals(key)) {
+				return slotIds[i];
+			}
+		}
+	}
+
+	String valueOf(int id) {
+		return values[id];
+	}
+
+	/**
+	 * Forgets the strings with IDs from newSize on, as if they had never been
+	 * looked up. Costs time in proportion to the number forgotten.
+	 */
+	void truncate(int newSize) {
+		while (size > newSize) {
+			var key = values[--size];
+			values[size] = null;
+			remove(key);
+		}
+	}
+
+	/**
+	 * @return For each ID, the position of its string in sorted order. Computed
+	 *         on demand, since sorting is needed only for output.
+	 */
+	int[] ranks() {
+		var ids = new Integer[size];
+		for (int id = 0; id < size; ++id) {
+			ids[id] = id;
+		}
+		Arrays.sort(ids, (lhs, rhs) -> values[lhs].compareTo(values[rhs]));
+		var ranks = new int[size];
+		for (int rank = 0; rank < size; ++rank) {
+			ranks[ids[rank]] = rank;
+		}
+		return ranks;
+	}
+
+	private int insert(String key, int slot) {
+		int id = size++;
+		if (id == values.length) {
+			values = Arrays.copyOf(values, 2 * values.length);
+		}
+		values[id] = key;
+		slots[slot] = key;
+		slotIds[slot] = id;
+		if (2 * size > slots.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	/**
+	 * Removes the key's slot, shifting back any later slots in its probe run
+	 * that would otherwise no longer be found.
+	 */
+	private void remove(String key) {
+		int mask = slots.length - 1;
+		int i = mix(key.hashCode()) & mask;
+		while (!slots[i].equals(key)) {
+			i = (i + 1) & mask;
+		}
+		for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+			int home = mix(slots[j].hashCode()) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				slots[i] = slots[j];
+				slotIds[i] = slotIds[j];
+				i = j;
+			}
+		}
+		slots[i] = null;
+	}
+
+	private void rehash() {
+		var oldSlots = slots;
+		var oldSlotIds = slotIds;
+		slots = new String[2 * oldSlots.length];
+		slotIds = new int[slots.length];
+		int mask = slots.length - 1;
+		for (int j = 0; j < oldSlots.length; ++j) {
+			if (oldSlots[j] != null) {
+				int i = mix(oldSlots[j].hashCode()) & mask;
+				while (slots[i] != null) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = oldSlots[j];
+				slotIds[i] = oldSlotIds[j];
+			}
+		}
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,65 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The position of an incremental UID sync: every message in the folder with a
+ * UID of at most lastUid has been processed, provided the folder's UIDVALIDITY
+ * still equals uidValidity. A change in UIDVALIDITY means the server has
+ * renumbered the folder, and so the checkpoint no longer applies.
+ */
+public record UidCheckpoint(String folder, long uidValidity, long lastUid) {
+	public static final String FILE_NAME = "imap-sync-state.properties";
+
+	private static final String FOLDER_KEY = "folder";
+	private static final String UID_VALIDITY_KEY = "uidValidity";
+	private static final String LAST_UID_KEY = "lastUid";
+
+	public UidCheckpoint {
+		Util.requireNonBlank(folder, "folder");
+	}
+
+	public boolean appliesTo(String folderName, long folderUidValidity) {
+		return folder.equals(folderName) && uidValidity == folderUidValidity;
+	}
+
+	/**
+	 * @return The saved checkpoint, or null if there is none.
+	 */
+	public static UidCheckpoint load(Path checkpointFile) throws IOException {
+		if (!Files.isRegularFile(checkpointFile)) {
+			return null;
+		}
+		var props = new Properties();
+		try (var rdr = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+			props.load(rdr);
+		}
+		try {
+			return new UidCheckpoint(
+				props.getProperty(FOLDER_KEY),
+				Long.parseLong(props.getProperty(UID_VALIDITY_KEY, "").strip()),
+				Long.parseLong(props.getProperty(LAST_UID_KEY, "").strip()));
+		} catch (IllegalArgumentException ex) {
+			System.out.format("Ignoring malformed sync state file %1$s%n", checkpointFile);
+			return null;
+		}
+	}
+
+	public void save(Path checkpointFile) throws IOException {
+		var props = new Properties();
+		props.setProperty(FOLDER_KEY, folder);
+		props.setProperty(UID_VALIDITY_KEY, Long.toString(uidValidity));
+		props.setProperty(LAST_UID_KEY, Long.toString(lastUid));
+		var tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+		try (var wtr = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+			props.store(wtr, "IMAP UID sync state");
+		}
+		Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+}
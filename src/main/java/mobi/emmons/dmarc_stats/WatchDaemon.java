@@ -0,0 +1,179 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import jakarta.mail.MessagingException;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+/**
+ * Runs a report store as a long-lived process. The stored reports are loaded
+ * once, into whatever in-memory aggregates the consumer maintains, and then
+ * the daemon stays connected to the mail server, learning of new messages by
+ * IMAP IDLE (or, if the server lacks it, by polling) and ingesting just those.
+ * The listener is told after the initial load and after each sync that stores
+ * new reports, so outputs are regenerated only when something has changed.
+ * A lost connection is re-established with exponential backoff.
+ *
+ * The consumer and listener are called on the thread that calls run.
+ */
+public final class WatchDaemon {
+	@FunctionalInterface
+	public interface ChangeListener {
+		/**
+		 * @param watch         The daemon's ingest, whose rollups (if enabled)
+		 *                      are up to date
+		 * @param numNewReports The number of reports just stored, or zero after
+		 *                      the initial load
+		 */
+		void reportsChanged(DmarcReportStore.Watch watch, long numNewReports) throws IOException;
+	}
+
+	public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(25);
+	public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofMinutes(5);
+	public static final Duration DEFAULT_MIN_BACKOFF = Duration.ofSeconds(5);
+	public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofMinutes(10);
+
+	private final DmarcReportStore store;
+	private final DateWindow window;
+	private final Consumer<Feedback> consumer;
+	private final ChangeListener listener;
+	private Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private Duration pollInterval = DEFAULT_POLL_INTERVAL;
+	private Duration minBackoff = DEFAULT_MIN_BACKOFF;
+	private Duration maxBackoff = DEFAULT_MAX_BACKOFF;
+
+	private final Semaphore stopSignal = new Semaphore(0);
+	private volatile boolean isStopped = false;
+	private volatile MessageDownloader downloader = null;
+	private volatile long numSyncs = 0;
+
+	public WatchDaemon(DmarcReportStore store, DateWindow window, Consumer<Feedback> consumer,
+			ChangeListener listener) {
+		this.store = Objects.requireNonNull(store, "store");
+		this.window = Objects.requireNonNull(window, "window");
+		this.consumer = Objects.requireNonNull(consumer, "consumer");
+		this.listener = Objects.requireNonNull(listener, "listener");
+	}
+
+	/**
+	 * @param timeout How long an IMAP IDLE may last before it is renewed.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public WatchDaemon withIdleTimeout(Duration timeout) {
+		idleTimeout = requirePositive(timeout, "timeout");
+		return this;
+	}
+
+	/**
+	 * @param interval How often to check for new messages when the server does
+	 *                 not support IMAP IDLE.
+	 * @return {@code this} to enable call chaining.
+	 */
+	public WatchDaemon withPollInterval(Duration interval) {
+		pollInterval = requirePositive(interval, "interval");
+		return this;
+	}
+
+	/**
+	 * @param min The wait before the first attempt to reconnect, which doubles
+	 *            with each failed attempt
+	 * @param max The longest wait between attempts
+	 * @return {@code this} to enable call chaining.
+	 */
+	public WatchDaemon withBackoff(Duration min, Duration max) {
+		minBackoff = requirePositive(min, "min");
+		maxBackoff = requirePositive(max, "max");
+		if (maxBackoff.compareTo(minBackoff) < 0) {
+			throw new IllegalArgumentException("max must not be less than min");
+		}
+		return this;
+	}
+
+	private static Duration requirePositive(Duration duration, String name) {
+		Objects.requireNonNull(duration, name);
+		if (duration.isNegative() || duration.isZero()) {
+			throw new IllegalArgumentException("%1$s must be positive".formatted(name));
+		}
+		return duration;
+	}
+
+	/**
+	 * @return The number of syncs with the mail server completed so far.
+	 */
+	public long numSyncs() {
+		return numSyncs;
+	}
+
+	/**
+	 * Loads the store and watches for new reports until stop is called.
+	 */
+	public void run() throws IOException, InterruptedException {
+		try (var watch = store.watch(window, consumer)) {
+			listener.reportsChanged(watch, 0);
+			var backoff = minBackoff;
+			while (!isStopped) {
+				try {
+					watchConnection(watch);
+					backoff = minBackoff;
+				} catch (MessagingException | MessageDownloaderCloseException ex) {
+					if (isStopped) {
+						break;
+					}
+					System.out.format("Lost connection to the mail server (%1$s); reconnecting in %2$d seconds%n",
+						ex.getMessage(), backoff.toSeconds());
+					if (stopSignal.tryAcquire(backoff.toMillis(), TimeUnit.MILLISECONDS)) {
+						break;
+					}
+					var doubled = backoff.multipliedBy(2);
+					backoff = (doubled.compareTo(maxBackoff) > 0) ? maxBackoff : doubled;
+				}
+			}
+		}
+	}
+
+	private void watchConnection(DmarcReportStore.Watch watch)
+			throws IOException, MessagingException, InterruptedException {
+		try (var connection = watch.connect()) {
+			downloader = connection;
+			if (isStopped) {
+				return;	// stop() was called while connecting
+			}
+			boolean useIdle = connection.supportsIdle();
+			if (useIdle) {
+				System.out.format("Watching for new reports with IMAP IDLE%n");
+			} else {
+				System.out.format("Watching for new reports every %1$d seconds%n", pollInterval.toSeconds());
+			}
+			while (!isStopped) {
+				long numNewReports = watch.sync(connection);
+				++numSyncs;
+				if (numNewReports > 0) {
+					listener.reportsChanged(watch, numNewReports);
+				}
+				if (!isStopped) {
+					connection.awaitChange(useIdle ? idleTimeout : pollInterval);
+				}
+			}
+		} finally {
+			downloader = null;
+		}
+	}
+
+	/**
+	 * Asks run to return once any sync in progress is done. May be called from
+	 * any thread, such as a shutdown hook.
+	 */
+	public void stop() {
+		isStopped = true;
+		stopSignal.release();
+		var current = downloader;
+		if (current != null) {
+			current.wakeUp();
+		}
+	}
+}
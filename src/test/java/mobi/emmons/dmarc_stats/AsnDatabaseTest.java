@@ -0,0 +1,114 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+
+class AsnDatabaseTest {
+	private static final String RANGES = """
+		range_start\trange_end\tAS_number\tcountry_code\tAS_description
+		1.0.0.0\t1.0.0.255\t13335\tUS\tCLOUDFLARENET
+		1.0.1.0\t1.0.3.255\t0\tNone\tNot routed
+		8.8.4.0\t8.8.4.255\t15169\tUS\tGOOGLE
+		8.8.8.0\t8.8.8.255\t15169\tUS\tGOOGLE
+		8.8.8.128\t8.8.9.255\t64500\tZZ\tOVERLAPPING
+		136.143.184.0\t136.143.191.255\t2639\tUS\tZOHO-AS
+		255.255.255.0\t255.255.255.255\t4200000000\tZZ\tPRIVATE-32-BIT
+		2001:4860::\t2001:4860:ffff:ffff:ffff:ffff:ffff:ffff\t15169\tUS\tGOOGLE
+		2a01:111::\t2a01:111:ffff:ffff:ffff:ffff:ffff:ffff\t8075\tUS\tMICROSOFT-CORP-MSN-AS-BLOCK
+		""";
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void rangesAreFoundByBinarySearch() throws IOException {
+		var sourceFile = tempDir.resolve("ip2asn-combined.tsv");
+		Files.writeString(sourceFile, RANGES);
+		var database = AsnDatabase.open(sourceFile);
+		assertTrue(Files.exists(tempDir.resolve("ip2asn-combined.tsv" + AsnDatabase.COMPILED_SUFFIX)));
+		assertEquals(5, database.numAsns());
+
+		assertEquals("AS13335 CLOUDFLARENET", label(database, "1.0.0.0"));
+		assertEquals("AS13335 CLOUDFLARENET", label(database, "1.0.0.255"));
+		assertEquals("", label(database, "1.0.1.1"));
+		assertEquals("", label(database, "0.255.255.255"));
+		assertEquals("AS15169 GOOGLE", label(database, "8.8.8.200"));
+		assertEquals("", label(database, "8.8.9.1"));
+		assertEquals("AS2639 ZOHO-AS", label(database, "136.143.188.12"));
+		assertEquals("AS4200000000 PRIVATE-32-BIT", label(database, "255.255.255.255"));
+		assertEquals("AS15169 GOOGLE", label(database, "2001:4860:4860::8888"));
+		assertEquals("AS8075 MICROSOFT-CORP-MSN-AS-BLOCK", label(database, "2a01:111:f400::1"));
+		assertEquals("", label(database, "2a01:112::1"));
+		assertEquals("", label(database, "not an address"));
+		assertEquals(database.asnIndexOf("8.8.8.8"), database.asnIndexOf("2001:4860::1"));
+	}
+
+	@Test
+	void sourceIpsAreGroupedByAsn() throws IOException {
+		var sourceFile = tempDir.resolve("ip2asn.csv");
+		Files.writeString(sourceFile, RANGES.replace('\t', ','));
+		var database = AsnDatabase.open(sourceFile);
+
+		var aggregator = new ReportAggregator(List.of(Dimension.SOURCE_ASN), new NetworkGrouping(), database);
+		var feedback = new Feedback();
+		feedback.setReportMetadata(new ReportMetadataType());
+		for (var sourceIp : List.of("136.143.188.12", "8.8.8.8", "10.0.0.1", "2001:4860::1", "136.143.184.19")) {
+			feedback.getRecord().add(record(sourceIp));
+		}
+		aggregator.add(feedback);
+		List<String> rows = new ArrayList<>();
+		aggregator.forEachGroup(aggregator.dimensions(),
+			(values, measures) -> rows.add(values[0] + "=" + measures[0]));
+		assertEquals(List.of("AS2639 ZOHO-AS=2", "AS15169 GOOGLE=2", "=1"), rows);
+
+		assertThrows(IllegalArgumentException.class,
+			() -> new ReportAggregator(List.of(Dimension.SOURCE_ASN), new NetworkGrouping()));
+	}
+
+	@Test
+	void staleCompilationsAreRebuilt() throws IOException {
+		var sourceFile = tempDir.resolve("ip2asn.tsv");
+		Files.writeString(sourceFile, "1.0.0.0\t1.0.0.255\t13335\tUS\tCLOUDFLARENET\n");
+		assertEquals("AS13335 CLOUDFLARENET", label(AsnDatabase.open(sourceFile), "1.0.0.1"));
+
+		Files.writeString(sourceFile, "1.0.0.0\t1.0.0.255\t13335\tUS\tCLOUDFLARE\n");
+		var compiledFile = tempDir.resolve("ip2asn.tsv" + AsnDatabase.COMPILED_SUFFIX);
+		Files.setLastModifiedTime(compiledFile, FileTime.fromMillis(
+			Files.getLastModifiedTime(sourceFile).toMillis() - 60_000));
+		assertEquals("AS13335 CLOUDFLARE", label(AsnDatabase.open(sourceFile), "1.0.0.1"));
+		assertEquals("AS13335 CLOUDFLARE", label(AsnDatabase.openCompiled(compiledFile), "1.0.0.1"));
+
+		Files.write(compiledFile, new byte[40]);
+		assertThrows(IllegalStateException.class, () -> AsnDatabase.openCompiled(compiledFile));
+	}
+
+	private static String label(AsnDatabase database, String ipAddress) {
+		int asnIndex = database.asnIndexOf(ipAddress);
+		return (asnIndex == AsnDatabase.NOT_FOUND) ? "" : database.label(asnIndex);
+	}
+
+	private static RecordType record(String sourceIp) {
+		var row = new RowType();
+		row.setSourceIp(sourceIp);
+		var record = new RecordType();
+		record.setRow(row);
+		return record;
+	}
+}
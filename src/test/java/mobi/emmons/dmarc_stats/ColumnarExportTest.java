@@ -0,0 +1,151 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.generated.AuthResultType;
+import mobi.emmons.dmarc_stats.generated.DKIMAuthResultType;
+import mobi.emmons.dmarc_stats.generated.DKIMResultType;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DateRangeType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.IdentifierType;
+import mobi.emmons.dmarc_stats.generated.PolicyEvaluatedType;
+import mobi.emmons.dmarc_stats.generated.PolicyPublishedType;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+
+class ColumnarExportTest {
+	private static final long JAN_2025 = Instant.parse("2025-01-15T00:00:00Z").getEpochSecond();
+	private static final long FEB_2025 = Instant.parse("2025-02-01T00:00:00Z").getEpochSecond();
+
+	@TempDir
+	Path exportDir;
+
+	@Test
+	void recordsRoundTripByMonthAndColumn() throws IOException {
+		List<Long> janCounts = new ArrayList<>();
+		try (var export = new ColumnarExport(exportDir, 3, 4)) {
+			for (int i = 0; i < 5; ++i) {
+				export.add(report("jan-" + i, JAN_2025, i, 2));
+				janCounts.addAll(List.of(2L * i + 1, 2L * i + 2));
+			}
+			export.add(report("feb-0", FEB_2025, 100, 1));
+			var unknown = report("unknown", FEB_2025, 0, 1);
+			unknown.getReportMetadata().setDateRange(null);
+			export.add(unknown);
+			export.commit();
+			assertEquals(12, export.numRows());
+		}
+
+		var partitions = ColumnarExport.listPartitions(exportDir);
+		assertEquals(List.of(YearMonth.of(2025, 1), YearMonth.of(2025, 2)), List.copyOf(partitions.keySet()));
+		assertTrue(Files.isRegularFile(exportDir.resolve("records-unknown.dmcol")));
+
+		try (var file = ColumnarFile.open(partitions.get(YearMonth.of(2025, 1)))) {
+			assertEquals(RecordColumn.schema(), file.columns());
+			assertEquals(10, file.numRows());
+			assertTrue(file.numRowGroups() >= 4);
+
+			List<Long> counts = new ArrayList<>();
+			List<String> reportIds = new ArrayList<>();
+			for (int rowGroup = 0; rowGroup < file.numRowGroups(); ++rowGroup) {
+				for (var count : file.readLongs(rowGroup, "count")) {
+					counts.add(count);
+				}
+				reportIds.addAll(List.of(file.readStrings(rowGroup, "report_id")));
+				assertTrue(file.readNulls(rowGroup, "count").isEmpty());
+				assertEquals(file.numRows(rowGroup), file.readNulls(rowGroup, "envelope_to").cardinality());
+			}
+			assertEquals(janCounts, counts);
+			assertEquals("jan-0", reportIds.getFirst());
+			assertEquals("jan-4", reportIds.getLast());
+
+			var firstBegin = file.readLongs(0, "begin");
+			assertEquals(JAN_2025, firstBegin[0]);
+			assertEquals(List.of("pass", "fail", "pass"), List.of(file.readStrings(0, "policy_dkim")));
+			assertEquals("example.com; example.net", file.readStrings(0, "dkim_domains")[0]);
+			assertEquals("temperror; none", file.readStrings(0, "dkim_results")[1]);
+			assertThrows(IllegalArgumentException.class, () -> file.readLongs(0, "source_ip"));
+			assertThrows(IllegalArgumentException.class, () -> file.readStrings(0, "no_such_column"));
+		}
+
+		// An uncommitted export leaves the existing partitions alone:
+		try (var export = new ColumnarExport(exportDir)) {
+			export.add(report("feb-1", FEB_2025, 0, 1));
+		}
+		try (var file = ColumnarFile.open(partitions.get(YearMonth.of(2025, 2)))) {
+			assertEquals(1, file.numRows());
+			assertEquals(101, file.readLongs(0, "count")[0]);
+		}
+		try (var files = Files.list(exportDir)) {
+			assertFalse(files.anyMatch(file -> file.toString().endsWith(".tmp")));
+		}
+	}
+
+	private static Feedback report(String reportId, long begin, int reportNum, int numRecords) {
+		var dateRange = new DateRangeType();
+		dateRange.setBegin(begin);
+		dateRange.setEnd(begin + 86_400L);
+		var metadata = new ReportMetadataType();
+		metadata.setReportId(reportId);
+		metadata.setOrgName("google.com");
+		metadata.setDateRange(dateRange);
+		var policy = new PolicyPublishedType();
+		policy.setDomain("example.com");
+		var feedback = new Feedback();
+		feedback.setReportMetadata(metadata);
+		feedback.setPolicyPublished(policy);
+		for (int i = 0; i < numRecords; ++i) {
+			long count = (long) numRecords * reportNum + i + 1;
+			feedback.getRecord().add(record("192.0.2." + count, count, (count % 3 == 2)
+				? DMARCResultType.FAIL : DMARCResultType.PASS));
+		}
+		return feedback;
+	}
+
+	private static RecordType record(String sourceIp, long count, DMARCResultType dkim) {
+		var policyEvaluated = new PolicyEvaluatedType();
+		policyEvaluated.setDisposition(DispositionType.NONE);
+		policyEvaluated.setDkim(dkim);
+		policyEvaluated.setSpf(DMARCResultType.PASS);
+		var row = new RowType();
+		row.setSourceIp(sourceIp);
+		row.setCount(count);
+		row.setPolicyEvaluated(policyEvaluated);
+		var identifiers = new IdentifierType();
+		identifiers.setHeaderFrom("example.com");
+		identifiers.setEnvelopeFrom("example.com");
+		var authResults = new AuthResultType();
+		authResults.getDkim().add(dkimResult("example.com",
+			(dkim == DMARCResultType.PASS) ? DKIMResultType.PASS : DKIMResultType.TEMPERROR));
+		authResults.getDkim().add(dkimResult("example.net", DKIMResultType.NONE));
+		var record = new RecordType();
+		record.setRow(row);
+		record.setIdentifiers(identifiers);
+		record.setAuthResults(authResults);
+		return record;
+	}
+
+	private static DKIMAuthResultType dkimResult(String domain, DKIMResultType result) {
+		var dkim = new DKIMAuthResultType();
+		dkim.setDomain(domain);
+		dkim.setResult(result);
+		return dkim;
+	}
+}
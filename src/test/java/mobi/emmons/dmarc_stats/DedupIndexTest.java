@@ -0,0 +1,61 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DedupIndexTest {
+	@TempDir
+	Path storageDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void longHashSetGrowsAndHandlesZero() {
+		var set = new LongHashSet();
+		for (long i = -5000; i < 5000; ++i) {
+			assertTrue(set.add(i * 7919));
+		}
+		assertFalse(set.add(0));
+		assertFalse(set.add(7919));
+		assertEquals(10000, set.size());
+		assertTrue(set.contains(-7919));
+		assertFalse(set.contains(1));
+	}
+
+	@Test
+	void indexPersistsAcrossReopens() throws IOException {
+		var indexFile = storageDir.resolve(DedupIndex.FILE_NAME);
+		try (var index = DedupIndex.open(indexFile)) {
+			assertTrue(index.add("google.com", "123", 42));
+			assertFalse(index.add("google.com", "123", 43));
+			assertTrue(index.add("Outlook.com", "123", DedupIndex.UNKNOWN_CONTENT));
+			assertFalse(index.containsContent(DedupIndex.UNKNOWN_CONTENT));
+		}
+
+		// Simulate a crash in the middle of appending a record:
+		Files.write(indexFile, new byte[] { 1, 2, 3 }, StandardOpenOption.APPEND);
+
+		try (var index = DedupIndex.open(indexFile)) {
+			assertEquals(2, index.size());
+			assertTrue(index.containsReport("google.com", "123"));
+			assertTrue(index.containsReport("Outlook.com", "123"));
+			assertFalse(index.containsReport("google.com", "124"));
+			assertTrue(index.containsContent(42));
+			assertTrue(index.containsContent(43));
+			assertTrue(index.add("google.com", "124", 44));
+		}
+
+		try (var index = DedupIndex.open(indexFile)) {
+			assertEquals(3, index.size());
+			assertTrue(index.containsContent(44));
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import jakarta.mail.MessagingException;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+class ImapDownloadTest {
+	private static final Instant START_TIME = Instant.parse("2025-01-01T00:00:00Z");
+
+	@RegisterExtension
+	static final GreenMailExtension GREEN_MAIL = new GreenMailExtension(ServerSetupTest.IMAP)
+		.withConfiguration(GreenMailConfiguration.aConfig().withUser(TestMailbox.USER, TestMailbox.PASSWORD));
+
+	@TempDir
+	Path storageDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void partitionCoversAllUidsInOrder() {
+		long[] uids = { 3, 5, 8, 13, 21, 34, 55 };
+		var ranges = ParallelMessageDownloader.partition(uids, 3);
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 3, 5 }, ranges.get(0));
+		assertArrayEquals(new long[] { 8, 13 }, ranges.get(1));
+		assertArrayEquals(new long[] { 21, 34, 55 }, ranges.get(2));
+		assertEquals(2, ParallelMessageDownloader.partition(new long[] { 1, 2 }, 4).size());
+		assertTrue(ParallelMessageDownloader.partition(new long[0], 4).isEmpty());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void parallelDownloadMatchesSingleConnection() throws MessagingException, IOException {
+		var account = account();
+		appendReports(account, 0, 12);
+		TestMailbox.append(account, TestMailbox.nonReportMessage(START_TIME));
+
+		try (var downloader = new MessageDownloader(account, TestMailbox.FOLDER, MessageDownloader.OpenMode.READ_WRITE)
+				.withFetchChunkSize(5)) {
+			var uids = downloader.findUnseenUids();
+			assertEquals(13, uids.length);
+
+			var expected = downloader.downloadByUid(uids);
+			assertEquals(12, expected.msgInfos().size());
+			assertEquals(1, expected.failures().size());
+
+			try (var parallel = new ParallelMessageDownloader(account, TestMailbox.FOLDER, 3, 5)) {
+				var actual = parallel.downloadByUid(uids);
+				assertEquals(uidsOf(expected), uidsOf(actual));
+				assertEquals(expected.failures().getFirst().imapUid(), actual.failures().getFirst().imapUid());
+				for (int i = 0; i < actual.msgInfos().size(); ++i) {
+					assertEquals(expected.msgInfos().get(i).xmlPart(), actual.msgInfos().get(i).xmlPart());
+				}
+			}
+
+			// Only the messages that were decoded get flagged:
+			var decodedUids = uidsOf(expected).stream().mapToLong(Long::longValue).toArray();
+			downloader.setMessageSeenFlagsByUid(decodedUids);
+			assertArrayEquals(new long[] { expected.failures().getFirst().imapUid() },
+				downloader.findUnseenUids());
+			assertArrayEquals(new long[] { uids[uids.length - 1] },
+				downloader.findUidsNewerThan(uids[uids.length - 2]));
+		}
+	}
+
+	@Test
+	void uidSyncDownloadsOnlyNewMessages() throws MessagingException, IOException {
+		var account = account();
+		appendReports(account, 0, 3);
+		assertEquals(3, forEachReport(account).size());
+		assertTrue(Files.isRegularFile(storageDir.resolve(UidCheckpoint.FILE_NAME)));
+
+		appendReports(account, 3, 2);
+		var reports = forEachReport(account);
+		assertEquals(5, reports.size());
+		assertEquals(5, countStoredReports());
+
+		// Nothing new on the server, so everything comes from the store:
+		assertEquals(5, forEachReport(account).size());
+		assertEquals(5, countStoredReports());
+	}
+
+	@Test
+	void gzipOriginalStorageKeepsAttachments() throws MessagingException, IOException {
+		var account = account();
+		appendReports(account, 0, 2);
+		var store = new DmarcReportStore(storageDir.toFile(), account, TestMailbox.FOLDER)
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withStorageFormat(DmarcReportStore.StorageFormat.GZIP_ORIGINAL);
+		List<Feedback> downloaded = new ArrayList<>();
+		store.forEachReport(downloaded::add);
+		assertEquals(2, downloaded.size());
+		assertTrue(Files.isRegularFile(storageDir.resolve("dmarc-report-000.xml.gz")));
+		assertTrue(Files.isRegularFile(storageDir.resolve("dmarc-report-001.xml.gz")));
+
+		var stored = store.getDownloadedReports();
+		assertEquals(2, stored.size());
+		assertEquals("report-000", stored.getFirst().getReportMetadata().getReportId());
+	}
+
+	@Test
+	void dedupIndexSkipsResentReports() throws MessagingException, IOException {
+		var account = account();
+		appendReports(account, 0, 2);
+		appendReports(account, 0, 1);
+		var store = new DmarcReportStore(storageDir.toFile(), account, TestMailbox.FOLDER)
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withDedupIndex(true);
+		List<Feedback> reports = new ArrayList<>();
+		store.forEachReport(reports::add);
+		assertEquals(2, reports.size());
+
+		// A resend after the first run is caught by the persisted index:
+		appendReports(account, 1, 1);
+		reports.clear();
+		store.forEachReport(reports::add);
+		assertEquals(2, reports.size());
+		assertEquals(2, countStoredReports());
+	}
+
+	@Test
+	void dedupIndexRetriesReportsThatFailedToWrite() throws MessagingException, IOException {
+		var account = account();
+		appendReports(account, 0, 1);
+		var store = new DmarcReportStore(storageDir.toFile(), account, TestMailbox.FOLDER)
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withStorageLayout(DmarcReportStore.StorageLayout.DATE_SHARDED)
+			.withDedupIndex(true);
+
+		// A file in place of the year's shard directory makes the write fail:
+		var blocker = Files.writeString(storageDir.resolve("2025"), "Not a directory");
+		List<Feedback> reports = new ArrayList<>();
+		assertThrows(IOException.class, () -> store.forEachReport(reports::add));
+		assertTrue(reports.isEmpty());
+
+		// The report was not indexed, so the retry stores it:
+		Files.delete(blocker);
+		store.forEachReport(reports::add);
+		assertEquals(1, reports.size());
+		assertEquals("report-000", reports.get(0).getReportMetadata().getReportId());
+		try (var downloader = new MessageDownloader(account, TestMailbox.FOLDER, MessageDownloader.OpenMode.READ_ONLY)) {
+			assertEquals(0, downloader.findUnseenUids().length);
+		}
+	}
+
+	@Test
+	void chunkedIngestCommitsEachChunkAndQuarantinesBadMessages() throws MessagingException, IOException {
+		var account = account();
+		appendReports(account, 0, 2);
+		TestMailbox.append(account, TestMailbox.nonReportMessage(START_TIME));
+		appendReports(account, 2, 3);
+		var store = new DmarcReportStore(storageDir.toFile(), account, TestMailbox.FOLDER)
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withIngestChunkSize(2);
+
+		// A failure in the third chunk ends the run, but the first two stay committed:
+		List<Feedback> reports = new ArrayList<>();
+		assertThrows(IllegalStateException.class, () -> store.forEachReport(feedback -> {
+			if (reports.size() == 3) {
+				throw new IllegalStateException("Simulated crash");
+			}
+			reports.add(feedback);
+		}));
+		try (var downloader = new MessageDownloader(account, TestMailbox.FOLDER, MessageDownloader.OpenMode.READ_ONLY)) {
+			assertEquals(2, downloader.findUnseenUids().length);
+		}
+		List<String> quarantined;
+		try (Stream<Path> files = Files.list(storageDir.resolve(Quarantine.DIR_NAME))) {
+			quarantined = files
+				.map(file -> file.getFileName().toString())
+				.sorted()
+				.toList();
+		}
+		assertEquals(2, quarantined.size());
+		assertTrue(quarantined.get(0).endsWith(".eml"));
+		assertTrue(quarantined.get(1).endsWith(".txt"));
+
+		// The next run picks up where the last one stopped, downloading the
+		// unfinished chunk again but delivering each report only once:
+		reports.clear();
+		store.forEachReport(reports::add);
+		assertEquals(5, reports.size());
+		assertEquals(5, countStoredReports());
+		try (var downloader = new MessageDownloader(account, TestMailbox.FOLDER, MessageDownloader.OpenMode.READ_ONLY)) {
+			assertEquals(0, downloader.findUnseenUids().length);
+		}
+	}
+
+	@Test
+	void watchDaemonIngestsReportsAsTheyArrive() throws Exception {
+		var account = account();
+		appendReports(account, 0, 2);
+		var store = new DmarcReportStore(storageDir.toFile(), account, TestMailbox.FOLDER)
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withRollups(true);
+		List<String> reportIds = new CopyOnWriteArrayList<>();
+		List<Long> changes = new CopyOnWriteArrayList<>();
+		var daemon = new WatchDaemon(store, DateWindow.ALL,
+			feedback -> reportIds.add(feedback.getReportMetadata().getReportId()),
+			(watch, numNewReports) -> changes.add(numNewReports))
+			.withIdleTimeout(Duration.ofSeconds(1))
+			.withPollInterval(Duration.ofMillis(50));
+		var failure = new AtomicReference<Exception>();
+		var thread = new Thread(() -> {
+			try {
+				daemon.run();
+			} catch (Exception ex) {
+				failure.set(ex);
+			}
+		});
+		thread.start();
+		try {
+			// Syncs that find nothing new do not regenerate outputs:
+			awaitCondition(() -> daemon.numSyncs() >= 3);
+			assertEquals(List.of(0L, 2L), changes);
+
+			appendReports(account, 2, 1);
+			awaitCondition(() -> changes.size() == 3);
+			assertEquals(List.of(0L, 2L, 1L), changes);
+			assertEquals(List.of("report-000", "report-001", "report-002"), reportIds);
+		} finally {
+			daemon.stop();
+			thread.join(10_000);
+		}
+		assertFalse(thread.isAlive());
+		assertNull(failure.get());
+		assertEquals(3, RollupStore.open(storageDir).numReports());
+	}
+
+	private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "Timed out");
+			Thread.sleep(20);
+		}
+	}
+
+	private List<Feedback> forEachReport(MailAccount account) throws MessagingException, IOException {
+		List<Feedback> reports = new ArrayList<>();
+		new DmarcReportStore(storageDir.toFile(), account, TestMailbox.FOLDER)
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withSyncMode(DmarcReportStore.SyncMode.UID)
+			.withDownloadConnections(2)
+			.forEachReport(reports::add);
+		return reports;
+	}
+
+	private long countStoredReports() throws IOException {
+		try (Stream<Path> files = Files.list(storageDir)) {
+			return files
+				.filter(file -> file.getFileName().toString().startsWith("dmarc-"))
+				.count();
+		}
+	}
+
+	private static MailAccount account() {
+		return TestMailbox.account(GREEN_MAIL.getImap().getPort());
+	}
+
+	private static void appendReports(MailAccount account, int first, int count)
+			throws MessagingException, IOException {
+		for (int i = first; i < first + count; ++i) {
+			TestMailbox.append(account,
+				TestMailbox.reportMessage("report-%1$03d".formatted(i), START_TIME.plus(i, ChronoUnit.HOURS)));
+		}
+	}
+
+	private static List<Long> uidsOf(DownloadResult result) {
+		return result.msgInfos().stream()
+			.map(MsgInfo::imapUid)
+			.toList();
+	}
+}
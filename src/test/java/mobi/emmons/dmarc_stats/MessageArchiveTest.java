@@ -0,0 +1,116 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+class MessageArchiveTest {
+	private static final Instant SENT_TIME = Instant.parse("2023-10-02T12:00:00Z");
+
+	@TempDir
+	Path tempDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void mboxIsSplitIntoUnescapedMessages() throws IOException {
+		var mbox = """
+			From MAILER-DAEMON Mon Oct  2 12:00:00 2023
+			Subject: one
+
+			>From the top
+			From the middle
+			>>From the bottom
+
+			From MAILER-DAEMON Mon Oct  2 12:00:01 2023\r
+			Subject: two\r
+			\r
+			Not From here\r
+			\r
+			From MAILER-DAEMON Mon Oct  2 12:00:02 2023
+			Subject: three
+			""";
+		List<String> messages = new ArrayList<>();
+		try (var reader = new MessageArchive.MboxReader(
+				new ByteArrayInputStream(mbox.getBytes(StandardCharsets.US_ASCII)))) {
+			for (byte[] message; (message = reader.next()) != null;) {
+				messages.add(new String(message, StandardCharsets.US_ASCII));
+			}
+			assertNull(reader.next());
+		}
+		assertEquals(List.of(
+			"Subject: one\n\nFrom the top\nFrom the middle\n>From the bottom\n",
+			"Subject: two\r\n\r\nNot From here\r\n",
+			"Subject: three\n"), messages);
+	}
+
+	@Test
+	void archivedReportsAreImportedOnce() throws IOException, MessagingException {
+		var mbox = new ByteArrayOutputStream();
+		for (var message : List.of(TestMailbox.reportMessage("mbox-1", SENT_TIME),
+				TestMailbox.nonReportMessage(SENT_TIME), TestMailbox.reportMessage("mbox-2", SENT_TIME))) {
+			mbox.write("From MAILER-DAEMON Mon Oct  2 12:00:00 2023\n".getBytes(StandardCharsets.US_ASCII));
+			mbox.write(toBytes(message));
+			mbox.write('\n');
+		}
+		var archiveDir = Files.createDirectories(tempDir.resolve("archive"));
+		Files.write(archiveDir.resolve("dmarc.mbox"), mbox.toByteArray());
+		var maildir = Files.createDirectories(archiveDir.resolve("Maildir").resolve("cur"));
+		Files.write(maildir.resolve("1696248000.M1P1.host:2,S"),
+			toBytes(TestMailbox.reportMessage("maildir-1", SENT_TIME)));
+		Files.createDirectories(archiveDir.resolve("Maildir").resolve("tmp"));
+		Files.writeString(archiveDir.resolve("notes.txt"), "Not a message");
+		var emlFile = tempDir.resolve("report.eml");
+		Files.write(emlFile, toBytes(TestMailbox.reportMessage("eml-1", SENT_TIME)));
+
+		var storageDir = Files.createDirectories(tempDir.resolve("store"));
+		var store = new DmarcReportStore(storageDir.toFile())
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withIngestChunkSize(2);
+		var archive = new MessageArchive(2, 2);
+		var result = store.importArchives(List.of(archiveDir, emlFile), archive);
+		assertEquals(4, result.numDecoded());
+		assertEquals(5, result.numMessages());
+		assertEquals(1, result.failures().size());
+		assertTrue(result.failures().get(0).location().endsWith("dmarc.mbox#2"));
+		assertTrue(Files.isDirectory(storageDir.resolve(Quarantine.DIR_NAME)));
+
+		List<String> reportIds = new ArrayList<>();
+		for (var feedback : store.getDownloadedReports()) {
+			reportIds.add(feedback.getReportMetadata().getReportId());
+		}
+		assertEquals(List.of("eml-1", "maildir-1", "mbox-1", "mbox-2"),
+			reportIds.stream().sorted().toList());
+
+		long numFiles = countFiles(storageDir);
+		store.importArchives(List.of(archiveDir, emlFile), archive);
+		assertEquals(numFiles, countFiles(storageDir));
+	}
+
+	private static long countFiles(Path dir) throws IOException {
+		try (var files = Files.list(dir)) {
+			return files.count();
+		}
+	}
+
+	private static byte[] toBytes(MimeMessage message) throws IOException, MessagingException {
+		var bytes = new ByteArrayOutputStream();
+		message.writeTo(bytes);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,113 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+
+class NetworkGroupingTest {
+	@TempDir
+	Path tempDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void trieFindsLongestMatch() {
+		var trie = new CidrTrie();
+		assertEquals(CidrTrie.NO_VALUE, trie.longestMatchIpv4(0x08080808));
+		trie.put(Cidr.parse("10.0.0.0/8"), 1);
+		trie.put(Cidr.parse("10.1.0.0/16"), 2);
+		trie.put(Cidr.parse("10.1.2.0/24"), 3);
+		trie.put(Cidr.parse("10.128.0.0/9"), 4);
+		trie.put(Cidr.parse("2001:db8::/32"), 5);
+		trie.put(Cidr.parse("2001:db8:8000::/33"), 6);
+		trie.put(Cidr.parse("10.1.0.0/16"), 7);	// Replaces 2
+		assertEquals(6, trie.size());
+
+		assertEquals(1, trie.longestMatchIpv4(ipv4("10.2.3.4")));
+		assertEquals(7, trie.longestMatchIpv4(ipv4("10.1.3.4")));
+		assertEquals(3, trie.longestMatchIpv4(ipv4("10.1.2.255")));
+		assertEquals(4, trie.longestMatchIpv4(ipv4("10.200.0.1")));
+		assertEquals(CidrTrie.NO_VALUE, trie.longestMatchIpv4(ipv4("11.0.0.1")));
+		assertEquals(5, trie.longestMatch(0x20010db800000000L, 1L));
+		assertEquals(6, trie.longestMatch(0x20010db8ffff0000L, 1L));
+		assertEquals(CidrTrie.NO_VALUE, trie.longestMatch(0x20010db900000000L, 1L));
+
+		// IPv4 networks must not capture IPv6 addresses, except IPv4-mapped ones:
+		trie.put(Cidr.parse("0.0.0.0/0"), 8);
+		assertEquals(8, trie.longestMatchIpv4(ipv4("11.0.0.1")));
+		assertEquals(CidrTrie.NO_VALUE, trie.longestMatch(0x3fff000000000000L, 1L));
+		trie.put(Cidr.parse("::/0"), 9);
+		assertEquals(9, trie.longestMatch(0x3fff000000000000L, 1L));
+		assertEquals(1, trie.longestMatchIpv4(ipv4("10.2.3.4")));
+	}
+
+	@Test
+	void sourceIpsRollUpToNetworks() throws IOException {
+		var networksFile = tempDir.resolve("networks.csv");
+		Files.writeString(networksFile, """
+			Name,Network
+			Our ESP, 136.143.184.0/22
+			Our ESP,2001:db8::/32
+			Office,136.143.186.0/24
+			""");
+		var grouping = new NetworkGrouping()
+			.withNamedNetworks(networksFile)
+			.withPrefixLengths(16, 64);
+		assertEquals(2, grouping.numNames());
+		assertEquals("Our ESP", grouping.networkOf("136.143.187.1"));
+		assertEquals("Office", grouping.networkOf("136.143.186.1"));
+		assertEquals("136.143.0.0/16", grouping.networkOf("136.143.188.12"));
+		assertEquals("Our ESP", grouping.networkOf("2001:db8::1"));
+		assertEquals("2001:db9:0:1::/64", grouping.networkOf("2001:db9:0:1:2::3"));
+		assertEquals("unknown", grouping.networkOf(" unknown "));
+
+		var aggregator = new ReportAggregator(List.of(Dimension.SOURCE_NETWORK), grouping);
+		var feedback = new Feedback();
+		feedback.setReportMetadata(new ReportMetadataType());
+		for (var sourceIp : List.of("136.143.187.1", "2001:db8::2", "136.143.186.9",
+				"136.143.1.1", "136.143.200.1", "10.0.0.1", "2001:db9::1")) {
+			feedback.getRecord().add(record(sourceIp, 2));
+		}
+		aggregator.add(feedback);
+		List<String> rows = new ArrayList<>();
+		aggregator.forEachGroup(aggregator.dimensions(),
+			(values, measures) -> rows.add(values[0] + "=" + measures[0]));
+		assertEquals(List.of("Office=2", "Our ESP=4", "10.0.0.0/16=2", "136.143.0.0/16=4",
+			"2001:db9::/64=2"), rows);
+	}
+
+	@Test
+	void malformedNetworkFilesAreRejected() throws IOException {
+		var networksFile = tempDir.resolve("networks.csv");
+		Files.writeString(networksFile, "Name,Network\nOur ESP,136.143.184.0/33\n");
+		assertThrows(IllegalArgumentException.class, () -> new NetworkGrouping().withNamedNetworks(networksFile));
+		Files.writeString(networksFile, "Name,CIDR\nOur ESP,136.143.184.0/22\n");
+		assertThrows(IllegalArgumentException.class, () -> new NetworkGrouping().withNamedNetworks(networksFile));
+	}
+
+	private static int ipv4(String address) {
+		return (int) IpAddresses.parseIpv4(address);
+	}
+
+	private static RecordType record(String sourceIp, long count) {
+		var row = new RowType();
+		row.setSourceIp(sourceIp);
+		row.setCount(count);
+		var record = new RecordType();
+		record.setRow(row);
+		return record;
+	}
+}
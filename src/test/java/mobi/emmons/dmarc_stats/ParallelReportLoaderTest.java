@@ -0,0 +1,96 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+
+class ParallelReportLoaderTest {
+	private static final int NUM_FILES = 200;
+	private static final int MAX_IN_FLIGHT = 8;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void forkJoinLoadIsOrderedBoundedAndCollectsFailures() throws IOException {
+		checkLoad(ParallelReportLoader.WorkerPool.FORK_JOIN);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void virtualThreadLoadIsOrderedBoundedAndCollectsFailures() throws IOException {
+		checkLoad(ParallelReportLoader.WorkerPool.VIRTUAL_THREADS);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void errorsPropagateFromBothLoads() {
+		var files = List.of(Path.of("dmarc-0.xml"), Path.of("dmarc-1.xml"));
+		Function<Path, Feedback> parser = path -> {
+			throw new OutOfMemoryError(path.toString());
+		};
+		assertThrows(OutOfMemoryError.class, () -> new ParallelReportLoader(2, 2,
+			ParallelReportLoader.WorkerPool.FORK_JOIN).load(files, parser, feedback -> {}));
+		assertThrows(OutOfMemoryError.class, () -> ParallelReportLoader.loadSequentially(files, parser,
+			feedback -> {}));
+	}
+
+	private static void checkLoad(ParallelReportLoader.WorkerPool pool) throws IOException {
+		var files = IntStream.range(0, NUM_FILES)
+			.mapToObj(i -> Path.of("dmarc-%1$03d.xml".formatted(i)))
+			.toList();
+		var inFlight = new AtomicInteger();
+		var maxObservedInFlight = new AtomicInteger();
+		Function<Path, Feedback> parser = path -> {
+			maxObservedInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+				var name = path.getFileName().toString();
+				if (name.endsWith("7.xml")) {
+					throw new UncheckedIOException(new IOException("Unreadable " + name));
+				}
+				return newFeedback(name);
+			} catch (InterruptedException ex) {
+				throw new IllegalStateException(ex);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		};
+
+		List<String> loaded = new ArrayList<>();
+		var result = new ParallelReportLoader(4, MAX_IN_FLIGHT, pool).load(files, parser,
+			feedback -> loaded.add(feedback.getReportMetadata().getReportId()));
+
+		var expected = files.stream()
+			.map(path -> path.getFileName().toString())
+			.filter(name -> !name.endsWith("7.xml"))
+			.toList();
+		assertEquals(expected, loaded);
+		assertEquals(expected.size(), result.numLoaded());
+		assertEquals(NUM_FILES / 10, result.failures().size());
+		assertTrue(result.failures().stream().allMatch(f -> f.cause() instanceof UncheckedIOException));
+		assertTrue(maxObservedInFlight.get() <= MAX_IN_FLIGHT,
+			"Observed %1$d files in flight".formatted(maxObservedInFlight.get()));
+	}
+
+	private static Feedback newFeedback(String reportId) {
+		var metadata = new ReportMetadataType();
+		metadata.setReportId(reportId);
+		var feedback = new Feedback();
+		feedback.setReportMetadata(metadata);
+		return feedback;
+	}
+}
@@ -0,0 +1,85 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import mobi.emmons.dmarc_stats.PipelineMetrics.Stage;
+
+class PipelineMetricsTest {
+	@SuppressWarnings("static-method")
+	@Test
+	void histogramBucketsBoundDurationsClosely() {
+		var random = new Random(42);
+		int previousBucket = -1;
+		for (long nanos = 0; nanos < 100_000; ++nanos) {
+			int bucket = PipelineMetrics.bucketOf(nanos);
+			assertTrue(bucket == previousBucket || bucket == previousBucket + 1);
+			previousBucket = bucket;
+		}
+		for (int i = 0; i < 100_000; ++i) {
+			long nanos = random.nextLong(Long.MAX_VALUE);
+			long upperBound = PipelineMetrics.bucketUpperBound(PipelineMetrics.bucketOf(nanos));
+			assertTrue(upperBound >= nanos && upperBound - nanos <= nanos / 8, Long.toString(nanos));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void stagesAreRecordedOnlyWhileEnabled() throws IOException {
+		var xml = TestReports.exampleXml();
+		var gzippedXml = TestReports.gzip(xml);
+		var codec = ReportCodec.forBackend(ReportCodec.Backend.STAX);
+		try {
+			PipelineMetrics.enable();
+			PipelineMetrics.disable();
+			try (var payload = ReportPayload.capture(new ByteArrayInputStream(gzippedXml),
+					ReportPayload.Compression.GZIP); var is = payload.openXml()) {
+				codec.parse(is);
+			}
+			try (var span = PipelineMetrics.start(Stage.CSV_WRITE)) {
+				assertFalse(span.isRecording());
+			}
+			var summary = PipelineMetrics.summary();
+			assertEquals(0, summary.numReports());
+			assertTrue(summary.stages().stream().allMatch(stage -> stage.count() == 0));
+
+			PipelineMetrics.enable();
+			for (int i = 0; i < 3; ++i) {
+				try (var payload = ReportPayload.capture(new ByteArrayInputStream(gzippedXml),
+						ReportPayload.Compression.GZIP); var is = payload.openXml()) {
+					codec.parse(is);
+				}
+			}
+			summary = PipelineMetrics.summary();
+			assertEquals(3, summary.numReports());
+			assertEquals(6, summary.numRecords());
+			var decompression = summary.stages().get(Stage.DECOMPRESSION.ordinal());
+			assertEquals(3, decompression.count());
+			assertEquals(3L * gzippedXml.length, decompression.bytesIn());
+			assertEquals(3L * xml.getBytes(StandardCharsets.UTF_8).length, decompression.bytesOut());
+			var parse = summary.stages().get(Stage.STAX_PARSE.ordinal());
+			assertEquals(3, parse.count());
+			assertTrue(parse.p50Nanos() <= parse.p99Nanos() && parse.p99Nanos() <= parse.maxNanos());
+			assertTrue(parse.maxNanos() <= parse.totalNanos());
+
+			var out = new ByteArrayOutputStream();
+			PipelineMetrics.printSummary(new PrintStream(out, true, StandardCharsets.UTF_8));
+			var printed = out.toString(StandardCharsets.UTF_8);
+			assertTrue(printed.contains("3 reports"));
+			assertTrue(printed.contains("StAX Parse"));
+			assertFalse(printed.contains("IMAP Search"));
+		} finally {
+			PipelineMetrics.disable();
+		}
+	}
+}
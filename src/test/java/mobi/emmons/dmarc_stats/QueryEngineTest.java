@@ -0,0 +1,131 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+
+class QueryEngineTest {
+	@TempDir
+	Path storageDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void cidrMatching() {
+		var network = Cidr.parse("136.143.184.0/22");
+		assertTrue(network.contains("136.143.187.255"));
+		assertFalse(network.contains("136.143.188.12"));
+		assertEquals("136.143.184.0/22", Cidr.parse("136.143.184.19/22").toString());
+		assertTrue(Cidr.parse("0.0.0.0/0").contains("8.8.8.8"));
+		assertFalse(Cidr.parse("0.0.0.0/0").contains("2001:db8::1"));
+		assertTrue(Cidr.parse("2001:db8::/32").contains("2001:db8:ffff::1"));
+		assertFalse(Cidr.parse("2001:db8::/33").contains("2001:db8:ffff::1"));
+		assertTrue(Cidr.parse("2001:db8::1").contains("2001:DB8::1"));
+		assertEquals("2001:db8::/96", Cidr.parse("2001:db8::ffff:1/96").toString());
+		assertThrows(IllegalArgumentException.class, () -> Cidr.parse("10.0.0.0/33"));
+		assertThrows(IllegalArgumentException.class, () -> Cidr.parse("example.com"));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void missingElementsAreListedAsEmpty() {
+		var values = QueryEngine.recordValues(new Feedback(), new RecordType(), null);
+		assertEquals(List.of("", "", "", Instant.EPOCH, "", 1L, "", "", "", "", "", "", ""), values);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void rejectedReportRecordsAreNeverRead() throws IOException {
+		// Everything after the first record's start tag is malformed:
+		var xml = TestReports.exampleXml();
+		var truncated = xml.substring(0, xml.indexOf("<record>")) + "<record><row><count>";
+		var codec = ReportCodec.forBackend(ReportCodec.Backend.STAX);
+		assertNull(codec.parse(toStream(truncated), feedback -> false));
+		assertThrows(IllegalStateException.class, () -> codec.parse(toStream(truncated), feedback -> true));
+		assertNotNull(codec.parse(toStream(xml), feedback -> true));
+	}
+
+	@Test
+	void queriesFilterAndGroup() throws IOException {
+		writeReport("a", "2025-01-01T00:00:00Z", TestReports.EXAMPLE_DOMAIN);
+		writeReport("b", "2025-01-02T00:00:00Z", "example.org");
+		var store = new DmarcReportStore(storageDir.toFile())
+			.withParserBackend(ReportCodec.Backend.STAX);
+		store.migrateToShardedLayout();
+		writeReport("c", "2025-01-03T00:00:00Z", TestReports.EXAMPLE_DOMAIN);	// Left flat
+		var engine = new QueryEngine(store);
+
+		var out = new StringBuilder();
+		var result = engine.run(new ReportQuery(), out);
+		assertEquals(3, result.numReportsMatched());
+		assertEquals(6, result.numRecordsMatched());
+		assertEquals(7, out.toString().lines().count());
+
+		out.setLength(0);
+		result = engine.run(new ReportQuery()
+			.withPolicyDomains(List.of("WestineFamily.com"))
+			.withSourceNetworks(List.of(Cidr.parse("136.143.184.0/24")))
+			.withDispositions(List.of(DispositionType.NONE))
+			.withDkimResults(List.of(DMARCResultType.PASS)), out);
+		assertEquals(2, result.numReportsMatched());
+		assertEquals(2, result.numRecordsMatched());
+		var lines = out.toString().lines().toList();
+		assertTrue(lines.get(0).startsWith("Report ID,Org. Name,Policy Domain,Begin,Source IP,Count"));
+		assertTrue(lines.get(1).startsWith("a,Outlook.com,westinefamily.com,2025-01-01T00:00:00Z,136.143.184.19,1,none,pass"),
+			lines.get(1));
+
+		out.setLength(0);
+		result = engine.run(new ReportQuery()
+			.withDateWindow(DateWindow.ofDays(LocalDate.parse("2025-01-02"), null))
+			.withSpfResults(List.of(DMARCResultType.FAIL)), out);
+		assertEquals(2, result.numReportsMatched());
+		assertEquals(0, result.numRecordsMatched());
+
+		out.setLength(0);
+		result = engine.run(new ReportQuery()
+			.withOrgNames(List.of("outlook.com"))
+			.withGroupBy(List.of(Dimension.POLICY_DOMAIN)), out);
+		assertEquals(2, result.numRowsWritten());
+		assertEquals(List.of(
+			"Policy Domain,Messages,Disposition None,Disposition Quarantine,Disposition Reject,DKIM Pass,DKIM Fail,SPF Pass,SPF Fail",
+			"example.org,2,2,0,0,2,0,2,0",
+			"westinefamily.com,4,4,0,0,4,0,4,0"), out.toString().lines().toList());
+
+		out.setLength(0);
+		result = engine.run(new ReportQuery().withOrgNames(List.of("Google")), out);
+		assertEquals(0, result.numReportsMatched());
+	}
+
+	private void writeReport(String reportId, String begin, String domain) throws IOException {
+		var xml = TestReports.exampleXml()
+			.replace(TestReports.EXAMPLE_REPORT_ID, reportId)
+			.replace(TestReports.EXAMPLE_BEGIN, Long.toString(Instant.parse(begin).getEpochSecond()))
+			.replaceFirst("<domain>" + TestReports.EXAMPLE_DOMAIN + "</domain>", "<domain>" + domain + "</domain>");
+		Files.writeString(storageDir.resolve("dmarc-%1$s.xml".formatted(reportId)), xml);
+	}
+
+	private static InputStream toStream(String xml) {
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,148 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.MissingResourceException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jakarta.mail.MessagingException;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.PolicyOverrideType;
+
+class RecordTableTest {
+	private static final String EXAMPLE_XML = "example-dmarc-report.xml";
+	private static final String NAMESPACED_XML = "dmarc-report-fixed.xml";
+	private static final String DETAILED_XML = """
+		<feedback>
+			<report_metadata><org_name>google.com</org_name><report_id>r-2</report_id>
+				<date_range><begin>1700000000</begin></date_range></report_metadata>
+			<policy_published><domain>example.com</domain></policy_published>
+			<record>
+				<auth_results>
+					<dkim><domain>example.com</domain><result>pass</result></dkim>
+					<dkim><domain>example.net</domain><selector>s1</selector><result>bogus</result></dkim>
+				</auth_results>
+				<row><source_ip> 2001:DB8::1 </source_ip>
+					<policy_evaluated><disposition>none</disposition><dkim>pass</dkim>
+						<reason><type>forwarded</type><comment>list</comment></reason></policy_evaluated></row>
+				<identifiers><header_from>example.com</header_from></identifiers>
+			</record>
+		</feedback>
+		""";
+
+	@TempDir
+	Path storageDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void parsedTableMatchesTheReports() throws IOException {
+		var codec = ReportCodec.forBackend(ReportCodec.Backend.STAX);
+		var builder = new RecordTable.Builder();
+		List<Feedback> reports = new ArrayList<>();
+		for (var xml : List.of(getRsrcAsBytes(EXAMPLE_XML), getRsrcAsBytes(NAMESPACED_XML),
+				DETAILED_XML.getBytes(StandardCharsets.UTF_8))) {
+			assertTrue(codec.parseInto(new ByteArrayInputStream(xml), builder));
+			reports.add(codec.parse(new ByteArrayInputStream(xml)));
+		}
+		var table = builder.build();
+		assertEquals(3, table.numReports());
+		assertEquals(5, table.numRows());
+		assertThrows(IllegalStateException.class, builder::startReport);
+
+		for (int report = 0; report < table.numReports(); ++report) {
+			var feedback = reports.get(report);
+			assertEquals(feedback.getRecord().size(), table.endRow(report) - table.firstRow(report));
+			for (int row = table.firstRow(report); row < table.endRow(report); ++row) {
+				var record = feedback.getRecord().get(row - table.firstRow(report));
+				assertEquals(report, table.reportOf(row));
+				for (var column : RecordColumn.values()) {
+					var expected = column.extract(feedback, record);
+					if (column == RecordColumn.SOURCE_IP) {
+						expected = expected.toString().strip().toLowerCase();
+					}
+					assertEquals(expected, column.extract(table, report, row), column.columnName());
+				}
+			}
+		}
+
+		int row = table.numRows() - 1;
+		assertEquals(RecordTable.NO_VALUE, table.count(row));
+		assertEquals(RecordTable.NO_VALUE, table.end(2));
+		assertNull(table.policySpf(row));
+		assertNull(table.dkimResult(row, 1));
+		assertEquals(PolicyOverrideType.FORWARDED, table.overrideReasonType(row, 0));
+		assertEquals("list", table.overrideReasonComment(row, 0));
+		assertEquals("2001:db8::1", table.sourceIp(row));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void reportsOutsideTheWindowOrFailingToParseAreDropped() throws IOException {
+		var codec = ReportCodec.forBackend(ReportCodec.Backend.STAX);
+		var builder = new RecordTable.Builder(DateWindow.ofDays(LocalDate.parse("2023-11-01"), null));
+		var example = getRsrcAsBytes(EXAMPLE_XML);
+		assertFalse(codec.parseInto(new ByteArrayInputStream(example), builder));
+
+		var truncated = DETAILED_XML.substring(0, DETAILED_XML.indexOf("</identifiers>"))
+			.replace("example.net", "dropped.example");
+		assertThrows(IllegalStateException.class, () -> codec.parseInto(
+			new ByteArrayInputStream(truncated.getBytes(StandardCharsets.UTF_8)), builder));
+		assertEquals(0, builder.numReports());
+		assertEquals(0, builder.numRows());
+
+		assertTrue(codec.parseInto(new ByteArrayInputStream(DETAILED_XML.getBytes(StandardCharsets.UTF_8)),
+			builder));
+		var table = builder.build();
+		assertEquals(1, table.numReports());
+		assertEquals(1, table.numRows());
+		assertEquals(2, table.numDkimResults(0));
+		assertEquals("r-2", table.reportId(0));
+
+		// The dropped reports left none of their strings behind:
+		var detailedOnly = new RecordTable.Builder();
+		codec.parseInto(new ByteArrayInputStream(DETAILED_XML.getBytes(StandardCharsets.UTF_8)), detailedOnly);
+		assertEquals(detailedOnly.build().numDistinctStrings(), table.numDistinctStrings());
+	}
+
+	@Test
+	void storeLoadsRecordTable() throws IOException, MessagingException {
+		Files.write(storageDir.resolve("dmarc-example.xml"), getRsrcAsBytes(EXAMPLE_XML));
+		Files.write(storageDir.resolve("dmarc-detailed.xml"), DETAILED_XML.getBytes(StandardCharsets.UTF_8));
+		var store = new DmarcReportStore(storageDir.toFile())
+			.withParserBackend(ReportCodec.Backend.STAX);
+		var table = store.loadRecordTable(DateWindow.ALL);
+		assertEquals(2, table.numReports());
+		assertEquals(3, table.numRows());
+
+		var aggregator = new ReportAggregator(List.of(ReportAggregator.Dimension.POLICY_DOMAIN));
+		aggregator.add(table);
+		List<String> domains = new ArrayList<>();
+		aggregator.forEachGroup(aggregator.dimensions(), (values, measures) -> domains.add(values[0]));
+		assertEquals(List.of("example.com", "westinefamily.com"), domains);
+	}
+
+	private static byte[] getRsrcAsBytes(String rsrcName) throws IOException {
+		var cl = Thread.currentThread().getContextClassLoader();
+		try (InputStream is = cl.getResourceAsStream(rsrcName)) {
+			if (is == null) {
+				throw new MissingResourceException("Unable to load resource", null, rsrcName);
+			}
+			return is.readAllBytes();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import mobi.emmons.dmarc_stats.ReportAggregator.Dimension;
+import mobi.emmons.dmarc_stats.ReportAggregator.Measure;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+
+class ReportAggregatorTest {
+	@SuppressWarnings("static-method")
+	@Test
+	void ipAddressesRoundTrip() {
+		assertEquals(0xc0000201L, IpAddresses.parseIpv4("192.0.2.1"));
+		assertEquals("192.0.2.1", IpAddresses.formatIpv4((int) IpAddresses.parseIpv4("192.000.002.001")));
+		assertEquals("255.255.255.255", IpAddresses.formatIpv4((int) IpAddresses.parseIpv4("255.255.255.255")));
+		for (var text : List.of("", "1.2.3", "1.2.3.4.5", "1.2.3.256", "1..2.3", "1.2.3.4.", "a.b.c.d")) {
+			assertEquals(-1L, IpAddresses.parseIpv4(text), text);
+		}
+
+		var bits = new long[2];
+		for (var text : List.of("2001:db8::1", "::", "::1", "1::", "2001:db8:0:1:1:1:1:1",
+				"2001:db8::1:0:0:1", "fe80::200:5aee:feaa:20a2")) {
+			assertTrue(IpAddresses.parseIpv6(text, bits), text);
+			assertEquals(text, IpAddresses.formatIpv6(bits[0], bits[1]));
+		}
+		assertTrue(IpAddresses.parseIpv6("::ffff:192.0.2.1", bits));
+		assertEquals(0L, bits[0]);
+		assertEquals(0xffffc0000201L, bits[1]);
+		IpAddresses.parseIpv6("2001:0DB8:0000:0000:0000:0000:0000:0001", bits);
+		assertEquals(0x20010db800000000L, bits[0]);
+		assertEquals(1L, bits[1]);
+		for (var text : List.of("", ":", ":::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", "12345::", "g::")) {
+			assertFalse(IpAddresses.parseIpv6(text, bits), text);
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void dictionariesAssignDenseIds() {
+		var strings = new StringDictionary();
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(i, strings.idOf("value-" + i));
+		}
+		assertEquals(17, strings.idOf("value-17"));
+		assertEquals(strings.idOf(""), strings.idOf(null));
+
+		var ipAddresses = new IpDictionary();
+		int id = ipAddresses.idOf("192.0.2.1");
+		assertEquals(id, ipAddresses.idOf("192.000.002.001"));
+		assertEquals(ipAddresses.idOf("2001:db8::1"), ipAddresses.idOf("2001:DB8:0:0:0:0:0:1"));
+		assertNotEquals(id, ipAddresses.idOf("unknown"));
+		assertEquals(3, ipAddresses.size());
+		assertEquals(IpDictionary.KIND_OTHER, ipAddresses.kind(ipAddresses.idOf("unknown")));
+
+		// Truncation forgets the newest entries and keeps finding the rest:
+		strings.truncate(500);
+		assertEquals(500, strings.size());
+		for (int i = 0; i < 500; ++i) {
+			assertEquals(i, strings.idOf("value-" + i));
+		}
+		assertEquals(500, strings.idOf("value-999"));
+		for (int i = 0; i < 300; ++i) {
+			ipAddresses.idOf("198.51.100.%1$d".formatted(i % 256));
+			ipAddresses.idOf("2001:db8::%1$x".formatted(i));
+			ipAddresses.idOf("other-" + i);
+		}
+		ipAddresses.truncate(2);
+		assertEquals(2, ipAddresses.size());
+		assertEquals(id, ipAddresses.idOf("192.0.2.1"));
+		assertEquals(2, ipAddresses.idOf("unknown"));
+		assertEquals(3, ipAddresses.idOf("other-0"));
+		assertEquals(4, ipAddresses.idOf("198.51.100.0"));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void countsAreWeightedByRowCount() throws IOException {
+		var xml = TestReports.exampleXml();
+		var feedback = parse(xml
+			.replaceFirst("<count>1</count>", "<count>3</count>")
+			.replaceFirst("<count>1</count>", "<count>5</count>")
+			.replaceFirst("(?s)(<source_ip>136\\.143\\.184\\.19</source_ip>.*?<disposition>)none",
+				"$1quarantine"));
+		var resent = parse(xml.replace("136.143.184.19", "136.143.188.12"));
+
+		var aggregator = new ReportAggregator(List.of(Dimension.ORG_NAME, Dimension.SOURCE_IP));
+		aggregator.add(feedback);
+		aggregator.add(resent);
+		assertEquals(4, aggregator.numRecords());
+		assertEquals(2, aggregator.numGroups());
+
+		List<String> groups = new ArrayList<>();
+		aggregator.forEachGroup(List.of(Dimension.SOURCE_IP), (values, measures) -> groups.add(
+			"%1$s %2$s %3$d %4$d %5$d %6$d".formatted(values[0], values[1],
+				measures[Measure.MESSAGES.ordinal()],
+				measures[Measure.DISPOSITION_NONE.ordinal()],
+				measures[Measure.DISPOSITION_QUARANTINE.ordinal()],
+				measures[Measure.DKIM_PASS.ordinal()])));
+		assertEquals(List.of(
+			"Outlook.com 136.143.184.19 5 0 5 5",
+			"Outlook.com 136.143.188.12 5 5 0 5"), groups);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void missingElementsAreGroupedAsEmpty() {
+		var feedback = new Feedback();
+		feedback.getRecord().add(new RecordType());
+		var dimensions = Stream.of(Dimension.values())
+			.filter(dimension -> dimension != Dimension.SOURCE_ASN)
+			.toList();
+		var aggregator = new ReportAggregator(dimensions);
+		aggregator.add(feedback);
+		aggregator.add(feedback);
+		assertEquals(2, aggregator.numRecords());
+		assertEquals(1, aggregator.numGroups());
+	}
+
+	private static Feedback parse(String xml) {
+		return ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(new StringReader(xml));
+	}
+}
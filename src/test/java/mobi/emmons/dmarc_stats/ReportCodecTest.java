@@ -0,0 +1,157 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.MissingResourceException;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import mobi.emmons.dmarc_stats.generated.DKIMResultType;
+import mobi.emmons.dmarc_stats.generated.DispositionType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.SPFDomainScope;
+
+class ReportCodecTest {
+	private static final String EXAMPLE_XML = "example-dmarc-report.xml";
+	private static final String NAMESPACED_XML = "dmarc-report-fixed.xml";
+
+	@SuppressWarnings("static-method")
+	@Test
+	void staxParsesReportWithoutNamespace() throws IOException {
+		try (var is = getRsrcAsStream(EXAMPLE_XML)) {
+			var feedback = ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(is);
+			assertExampleContent(feedback);
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void staxParsesReportWithDefaultNamespace() throws IOException {
+		try (var is = getRsrcAsStream(NAMESPACED_XML)) {
+			var feedback = ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(is);
+			assertExampleContent(feedback);
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void staxParsesReportWithPrefixedNamespace() throws IOException {
+		var xml = getRsrcAsString(EXAMPLE_XML)
+			.replace("<feedback>", "<dmarc:feedback xmlns:dmarc=\"%1$s\">".formatted(DmarcReportStore.DMARC_NS))
+			.replace("</feedback>", "</dmarc:feedback>");
+		var feedback = ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(new StringReader(xml));
+		assertExampleContent(feedback);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void staxLeavesUnparseableValuesNull() {
+		var xml = """
+			<feedback>
+				<report_metadata><org_name>x</org_name><report_id>1</report_id>
+					<date_range><begin>abc</begin><end>2</end></date_range></report_metadata>
+				<policy_published><domain>d</domain><p>bogus</p><unknown><a/></unknown></policy_published>
+			</feedback>
+			""";
+		var feedback = ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(new StringReader(xml));
+		assertNull(feedback.getReportMetadata().getDateRange().getBegin());
+		assertEquals(2L, feedback.getReportMetadata().getDateRange().getEnd());
+		assertNull(feedback.getPolicyPublished().getP());
+		assertEquals("d", feedback.getPolicyPublished().getDomain());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void backendsAgree() throws IOException {
+		for (var rsrc : new String[] { EXAMPLE_XML, NAMESPACED_XML }) {
+			var xml = getRsrcAsString(rsrc);
+			var jaxbResult = ReportCodec.forBackend(ReportCodec.Backend.JAXB).parse(new StringReader(xml));
+			var staxResult = ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(new StringReader(xml));
+			assertEquals(describe(jaxbResult), describe(staxResult), rsrc);
+		}
+	}
+
+	private static void assertExampleContent(Feedback feedback) {
+		assertEquals("1.0", feedback.getVersion().toPlainString());
+		assertEquals("Outlook.com", feedback.getReportMetadata().getOrgName());
+		assertEquals("f66a125f6744464d962d2668a5049859", feedback.getReportMetadata().getReportId());
+		assertEquals(1696982400L, feedback.getReportMetadata().getDateRange().getBegin());
+		assertEquals("westinefamily.com", feedback.getPolicyPublished().getDomain());
+		assertEquals(DispositionType.NONE, feedback.getPolicyPublished().getP());
+		assertEquals(25L, feedback.getPolicyPublished().getPct());
+		assertEquals(2, feedback.getRecord().size());
+
+		var record = feedback.getRecord().getFirst();
+		assertEquals("136.143.188.12", record.getRow().getSourceIp());
+		assertEquals(1L, record.getRow().getCount());
+		assertEquals("hotmail.com", record.getIdentifiers().getEnvelopeTo());
+		assertEquals(1, record.getAuthResults().getDkim().size());
+		assertEquals("zmail", record.getAuthResults().getDkim().getFirst().getSelector());
+		assertEquals(DKIMResultType.PASS, record.getAuthResults().getDkim().getFirst().getResult());
+		assertEquals(SPFDomainScope.MFROM, record.getAuthResults().getSpf().getFirst().getScope());
+	}
+
+	private static String describe(Feedback feedback) {
+		var metadata = feedback.getReportMetadata();
+		var policy = feedback.getPolicyPublished();
+		var records = feedback.getRecord().stream()
+			.map(record -> String.join("|",
+				record.getRow().getSourceIp(),
+				String.valueOf(record.getRow().getCount()),
+				String.valueOf(record.getRow().getPolicyEvaluated().getDisposition()),
+				String.valueOf(record.getRow().getPolicyEvaluated().getDkim()),
+				String.valueOf(record.getRow().getPolicyEvaluated().getSpf()),
+				record.getIdentifiers().getEnvelopeFrom(),
+				record.getIdentifiers().getHeaderFrom(),
+				record.getAuthResults().getDkim().stream()
+					.map(dkim -> dkim.getDomain() + "/" + dkim.getSelector() + "/" + dkim.getResult())
+					.collect(Collectors.joining(",")),
+				record.getAuthResults().getSpf().stream()
+					.map(spf -> spf.getDomain() + "/" + spf.getScope() + "/" + spf.getResult())
+					.collect(Collectors.joining(","))))
+			.collect(Collectors.joining("\n"));
+		return String.join("\n",
+			String.valueOf(feedback.getVersion()),
+			metadata.getOrgName(),
+			metadata.getEmail(),
+			metadata.getReportId(),
+			String.valueOf(metadata.getDateRange().getBegin()),
+			String.valueOf(metadata.getDateRange().getEnd()),
+			policy.getDomain(),
+			String.valueOf(policy.getAdkim()),
+			String.valueOf(policy.getAspf()),
+			String.valueOf(policy.getP()),
+			String.valueOf(policy.getSp()),
+			String.valueOf(policy.getPct()),
+			policy.getFo(),
+			records);
+	}
+
+	private static InputStream getRsrcAsStream(String rsrcName) {
+		var cl = Thread.currentThread().getContextClassLoader();
+		var is = cl.getResourceAsStream(rsrcName);
+		if (is == null) {
+			throw new MissingResourceException("Unable to load resource", null, rsrcName);
+		}
+		return is;
+	}
+
+	private static String getRsrcAsString(String rsrcName) throws IOException {
+		try (
+			var is = getRsrcAsStream(rsrcName);
+			var rdr = new InputStreamReader(is, StandardCharsets.UTF_8);
+			var wtr = new StringWriter();
+		) {
+			rdr.transferTo(wtr);
+			return wtr.toString();
+		}
+	}
+}
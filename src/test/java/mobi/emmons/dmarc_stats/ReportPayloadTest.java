@@ -0,0 +1,102 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+class ReportPayloadTest {
+	private static final String XML = "<feedback><version>1.0</version></feedback>";
+
+	@SuppressWarnings("static-method")
+	@Test
+	void gzipPayloadSpillsAboveThreshold() throws IOException {
+		var gzipBytes = TestReports.gzip(XML);
+		try (var inMemory = ReportPayload.capture(new ByteArrayInputStream(gzipBytes),
+				ReportPayload.Compression.GZIP, gzipBytes.length)) {
+			assertFalse(inMemory.isSpilled());
+			assertEquals(XML, inMemory.readXml());
+		}
+
+		var spilled = ReportPayload.capture(new ByteArrayInputStream(gzipBytes),
+			ReportPayload.Compression.GZIP, gzipBytes.length - 1);
+		assertTrue(spilled.isSpilled());
+		assertEquals(gzipBytes.length, spilled.compressedSize());
+		assertEquals(XML, spilled.readXml());
+		assertEquals(XML, spilled.readXml());
+		spilled.close();
+		assertThrows(IOException.class, spilled::openXml);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void zipPayloadStreamsTheXmlEntry() throws IOException {
+		try (var payload = ReportPayload.capture(new ByteArrayInputStream(zip("report.xml")),
+				ReportPayload.Compression.ZIP)) {
+			assertEquals(1, payload.numXmlFiles());
+			assertEquals(XML, payload.readXml());
+		}
+		try (var payload = ReportPayload.capture(new ByteArrayInputStream(zip("a.xml", "b.xml")),
+				ReportPayload.Compression.ZIP)) {
+			assertEquals(2, payload.numXmlFiles());
+		}
+		assertThrows(UnexpectedMessageFormatException.class, () -> ReportPayload.capture(
+			new ByteArrayInputStream(zip("report.xml", "readme.txt")), ReportPayload.Compression.ZIP));
+
+		// The entries are counted from the central directory, spilled or not:
+		var zipBytes = zip("a.xml", "b.xml", "c.xml");
+		try (var payload = ReportPayload.capture(new ByteArrayInputStream(zipBytes),
+				ReportPayload.Compression.ZIP, 16)) {
+			assertTrue(payload.isSpilled());
+			assertEquals(3, payload.numXmlFiles());
+		}
+		var truncated = Arrays.copyOf(zipBytes, zipBytes.length - 10);
+		assertThrows(UnexpectedMessageFormatException.class, () -> ReportPayload.capture(
+			new ByteArrayInputStream(truncated), ReportPayload.Compression.ZIP));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void gzipOutputKeepsOriginalBytes() throws IOException {
+		var gzipBytes = TestReports.gzip(XML);
+		try (var payload = ReportPayload.capture(new ByteArrayInputStream(gzipBytes),
+				ReportPayload.Compression.GZIP)) {
+			var os = new ByteArrayOutputStream();
+			payload.writeGzipTo(os);
+			assertArrayEquals(gzipBytes, os.toByteArray());
+		}
+
+		try (var payload = ReportPayload.capture(new ByteArrayInputStream(zip("report.xml")),
+				ReportPayload.Compression.ZIP)) {
+			var os = new ByteArrayOutputStream();
+			payload.writeGzipTo(os);
+			try (var is = new GZIPInputStream(new ByteArrayInputStream(os.toByteArray()))) {
+				assertEquals(XML, new String(is.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private static byte[] zip(String... entryNames) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var os = new ZipOutputStream(bytes)) {
+			for (var entryName : entryNames) {
+				os.putNextEntry(new ZipEntry(entryName));
+				os.write(XML.getBytes(StandardCharsets.UTF_8));
+				os.closeEntry();
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,135 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.MissingResourceException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+class ReportSnapshotTest {
+	private static final String EXAMPLE_XML = "example-dmarc-report.xml";
+
+	@TempDir
+	Path storageDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void binaryCodecRoundTrips() throws IOException {
+		try (var is = getRsrcAsStream(EXAMPLE_XML)) {
+			var original = ReportCodec.forBackend(ReportCodec.Backend.STAX).parse(is);
+			var copy = FeedbackBinaryCodec.decode(ByteBuffer.wrap(FeedbackBinaryCodec.encode(original)));
+			assertEquals(original.getVersion(), copy.getVersion());
+			assertEquals(original.getReportMetadata().getReportId(), copy.getReportMetadata().getReportId());
+			assertEquals(original.getReportMetadata().getDateRange().getEnd(),
+				copy.getReportMetadata().getDateRange().getEnd());
+			assertEquals(original.getPolicyPublished().getSp(), copy.getPolicyPublished().getSp());
+			assertEquals(original.getRecord().size(), copy.getRecord().size());
+			for (int i = 0; i < original.getRecord().size(); ++i) {
+				var expected = original.getRecord().get(i);
+				var actual = copy.getRecord().get(i);
+				assertEquals(expected.getRow().getSourceIp(), actual.getRow().getSourceIp());
+				assertEquals(expected.getRow().getPolicyEvaluated().getDkim(),
+					actual.getRow().getPolicyEvaluated().getDkim());
+				assertEquals(expected.getIdentifiers().getHeaderFrom(), actual.getIdentifiers().getHeaderFrom());
+				assertEquals(expected.getAuthResults().getDkim().getFirst().getSelector(),
+					actual.getAuthResults().getDkim().getFirst().getSelector());
+				assertEquals(expected.getAuthResults().getSpf().getFirst().getResult(),
+					actual.getAuthResults().getSpf().getFirst().getResult());
+			}
+		}
+	}
+
+	@Test
+	void snapshotDetectsStaleEntries() throws IOException {
+		var snapshotFile = storageDir.resolve(ReportSnapshot.FILE_NAME);
+		try (var writer = ReportSnapshot.newWriter(snapshotFile)) {
+			writer.add("a/dmarc-1.xml", 100, 5000, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+			writer.add("dmarc-2.xml", 200, 6000, ByteBuffer.wrap(new byte[] { 4 }));
+			writer.commit();
+		}
+
+		var snapshot = ReportSnapshot.open(snapshotFile);
+		assertEquals(2, snapshot.size());
+		var entry = snapshot.get("a/dmarc-1.xml", 100, 5000);
+		assertNotNull(entry);
+		assertEquals(3, entry.remaining());
+		assertEquals(3, entry.get(2));
+		assertNull(snapshot.get("a/dmarc-1.xml", 101, 5000));
+		assertNull(snapshot.get("dmarc-2.xml", 200, 6001));
+		assertNull(snapshot.get("dmarc-3.xml", 200, 6000));
+
+		// An uncommitted writer must leave the old snapshot alone:
+		try (var writer = ReportSnapshot.newWriter(snapshotFile)) {
+			writer.add("dmarc-9.xml", 1, 1, ByteBuffer.wrap(new byte[] { 9 }));
+		}
+		assertEquals(2, ReportSnapshot.open(snapshotFile).size());
+	}
+
+	@Test
+	void storeReparsesOnlyChangedFiles() throws IOException {
+		var reportFile = storageDir.resolve("dmarc-example.xml");
+		try (var is = getRsrcAsStream(EXAMPLE_XML)) {
+			Files.copy(is, reportFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		var store = new DmarcReportStore(storageDir.toFile(), "host", "user", "password", "folder")
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withSnapshot(true);
+		var coldReports = load(store);
+		assertEquals(1, coldReports.size());
+		var pendingFile = storageDir.resolve(ReportSnapshot.FILE_NAME + ".new");
+		assertTrue(Files.isRegularFile(pendingFile));
+
+		// Make the XML unparseable but keep its size and time stamp, proving the
+		// warm load comes from the snapshot:
+		var lastModified = Files.getLastModifiedTime(reportFile);
+		var size = Files.size(reportFile);
+		Files.write(reportFile, new byte[(int) size]);
+		Files.setLastModifiedTime(reportFile, lastModified);
+		var warmReports = load(store);
+		assertEquals(1, warmReports.size());
+		assertEquals("Outlook.com", warmReports.getFirst().getReportMetadata().getOrgName());
+		// The warm load promotes the pending snapshot and writes no new one:
+		assertTrue(Files.isRegularFile(storageDir.resolve(ReportSnapshot.FILE_NAME)));
+		assertFalse(Files.exists(pendingFile));
+
+		// Once the time stamp changes, the (now broken) file must be re-parsed:
+		Files.setLastModifiedTime(reportFile, FileTime.fromMillis(lastModified.toMillis() + 1000));
+		List<Feedback> reports = new ArrayList<>();
+		var result = store.loadDownloadedReports(reports::add);
+		assertEquals(0, reports.size());
+		assertEquals(1, result.failures().size());
+	}
+
+	private static List<Feedback> load(DmarcReportStore store) throws IOException {
+		List<Feedback> reports = new ArrayList<>();
+		var result = store.loadDownloadedReports(reports::add);
+		assertEquals(0, result.failures().size());
+		return reports;
+	}
+
+	private static InputStream getRsrcAsStream(String rsrcName) {
+		var cl = Thread.currentThread().getContextClassLoader();
+		var is = cl.getResourceAsStream(rsrcName);
+		if (is == null) {
+			throw new MissingResourceException("Unable to load resource", null, rsrcName);
+		}
+		return is;
+	}
+}
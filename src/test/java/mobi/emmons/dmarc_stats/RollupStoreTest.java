@@ -0,0 +1,123 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jakarta.mail.MessagingException;
+import mobi.emmons.dmarc_stats.RollupStore.Granularity;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+class RollupStoreTest {
+	@TempDir
+	Path storageDir;
+
+	@Test
+	void rollupsAreBuiltAndUpdatedIncrementally() throws IOException, MessagingException {
+		writeReport("a", "2023-10-09T00:00:00Z", 3);	// Monday
+		writeReport("b", "2023-10-11T00:00:00Z", 5);	// Wednesday of the same week
+		assertEquals(2, forEachReport(DateWindow.ALL).size());
+
+		var rollups = RollupStore.open(storageDir);
+		assertEquals(2, rollups.numReports());
+		var days = rollups.rows(Granularity.DAY, DateWindow.ALL);
+		assertEquals(4, days.size());
+		assertEquals(LocalDate.parse("2023-10-09"), days.get(0).periodStart());
+		assertEquals("136.143.184.19", days.get(0).sourceIp());
+		assertEquals(1, days.get(0).numMessages());
+		assertEquals("westinefamily.com", days.get(0).policyDomain());
+		assertEquals("Outlook.com", days.get(0).orgName());
+		assertEquals("none", days.get(0).disposition());
+		assertEquals("pass", days.get(0).dkim());
+
+		var weeks = rollups.rows(Granularity.WEEK, DateWindow.ALL);
+		assertEquals(2, weeks.size());
+		assertEquals(LocalDate.parse("2023-10-09"), weeks.get(1).periodStart());
+		assertEquals("136.143.188.12", weeks.get(1).sourceIp());
+		assertEquals(8, weeks.get(1).numMessages());
+		assertEquals(2, weeks.get(1).numRecords());
+
+		// Reloading the same reports, or a resent one, changes nothing:
+		Files.copy(storageDir.resolve("dmarc-b.xml"), storageDir.resolve("dmarc-b-resent.xml"));
+		assertEquals(3, forEachReport(DateWindow.ALL).size());
+		assertEquals(weeks, RollupStore.open(storageDir).rows(Granularity.WEEK, DateWindow.ALL));
+
+		writeReport("c", "2023-10-16T12:00:00Z", 7);
+		forEachReport(DateWindow.ALL);
+		rollups = RollupStore.open(storageDir);
+		assertEquals(3, rollups.numReports());
+		assertEquals(4, rollups.rows(Granularity.WEEK, DateWindow.ALL).size());
+		var window = DateWindow.ofDays(LocalDate.parse("2023-10-11"), LocalDate.parse("2023-10-12"));
+		assertEquals(2, rollups.rows(Granularity.WEEK, window).size());
+		assertEquals(2, rollups.rows(Granularity.DAY, window).size());
+	}
+
+	@Test
+	void malformedRollupsAreRebuilt() throws IOException, MessagingException {
+		writeReport("a", "2023-10-09T00:00:00Z", 3);
+		forEachReport(DateWindow.ALL);
+		var dayFile = storageDir.resolve(RollupStore.DIR_NAME).resolve("day.csv");
+		Files.writeString(dayFile, "Period Start\nnot-a-date\n");
+		assertTrue(RollupStore.open(storageDir).isEmpty());
+
+		// An unterminated quote makes the CSV parser itself fail:
+		Files.writeString(dayFile, "Period Start\n\"2023-10-09\n");
+		assertTrue(RollupStore.open(storageDir).isEmpty());
+		forEachReport(DateWindow.ofDays(LocalDate.parse("2024-01-01"), null));
+		var rollups = RollupStore.open(storageDir);
+		assertFalse(rollups.isEmpty());
+		assertEquals(2, rollups.numRows(Granularity.DAY));
+	}
+
+	@Test
+	void reportsWithoutMetadataAreNotCounted() throws IOException, MessagingException {
+		writeReport("a", "2023-10-09T00:00:00Z", 3);
+		Files.writeString(storageDir.resolve("dmarc-bare.xml"), "<feedback><version>1.0</version></feedback>");
+		assertEquals(2, forEachReport(DateWindow.ALL).size());
+		assertEquals(1, RollupStore.open(storageDir).numReports());
+		assertFalse(RollupStore.open(storageDir).add(new Feedback()));
+	}
+
+	@Test
+	void syncBuildsMissingRollupsWithoutReparsingTheStore() throws IOException, MessagingException {
+		writeReport("a", "2023-10-09T00:00:00Z", 3);
+		var store = new DmarcReportStore(storageDir.toFile())
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withRollups(true);
+		store.syncNewReports();
+		assertEquals(1, RollupStore.open(storageDir).numReports());
+
+		// Once the rollups exist, stored reports are no longer read:
+		writeReport("b", "2023-10-11T00:00:00Z", 5);
+		store.syncNewReports();
+		assertEquals(1, RollupStore.open(storageDir).numReports());
+	}
+
+	private List<Feedback> forEachReport(DateWindow window) throws IOException, MessagingException {
+		List<Feedback> reports = new ArrayList<>();
+		new DmarcReportStore(storageDir.toFile())
+			.withParserBackend(ReportCodec.Backend.STAX)
+			.withRollups(true)
+			.forEachReport(window, reports::add);
+		return reports;
+	}
+
+	private void writeReport(String reportId, String begin, int firstCount) throws IOException {
+		var xml = TestReports.exampleXml()
+			.replace(TestReports.EXAMPLE_REPORT_ID, reportId)
+			.replace(TestReports.EXAMPLE_BEGIN, Long.toString(Instant.parse(begin).getEpochSecond()))
+			.replaceFirst("<count>1</count>", "<count>%1$d</count>".formatted(firstCount));
+		Files.writeString(storageDir.resolve("dmarc-%1$s.xml".formatted(reportId)), xml);
+	}
+}
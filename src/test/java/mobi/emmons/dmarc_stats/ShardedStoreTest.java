@@ -0,0 +1,74 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+
+class ShardedStoreTest {
+	@TempDir
+	Path storageDir;
+
+	@Test
+	void migrationShardsReportsByBeginDate() throws IOException {
+		writeFlatReport("a", "2025-01-01T06:00:00Z");
+		writeFlatReport("b", "2025-01-02T00:00:00Z");
+		writeFlatReport("c", "2025-02-15T23:59:59Z");
+
+		var store = new DmarcReportStore(storageDir.toFile())
+			.withParserBackend(ReportCodec.Backend.STAX);
+		var result = store.migrateToShardedLayout();
+		assertEquals(3, result.numLoaded());
+		assertEquals(0, result.failures().size());
+		assertFalse(Files.exists(storageDir.resolve("dmarc-a.xml")));
+		assertTrue(Files.isRegularFile(storageDir.resolve("2025/01/01/dmarc-a.xml")));
+		assertTrue(Files.isRegularFile(storageDir.resolve("2025/02/15/dmarc-c.xml")));
+
+		var manifest = ShardManifest.load(storageDir.resolve("2025/01/02"));
+		assertTrue(manifest.exists());
+		var entry = manifest.get("dmarc-b.xml");
+		assertEquals("b", entry.reportId());
+		assertEquals("Outlook.com", entry.orgName());
+		assertEquals(Instant.parse("2025-01-02T00:00:00Z").getEpochSecond(), entry.begin());
+
+		assertEquals(3, store.getDownloadedReports().size());
+		assertEquals(List.of("b"), reportIds(store,
+			DateWindow.ofDays(LocalDate.parse("2025-01-02"), LocalDate.parse("2025-02-01"))));
+		assertEquals(List.of("a", "b"), reportIds(store,
+			DateWindow.ofDays(null, LocalDate.parse("2025-01-03"))));
+
+		// A flat file left behind is still found, and filtered after parsing:
+		writeFlatReport("d", "2025-01-02T12:00:00Z");
+		assertEquals(List.of("b", "d"), reportIds(store,
+			DateWindow.ofDays(LocalDate.parse("2025-01-02"), LocalDate.parse("2025-01-03"))));
+	}
+
+	private void writeFlatReport(String reportId, String begin) throws IOException {
+		var xml = TestReports.exampleXml()
+			.replace(TestReports.EXAMPLE_REPORT_ID, reportId)
+			.replace(TestReports.EXAMPLE_BEGIN, Long.toString(Instant.parse(begin).getEpochSecond()));
+		Files.writeString(storageDir.resolve("dmarc-%1$s.xml".formatted(reportId)), xml);
+	}
+
+	private static List<String> reportIds(DmarcReportStore store, DateWindow window) throws IOException {
+		List<Feedback> reports = new ArrayList<>();
+		var result = store.loadDownloadedReports(window, reports::add);
+		assertEquals(reports.size(), result.numLoaded());
+		return reports.stream()
+			.map(feedback -> feedback.getReportMetadata().getReportId())
+			.sorted()
+			.toList();
+	}
+}
@@ -0,0 +1,137 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.PolicyPublishedType;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+
+class SketchStoreTest {
+	@TempDir
+	Path storageDir;
+
+	@SuppressWarnings("static-method")
+	@Test
+	void hyperLogLogEstimatesAndMergesDistinctCounts() throws IOException {
+		var lhs = new HyperLogLog();
+		var rhs = new HyperLogLog();
+		for (long i = 0; i < 60_000; ++i) {
+			lhs.addHash(HyperLogLog.mix64(i));
+			lhs.addHash(HyperLogLog.mix64(i));
+		}
+		for (long i = 40_000; i < 100_000; ++i) {
+			rhs.addHash(HyperLogLog.mix64(i));
+		}
+		assertWithin(60_000, lhs.estimate(), 0.05);
+		lhs.merge(rhs);
+		assertWithin(100_000, lhs.estimate(), 0.05);
+
+		var small = new HyperLogLog();
+		for (long i = 0; i < 100; ++i) {
+			small.addHash(HyperLogLog.mix64(i));
+		}
+		assertWithin(100, small.estimate(), 0.02);
+
+		var bytes = new ByteArrayOutputStream();
+		lhs.writeTo(new DataOutputStream(bytes));
+		assertEquals(lhs.estimate(), HyperLogLog.readFrom(ByteBuffer.wrap(bytes.toByteArray())).estimate());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	void spaceSavingFindsTheHeavyHitters() throws IOException {
+		var random = new Random(42);
+		var lhs = new SpaceSaving(20);
+		var rhs = new SpaceSaving(20);
+		for (int i = 0; i < 20_000; ++i) {
+			// A few heavy senders amid many light ones:
+			var sketch = (i % 2 == 0) ? lhs : rhs;
+			if (i % 4 < 2) {
+				sketch.add("heavy-" + (i % 20) / 4, 1);
+			} else {
+				sketch.add("light-" + random.nextInt(5_000), 1);
+			}
+		}
+		lhs.merge(rhs);
+		assertEquals(20_000, lhs.totalWeight());
+		var top = lhs.top(5);
+		assertEquals(List.of("heavy-0", "heavy-1", "heavy-2", "heavy-3", "heavy-4"),
+			top.stream().map(SpaceSaving.Entry::item).sorted().toList());
+		for (var entry : top) {
+			assertTrue(entry.count() >= 2_000, entry.toString());
+			assertTrue(entry.count() - entry.error() <= 2_000, entry.toString());
+		}
+
+		var bytes = new ByteArrayOutputStream();
+		lhs.writeTo(new DataOutputStream(bytes));
+		var copy = SpaceSaving.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+		assertEquals(lhs.top(20), copy.top(20));
+		assertEquals(lhs.minCount(), copy.minCount());
+	}
+
+	@Test
+	void storeCountsEachReportOnceAndPersists() throws IOException {
+		var store = SketchStore.open(storageDir);
+		assertTrue(store.isEmpty());
+		assertTrue(store.add(report("a", "google.com", "192.0.2.1", 10, "192.0.2.2", 1)));
+		assertFalse(store.add(report("a", "google.com", "192.0.2.1", 10, "192.0.2.2", 1)));
+		assertTrue(store.add(report("b", "Yahoo", "2001:DB8::1", 7, " 192.0.2.001 ", 4)));
+		assertFalse(store.add(new Feedback()));
+		store.save();
+
+		var reopened = SketchStore.open(storageDir);
+		assertEquals(2, reopened.numReports());
+		assertFalse(reopened.add(report("b", "Yahoo", "192.0.2.3", 1, "192.0.2.4", 1)));
+		var domain = reopened.byPolicyDomain().get("example.com");
+		assertEquals(3, domain.numDistinctSourceIps());
+		assertEquals(22, domain.numMessages());
+		assertEquals(List.of(new SpaceSaving.Entry("192.0.2.1", 14, 0),
+			new SpaceSaving.Entry("2001:db8::1", 7, 0)), domain.topSenders(2));
+		assertEquals(List.of("Yahoo", "google.com"), List.copyOf(reopened.byOrgName().keySet()));
+		assertEquals(11, reopened.byOrgName().get("Yahoo").numMessages());
+	}
+
+	private static void assertWithin(long expected, long actual, double tolerance) {
+		assertTrue(Math.abs(actual - expected) <= tolerance * expected,
+			"Estimate %1$d is not within %2$.0f%% of %3$d".formatted(actual, 100 * tolerance, expected));
+	}
+
+	private static Feedback report(String reportId, String orgName, String ip1, long count1, String ip2,
+			long count2) {
+		var metadata = new ReportMetadataType();
+		metadata.setReportId(reportId);
+		metadata.setOrgName(orgName);
+		var policy = new PolicyPublishedType();
+		policy.setDomain("example.com");
+		var feedback = new Feedback();
+		feedback.setReportMetadata(metadata);
+		feedback.setPolicyPublished(policy);
+		feedback.getRecord().add(record(ip1, count1));
+		feedback.getRecord().add(record(ip2, count2));
+		return feedback;
+	}
+
+	private static RecordType record(String sourceIp, long count) {
+		var row = new RowType();
+		row.setSourceIp(sourceIp);
+		row.setCount(count);
+		var record = new RecordType();
+		record.setRow(row);
+		return record;
+	}
+}
@@ -0,0 +1,103 @@
+package mobi.emmons.dmarc_stats;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import mobi.emmons.dmarc_stats.generated.DMARCResultType;
+import mobi.emmons.dmarc_stats.generated.Feedback;
+import mobi.emmons.dmarc_stats.generated.PolicyEvaluatedType;
+import mobi.emmons.dmarc_stats.generated.PolicyPublishedType;
+import mobi.emmons.dmarc_stats.generated.RecordType;
+import mobi.emmons.dmarc_stats.generated.ReportMetadataType;
+import mobi.emmons.dmarc_stats.generated.RowType;
+
+class StatsServerTest {
+	@SuppressWarnings("static-method")
+	@Test
+	void statisticsAreServedAndRefreshedOnIngest() throws IOException, InterruptedException {
+		try (var server = new StatsServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+				var client = HttpClient.newHttpClient()) {
+			server.add(report("r1", "google.com", "example.com",
+				record("136.143.188.12", 3, DMARCResultType.PASS, DMARCResultType.PASS),
+				record("10.0.0.1", 1, DMARCResultType.FAIL, DMARCResultType.PASS)));
+			server.add(report("r2", "Yahoo", "example.com",
+				record("8.8.8.8", 2, DMARCResultType.PASS, DMARCResultType.FAIL)));
+			server.reportsChanged();
+			server.start();
+
+			assertEquals("""
+				Policy Domain,Messages,DKIM Pass,DKIM Fail,SPF Pass,SPF Fail,DKIM Pass Rate,SPF Pass Rate\r
+				example.com,6,5,1,4,2,0.8333333333333334,0.6666666666666666\r
+				""", get(client, server, "/domains?format=csv").body());
+			assertEquals("""
+				[
+				{"Org. Name":"google.com","Source IP":"136.143.188.12","Messages":3,"DKIM Pass":3,"SPF Pass":3}
+				]
+				""", get(client, server, "/top-ips?org=Google.com&limit=1").body());
+			var records = get(client, server, "/records?ip=10.0.0.0/8").body();
+			assertTrue(records.contains("\"Report ID\":\"r1\""));
+			assertTrue(records.contains("\"Source IP\":\"10.0.0.1\""));
+			assertEquals(3, records.lines().count());
+
+			// Responses are cached until new reports are published:
+			var first = get(client, server, "/domains");
+			server.add(report("r3", "Yahoo", "example.org",
+				record("8.8.4.4", 5, DMARCResultType.FAIL, DMARCResultType.FAIL)));
+			assertEquals(first.body(), get(client, server, "/domains").body());
+			server.reportsChanged();
+			var second = get(client, server, "/domains").body();
+			assertTrue(second.contains("\"Policy Domain\":\"example.org\",\"Messages\":5"));
+			assertTrue(second.contains("\"DKIM Pass Rate\":0.0"));
+
+			assertEquals(400, get(client, server, "/records?limit=0").statusCode());
+			assertEquals(400, get(client, server, "/domains?format=xml").statusCode());
+			assertEquals(400, get(client, server, "/domains?from=yesterday").statusCode());
+			assertEquals(404, get(client, server, "/domainsx").statusCode());
+			assertEquals(3, server.numReports());
+		}
+	}
+
+	private static HttpResponse<String> get(HttpClient client, StatsServer server, String pathAndQuery)
+			throws IOException, InterruptedException {
+		var request = HttpRequest.newBuilder(URI.create("http://localhost:%1$d%2$s".formatted(
+			server.port(), pathAndQuery))).build();
+		return client.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private static Feedback report(String reportId, String orgName, String domain, RecordType... records) {
+		var metadata = new ReportMetadataType();
+		metadata.setReportId(reportId);
+		metadata.setOrgName(orgName);
+		var policy = new PolicyPublishedType();
+		policy.setDomain(domain);
+		var feedback = new Feedback();
+		feedback.setReportMetadata(metadata);
+		feedback.setPolicyPublished(policy);
+		feedback.getRecord().addAll(List.of(records));
+		return feedback;
+	}
+
+	private static RecordType record(String sourceIp, long count, DMARCResultType dkim, DMARCResultType spf) {
+		var policyEvaluated = new PolicyEvaluatedType();
+		policyEvaluated.setDkim(dkim);
+		policyEvaluated.setSpf(spf);
+		var row = new RowType();
+		row.setSourceIp(sourceIp);
+		row.setCount(count);
+		row.setPolicyEvaluated(policyEvaluated);
+		var record = new RecordType();
+		record.setRow(row);
+		return record;
+	}
+}
@@ -0,0 +1,90 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Properties;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+
+/**
+ * Builds DMARC report messages and appends them to a folder of an in-process
+ * IMAP server, so that download tests need no live mail account.
+ */
+final class TestMailbox {
+	static final String USER = "dmarc@localhost";
+	static final String PASSWORD = "secret";
+	static final String FOLDER = "DMARC";
+
+	private TestMailbox() {}	// prevent instantiation
+
+	static MailAccount account(int imapPort) {
+		return new MailAccount("imap", "localhost", imapPort, USER, PASSWORD);
+	}
+
+	static void append(MailAccount account, Message... messages) throws MessagingException {
+		var store = MessageDownloader.connectToStore(account);
+		try {
+			var folder = store.getFolder(FOLDER);
+			if (!folder.exists()) {
+				folder.create(Folder.HOLDS_MESSAGES);
+			}
+			folder.appendMessages(messages);
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * @return A copy of the example report, with its report ID replaced by
+	 *         reportId, attached gzipped to a message sent at sentTime.
+	 */
+	static MimeMessage reportMessage(String reportId, Instant sentTime) throws MessagingException, IOException {
+		var xml = TestReports.exampleXml().replace(TestReports.EXAMPLE_REPORT_ID, reportId);
+
+		var attachment = new MimeBodyPart();
+		attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(TestReports.gzip(xml), "application/gzip")));
+		attachment.setFileName("example.com!example.org!1!2!%1$s.xml.gz".formatted(reportId));
+
+		var multipart = new MimeMultipart();
+		multipart.addBodyPart(textPart("This is a DMARC aggregate report."));
+		multipart.addBodyPart(attachment);
+		return message("Report Domain: example.org Report-ID: " + reportId, sentTime, multipart);
+	}
+
+	/**
+	 * @return A message without a report attachment, which fails to decode.
+	 */
+	static MimeMessage nonReportMessage(Instant sentTime) throws MessagingException {
+		var multipart = new MimeMultipart();
+		multipart.addBodyPart(textPart("Not a report at all."));
+		return message("Hello", sentTime, multipart);
+	}
+
+	private static MimeMessage message(String subject, Instant sentTime, MimeMultipart content)
+			throws MessagingException {
+		var message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setFrom(new InternetAddress("noreply-dmarc@example.com"));
+		message.setRecipients(Message.RecipientType.TO, USER);
+		message.setSubject(subject);
+		message.setSentDate(Date.from(sentTime));
+		message.setContent(content);
+		message.saveChanges();
+		return message;
+	}
+
+	private static MimeBodyPart textPart(String text) throws MessagingException {
+		var part = new MimeBodyPart();
+		part.setText(text);
+		return part;
+	}
+}
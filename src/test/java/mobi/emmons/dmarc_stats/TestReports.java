@@ -0,0 +1,39 @@
+package mobi.emmons.dmarc_stats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.MissingResourceException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The example report that tests copy and edit to build their own reports,
+ * along with the values they replace in it.
+ */
+final class TestReports {
+	static final String EXAMPLE_XML = "example-dmarc-report.xml";
+	static final String EXAMPLE_REPORT_ID = "f66a125f6744464d962d2668a5049859";
+	static final String EXAMPLE_BEGIN = "1696982400";
+	static final String EXAMPLE_DOMAIN = "westinefamily.com";
+
+	private TestReports() {}	// prevent instantiation
+
+	static String exampleXml() throws IOException {
+		var cl = Thread.currentThread().getContextClassLoader();
+		try (InputStream is = cl.getResourceAsStream(EXAMPLE_XML)) {
+			if (is == null) {
+				throw new MissingResourceException("Unable to load resource", null, EXAMPLE_XML);
+			}
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	static byte[] gzip(String text) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var os = new GZIPOutputStream(bytes)) {
+			os.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+}